@@ -0,0 +1,448 @@
+package simpledb;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * An equi-depth histogram over the values of a single field, of any type
+ * whose values are ordered, with a list of its most common values.
+ * <p>
+ * A fixed-width histogram spreads the tuples of a bucket evenly over its
+ * range, so a skewed field, where a few values account for most of the
+ * tuples, gets estimates that are far off. This histogram instead keeps the
+ * values that are much more frequent than the average, with their exact
+ * share of the tuples, and divides the other values into buckets holding
+ * about the same number of tuples each, so that dense ranges get narrow
+ * buckets. Within a bucket, the tuples are assumed to be spread over its
+ * range, as placed by {@link #below}, and evenly over its distinct values.
+ * <p>
+ * The values are kept in a reservoir sample of at most {@link #SAMPLE_SIZE}
+ * values, so the histogram is exact for smaller fields and takes constant
+ * space for larger ones. The buckets are built from the sample the first
+ * time an estimate is asked for. From then on, and for a histogram read back
+ * from a file, the sample is gone and values added or removed only change
+ * the count of their most common value or bucket, widening the nearest
+ * bucket to take a value outside of all of them.
+ * <p>
+ * {@link EquiDepthHistogram} keeps one over int fields, and
+ * {@link StringEquiDepthHistogram} one over string fields.
+ */
+abstract class AbstractEquiDepthHistogram<K extends Comparable<K>> {
+
+    /** The greatest number of values kept to build the buckets from */
+    public static final int SAMPLE_SIZE = 30000;
+
+    /**
+     * A value is a most common value if it is this many times more frequent
+     * than the average value
+     */
+    static final double MCV_FACTOR = 1.25;
+
+    private final int numBuckets;
+    private final int maxMcvs;
+    private final Random random = new Random(0);
+    private ArrayList<K> sample = new ArrayList<K>();
+    private long totalNum;
+    private boolean built;
+
+    // the most common values, in ascending order, with their estimated
+    // numbers of occurrences
+    private ArrayList<K> mcvs;
+    private double[] mcvCounts;
+    // the buckets, in ascending order: the range of values, the estimated
+    // number of values and the number of distinct values in each
+    private ArrayList<K> lows;
+    private ArrayList<K> highs;
+    private double[] counts;
+    private int[] distinct;
+
+    /**
+     * @param buckets
+     *            The number of buckets to split the values that are not most
+     *            common values into
+     * @param mcvs
+     *            The greatest number of most common values to keep
+     */
+    AbstractEquiDepthHistogram(int buckets, int mcvs) {
+        if (buckets < 1 || mcvs < 0)
+            throw new IllegalArgumentException("need at least one bucket and no negative number of common values");
+        this.numBuckets = buckets;
+        this.maxMcvs = mcvs;
+    }
+
+    /**
+     * @return the fraction of the values of the bucket from low to high, with
+     *         the given number of distinct values, that are less than v,
+     *         where low &lt; v &lt;= high
+     */
+    protected abstract double below(K v, K low, K high, int distinct);
+
+    protected abstract void writeKey(DataOutputStream out, K v) throws IOException;
+
+    protected abstract K readKey(DataInputStream in) throws IOException;
+
+    /**
+     * Called when the buckets are built, with the values of the sample that
+     * are not most common values, in ascending order.
+     */
+    protected void built(List<K> others) {
+    }
+
+    /** @return v as toString shows it */
+    protected String show(K v) {
+        return String.valueOf(v);
+    }
+
+    /**
+     * Add a value to the set of values that you are keeping a histogram of.
+     * @param v Value to add to the histogram
+     */
+    protected void add(K v) {
+        totalNum++;
+        if (built) {
+            sample = null;
+            count(v, 1);
+            return;
+        }
+        if (sample.size() < SAMPLE_SIZE) {
+            sample.add(v);
+            return;
+        }
+        // reservoir sampling: every value seen is kept with the same chance
+        long slot = (long) (random.nextDouble() * totalNum);
+        if (slot < SAMPLE_SIZE)
+            sample.set((int) slot, v);
+    }
+
+    /**
+     * Remove a value that was added before from the histogram. The buckets
+     * are built first if they have not been.
+     * @param v Value to remove from the histogram
+     */
+    protected void remove(K v) {
+        if (totalNum == 0)
+            return;
+        build();
+        sample = null;
+        totalNum--;
+        count(v, -1);
+    }
+
+    /**
+     * Changes the count of the most common value or the bucket of v by
+     * delta; a value outside of all the buckets widens the nearest one.
+     */
+    private void count(K v, int delta) {
+        int m = Collections.binarySearch(mcvs, v);
+        if (m >= 0) {
+            mcvCounts[m] = Math.max(0, mcvCounts[m] + delta);
+            return;
+        }
+        int i = bucketOf(v);
+        if (i < 0) {
+            if (delta < 0)
+                return;
+            if (lows.isEmpty()) {
+                lows.add(v);
+                highs.add(v);
+                counts = new double[] { delta };
+                distinct = new int[] { 1 };
+                return;
+            }
+            // the bucket below v, or the first one if v is below them all
+            i = 0;
+            while (i < lows.size() && lows.get(i).compareTo(v) < 0)
+                i++;
+            if (i > 0)
+                highs.set(--i, v);
+            else
+                lows.set(0, v);
+            distinct[i]++;
+        }
+        counts[i] = Math.max(0, counts[i] + delta);
+    }
+
+    /**
+     * @return the number of values added to this histogram, less those
+     *         removed
+     */
+    public long totalValues() {
+        return totalNum;
+    }
+
+    private void build() {
+        if (built)
+            return;
+        ArrayList<K> values = new ArrayList<K>(sample);
+        Collections.sort(values);
+        // the distinct values and how often each occurs in the sample
+        int n = 0;
+        ArrayList<K> keys = new ArrayList<K>();
+        int[] counts = new int[values.size()];
+        for (int i = 0; i < values.size(); i++) {
+            if (i == 0 || values.get(i).compareTo(values.get(i - 1)) != 0) {
+                keys.add(values.get(i));
+                n++;
+            }
+            counts[n - 1]++;
+        }
+
+        // the values that are much more frequent than the average one
+        boolean[] common = new boolean[n];
+        int numMcvs = 0, mcvTotal = 0;
+        if (n > 1 && maxMcvs > 0) {
+            Integer[] byCount = new Integer[n];
+            for (int i = 0; i < n; i++)
+                byCount[i] = i;
+            final int[] c = counts;
+            Arrays.sort(byCount, (a, b) -> c[b] - c[a]);
+            double threshold = MCV_FACTOR * values.size() / n;
+            for (int i = 0; i < n && numMcvs < maxMcvs; i++) {
+                int k = byCount[i];
+                if (counts[k] < 2 || counts[k] <= threshold)
+                    break;
+                common[k] = true;
+                numMcvs++;
+                mcvTotal += counts[k];
+            }
+        }
+        // the sample stands for all the values added
+        double scale = (double) totalNum / values.size();
+        mcvs = new ArrayList<K>(numMcvs);
+        mcvCounts = new double[numMcvs];
+        for (int i = 0; i < n; i++) {
+            if (common[i]) {
+                mcvCounts[mcvs.size()] = counts[i] * scale;
+                mcvs.add(keys.get(i));
+            }
+        }
+
+        // the other values, into buckets of about the same depth; a value
+        // is never split between two buckets
+        int rest = values.size() - mcvTotal;
+        double depth = (double) rest / numBuckets;
+        lows = new ArrayList<K>();
+        highs = new ArrayList<K>();
+        ArrayList<int[]> sizes = new ArrayList<int[]>();
+        ArrayList<K> others = new ArrayList<K>(rest);
+        int[] cur = null;
+        for (int i = 0; i < n; i++) {
+            if (common[i])
+                continue;
+            if (cur == null) {
+                // count, distinct
+                cur = new int[2];
+                lows.add(keys.get(i));
+                highs.add(keys.get(i));
+                sizes.add(cur);
+            }
+            highs.set(highs.size() - 1, keys.get(i));
+            cur[0] += counts[i];
+            cur[1]++;
+            for (int j = 0; j < counts[i]; j++)
+                others.add(keys.get(i));
+            if (cur[0] >= depth)
+                cur = null;
+        }
+        int b = sizes.size();
+        this.counts = new double[b];
+        distinct = new int[b];
+        for (int i = 0; i < b; i++) {
+            this.counts[i] = sizes.get(i)[0] * scale;
+            distinct[i] = sizes.get(i)[1];
+        }
+        built(others);
+        built = true;
+    }
+
+    /** @return the estimated fraction of the values equal to v */
+    protected double equal(K v) {
+        int m = Collections.binarySearch(mcvs, v);
+        if (m >= 0)
+            return mcvCounts[m] / totalNum;
+        int i = bucketOf(v);
+        return i < 0 ? 0 : counts[i] / distinct[i] / totalNum;
+    }
+
+    /** @return the estimated fraction of the values less than v */
+    private double less(K v) {
+        double c = 0;
+        for (int i = 0; i < mcvs.size() && mcvs.get(i).compareTo(v) < 0; i++)
+            c += mcvCounts[i];
+        for (int i = 0; i < lows.size() && lows.get(i).compareTo(v) < 0; i++) {
+            if (highs.get(i).compareTo(v) < 0)
+                c += counts[i];
+            else
+                c += counts[i] * below(v, lows.get(i), highs.get(i), distinct[i]);
+        }
+        return c / totalNum;
+    }
+
+    /**
+     * @return the estimated fraction of the values that are most common
+     *         values passing test
+     */
+    protected double common(java.util.function.Predicate<K> test) {
+        double c = 0;
+        for (int i = 0; i < mcvs.size(); i++)
+            if (test.test(mcvs.get(i)))
+                c += mcvCounts[i];
+        return c / totalNum;
+    }
+
+    /** @return the estimated fraction of the values in the buckets */
+    protected double bucketed() {
+        double c = 0;
+        for (double b : counts)
+            c += b;
+        return c / totalNum;
+    }
+
+    /** @return the bucket whose range holds v, or -1 */
+    private int bucketOf(K v) {
+        int lo = 0, hi = lows.size() - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (highs.get(mid).compareTo(v) < 0)
+                lo = mid + 1;
+            else if (lows.get(mid).compareTo(v) > 0)
+                hi = mid - 1;
+            else
+                return mid;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the estimated fraction of the values that LIKE v matches; the
+     *         values equal to v, unless overridden
+     */
+    protected double like(K v) {
+        return equal(v);
+    }
+
+    /**
+     * Estimate the selectivity of a particular predicate and operand on this table.
+     *
+     * @param op Operator
+     * @param v Value
+     * @return Predicted selectivity of this particular operator and value
+     */
+    protected double selectivity(Predicate.Op op, K v) {
+        if (totalNum == 0)
+            return 0;
+        build();
+        double s;
+        switch (op) {
+        case EQUALS:
+            s = equal(v);
+            break;
+        case LIKE:
+            s = like(v);
+            break;
+        case NOT_EQUALS:
+            s = 1 - equal(v);
+            break;
+        case LESS_THAN:
+            s = less(v);
+            break;
+        case LESS_THAN_OR_EQ:
+            s = less(v) + equal(v);
+            break;
+        case GREATER_THAN:
+            s = 1 - less(v) - equal(v);
+            break;
+        case GREATER_THAN_OR_EQ:
+            s = 1 - less(v);
+            break;
+        default:
+            return -1.0;
+        }
+        return Math.max(0, Math.min(1, s));
+    }
+
+    /**
+     * @return the expected fraction of the values that equal the value of a
+     *         random tuple
+     */
+    public double avgSelectivity() {
+        if (totalNum == 0)
+            return 1.0;
+        build();
+        double s = 0;
+        for (double c : mcvCounts)
+            s += (c / totalNum) * (c / totalNum);
+        for (int i = 0; i < counts.length; i++)
+            s += (counts[i] / totalNum) * (counts[i] / totalNum) / distinct[i];
+        return s;
+    }
+
+    /**
+     * Writes this histogram out, so that it can be read back with the read
+     * method of its class.
+     */
+    public void write(DataOutputStream out) throws IOException {
+        build();
+        out.writeInt(numBuckets);
+        out.writeInt(maxMcvs);
+        out.writeLong(totalNum);
+        out.writeInt(mcvs.size());
+        for (int i = 0; i < mcvs.size(); i++) {
+            writeKey(out, mcvs.get(i));
+            out.writeDouble(mcvCounts[i]);
+        }
+        out.writeInt(lows.size());
+        for (int i = 0; i < lows.size(); i++) {
+            writeKey(out, lows.get(i));
+            writeKey(out, highs.get(i));
+            out.writeDouble(counts[i]);
+            out.writeInt(distinct[i]);
+        }
+    }
+
+    /**
+     * Reads the rest of what {@link #write} wrote into a histogram created
+     * with the number of buckets and most common values it wrote first.
+     */
+    protected void readBody(DataInputStream in) throws IOException {
+        totalNum = in.readLong();
+        int n = in.readInt();
+        mcvs = new ArrayList<K>(n);
+        mcvCounts = new double[n];
+        for (int i = 0; i < n; i++) {
+            mcvs.add(readKey(in));
+            mcvCounts[i] = in.readDouble();
+        }
+        n = in.readInt();
+        lows = new ArrayList<K>(n);
+        highs = new ArrayList<K>(n);
+        counts = new double[n];
+        distinct = new int[n];
+        for (int i = 0; i < n; i++) {
+            lows.add(readKey(in));
+            highs.add(readKey(in));
+            counts[i] = in.readDouble();
+            distinct[i] = in.readInt();
+        }
+        sample = null;
+        built = true;
+    }
+
+    /**
+     * @return A string describing this histogram, for debugging purposes
+     */
+    public String toString() {
+        build();
+        StringBuilder sb = new StringBuilder("mcvs:");
+        for (int i = 0; i < mcvs.size(); i++)
+            sb.append(' ').append(show(mcvs.get(i))).append('=')
+                    .append(String.format("%.4f", mcvCounts[i] / totalNum));
+        sb.append(" buckets:");
+        for (int i = 0; i < lows.size(); i++)
+            sb.append(" [").append(show(lows.get(i))).append(',').append(show(highs.get(i))).append("]=")
+                    .append(String.format("%.4f", counts[i] / totalNum));
+        return sb.toString();
+    }
+}
@@ -6,6 +6,14 @@ import java.util.*;
  * The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
  * min). Note that we only support aggregates over a single column, grouped by a
  * single column.
+ * <p>
+ * The work is done by a {@link StreamAggregate} if the child is known to be
+ * sorted on the group field (see {@link SortOrder}), and otherwise by a
+ * {@link HashAggregate}, so an Aggregate with many groups spills to disk
+ * rather than running out of memory. An aggregate without grouping over a
+ * large heap file scan is split between threads by a
+ * {@link ParallelAggregate}. Use those operators directly to compute
+ * several aggregates or to group by several columns.
  */
 public class Aggregate extends Operator {
 
@@ -15,8 +23,8 @@ public class Aggregate extends Operator {
     private int afieldId;
     private int gfieldId;
     private Aggregator.Op aop;
-    private Aggregator aggregator;
-    private TupleIterator tupleIter;
+    private TupleDesc td;
+    private Operator impl;
     /**
      * Constructor.
      * 
@@ -45,20 +53,17 @@ public class Aggregate extends Operator {
         childDes = child.getTupleDesc();
         this.child = child;
 
-        Type afieldType = childDes.getFieldType(afield);
-        Type gfieldType;
+        if(childDes.getFieldType(afield)!=Type.INT_TYPE && aop!=Aggregator.Op.COUNT
+                && aop!=Aggregator.Op.APPROX_COUNT_DISTINCT){
+            throw new IllegalArgumentException("Only support 'COUNT' operator for string aggregator");
+        }
         if(gfield==Aggregator.NO_GROUPING){
-            gfieldType = null;
+            td = new TupleDesc(new Type[]{Type.INT_TYPE},
+                    new String[]{"aggregateVal"});
         } else{
-            gfieldType = childDes.getFieldType(gfield);
-        }
-
-        if(afieldType==Type.INT_TYPE){
-            aggregator = new IntegerAggregator(gfieldId,gfieldType,afield,aop);
-        }else{
-            aggregator = new StringAggregator(gfieldId,gfieldType,afield,aop);
+            td = new TupleDesc(new Type[]{childDes.getFieldType(gfield),Type.INT_TYPE},
+                    new String[]{"groupVal","aggregateVal"});
         }
-
     }
 
     /**
@@ -116,14 +121,21 @@ public class Aggregate extends Operator {
     public void open() throws NoSuchElementException, DbException,
 	    TransactionAbortedException {
 	// some code goes here
-        child.open();
-        while (child.hasNext()){
-            aggregator.mergeTupleIntoGroup(child.next());
+        int[] gfields = gfieldId==Aggregator.NO_GROUPING ? new int[0] : new int[]{gfieldId};
+        if(gfields.length==0 && ParallelAggregate.supports(child)
+                && ParallelAggregate.numPages(child)>=ParallelAggregate.MIN_PAGES){
+            // a single group can be computed by several threads
+            impl = new ParallelAggregate(child, gfields, new int[]{afieldId},
+                    new Aggregator.Op[]{aop});
+        } else if(gfields.length>0 && SortOrder.isGroupedOn(child,gfields)){
+            impl = new StreamAggregate(child, gfields, new int[]{afieldId},
+                    new Aggregator.Op[]{aop});
+        } else{
+            impl = new HashAggregate(child, gfields, new int[]{afieldId},
+                    new Aggregator.Op[]{aop});
         }
-        child.close();
+        impl.open();
         super.open();
-        tupleIter = (TupleIterator) aggregator.iterator();
-        tupleIter.open();
     }
 
     /**
@@ -135,16 +147,20 @@ public class Aggregate extends Operator {
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
 	// some code goes here
-        if(tupleIter.hasNext()){
-            return tupleIter.next();
-        }else{
+        if(!impl.hasNext()){
             return null;
         }
+        Tuple t = impl.next();
+        Tuple result = new Tuple(td);
+        for(int i=0;i<td.numFields();i++){
+            result.setField(i,t.getField(i));
+        }
+        return result;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
 	// some code goes here
-        tupleIter.rewind();
+        impl.rewind();
     }
 
     /**
@@ -160,12 +176,15 @@ public class Aggregate extends Operator {
      */
     public TupleDesc getTupleDesc() {
 	// some code goes here
-	return aggregator.getTupleDesc();
+	return td;
     }
 
     public void close() {
 	// some code goes here
-        tupleIter.close();
+        if(impl!=null){
+            impl.close();
+        }
+        impl = null;
         super.close();
     }
 
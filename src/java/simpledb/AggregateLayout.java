@@ -0,0 +1,261 @@
+package simpledb;
+
+import java.io.Serializable;
+
+/**
+ * AggregateLayout describes a list of aggregates computed together, and
+ * how their running state is packed into a single long[] slot per group.
+ * <p>
+ * Each aggregate owns a fixed range of the slot: COUNT, SUM, MIN and MAX
+ * take one long and AVG takes two (its sum and its count), so the average is
+ * only divided out when the result is read. APPROX_COUNT_DISTINCT keeps a
+ * {@link HyperLogLog} sketch, whose size depends on its precision but not on
+ * the number of values. Operators such as
+ * {@link HashAggregate} keep one slot per group and call
+ * {@link #update} for every input tuple.
+ * <p>
+ * Aggregates over string fields only support COUNT and
+ * APPROX_COUNT_DISTINCT. All results are returned as INT fields.
+ */
+public class AggregateLayout implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int[] fields;
+    private final Aggregator.Op[] ops;
+    private final int[] offsets;
+    private final int width;
+    private final int precision;
+
+    /**
+     * Creates the layout for a list of aggregates. Approximate distinct
+     * counts use {@link HyperLogLog#getDefaultPrecision}.
+     *
+     * @param childTd
+     *            the schema of the tuples being aggregated
+     * @param aggFields
+     *            the index in childTd of the field of each aggregate
+     * @param ops
+     *            the operator of each aggregate
+     * @throws IllegalArgumentException
+     *             if an operator is not supported for its field type
+     */
+    public AggregateLayout(TupleDesc childTd, int[] aggFields,
+            Aggregator.Op[] ops) {
+        this(childTd, aggFields, ops, HyperLogLog.getDefaultPrecision());
+    }
+
+    /**
+     * Creates the layout for a list of aggregates.
+     *
+     * @param childTd
+     *            the schema of the tuples being aggregated
+     * @param aggFields
+     *            the index in childTd of the field of each aggregate
+     * @param ops
+     *            the operator of each aggregate
+     * @param precision
+     *            the precision of the HyperLogLog sketches of approximate
+     *            distinct counts
+     * @throws IllegalArgumentException
+     *             if an operator is not supported for its field type, or
+     *             the precision is out of range
+     */
+    public AggregateLayout(TupleDesc childTd, int[] aggFields,
+            Aggregator.Op[] ops, int precision) {
+        if (aggFields.length != ops.length)
+            throw new IllegalArgumentException(
+                    "need one operator for each aggregate field");
+        HyperLogLog.checkPrecision(precision);
+        this.fields = aggFields.clone();
+        this.ops = ops.clone();
+        this.precision = precision;
+        offsets = new int[ops.length];
+        int w = 0;
+        for (int i = 0; i < ops.length; i++) {
+            if (childTd.getFieldType(fields[i]) != Type.INT_TYPE
+                    && ops[i] != Aggregator.Op.COUNT
+                    && ops[i] != Aggregator.Op.APPROX_COUNT_DISTINCT)
+                throw new IllegalArgumentException(
+                        "only COUNT and APPROX_COUNT_DISTINCT are supported over string fields");
+            offsets[i] = w;
+            w += slotWidth(ops[i]);
+        }
+        width = w;
+    }
+
+    private int slotWidth(Aggregator.Op op) {
+        switch (op) {
+        case COUNT:
+        case SUM:
+        case MIN:
+        case MAX:
+            return 1;
+        case AVG:
+            return 2;
+        case APPROX_COUNT_DISTINCT:
+            return HyperLogLog.stateWidth(precision);
+        default:
+            throw new IllegalArgumentException("Unsupported aggregate " + op);
+        }
+    }
+
+    /**
+     * @return the number of aggregates in this layout
+     */
+    public int numAggregates() {
+        return ops.length;
+    }
+
+    /**
+     * @return the operator of the ith aggregate
+     */
+    public Aggregator.Op getOp(int i) {
+        return ops[i];
+    }
+
+    /**
+     * @return the index in the input tuples of the field of the ith aggregate
+     */
+    public int getField(int i) {
+        return fields[i];
+    }
+
+    /**
+     * @return the precision of the sketches of approximate distinct counts
+     */
+    public int getPrecision() {
+        return precision;
+    }
+
+    /**
+     * @return the number of longs in a state slot
+     */
+    public int stateWidth() {
+        return width;
+    }
+
+    /**
+     * @return a state slot for a group that has not seen any tuples yet
+     */
+    public long[] newState() {
+        long[] state = new long[width];
+        for (int i = 0; i < ops.length; i++) {
+            if (ops[i] == Aggregator.Op.MIN)
+                state[offsets[i]] = Long.MAX_VALUE;
+            else if (ops[i] == Aggregator.Op.MAX)
+                state[offsets[i]] = Long.MIN_VALUE;
+        }
+        return state;
+    }
+
+    /**
+     * Adds a tuple to every aggregate of a group.
+     *
+     * @param state
+     *            the state slot of the tuple's group
+     * @param t
+     *            the tuple
+     */
+    public void update(long[] state, Tuple t) {
+        for (int i = 0; i < ops.length; i++) {
+            int o = offsets[i];
+            switch (ops[i]) {
+            case COUNT:
+                state[o]++;
+                break;
+            case SUM:
+                state[o] += ((IntField) t.getField(fields[i])).getValue();
+                break;
+            case MIN:
+                state[o] = Math.min(state[o],
+                        ((IntField) t.getField(fields[i])).getValue());
+                break;
+            case MAX:
+                state[o] = Math.max(state[o],
+                        ((IntField) t.getField(fields[i])).getValue());
+                break;
+            case AVG:
+                state[o] += ((IntField) t.getField(fields[i])).getValue();
+                state[o + 1]++;
+                break;
+            case APPROX_COUNT_DISTINCT:
+                HyperLogLog.add(state, o, precision,
+                        HyperLogLog.hash(t.getField(fields[i])));
+                break;
+            default:
+                throw new UnsupportedOperationException("Unsupported Operator");
+            }
+        }
+    }
+
+    /**
+     * Combines two partial states of the same group, as if the tuples seen by
+     * from had been added to into.
+     *
+     * @param into
+     *            the state slot to update
+     * @param from
+     *            the state slot to merge in; it is not modified
+     */
+    public void merge(long[] into, long[] from) {
+        for (int i = 0; i < ops.length; i++) {
+            int o = offsets[i];
+            switch (ops[i]) {
+            case COUNT:
+            case SUM:
+                into[o] += from[o];
+                break;
+            case MIN:
+                into[o] = Math.min(into[o], from[o]);
+                break;
+            case MAX:
+                into[o] = Math.max(into[o], from[o]);
+                break;
+            case AVG:
+                into[o] += from[o];
+                into[o + 1] += from[o + 1];
+                break;
+            case APPROX_COUNT_DISTINCT:
+                HyperLogLog.merge(into, from, o, precision);
+                break;
+            default:
+                throw new UnsupportedOperationException("Unsupported Operator");
+            }
+        }
+    }
+
+    /**
+     * Reads the value of the ith aggregate from a state slot. Aggregates
+     * other than COUNT of a group without tuples are 0.
+     */
+    public Field result(long[] state, int i) {
+        int o = offsets[i];
+        long v;
+        switch (ops[i]) {
+        case MIN:
+            v = state[o] == Long.MAX_VALUE ? 0 : state[o];
+            break;
+        case MAX:
+            v = state[o] == Long.MIN_VALUE ? 0 : state[o];
+            break;
+        case AVG:
+            v = state[o + 1] == 0 ? 0 : state[o] / state[o + 1];
+            break;
+        case APPROX_COUNT_DISTINCT:
+            v = HyperLogLog.estimate(state, o, precision);
+            break;
+        default:
+            v = state[o];
+        }
+        return new IntField((int) v);
+    }
+
+    /**
+     * @return the name of the output column of the ith aggregate, such as
+     *         "sum(t.x)"
+     */
+    public String aggregateName(TupleDesc childTd, int i) {
+        return ops[i] + "(" + childTd.getFieldName(fields[i]) + ")";
+    }
+}
@@ -0,0 +1,25 @@
+package simpledb;
+
+/**
+ * AggregateOperator is implemented by the operators that compute the
+ * aggregates of an {@link AggregateLayout} for each group of their child,
+ * such as {@link HashAggregate} and {@link StreamAggregate}. Their output
+ * tuples hold the group fields followed by one INT field per aggregate.
+ */
+public interface AggregateOperator extends OpIterator {
+
+    /**
+     * @return the indexes of the group-by fields in the child's tuples
+     */
+    public int[] getGroupFields();
+
+    /**
+     * @return the names of the group-by fields in the child's tuples
+     */
+    public String[] getGroupFieldNames();
+
+    /**
+     * @return the layout of the aggregates computed by this operator
+     */
+    public AggregateLayout getLayout();
+}
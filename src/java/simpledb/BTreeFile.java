@@ -1273,6 +1273,94 @@ public class BTreeFile implements DbFile {
 		return new BTreeFileIterator(this, tid);
 	}
 
+	/**
+	 * Get an iterator for the tuples in this B+ tree file that satisfy a predicate.
+	 * If the predicate restricts the key field, only the matching range of leaf
+	 * pages is read; see {@link #indexPredicate}.
+	 *
+	 * @param tid - the transaction id
+	 * @param filter - the predicate, or null to return every tuple
+	 * @return an iterator for the tuples that satisfy filter
+	 */
+	public DbFileIterator iterator(TransactionId tid, PredicateTree filter) {
+		if (filter == null)
+			return iterator(tid);
+		IndexPredicate ipred = indexPredicate(filter);
+		DbFileIterator it = ipred == null ? iterator(tid) : indexIterator(tid, ipred);
+		return new BTreeFilterIterator(it, filter);
+	}
+
+	/**
+	 * Find a term of a predicate that an index search on the key field can
+	 * answer: a comparison of the key field with a constant, other than LIKE and
+	 * NOT_EQUALS, that is the whole predicate or one of the terms of an AND.
+	 * Equality is preferred, since it reads the fewest pages.
+	 *
+	 * @param filter - the predicate
+	 * @return the term as an index predicate, or null if there is none
+	 */
+	public IndexPredicate indexPredicate(PredicateTree filter) {
+		List<PredicateTree> terms = filter.getKind() == PredicateTree.Kind.AND
+				? filter.getTerms() : Collections.singletonList(filter);
+		IndexPredicate best = null;
+		for (PredicateTree t : terms) {
+			Predicate p = t.getPredicate();
+			if (p == null || p.getField() != keyField
+					|| p.getOperand().getType() != td.getFieldType(keyField)
+					|| p.getOp() == Op.LIKE || p.getOp() == Op.NOT_EQUALS)
+				continue;
+			if (best == null || p.getOp() == Op.EQUALS && best.getOp() != Op.EQUALS)
+				best = new IndexPredicate(p.getOp(), p.getOperand());
+		}
+		return best;
+	}
+
+}
+
+/**
+ * Helper class that returns the tuples of another iterator of a BTreeFile that
+ * satisfy a predicate
+ */
+class BTreeFilterIterator extends AbstractDbFileIterator {
+
+	DbFileIterator it;
+	PredicateTree filter;
+	CompiledPredicate test;
+
+	/**
+	 * Constructor for this iterator
+	 * @param it - the iterator to filter
+	 * @param filter - the predicate the returned tuples satisfy
+	 */
+	public BTreeFilterIterator(DbFileIterator it, PredicateTree filter) {
+		this.it = it;
+		this.filter = filter;
+	}
+
+	public void open() throws DbException, TransactionAbortedException {
+		test = filter.compile();
+		it.open();
+	}
+
+	@Override
+	protected Tuple readNext() throws DbException, TransactionAbortedException {
+		while (it.hasNext()) {
+			Tuple t = it.next();
+			if (test.test(t))
+				return t;
+		}
+		return null;
+	}
+
+	public void rewind() throws DbException, TransactionAbortedException {
+		super.close();
+		it.rewind();
+	}
+
+	public void close() {
+		super.close();
+		it.close();
+	}
 }
 
 /**
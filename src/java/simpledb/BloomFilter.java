@@ -0,0 +1,95 @@
+package simpledb;
+
+/**
+ * BloomFilter is a compact set of field values that may report values it
+ * does not contain, but never misses one it does. A {@link HashEquiJoin}
+ * builds one over the join keys it has loaded and pushes it down to the
+ * probe side as a {@link RuntimeFilter}, so that most tuples without a match
+ * are dropped by the scan.
+ * <p>
+ * The filter is a bit array of m bits; each value sets k of them, chosen by
+ * double hashing the two halves of {@link HyperLogLog#hash}. For n values the
+ * filter is sized so that the chance of a false positive is about the given
+ * rate, which takes about 1.2 bytes per value at 1%.
+ */
+public class BloomFilter {
+
+    /** The false positive rate used unless another one is given. */
+    public static final double DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+
+    private final long[] bits;
+    private final int numBits;
+    private final int numHashes;
+
+    /**
+     * Creates an empty filter sized for the given number of values.
+     *
+     * @param expectedValues
+     *            the number of distinct values that will be added
+     * @param falsePositiveRate
+     *            the wanted chance that a value that was not added is
+     *            reported as present; between 0 and 1
+     */
+    public BloomFilter(int expectedValues, double falsePositiveRate) {
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1)
+            throw new IllegalArgumentException("false positive rate must be between 0 and 1");
+        int n = Math.max(expectedValues, 1);
+        double ln2 = Math.log(2);
+        long m = (long) Math.ceil(-n * Math.log(falsePositiveRate) / (ln2 * ln2));
+        m = Math.max(64, Math.min(m, Integer.MAX_VALUE - 63));
+        bits = new long[(int) ((m + 63) / 64)];
+        numBits = bits.length * 64;
+        numHashes = Math.max(1, (int) Math.round((double) numBits / n * ln2));
+    }
+
+    /**
+     * Creates an empty filter sized for the given number of values, with
+     * {@link #DEFAULT_FALSE_POSITIVE_RATE}.
+     */
+    public BloomFilter(int expectedValues) {
+        this(expectedValues, DEFAULT_FALSE_POSITIVE_RATE);
+    }
+
+    /**
+     * @return the number of bits in the filter
+     */
+    public int numBits() {
+        return numBits;
+    }
+
+    /**
+     * @return the number of bits set by each value
+     */
+    public int numHashes() {
+        return numHashes;
+    }
+
+    /**
+     * Adds a value to the filter.
+     */
+    public void add(Field f) {
+        long h = HyperLogLog.hash(f);
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32);
+        for (int i = 0; i < numHashes; i++) {
+            int b = ((h1 + i * h2) & Integer.MAX_VALUE) % numBits;
+            bits[b >>> 6] |= 1L << b;
+        }
+    }
+
+    /**
+     * @return false if the value was certainly not added to the filter, true
+     *         if it probably was
+     */
+    public boolean mightContain(Field f) {
+        long h = HyperLogLog.hash(f);
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32);
+        for (int i = 0; i < numHashes; i++) {
+            int b = ((h1 + i * h2) & Integer.MAX_VALUE) % numBits;
+            if ((bits[b >>> 6] & (1L << b)) == 0)
+                return false;
+        }
+        return true;
+    }
+}
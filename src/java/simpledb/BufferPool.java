@@ -91,18 +91,39 @@ public class BufferPool {
     public  Page getPage(TransactionId tid, PageId pid, Permissions perm)
             throws TransactionAbortedException, DbException {
         // some code goes here
-        if(iDPageMap.containsKey(pid)){
-            return iDPageMap.get(pid).pageInfo;
-        }else{
-            if(iDPageMap.size() > pageNumber){
-                evictPage();
+        synchronized (this) {
+            if(iDPageMap.containsKey(pid)){
+                return iDPageMap.get(pid).pageInfo;
             }
-            Page page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-            PageStates p= new PageStates(pid,page,tid,perm);
-            iDPageMap.put(pid, p);
         }
-
+        // read and parse the page without holding the pool, so that threads
+        // scanning different pages do not wait for each other
+        Page page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+        synchronized (this) {
+            if(!iDPageMap.containsKey(pid)){
+                if(iDPageMap.size() > pageNumber){
+                    evictPage();
+                }
+                PageStates p= new PageStates(pid,page,tid,perm);
+                iDPageMap.put(pid, p);
+            }
             return iDPageMap.get(pid).pageInfo;
+        }
+    }
+
+    /**
+     * Returns the specified page if the buffer pool holds it, and null
+     * otherwise. Unlike getPage, no page lock is taken for a transaction,
+     * nothing is read from disk and no page is evicted, so that readers
+     * outside of a transaction, like the statistics, can see the pages
+     * modified in the pool without disturbing it. The page is shared with
+     * the pool, and may be changed while it is read.
+     *
+     * @param pid the ID of the requested page
+     */
+    public synchronized Page peekPage(PageId pid) {
+        PageStates p = iDPageMap.get(pid);
+        return p == null ? null : p.pageInfo;
     }
 
     /**
@@ -158,13 +179,14 @@ public class BufferPool {
      * Marks any pages that were dirtied by the operation as dirty by calling
      * their markDirty bit, and adds versions of any pages that have
      * been dirtied to the cache (replacing any existing versions of those pages) so
-     * that future requests see up-to-date pages.
+     * that future requests see up-to-date pages. The statistics of the table,
+     * if it has any, count the tuple.
      *
      * @param tid the transaction adding the tuple
      * @param tableId the table to add the tuple to
      * @param t the tuple to add
      */
-    public void insertTuple(TransactionId tid, int tableId, Tuple t)
+    public synchronized void insertTuple(TransactionId tid, int tableId, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         DbFile file = Database.getCatalog().getDatabaseFile(tableId);
@@ -174,6 +196,7 @@ public class BufferPool {
             PageStates pageStates = new PageStates(page.getId(), page, tid, Permissions.READ_WRITE);
             iDPageMap.put(page.getId(), pageStates);
         }
+        TableStats.tupleInserted(tableId, t);
 
     }
 
@@ -185,12 +208,13 @@ public class BufferPool {
      * Marks any pages that were dirtied by the operation as dirty by calling
      * their markDirty bit, and adds versions of any pages that have
      * been dirtied to the cache (replacing any existing versions of those pages) so
-     * that future requests see up-to-date pages.
+     * that future requests see up-to-date pages. The statistics of the table,
+     * if it has any, stop counting the tuple.
      *
      * @param tid the transaction deleting the tuple.
      * @param t the tuple to delete
      */
-    public  void deleteTuple(TransactionId tid, Tuple t)
+    public synchronized void deleteTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         int tableId = t.getRecordId().getPageId().getTableId();
@@ -200,6 +224,7 @@ public class BufferPool {
             PageStates pageStates = new PageStates(page.getId(), page, tid, Permissions.READ_WRITE);
             iDPageMap.put(page.getId(), pageStates);
         }
+        TableStats.tupleDeleted(tableId, t);
     }
 
     /**
@@ -0,0 +1,129 @@
+package simpledb;
+
+/**
+ * A CompiledPredicate is a test on tuples specialized for one
+ * {@link Predicate}. {@link Predicate#filter} calls {@link Field#compare},
+ * which switches on the operator and casts the operand for every tuple;
+ * {@link #compile} makes those decisions once, and returns a lambda that only
+ * reads the field and compares it with a constant of the right type.
+ * <p>
+ * Operators compile their predicates when they are opened, so that the
+ * plan itself stays serializable.
+ */
+public interface CompiledPredicate {
+
+    /**
+     * @return true if the tuple satisfies the predicate
+     */
+    boolean test(Tuple t);
+
+    /**
+     * Compiles a predicate. The result gives the same answer as
+     * {@link Predicate#filter} for every tuple whose field has the type of
+     * the predicate's operand.
+     */
+    static CompiledPredicate compile(Predicate p) {
+        final int f = p.getField();
+        Field operand = p.getOperand();
+        if (operand instanceof IntField) {
+            final int c = ((IntField) operand).getValue();
+            switch (p.getOp()) {
+            case EQUALS:
+            case LIKE:
+                return t -> ((IntField) t.getField(f)).getValue() == c;
+            case NOT_EQUALS:
+                return t -> ((IntField) t.getField(f)).getValue() != c;
+            case GREATER_THAN:
+                return t -> ((IntField) t.getField(f)).getValue() > c;
+            case GREATER_THAN_OR_EQ:
+                return t -> ((IntField) t.getField(f)).getValue() >= c;
+            case LESS_THAN:
+                return t -> ((IntField) t.getField(f)).getValue() < c;
+            case LESS_THAN_OR_EQ:
+                return t -> ((IntField) t.getField(f)).getValue() <= c;
+            default:
+                break;
+            }
+        } else if (operand instanceof StringField) {
+            final String c = ((StringField) operand).getValue();
+            switch (p.getOp()) {
+            case EQUALS:
+                return t -> ((StringField) t.getField(f)).getValue().equals(c);
+            case NOT_EQUALS:
+                return t -> !((StringField) t.getField(f)).getValue().equals(c);
+            case GREATER_THAN:
+                return t -> ((StringField) t.getField(f)).getValue().compareTo(c) > 0;
+            case GREATER_THAN_OR_EQ:
+                return t -> ((StringField) t.getField(f)).getValue().compareTo(c) >= 0;
+            case LESS_THAN:
+                return t -> ((StringField) t.getField(f)).getValue().compareTo(c) < 0;
+            case LESS_THAN_OR_EQ:
+                return t -> ((StringField) t.getField(f)).getValue().compareTo(c) <= 0;
+            case LIKE:
+                return t -> ((StringField) t.getField(f)).getValue().contains(c);
+            default:
+                break;
+            }
+        }
+        // an operand type this class does not know about
+        return p::filter;
+    }
+
+    /**
+     * Compiles a conjunction of predicates. They are tested in the given
+     * order and the test stops at the first one that fails, so the most
+     * selective predicates should come first.
+     */
+    static CompiledPredicate and(Predicate... ps) {
+        CompiledPredicate[] tests = new CompiledPredicate[ps.length];
+        for (int i = 0; i < ps.length; i++)
+            tests[i] = compile(ps[i]);
+        return and(tests);
+    }
+
+    /**
+     * @return a test that is true when all of the given tests are, stopping
+     *         at the first one that is false
+     */
+    static CompiledPredicate and(final CompiledPredicate... tests) {
+        switch (tests.length) {
+        case 0:
+            return t -> true;
+        case 1:
+            return tests[0];
+        case 2:
+            final CompiledPredicate a = tests[0], b = tests[1];
+            return t -> a.test(t) && b.test(t);
+        default:
+            return t -> {
+                for (CompiledPredicate test : tests)
+                    if (!test.test(t))
+                        return false;
+                return true;
+            };
+        }
+    }
+
+    /**
+     * @return a test that is true when any of the given tests is, stopping
+     *         at the first one that is true
+     */
+    static CompiledPredicate or(final CompiledPredicate... tests) {
+        switch (tests.length) {
+        case 0:
+            return t -> false;
+        case 1:
+            return tests[0];
+        case 2:
+            final CompiledPredicate a = tests[0], b = tests[1];
+            return t -> a.test(t) || b.test(t);
+        default:
+            return t -> {
+                for (CompiledPredicate test : tests)
+                    if (test.test(t))
+                        return true;
+                return false;
+            };
+        }
+    }
+}
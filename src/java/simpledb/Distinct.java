@@ -0,0 +1,272 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Distinct is an operator that removes duplicate tuples: two tuples are
+ * duplicates if all of their fields are equal. The first occurrence of each
+ * tuple is returned as soon as it is read from the child.
+ * <p>
+ * If the child is known to be sorted on all of its fields (see
+ * {@link SortOrder}), duplicates are next to each other and each tuple is
+ * only compared with the previous one, in constant memory.
+ * <p>
+ * Otherwise the tuples seen so far are kept in a hash set bounded by a memory
+ * budget. Once the set is full, tuples that are already in it are still
+ * dropped, but tuples that are not are written to one of
+ * {@link HashAggregate#NUM_PARTITIONS} {@link SpillFile}s chosen by their
+ * hash. When the child is exhausted each partition is deduplicated in turn
+ * the same way, with a differently seeded hash. All copies of a tuple end up
+ * in the same partition, so every distinct tuple is returned exactly once;
+ * tuples from partitions come after all of the others.
+ */
+public class Distinct extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The default number of bytes of hash set to hold in memory. */
+    public static final long DEFAULT_MEMORY_BUDGET = 16L * 1024 * 1024;
+
+    /**
+     * Past this many levels of partitioning the set is allowed to exceed its
+     * budget; this only happens if many tuples share a hash code.
+     */
+    private static final int MAX_LEVELS = 8;
+
+    private OpIterator child;
+    private int[] allFields;
+    private boolean sortBased;
+    private final long memoryBudget;
+
+    private transient GroupKey previous;
+
+    private transient HashSet<GroupKey> seen;
+    private transient long seenBytes;
+    private transient boolean full;
+    private transient int level;
+    private transient SpillFile[] parts;
+    private transient ArrayDeque<SpillFile> pending;
+    private transient ArrayDeque<Integer> pendingLevels;
+    private transient int numSpilled;
+    private transient boolean childDone;
+    private transient SpillFile current;
+    private transient SpillFile.Reader reader;
+
+    /**
+     * Constructor.
+     *
+     * @param child
+     *            The child operator
+     */
+    public Distinct(OpIterator child) {
+        this(child, DEFAULT_MEMORY_BUDGET);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param child
+     *            The child operator
+     * @param memoryBudget
+     *            The number of bytes of hash set to hold in memory before
+     *            new tuples are spilled to disk; must be positive.
+     */
+    public Distinct(OpIterator child, long memoryBudget) {
+        if (memoryBudget <= 0)
+            throw new IllegalArgumentException("memory budget must be positive");
+        this.memoryBudget = memoryBudget;
+        setChild(child);
+    }
+
+    private void setChild(OpIterator child) {
+        this.child = child;
+        allFields = new int[child.getTupleDesc().numFields()];
+        for (int i = 0; i < allFields.length; i++)
+            allFields[i] = i;
+        sortBased = SortOrder.isGroupedOn(child, allFields);
+    }
+
+    /**
+     * @return true if duplicates are removed by comparing neighbouring
+     *         tuples of a sorted child, rather than by hashing
+     */
+    public boolean isSortBased() {
+        return sortBased;
+    }
+
+    /**
+     * @return the number of partitions spilled to disk since the last call
+     *         to open or rewind
+     */
+    public int numSpilledPartitions() {
+        return numSpilled;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        reset();
+        super.open();
+    }
+
+    private void reset() {
+        discardState();
+        previous = null;
+        pending = new ArrayDeque<SpillFile>();
+        pendingLevels = new ArrayDeque<Integer>();
+        numSpilled = 0;
+        childDone = false;
+        startLevel(0);
+    }
+
+    private void startLevel(int level) {
+        seen = new HashSet<GroupKey>();
+        seenBytes = 0;
+        full = false;
+        parts = null;
+        this.level = level;
+    }
+
+    /**
+     * Returns the next tuple that has not been returned before, or null if
+     * there are no more tuples.
+     */
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (sortBased) {
+            while (child.hasNext()) {
+                Tuple t = child.next();
+                GroupKey key = new GroupKey(t, allFields);
+                if (!key.equals(previous)) {
+                    previous = key;
+                    return t;
+                }
+            }
+            return null;
+        }
+
+        while (true) {
+            Tuple t;
+            if (!childDone) {
+                if (!child.hasNext()) {
+                    childDone = true;
+                    finishLevel();
+                    continue;
+                }
+                t = child.next();
+            } else if (reader != null) {
+                t = reader.next();
+                if (t == null) {
+                    reader.close();
+                    reader = null;
+                    current.delete();
+                    current = null;
+                    finishLevel();
+                    continue;
+                }
+            } else if (!pending.isEmpty()) {
+                seen = null;
+                startLevel(pendingLevels.pop());
+                current = pending.pop();
+                reader = current.openReader();
+                continue;
+            } else {
+                return null;
+            }
+            if (offer(t))
+                return t;
+        }
+    }
+
+    /**
+     * @return true if t has not been seen before and is kept in memory,
+     *         false if it is a duplicate or has been spilled
+     */
+    private boolean offer(Tuple t) throws DbException {
+        GroupKey key = new GroupKey(t, allFields);
+        if (seen.contains(key))
+            return false;
+        // a hash set entry, its key and the key's fields
+        long bytes = 48 + key.estimateSize();
+        if (!full && seenBytes + bytes > memoryBudget && !seen.isEmpty()
+                && level < MAX_LEVELS)
+            full = true;
+        if (full) {
+            if (parts == null)
+                parts = new SpillFile[HashAggregate.NUM_PARTITIONS];
+            int p = key.partition(level, HashAggregate.NUM_PARTITIONS);
+            if (parts[p] == null) {
+                parts[p] = new SpillFile(getTupleDesc());
+                numSpilled++;
+            }
+            parts[p].add(t);
+            return false;
+        }
+        seen.add(key);
+        seenBytes += bytes;
+        return true;
+    }
+
+    private void finishLevel() throws DbException {
+        if (parts == null)
+            return;
+        for (SpillFile f : parts) {
+            if (f != null) {
+                f.finishWriting();
+                pending.push(f);
+                pendingLevels.push(level + 1);
+            }
+        }
+        parts = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+        reset();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        discardState();
+    }
+
+    private void discardState() {
+        if (reader != null) {
+            reader.close();
+            reader = null;
+        }
+        if (current != null) {
+            current.delete();
+            current = null;
+        }
+        if (parts != null) {
+            for (SpillFile f : parts)
+                if (f != null)
+                    f.delete();
+            parts = null;
+        }
+        if (pending != null) {
+            for (SpillFile f : pending)
+                f.delete();
+            pending.clear();
+            pendingLevels.clear();
+        }
+        seen = null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { child };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        setChild(children[0]);
+    }
+
+}
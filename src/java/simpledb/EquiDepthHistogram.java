@@ -0,0 +1,80 @@
+package simpledb;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * An equi-depth histogram over a single integer field, with a list of its
+ * most common values; see {@link AbstractEquiDepthHistogram}.
+ * <p>
+ * A fixed-width {@link IntHistogram} spreads the tuples of a bucket evenly
+ * over its range, so a skewed field gets estimates that are far off; this
+ * histogram gives dense ranges narrow buckets instead. Within a bucket, the
+ * tuples are assumed to be spread evenly over its range.
+ */
+public class EquiDepthHistogram extends AbstractEquiDepthHistogram<Integer>
+        implements Histogram {
+
+    /**
+     * Create a new EquiDepthHistogram.
+     *
+     * @param buckets
+     *            The number of buckets to split the values that are not most
+     *            common values into
+     * @param mcvs
+     *            The greatest number of most common values to keep
+     */
+    public EquiDepthHistogram(int buckets, int mcvs) {
+        super(buckets, mcvs);
+    }
+
+    /**
+     * Add a value to the set of values that you are keeping a histogram of.
+     * @param v Value to add to the histogram
+     */
+    public void addValue(int v) {
+        add(v);
+    }
+
+    /**
+     * Remove a value that was added before from the histogram. The buckets
+     * are built first if they have not been.
+     * @param v Value to remove from the histogram
+     */
+    public void removeValue(int v) {
+        remove(v);
+    }
+
+    /**
+     * Estimate the selectivity of a particular predicate and operand on this table.
+     *
+     * @param op Operator
+     * @param v Value
+     * @return Predicted selectivity of this particular operator and value
+     */
+    public double estimateSelectivity(Predicate.Op op, int v) {
+        return selectivity(op, v);
+    }
+
+    protected double below(Integer v, Integer low, Integer high, int distinct) {
+        return ((double) v - low) / ((double) high - low + 1);
+    }
+
+    protected void writeKey(DataOutputStream out, Integer v) throws IOException {
+        out.writeInt(v);
+    }
+
+    protected Integer readKey(DataInputStream in) throws IOException {
+        return in.readInt();
+    }
+
+    /**
+     * Reads back a histogram written by {@link #write}.
+     */
+    public static EquiDepthHistogram read(DataInputStream in) throws IOException {
+        EquiDepthHistogram h = new EquiDepthHistogram(in.readInt(), in.readInt());
+        h.readBody(in);
+        return h;
+    }
+}
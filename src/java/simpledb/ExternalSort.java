@@ -0,0 +1,277 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * ExternalSort sorts a stream of tuples that may be larger than memory.
+ * <p>
+ * Tuples are collected in memory until the memory budget is exhausted; the
+ * buffer is then sorted and written out as a run to a {@link SpillFile}. When
+ * the input ends the runs are combined with a k-way merge driven by a loser
+ * tree, so producing each output tuple costs about log2(k) comparisons. If
+ * there are more than {@link #MERGE_FAN_IN} runs, intermediate merge passes
+ * first reduce them to at most that many. The final merge is not
+ * materialized: it is performed lazily as tuples are pulled from
+ * {@link #iterator}. If the whole input fits in the budget nothing is written
+ * to disk at all.
+ * <p>
+ * The memory budget is measured in bytes of tuple data, as reported by
+ * {@link TupleDesc#getSize}.
+ */
+public class ExternalSort {
+
+    /** The maximum number of runs merged at the same time. */
+    public static final int MERGE_FAN_IN = 64;
+
+    private final TupleDesc td;
+    private final Comparator<Tuple> comparator;
+    private final long memoryBudget;
+
+    private ArrayList<Tuple> buffer = new ArrayList<Tuple>();
+    private long bufferBytes;
+    private final ArrayList<SpillFile> runs = new ArrayList<SpillFile>();
+    private boolean finished = false;
+
+    /**
+     * Creates a new, empty sorter.
+     *
+     * @param td
+     *            the schema of the tuples to sort
+     * @param comparator
+     *            the sort order
+     * @param memoryBudget
+     *            the number of bytes of tuples to hold in memory before a
+     *            run is spilled to disk; must be positive
+     */
+    public ExternalSort(TupleDesc td, Comparator<Tuple> comparator,
+            long memoryBudget) {
+        if (memoryBudget <= 0)
+            throw new IllegalArgumentException("memory budget must be positive");
+        this.td = td;
+        this.comparator = comparator;
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Adds a tuple to the input of the sort, spilling a run to disk if the
+     * memory budget has been used up.
+     *
+     * @throws IllegalStateException
+     *             if {@link #iterator} has already been called
+     */
+    public void add(Tuple t) throws DbException {
+        if (finished)
+            throw new IllegalStateException("sort input already finished");
+        if (bufferBytes + td.getSize() > memoryBudget && !buffer.isEmpty())
+            spillRun();
+        buffer.add(t);
+        bufferBytes += td.getSize();
+    }
+
+    /**
+     * @return the number of sorted runs that have been written to disk so far
+     */
+    public int numSpilledRuns() {
+        return runs.size();
+    }
+
+    /**
+     * Ends the input of the sort and returns an iterator over the sorted
+     * tuples. The iterator supports rewind; it is only valid until
+     * {@link #close} is called.
+     */
+    public DbFileIterator iterator() throws DbException {
+        if (!finished) {
+            finished = true;
+            if (!runs.isEmpty()) {
+                if (!buffer.isEmpty())
+                    spillRun();
+                buffer = null;
+                while (runs.size() > MERGE_FAN_IN)
+                    mergePass();
+            } else {
+                Collections.sort(buffer, comparator);
+            }
+        }
+        if (runs.isEmpty())
+            return new BufferIterator();
+        return new MergeIterator();
+    }
+
+    /**
+     * Releases the memory and removes the temporary files held by this sort.
+     */
+    public void close() {
+        for (SpillFile run : runs)
+            run.delete();
+        runs.clear();
+        buffer = null;
+    }
+
+    private void spillRun() throws DbException {
+        Collections.sort(buffer, comparator);
+        SpillFile run = new SpillFile(td);
+        for (Tuple t : buffer)
+            run.add(t);
+        run.finishWriting();
+        runs.add(run);
+        buffer = new ArrayList<Tuple>();
+        bufferBytes = 0;
+    }
+
+    /**
+     * Merges each group of MERGE_FAN_IN consecutive runs into a single run.
+     * Merging neighbouring runs keeps the runs in input order, which keeps
+     * the sort stable.
+     */
+    private void mergePass() throws DbException {
+        ArrayList<SpillFile> merged = new ArrayList<SpillFile>();
+        for (int start = 0; start < runs.size(); start += MERGE_FAN_IN) {
+            List<SpillFile> inputs = runs.subList(start,
+                    Math.min(start + MERGE_FAN_IN, runs.size()));
+            if (inputs.size() == 1) {
+                merged.add(inputs.get(0));
+                continue;
+            }
+            SpillFile out = new SpillFile(td);
+            LoserTree tree = new LoserTree(inputs);
+            try {
+                Tuple t;
+                while ((t = tree.pop()) != null)
+                    out.add(t);
+            } finally {
+                tree.close();
+            }
+            out.finishWriting();
+            for (SpillFile run : inputs)
+                run.delete();
+            merged.add(out);
+        }
+        runs.clear();
+        runs.addAll(merged);
+    }
+
+    /**
+     * A loser tree over the heads of a set of sorted runs. Internal node i
+     * stores the index of the run that lost the comparison at that node, and
+     * node 0 stores the overall winner, so replacing the winner only needs
+     * one walk from its leaf to the root.
+     */
+    private class LoserTree {
+        private final SpillFile.Reader[] readers;
+        private final Tuple[] heads;
+        private final int[] tree;
+        private final int k;
+
+        LoserTree(List<SpillFile> inputs) throws DbException {
+            k = inputs.size();
+            readers = new SpillFile.Reader[k];
+            heads = new Tuple[k];
+            tree = new int[k];
+            for (int i = 0; i < k; i++) {
+                readers[i] = inputs.get(i).openReader();
+                heads[i] = readers[i].next();
+            }
+            // index k is a virtual run that sorts before everything else; it
+            // fills the tree initially and is pushed out by the real runs
+            Arrays.fill(tree, k);
+            for (int i = k - 1; i >= 0; i--)
+                adjust(i);
+        }
+
+        /**
+         * @return the smallest remaining tuple, or null if all runs are
+         *         exhausted
+         */
+        Tuple pop() throws DbException {
+            int winner = tree[0];
+            Tuple t = heads[winner];
+            if (t == null)
+                return null;
+            heads[winner] = readers[winner].next();
+            adjust(winner);
+            return t;
+        }
+
+        void close() {
+            for (SpillFile.Reader r : readers)
+                r.close();
+        }
+
+        private void adjust(int s) {
+            for (int t = (s + k) / 2; t > 0; t /= 2) {
+                if (losesTo(s, tree[t])) {
+                    int tmp = s;
+                    s = tree[t];
+                    tree[t] = tmp;
+                }
+            }
+            tree[0] = s;
+        }
+
+        /** @return true if run a sorts after run b */
+        private boolean losesTo(int a, int b) {
+            if (a == k)
+                return false;
+            if (b == k)
+                return true;
+            if (heads[a] == null)
+                return heads[b] != null || a > b;
+            if (heads[b] == null)
+                return false;
+            int c = comparator.compare(heads[a], heads[b]);
+            // break ties by run number so that equal keys keep input order
+            return c > 0 || (c == 0 && a > b);
+        }
+    }
+
+    private class BufferIterator extends AbstractDbFileIterator {
+        private Iterator<Tuple> it;
+
+        public void open() {
+            it = buffer.iterator();
+        }
+
+        public void rewind() {
+            close();
+            open();
+        }
+
+        public void close() {
+            super.close();
+            it = null;
+        }
+
+        protected Tuple readNext() {
+            if (it != null && it.hasNext())
+                return it.next();
+            return null;
+        }
+    }
+
+    private class MergeIterator extends AbstractDbFileIterator {
+        private LoserTree tree;
+
+        public void open() throws DbException {
+            tree = new LoserTree(runs);
+        }
+
+        public void rewind() throws DbException {
+            close();
+            open();
+        }
+
+        public void close() {
+            super.close();
+            if (tree != null)
+                tree.close();
+            tree = null;
+        }
+
+        protected Tuple readNext() throws DbException {
+            if (tree == null)
+                return null;
+            return tree.pop();
+        }
+    }
+}
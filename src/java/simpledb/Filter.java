@@ -3,13 +3,25 @@ package simpledb;
 import java.util.*;
 
 /**
- * Filter is an operator that implements a relational select.
+ * Filter is an operator that implements a relational select. Its condition is
+ * a {@link PredicateTree}, so a single Filter applies a whole AND/OR
+ * combination of predicates; it is compiled into a {@link CompiledPredicate}
+ * when the operator is opened. If the child is a {@link SeqScan}, the
+ * predicate is pushed down into the scan instead, which tests it before
+ * building tuples.
+ * <p>
+ * A Filter may instead compare two fields of each tuple with a
+ * {@link JoinPredicate}, as for a join between two tables that are already
+ * joined, which closes a cycle of joins.
  */
 public class Filter extends Operator {
 
     private static final long serialVersionUID = 1L;
-    private Predicate predicator;
+    private PredicateTree predicator;
+    private JoinPredicate fields;
     OpIterator opIter;
+    private transient CompiledPredicate test;
+    private transient SeqScan pushedTo;
     /**
      * Constructor accepts a predicate to apply and a child operator to read
      * tuples to filter from.
@@ -21,15 +33,83 @@ public class Filter extends Operator {
      */
     public Filter(Predicate p, OpIterator child) {
         // some code goes here
+        this(new PredicateTree(p), child);
+    }
+
+    /**
+     * Constructor accepts a combination of predicates to apply and a child
+     * operator to read tuples to filter from.
+     *
+     * @param p
+     *            The predicate tree to filter tuples with; its terms are
+     *            evaluated in the order given
+     * @param child
+     *            The child operator
+     */
+    public Filter(PredicateTree p, OpIterator child) {
         predicator = p;
         opIter = child;
     }
 
+    /**
+     * Constructor accepts a comparison between two fields of the tuples of
+     * the child operator.
+     *
+     * @param p
+     *            The predicate; a tuple passes if it satisfies p when it is
+     *            both the first and the second tuple
+     * @param child
+     *            The child operator
+     */
+    public Filter(JoinPredicate p, OpIterator child) {
+        fields = p;
+        opIter = child;
+    }
+
+    /**
+     * @return true if the predicate is applied by the SeqScan below this
+     *         filter; only known while the filter is open
+     */
+    public boolean isPushedDown() {
+        return pushedTo != null;
+    }
+
+    /**
+     * @return the predicate of this filter, or null if it applies an AND or
+     *         OR of several predicates, or compares two fields
+     */
     public Predicate getPredicate() {
         // some code goes here
+        return predicator == null ? null : predicator.getPredicate();
+    }
+
+    /**
+     * @return the predicate tree of this filter, or null if it compares two
+     *         fields
+     */
+    public PredicateTree getPredicateTree() {
         return predicator;
     }
 
+    /**
+     * @return the comparison between two fields of this filter, or null if
+     *         it applies a predicate tree
+     */
+    public JoinPredicate getJoinPredicate() {
+        return fields;
+    }
+
+    /**
+     * Gives the parameters of the predicate new values, as when a
+     * {@link PreparedStatement} runs again. The filter must be closed.
+     *
+     * @see PredicateTree#bind
+     */
+    public void bind(Field[] values) {
+        if (predicator != null)
+            predicator = predicator.bind(values);
+    }
+
     public TupleDesc getTupleDesc() {
         // some code goes here
         return opIter.getTupleDesc();
@@ -38,6 +118,17 @@ public class Filter extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         // some code goes here
+        pushedTo = null;
+        if (fields != null) {
+            final JoinPredicate p = fields;
+            test = t -> p.filter(t, t);
+        } else {
+            if (opIter instanceof SeqScan && ((SeqScan) opIter).getPredicate() == null) {
+                pushedTo = (SeqScan) opIter;
+                pushedTo.setPredicate(predicator);
+            }
+            test = predicator.compile();
+        }
         super.open();
         opIter.open();
     }
@@ -46,6 +137,10 @@ public class Filter extends Operator {
         // some code goes here
         super.close();
         opIter.close();
+        if (pushedTo != null) {
+            pushedTo.setPredicate(null);
+            pushedTo = null;
+        }
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
@@ -65,9 +160,11 @@ public class Filter extends Operator {
     protected Tuple fetchNext() throws NoSuchElementException,
             TransactionAbortedException, DbException {
         // some code goes here
+        if (pushedTo != null)
+            return opIter.hasNext() ? opIter.next() : null;
         while(opIter.hasNext()){
             Tuple next = opIter.next();
-            if(predicator.filter(next)){
+            if(test.test(next)){
                 return next;
             }
         }
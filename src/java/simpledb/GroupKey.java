@@ -0,0 +1,102 @@
+package simpledb;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * GroupKey is the value of a (possibly composite) grouping key: the fields of
+ * a tuple at a fixed list of positions. Two keys are equal if all of their
+ * fields are equal, so a GroupKey can be used as a hash table key. The key
+ * with no fields is the single group of an aggregate without GROUP BY.
+ */
+public class GroupKey implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Field[] fields;
+    private final int hash;
+
+    /**
+     * Creates the key of tuple t over the given fields.
+     * 
+     * @param t
+     *            the tuple
+     * @param keyFields
+     *            the indexes of the key fields in t
+     */
+    public GroupKey(Tuple t, int[] keyFields) {
+        fields = new Field[keyFields.length];
+        for (int i = 0; i < keyFields.length; i++)
+            fields[i] = t.getField(keyFields[i]);
+        hash = Arrays.hashCode(fields);
+    }
+
+    /**
+     * Creates a key from its field values.
+     */
+    public GroupKey(Field[] fields) {
+        this.fields = fields.clone();
+        hash = Arrays.hashCode(this.fields);
+    }
+
+    /**
+     * @return the number of fields in this key
+     */
+    public int numFields() {
+        return fields.length;
+    }
+
+    /**
+     * @return the ith field of this key
+     */
+    public Field getField(int i) {
+        return fields[i];
+    }
+
+    /**
+     * Estimates the heap used by this key: the object, its field array and
+     * the fields themselves.
+     */
+    public long estimateSize() {
+        long bytes = 40 + 4 * fields.length;
+        for (Field f : fields) {
+            if (f instanceof StringField)
+                bytes += 56 + 2 * ((StringField) f).getValue().length();
+            else
+                bytes += 16;
+        }
+        return bytes;
+    }
+
+    /**
+     * Picks one of n partitions for this key at a level of partitioning.
+     * Each level mixes in a different seed, so keys that were sent to the
+     * same partition are spread out again when that partition is split.
+     */
+    public int partition(int level, int n) {
+        int h = hash ^ (level * 0x9E3779B9);
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return (h >>> 1) % n;
+    }
+
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof GroupKey))
+            return false;
+        GroupKey other = (GroupKey) o;
+        return hash == other.hash && Arrays.equals(fields, other.fields);
+    }
+
+    public int hashCode() {
+        return hash;
+    }
+
+    public String toString() {
+        return Arrays.toString(fields);
+    }
+}
@@ -0,0 +1,385 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * HashAggregate computes any number of aggregates over a grouping key made
+ * of any number of fields, in a single pass over its child.
+ * <p>
+ * Groups are kept in a hash table from {@link GroupKey} to one long[] state
+ * slot laid out by an {@link AggregateLayout}, so a group costs one table
+ * entry however many aggregates are computed. Output tuples hold the group
+ * fields, in the order given, followed by one INT field per aggregate. The
+ * group fields keep their names from the child; an aggregate is named after
+ * its operator and field, such as "sum(t.x)". Without group fields a single
+ * tuple is returned, even for an empty input.
+ * <p>
+ * The hash table is bounded by a memory budget. Once the estimated size of
+ * the table reaches the budget, tuples of groups that are already in the
+ * table keep being aggregated in place, while tuples of new groups are
+ * written to one of {@link #NUM_PARTITIONS} {@link SpillFile}s chosen by a
+ * hash of their group key. After the groups in memory have been returned,
+ * each partition is aggregated in turn the same way, with a differently
+ * seeded hash so that a partition that is still too large is split again.
+ * Every group lives entirely in memory or entirely in one partition, and only
+ * one hash table is held at a time, so peak memory stays near the budget
+ * however many groups there are. Spilled tuples are cut down to their group
+ * and aggregate fields first.
+ */
+public class HashAggregate extends Operator implements AggregateOperator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The default number of bytes of hash table to hold in memory. */
+    public static final long DEFAULT_MEMORY_BUDGET = 16L * 1024 * 1024;
+
+    /** The number of partitions the overflow of a hash table is split into. */
+    public static final int NUM_PARTITIONS = 16;
+
+    /**
+     * Past this many levels of partitioning the table is allowed to exceed
+     * its budget; this only happens if many keys share a hash code.
+     */
+    private static final int MAX_LEVELS = 8;
+
+    private OpIterator child;
+    private final int[] groupFields;
+    private final AggregateLayout layout;
+    private final TupleDesc td;
+    private final long memoryBudget;
+
+    /** Spilled tuples hold the group fields, then the aggregate fields. */
+    private final TupleDesc spillTd;
+    private final int[] spillGroupFields;
+    private final AggregateLayout spillLayout;
+
+    private transient HashMap<GroupKey, long[]> groups;
+    private transient long groupBytes;
+    private transient boolean full;
+    private transient SpillFile[] parts;
+    private transient int partsLevel;
+    private transient ArrayDeque<SpillFile> pending;
+    private transient ArrayDeque<Integer> pendingLevels;
+    private transient int numSpilled;
+    private transient Iterator<Map.Entry<GroupKey, long[]>> it;
+
+    /**
+     * Constructor.
+     *
+     * @param child
+     *            The OpIterator that is feeding us tuples.
+     * @param groupFields
+     *            The indexes of the group-by fields in the child's tuples;
+     *            empty if there is no grouping.
+     * @param aggFields
+     *            The index of the field of each aggregate.
+     * @param aops
+     *            The operator of each aggregate.
+     * @throws IllegalArgumentException
+     *             if an operator is not supported for its field's type
+     */
+    public HashAggregate(OpIterator child, int[] groupFields,
+            int[] aggFields, Aggregator.Op[] aops) {
+        this(child, groupFields, aggFields, aops, DEFAULT_MEMORY_BUDGET);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param child
+     *            The OpIterator that is feeding us tuples.
+     * @param groupFields
+     *            The indexes of the group-by fields in the child's tuples;
+     *            empty if there is no grouping.
+     * @param aggFields
+     *            The index of the field of each aggregate.
+     * @param aops
+     *            The operator of each aggregate.
+     * @param memoryBudget
+     *            The number of bytes of hash table to hold in memory before
+     *            new groups are spilled to disk; must be positive.
+     * @throws IllegalArgumentException
+     *             if an operator is not supported for its field's type
+     */
+    public HashAggregate(OpIterator child, int[] groupFields,
+            int[] aggFields, Aggregator.Op[] aops, long memoryBudget) {
+        if (memoryBudget <= 0)
+            throw new IllegalArgumentException("memory budget must be positive");
+        this.child = child;
+        this.memoryBudget = memoryBudget;
+        this.groupFields = groupFields.clone();
+        TupleDesc childTd = child.getTupleDesc();
+        this.layout = new AggregateLayout(childTd, aggFields, aops);
+
+        td = outputTupleDesc(childTd, groupFields, layout);
+
+        Type[] spillTypes = new Type[td.numFields()];
+        spillGroupFields = new int[groupFields.length];
+        int[] spillAggFields = new int[aggFields.length];
+        for (int i = 0; i < groupFields.length; i++) {
+            spillTypes[i] = td.getFieldType(i);
+            spillGroupFields[i] = i;
+        }
+        for (int i = 0; i < aggFields.length; i++) {
+            spillTypes[groupFields.length + i] = childTd.getFieldType(aggFields[i]);
+            spillAggFields[i] = groupFields.length + i;
+        }
+        spillTd = new TupleDesc(spillTypes);
+        spillLayout = new AggregateLayout(spillTd, spillAggFields, aops,
+                layout.getPrecision());
+    }
+
+    /**
+     * Builds the schema of the output of an aggregate: the group fields,
+     * named as in the child, followed by one INT field per aggregate.
+     */
+    static TupleDesc outputTupleDesc(TupleDesc childTd, int[] groupFields,
+            AggregateLayout layout) {
+        int n = layout.numAggregates();
+        Type[] types = new Type[groupFields.length + n];
+        String[] names = new String[types.length];
+        for (int i = 0; i < groupFields.length; i++) {
+            types[i] = childTd.getFieldType(groupFields[i]);
+            names[i] = childTd.getFieldName(groupFields[i]);
+        }
+        for (int i = 0; i < n; i++) {
+            types[groupFields.length + i] = Type.INT_TYPE;
+            names[groupFields.length + i] = layout.aggregateName(childTd, i);
+        }
+        return new TupleDesc(types, names);
+    }
+
+    /**
+     * @return the indexes of the group-by fields in the child's tuples
+     */
+    public int[] getGroupFields() {
+        return groupFields.clone();
+    }
+
+    /**
+     * @return the names of the group-by fields in the child's tuples
+     */
+    public String[] getGroupFieldNames() {
+        String[] names = new String[groupFields.length];
+        for (int i = 0; i < names.length; i++)
+            names[i] = child.getTupleDesc().getFieldName(groupFields[i]);
+        return names;
+    }
+
+    /**
+     * @return the layout of the aggregates computed by this operator
+     */
+    public AggregateLayout getLayout() {
+        return layout;
+    }
+
+    /**
+     * @return the number of bytes of hash table held in memory
+     */
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * @return the number of partitions spilled to disk since the last call
+     *         to open or rewind
+     */
+    public int numSpilledPartitions() {
+        return numSpilled;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws NoSuchElementException, DbException,
+            TransactionAbortedException {
+        aggregate();
+        super.open();
+    }
+
+    /**
+     * Aggregates the child into the in-memory table, spilling the groups
+     * that do not fit.
+     */
+    private void aggregate() throws DbException, TransactionAbortedException {
+        pending = new ArrayDeque<SpillFile>();
+        pendingLevels = new ArrayDeque<Integer>();
+        numSpilled = 0;
+        startLevel(0);
+        child.open();
+        while (child.hasNext())
+            insert(child.next(), groupFields, layout);
+        child.close();
+        if (groupFields.length == 0 && groups.isEmpty())
+            groups.put(new GroupKey(new Field[0]), layout.newState());
+        finishLevel();
+    }
+
+    private void startLevel(int level) {
+        groups = new HashMap<GroupKey, long[]>();
+        groupBytes = 0;
+        full = false;
+        parts = null;
+        partsLevel = level;
+    }
+
+    /**
+     * Adds a tuple to its group in the table, or to a partition if its group
+     * is not in the table and the table is full.
+     */
+    private void insert(Tuple t, int[] keyFields, AggregateLayout lay)
+            throws DbException {
+        GroupKey key = new GroupKey(t, keyFields);
+        long[] state = groups.get(key);
+        if (state == null) {
+            long bytes = estimateBytes(key);
+            if (!full && groupBytes + bytes > memoryBudget && !groups.isEmpty()
+                    && partsLevel < MAX_LEVELS)
+                full = true;
+            if (full) {
+                spill(t, key, lay == layout);
+                return;
+            }
+            state = lay.newState();
+            groups.put(key, state);
+            groupBytes += bytes;
+        }
+        lay.update(state, t);
+    }
+
+    /**
+     * Estimates the heap used by one entry of the table: the map entry, the
+     * key and the state slot.
+     */
+    private long estimateBytes(GroupKey key) {
+        return 64 + 8 * layout.stateWidth() + key.estimateSize();
+    }
+
+    private void spill(Tuple t, GroupKey key, boolean fromChild)
+            throws DbException {
+        if (parts == null)
+            parts = new SpillFile[NUM_PARTITIONS];
+        int p = key.partition(partsLevel, NUM_PARTITIONS);
+        if (parts[p] == null) {
+            parts[p] = new SpillFile(spillTd);
+            numSpilled++;
+        }
+        if (fromChild) {
+            Tuple s = new Tuple(spillTd);
+            int g = groupFields.length;
+            for (int i = 0; i < g; i++)
+                s.setField(i, key.getField(i));
+            for (int i = 0; i < layout.numAggregates(); i++)
+                s.setField(g + i, t.getField(layout.getField(i)));
+            t = s;
+        }
+        parts[p].add(t);
+    }
+
+    /**
+     * Queues the partitions spilled at the current level, and starts
+     * iterating over the groups in memory.
+     */
+    private void finishLevel() throws DbException {
+        if (parts != null) {
+            for (SpillFile f : parts) {
+                if (f != null) {
+                    f.finishWriting();
+                    pending.push(f);
+                    pendingLevels.push(partsLevel + 1);
+                }
+            }
+            parts = null;
+        }
+        it = groups.entrySet().iterator();
+    }
+
+    /**
+     * Returns the next group: its group-by fields followed by its aggregate
+     * values.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException,
+            DbException {
+        if (it == null)
+            return null;
+        while (!it.hasNext()) {
+            if (pending.isEmpty())
+                return null;
+            SpillFile f = pending.pop();
+            int level = pendingLevels.pop();
+            groups = null;
+            it = null;
+            startLevel(level);
+            SpillFile.Reader r = f.openReader();
+            try {
+                Tuple t;
+                while ((t = r.next()) != null)
+                    insert(t, spillGroupFields, spillLayout);
+            } finally {
+                r.close();
+                f.delete();
+            }
+            finishLevel();
+        }
+        Map.Entry<GroupKey, long[]> e = it.next();
+        return makeTuple(td, e.getKey(), layout, e.getValue());
+    }
+
+    /**
+     * Builds an output tuple from a group key and its state slot.
+     */
+    static Tuple makeTuple(TupleDesc td, GroupKey key, AggregateLayout layout,
+            long[] state) {
+        Tuple t = new Tuple(td);
+        int n = key.numFields();
+        for (int i = 0; i < n; i++)
+            t.setField(i, key.getField(i));
+        for (int i = 0; i < layout.numAggregates(); i++)
+            t.setField(n + i, layout.result(state, i));
+        return t;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        if (numSpilled == 0) {
+            it = groups.entrySet().iterator();
+        } else {
+            // the groups returned so far are gone; aggregate the child again
+            discardState();
+            aggregate();
+        }
+    }
+
+    public void close() {
+        super.close();
+        discardState();
+    }
+
+    private void discardState() {
+        if (parts != null) {
+            for (SpillFile f : parts)
+                if (f != null)
+                    f.delete();
+            parts = null;
+        }
+        if (pending != null) {
+            for (SpillFile f : pending)
+                f.delete();
+            pending.clear();
+            pendingLevels.clear();
+        }
+        it = null;
+        groups = null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { child };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        child = children[0];
+    }
+
+}
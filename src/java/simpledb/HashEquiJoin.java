@@ -4,6 +4,13 @@ import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * HashEquiJoin loads the tuples of its first child into a hash table, as
+ * many as {@link #MAP_SIZE} at a time, and probes it with each tuple of its
+ * second child. If the second child reads a {@link SeqScan}, possibly through
+ * Filters and Projects, a {@link BloomFilter} of the loaded keys is pushed
+ * down to the scan as a {@link RuntimeFilter}, so that probe tuples that
+ * cannot match are dropped before they reach the join.
  */
 public class HashEquiJoin extends Operator {
 
@@ -13,6 +20,8 @@ public class HashEquiJoin extends Operator {
     private TupleDesc comboTD;
     transient private Tuple t1 = null;
     transient private Tuple t2 = null;
+    transient private SeqScan probeScan = null;
+    transient private RuntimeFilter probeFilter = null;
 
     /**
      * Constructor. Accepts to children to join and the predicate to join them
@@ -50,6 +59,14 @@ public class HashEquiJoin extends Operator {
 	return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
     }
     
+    /**
+     * @return the filter pushed down to the probe side scan when this join
+     *         was last opened, or null if there is none
+     */
+    public RuntimeFilter getProbeFilter() {
+        return probeFilter;
+    }
+
     HashMap<Object, ArrayList<Tuple>> map = new HashMap<Object, ArrayList<Tuple>>();
     public final static int MAP_SIZE = 20000;
 
@@ -65,16 +82,49 @@ public class HashEquiJoin extends Operator {
             }
             list.add(t1);
             if (cnt++ == MAP_SIZE)
-                return true;
+                break;
+        }
+        if (probeFilter != null) {
+            BloomFilter bloom = new BloomFilter(map.size());
+            for (Object key : map.keySet())
+                bloom.add((Field) key);
+            probeFilter.setBloomFilter(bloom);
         }
         return cnt > 0;
 
     }
 
+    /**
+     * Finds the scan that the tuples of op come from, and the index of a field
+     * of op in the scanned tuples. Only Filters and Projects may be in between.
+     *
+     * @return the scan, with the field index stored in field[0], or null
+     */
+    private static SeqScan findScan(OpIterator op, int[] field) {
+        while (true) {
+            if (op instanceof SeqScan)
+                return (SeqScan) op;
+            if (op instanceof Filter) {
+                op = ((Filter) op).getChildren()[0];
+            } else if (op instanceof Project) {
+                field[0] = ((Project) op).getOutFieldIds().get(field[0]);
+                op = ((Project) op).getChildren()[0];
+            } else {
+                return null;
+            }
+        }
+    }
+
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child1.open();
         child2.open();
+        int[] field = new int[] { pred.getField2() };
+        probeScan = findScan(child2, field);
+        if (probeScan != null) {
+            probeFilter = new RuntimeFilter(field[0], getJoinField2Name());
+            probeScan.addRuntimeFilter(probeFilter);
+        }
         loadMap();
         super.open();
     }
@@ -83,6 +133,10 @@ public class HashEquiJoin extends Operator {
         super.close();
         child2.close();
         child1.close();
+        if (probeScan != null) {
+            probeScan.removeRuntimeFilter(probeFilter);
+            probeScan = null;
+        }
         this.t1=null;
         this.t2=null;
         this.listIt=null;
@@ -92,6 +146,8 @@ public class HashEquiJoin extends Operator {
     public void rewind() throws DbException, TransactionAbortedException {
         child1.rewind();
         child2.rewind();
+        listIt = null;
+        loadMap();
     }
 
     transient Iterator<Tuple> listIt = null;
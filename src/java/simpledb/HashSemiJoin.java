@@ -0,0 +1,155 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * HashSemiJoin implements a semi join, which returns the tuples of its outer
+ * child that match at least one tuple of its inner child, and an anti join,
+ * which returns those that match none. They answer IN and EXISTS subqueries
+ * and their negations NOT IN and NOT EXISTS.
+ * <p>
+ * Only the outer tuples are returned, each at most once, so unlike a
+ * {@link Join} the output is never larger than the outer child. The join
+ * field of the inner child is read into a hash set when the operator is
+ * opened; each outer tuple then takes a single lookup. For predicates other
+ * than equality the inner values are kept in a list instead, and the search
+ * stops at the first match. The outer tuples are returned in the order of the
+ * outer child.
+ * <p>
+ * Since SimpleDB has no NULL values, NOT IN and NOT EXISTS are the same anti
+ * join.
+ */
+public class HashSemiJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final JoinPredicate pred;
+    private final boolean anti;
+    private OpIterator outer, inner;
+
+    private transient HashSet<Field> keys;
+    private transient ArrayList<Field> values;
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate between a field of the outer tuples and a
+     *            field of the inner tuples
+     * @param outer
+     *            Iterator for the relation whose tuples are returned
+     * @param inner
+     *            Iterator for the relation they are matched against
+     * @param anti
+     *            true to return the outer tuples without a match rather
+     *            than those with one
+     */
+    public HashSemiJoin(JoinPredicate p, OpIterator outer, OpIterator inner,
+            boolean anti) {
+        this.pred = p;
+        this.outer = outer;
+        this.inner = inner;
+        this.anti = anti;
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    /**
+     * @return true if this is an anti join
+     */
+    public boolean isAnti() {
+        return anti;
+    }
+
+    public String getJoinField1Name() {
+        return outer.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return inner.getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    /**
+     * @return the schema of the outer child
+     */
+    public TupleDesc getTupleDesc() {
+        return outer.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        outer.open();
+        inner.open();
+        loadInner();
+        super.open();
+    }
+
+    private void loadInner() throws DbException, TransactionAbortedException {
+        keys = null;
+        values = null;
+        if (pred.getOperator() == Predicate.Op.EQUALS)
+            keys = new HashSet<Field>();
+        else
+            values = new ArrayList<Field>();
+        while (inner.hasNext()) {
+            Field f = inner.next().getField(pred.getField2());
+            if (keys != null)
+                keys.add(f);
+            else
+                values.add(f);
+        }
+    }
+
+    public void close() {
+        super.close();
+        inner.close();
+        outer.close();
+        keys = null;
+        values = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        outer.rewind();
+        inner.rewind();
+        loadInner();
+    }
+
+    private boolean hasMatch(Tuple t) {
+        Field f = t.getField(pred.getField1());
+        if (keys != null)
+            return keys.contains(f);
+        for (Field v : values)
+            if (f.compare(pred.getOperator(), v))
+                return true;
+        return false;
+    }
+
+    /**
+     * Returns the next outer tuple that has a match in the inner relation, or
+     * that has none for an anti join.
+     *
+     * @return The next tuple, or null if there are no more tuples
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (outer.hasNext()) {
+            Tuple t = outer.next();
+            if (hasMatch(t) != anti)
+                return t;
+        }
+        return null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { outer, inner };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.outer = children[0];
+        this.inner = children[1];
+    }
+
+}
@@ -159,20 +159,62 @@ public class HeapFile implements DbFile {
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
         // some code goes here
-        return new HeapFileIterator(tid);
+        return new HeapFileIterator(tid, 0, numPages(), null);
+    }
+
+    /**
+     * Returns an iterator over the tuples of this file that satisfy a
+     * predicate. The predicate is tested on the bytes of each page, and only
+     * the tuples that pass it are built.
+     *
+     * @param tid the transaction reading the pages
+     * @param filter the predicate, or null to return every tuple
+     */
+    public DbFileIterator iterator(TransactionId tid, PredicateTree filter) {
+        return new HeapFileIterator(tid, 0, numPages(), filter);
+    }
+
+    /**
+     * Returns an iterator over the tuples of a range of pages of this file,
+     * so that several threads can each scan a part of the file.
+     *
+     * @param tid the transaction reading the pages
+     * @param firstPage the number of the first page to read
+     * @param endPage one past the number of the last page to read
+     */
+    public DbFileIterator iterator(TransactionId tid, int firstPage, int endPage) {
+        return iterator(tid, firstPage, endPage, null);
+    }
+
+    /**
+     * Returns an iterator over the tuples of a range of pages of this file
+     * that satisfy a predicate; see {@link #iterator(TransactionId, PredicateTree)}.
+     */
+    public DbFileIterator iterator(TransactionId tid, int firstPage, int endPage,
+            PredicateTree filter) {
+        if (firstPage < 0 || endPage < firstPage)
+            throw new IllegalArgumentException("invalid page range");
+        return new HeapFileIterator(tid, firstPage, Math.min(endPage, numPages()), filter);
     }
 
     private class HeapFileIterator implements DbFileIterator{
         private Iterator<Tuple> tupleIterator;
         private int pageIndex;
         private TransactionId tid;
+        private int firstPageNo;
         private int totalPageNo;
         private boolean isOpen;
-        public HeapFileIterator(TransactionId tid){
+        private PredicateTree filter;
+        private RawPredicate rawFilter;
+        private CompiledPredicate decodedFilter;
+        public HeapFileIterator(TransactionId tid, int firstPageNo, int endPageNo,
+                PredicateTree filter){
             isOpen = false;
-            pageIndex = 0;
+            this.filter = filter;
+            this.firstPageNo = firstPageNo;
+            pageIndex = firstPageNo;
             this.tid = tid;
-            totalPageNo = numPages();
+            totalPageNo = endPageNo;
         }
 
         private Iterator<Tuple> getTupleIterator(int pageNo) throws DbException, TransactionAbortedException{
@@ -180,11 +222,19 @@ public class HeapFile implements DbFile {
             PageId pid = new HeapPageId(tableId, pageNo);
 
             HeapPage heapPage = (HeapPage) Database.getBufferPool().getPage(tid,pid,Permissions.READ_ONLY);
+            if (filter != null)
+                return heapPage.iterator(rawFilter, decodedFilter);
             return heapPage.iterator();
         }
         @Override
         public void open() throws DbException, TransactionAbortedException{
-            tupleIterator = getTupleIterator(pageIndex);
+            if (filter != null && rawFilter == null) {
+                rawFilter = RawPredicate.compile(filter, td);
+                decodedFilter = filter.compile();
+            }
+            if(pageIndex < totalPageNo){
+                tupleIterator = getTupleIterator(pageIndex);
+            }
             isOpen = true;
         }
 
@@ -221,7 +271,7 @@ public class HeapFile implements DbFile {
         public void rewind() throws DbException, TransactionAbortedException{
 
             close();
-            pageIndex = 0;
+            pageIndex = firstPageNo;
             open();
         }
 
@@ -6,6 +6,11 @@ import java.io.*;
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * The tuples of a page are decoded from the bytes read from disk only when
+ * they are first accessed, and {@link #iterator(RawPredicate, CompiledPredicate)}
+ * tests a predicate on those bytes, so that a selective scan only builds the
+ * tuples it returns.
  *
  * @see HeapFile
  * @see BufferPool
@@ -18,6 +23,8 @@ public class HeapPage implements Page {
     final byte header[];
     final Tuple[] tuples;
     final int numSlots;
+    /** The bytes read from disk; a used slot whose tuple is null is stored here */
+    private final byte[] data;
     private int emptySlotNo;
     private boolean isDirty;
     private TransactionId transactionId;
@@ -56,16 +63,9 @@ public class HeapPage implements Page {
                 emptySlotNo++;
             }
         }
+        // the records are decoded by getTuple when they are first accessed
         tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++){
-                tuples[i] = readNextTuple(dis,i);
-            }
-
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
+        this.data = data;
         dis.close();
 
         setBeforeImage();
@@ -126,25 +126,27 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * @return the offset in the page data of the tuple in slot i
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
-        }
+    private int tupleOffset(int i) {
+        return header.length + i * td.getSize();
+    }
+
+    /**
+     * Returns the tuple in slot i, decoding it from the page data the first
+     * time it is accessed.
+     *
+     * @return the tuple, or null if the slot is empty
+     */
+    private synchronized Tuple getTuple(int i) throws NoSuchElementException {
+        if (tuples[i] != null || !isSlotUsed(i))
+            return tuples[i];
 
         // read fields in the tuple
+        DataInputStream dis = new DataInputStream(
+                new ByteArrayInputStream(data, tupleOffset(i), td.getSize()));
         Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
+        RecordId rid = new RecordId(pid, i);
         t.setRecordId(rid);
         try {
             for (int j=0; j<td.numFields(); j++) {
@@ -155,7 +157,7 @@ public class HeapPage implements Page {
             e.printStackTrace();
             throw new NoSuchElementException("parsing error!");
         }
-
+        tuples[i] = t;
         return t;
     }
 
@@ -170,7 +172,7 @@ public class HeapPage implements Page {
      * @see #HeapPage
      * @return A byte array correspond to the bytes of this page.
      */
-    public byte[] getPageData() {
+    public synchronized byte[] getPageData() {
         int len = BufferPool.getPageSize();
         ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
         DataOutputStream dos = new DataOutputStream(baos);
@@ -201,7 +203,15 @@ public class HeapPage implements Page {
                 continue;
             }
 
-            // non-empty slot
+            // non-empty slot that was never decoded: copy its bytes
+            if (tuples[i] == null) {
+                try {
+                    dos.write(data, tupleOffset(i), td.getSize());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                continue;
+            }
             for (int j=0; j<td.numFields(); j++) {
                 Field f = tuples[i].getField(j);
                 try {
@@ -252,7 +262,7 @@ public class HeapPage implements Page {
      *         already empty.
      * @param t The tuple to delete
      */
-    public void deleteTuple(Tuple t) throws DbException {
+    public synchronized void deleteTuple(Tuple t) throws DbException {
         // some code goes here
         int i = t.getRecordId().getTupleNumber();
         PageId pageId = t.getRecordId().getPageId();
@@ -273,13 +283,15 @@ public class HeapPage implements Page {
      *         is mismatch.
      * @param t The tuple to add.
      */
-    public void insertTuple(Tuple t) throws DbException {
+    public synchronized void insertTuple(Tuple t) throws DbException {
         // some code goes here
         if(emptySlotNo==0){
             throw new DbException("the page is full");
         } else if(!t.getTupleDesc().equals(td)){
             throw new DbException("tuple description doesn't match");
         }
+        // under the lock getTuple decodes tuples with, so that a reader of
+        // the page never sees the slot used before the tuple is stored
         for(int i = 0; i < numSlots; i++){
             if(!isSlotUsed(i)){
                 markSlotUsed(i,true);
@@ -353,16 +365,63 @@ public class HeapPage implements Page {
      * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
      * (note that this iterator shouldn't return tuples in empty slots!)
      */
-    public Iterator<Tuple> iterator() {
+    public synchronized Iterator<Tuple> iterator() {
         // some code goes here
         ArrayList<Tuple> list = new ArrayList<Tuple>();
         for (int i = 0; i < numSlots; i++) {
             if (isSlotUsed(i)){
-                list.add(tuples[i]);
+                list.add(getTuple(i));
             }
         }
         return list.iterator();
     }
 
+    /**
+     * Returns an iterator over the tuples on this page that satisfy a
+     * predicate. Tuples that have not been decoded yet are tested on the
+     * bytes of the page with raw, and are only decoded if they pass; the
+     * others are tested with decoded. Both must compile the same predicate;
+     * raw may be null, if the predicate could not be compiled to it, and then
+     * every tuple is decoded. The matching slots are found when this method
+     * is called.
+     */
+    public Iterator<Tuple> iterator(RawPredicate raw, CompiledPredicate decoded) {
+        final int[] slots = new int[numSlots];
+        int n = 0;
+        // under the lock getTuple decodes tuples with, since threads
+        // scanning in parallel share the page
+        synchronized (this) {
+            for (int i = 0; i < numSlots; i++) {
+                if (!isSlotUsed(i))
+                    continue;
+                Tuple t = tuples[i];
+                if (t == null && raw == null)
+                    t = getTuple(i);
+                if (t == null ? raw.test(data, tupleOffset(i)) : decoded.test(t))
+                    slots[n++] = i;
+            }
+        }
+        final int count = n;
+        return new Iterator<Tuple>() {
+            private int pos = 0;
+            private Tuple next = null;
+
+            public boolean hasNext() {
+                // skip tuples deleted since the slots were found
+                while (next == null && pos < count)
+                    next = getTuple(slots[pos++]);
+                return next != null;
+            }
+
+            public Tuple next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                Tuple t = next;
+                next = null;
+                return t;
+            }
+        };
+    }
+
 }
 
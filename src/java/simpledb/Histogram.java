@@ -0,0 +1,41 @@
+package simpledb;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * A Histogram summarizes the values of an integer field, so that the
+ * selectivity of a predicate on the field can be estimated without reading
+ * the table. {@link IntHistogram} divides the range of the values into
+ * buckets of the same width; {@link EquiDepthHistogram} into buckets that
+ * hold the same number of values.
+ */
+public interface Histogram {
+
+    /**
+     * Add a value to the set of values that the histogram summarizes.
+     */
+    void addValue(int v);
+
+    /**
+     * Remove a value that was added before, when its tuple is deleted.
+     */
+    void removeValue(int v);
+
+    /**
+     * Estimate the fraction of the values for which "value op v" is true.
+     */
+    double estimateSelectivity(Predicate.Op op, int v);
+
+    /**
+     * @return the expected selectivity of an equality with a value of the
+     *         field whose value is not known
+     */
+    double avgSelectivity();
+
+    /**
+     * Writes this histogram out, so that it can be read back with the read
+     * method of its class.
+     */
+    void write(DataOutputStream out) throws IOException;
+}
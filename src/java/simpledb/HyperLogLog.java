@@ -0,0 +1,163 @@
+package simpledb;
+
+/**
+ * HyperLogLog estimates the number of distinct values in a stream using a
+ * fixed amount of memory, however many values there are.
+ * <p>
+ * A sketch of precision p has m = 2^p one-byte registers. Each value is
+ * hashed to 64 bits; the top p bits choose a register, and the register
+ * keeps the largest number of leading zeros (plus one) seen in the remaining
+ * bits. The estimate is derived from the harmonic mean of the registers,
+ * with linear counting for small cardinalities. Its relative standard error
+ * is about 1.04 / sqrt(m): 1.6% for the default precision of 12, which takes
+ * 4KB.
+ * <p>
+ * So that the aggregate operators can keep it in their per-group long[]
+ * state (see {@link AggregateLayout}), a sketch is stored in a range of a
+ * long[] with eight registers per long, and all methods here work on such a
+ * range. Two sketches of the same precision are merged by taking the maximum
+ * of each register, so partial sketches built by different threads or over
+ * different partitions combine exactly.
+ */
+public class HyperLogLog {
+
+    /** The smallest supported precision. */
+    public static final int MIN_PRECISION = 4;
+
+    /** The largest supported precision. */
+    public static final int MAX_PRECISION = 16;
+
+    /** The precision used unless another one is configured. */
+    public static final int DEFAULT_PRECISION = 12;
+
+    private static int defaultPrecision = DEFAULT_PRECISION;
+
+    private HyperLogLog() {
+    }
+
+    /**
+     * @return the precision of sketches whose precision is not given
+     *         explicitly
+     */
+    public static int getDefaultPrecision() {
+        return defaultPrecision;
+    }
+
+    /**
+     * Sets the precision of sketches whose precision is not given
+     * explicitly. Only aggregates created afterwards are affected.
+     *
+     * @throws IllegalArgumentException
+     *             if the precision is out of range
+     */
+    public static void setDefaultPrecision(int precision) {
+        checkPrecision(precision);
+        defaultPrecision = precision;
+    }
+
+    /**
+     * @throws IllegalArgumentException
+     *             if the precision is not between MIN_PRECISION and
+     *             MAX_PRECISION
+     */
+    public static void checkPrecision(int precision) {
+        if (precision < MIN_PRECISION || precision > MAX_PRECISION)
+            throw new IllegalArgumentException("HyperLogLog precision must be between "
+                    + MIN_PRECISION + " and " + MAX_PRECISION);
+    }
+
+    /**
+     * @return the number of longs taken by a sketch of the given precision
+     */
+    public static int stateWidth(int precision) {
+        return (1 << precision) / 8;
+    }
+
+    /**
+     * @return a 64 bit hash of the value of a field
+     */
+    public static long hash(Field f) {
+        long h;
+        if (f instanceof IntField) {
+            h = ((IntField) f).getValue();
+        } else {
+            // FNV-1a over the characters, then mixed below
+            h = 0xCBF29CE484222325L;
+            String s = ((StringField) f).getValue();
+            for (int i = 0; i < s.length(); i++) {
+                h ^= s.charAt(i);
+                h *= 0x100000001B3L;
+            }
+        }
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static int register(long[] state, int offset, int j) {
+        return (int) (state[offset + (j >>> 3)] >>> ((j & 7) * 8)) & 0xFF;
+    }
+
+    /**
+     * Adds a hashed value to the sketch stored at state[offset...].
+     */
+    public static void add(long[] state, int offset, int precision, long hash) {
+        int j = (int) (hash >>> (64 - precision));
+        // the sentinel bit bounds the rank when the remaining bits are zero
+        long rest = (hash << precision) | (1L << (precision - 1));
+        int rank = Long.numberOfLeadingZeros(rest) + 1;
+        if (rank > register(state, offset, j)) {
+            int shift = (j & 7) * 8;
+            int i = offset + (j >>> 3);
+            state[i] = (state[i] & ~(0xFFL << shift)) | ((long) rank << shift);
+        }
+    }
+
+    /**
+     * Merges the sketch stored at from[offset...] into the one stored at
+     * into[offset...]; both must have the same precision.
+     */
+    public static void merge(long[] into, long[] from, int offset, int precision) {
+        int m = 1 << precision;
+        for (int j = 0; j < m; j++) {
+            int r = register(from, offset, j);
+            if (r > register(into, offset, j)) {
+                int shift = (j & 7) * 8;
+                int i = offset + (j >>> 3);
+                into[i] = (into[i] & ~(0xFFL << shift)) | ((long) r << shift);
+            }
+        }
+    }
+
+    /**
+     * @return the estimated number of distinct values added to the sketch
+     *         stored at state[offset...]
+     */
+    public static long estimate(long[] state, int offset, int precision) {
+        int m = 1 << precision;
+        double sum = 0;
+        int zeros = 0;
+        for (int j = 0; j < m; j++) {
+            int r = register(state, offset, j);
+            sum += Math.scalb(1.0, -r);
+            if (r == 0)
+                zeros++;
+        }
+        double alpha;
+        if (m == 16)
+            alpha = 0.673;
+        else if (m == 32)
+            alpha = 0.697;
+        else if (m == 64)
+            alpha = 0.709;
+        else
+            alpha = 0.7213 / (1 + 1.079 / m);
+        double e = alpha * m * m / sum;
+        if (e <= 2.5 * m && zeros > 0)
+            e = m * Math.log((double) m / zeros);
+        return Math.round(e);
+    }
+}
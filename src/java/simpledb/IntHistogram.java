@@ -1,8 +1,17 @@
 package simpledb;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
 /** A class to represent a fixed-width histogram over a single integer-based field.
+ * <p>
+ * The range of the values is either given up front, or grows as values are
+ * added: the buckets then start one value wide, and pairs of neighbouring
+ * buckets are merged whenever a value falls outside of them, so the
+ * histogram can be built in the same pass that finds the minimum and maximum.
  */
-public class IntHistogram {
+public class IntHistogram implements Histogram {
 
 
     private int max;
@@ -13,6 +22,7 @@ public class IntHistogram {
     private int[] buckets;
     private double width;
     private int totalNum;
+    private boolean adaptive;
     /**
      * Create a new IntHistogram.
      * 
@@ -41,17 +51,84 @@ public class IntHistogram {
         this.totalNum = 0;
     }
 
+    /**
+     * Create a new IntHistogram whose range is that of the values added to
+     * it.
+     *
+     * @param buckets The number of buckets to split the input value into.
+     */
+    public IntHistogram(int buckets) {
+        this(buckets, 0, 0);
+        this.width = 1;
+        this.adaptive = true;
+    }
+
+    /**
+     * Widens the buckets of an adaptive histogram until they cover v.
+     */
+    private void cover(int v) {
+        if (totalNum == 0) {
+            min = max = v;
+            return;
+        }
+        if (v < min) {
+            // move the buckets right by whole buckets, so they still line up
+            long shift;
+            while ((shift = ((long) min - v + (long) width - 1) / (long) width)
+                    + lastUsedBucket() >= numOfBuckets)
+                merge();
+            System.arraycopy(buckets, 0, buckets, (int) shift, numOfBuckets - (int) shift);
+            java.util.Arrays.fill(buckets, 0, (int) shift, 0);
+            min = (int) Math.max(Integer.MIN_VALUE, min - shift * (long) width);
+        }
+        while (((long) v - min) / (long) width >= numOfBuckets)
+            merge();
+        max = Math.max(max, v);
+    }
+
+    private int lastUsedBucket() {
+        int last = numOfBuckets - 1;
+        while (last > 0 && buckets[last] == 0)
+            last--;
+        return last;
+    }
+
+    /** Merges each pair of neighbouring buckets, doubling their width */
+    private void merge() {
+        for (int i = 0; i < numOfBuckets; i++)
+            buckets[i] = 2 * i + 1 < numOfBuckets ? buckets[2 * i] + buckets[2 * i + 1]
+                    : 2 * i < numOfBuckets ? buckets[2 * i] : 0;
+        width *= 2;
+    }
+
     /**
      * Add a value to the set of values that you are keeping a histogram of.
      * @param v Value to add to the histogram
      */
     public void addValue(int v) {
     	// some code goes here
+        if (adaptive)
+            cover(v);
         int index = getIndex(v);
         buckets[index]++;
         totalNum++;
     }
 
+    /**
+     * Remove a value that was added before. A value outside the range of the
+     * histogram, or whose bucket is already empty, is ignored.
+     * @param v Value to remove from the histogram
+     */
+    public void removeValue(int v) {
+        if (totalNum == 0 || v < min || v > max)
+            return;
+        int index = getIndex(v);
+        if (buckets[index] > 0) {
+            buckets[index]--;
+            totalNum--;
+        }
+    }
+
     /**
      * Estimate the selectivity of a particular predicate and operand on this table.
      * 
@@ -181,9 +258,42 @@ public class IntHistogram {
     public double avgSelectivity()
     {
         // some code goes here
-        return 1.0;
+        if (totalNum == 0)
+            return 1.0;
+        double s = 0;
+        for (int b : buckets)
+            s += ((double) b / totalNum) * ((double) b / totalNum);
+        // the values of a bucket are spread evenly over its width
+        return s / Math.max(width, 1);
     }
     
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(numOfBuckets);
+        out.writeInt(min);
+        out.writeInt(max);
+        out.writeDouble(width);
+        out.writeBoolean(adaptive);
+        out.writeInt(totalNum);
+        for (int b : buckets)
+            out.writeInt(b);
+    }
+
+    /**
+     * Reads back a histogram written by {@link #write}.
+     */
+    public static IntHistogram read(DataInputStream in) throws IOException {
+        int numBuckets = in.readInt();
+        int min = in.readInt();
+        int max = in.readInt();
+        IntHistogram h = new IntHistogram(numBuckets, min, max);
+        h.width = in.readDouble();
+        h.adaptive = in.readBoolean();
+        h.totalNum = in.readInt();
+        for (int i = 0; i < numBuckets; i++)
+            h.buckets[i] = in.readInt();
+        return h;
+    }
+
     /**
      * @return A string describing this histogram, for debugging purposes
      */
@@ -148,12 +148,13 @@ public class Join extends Operator {
 
         Tuple joinedTuple = new Tuple(tupleDesc);
         int number = tupleDesc.numFields();
-        for(int i =0; i< left.getTupleDesc().numFields();i+=1){
+        int leftNumber = left.getTupleDesc().numFields();
+        for(int i =0; i< leftNumber;i+=1){
             joinedTuple.setField(i,left.getField(i));
         }
 
-        for(int i =left.getTupleDesc().numFields(); i<number; i+=1){
-            joinedTuple.setField(i,right.getField(i-left.getTupleDesc().numFields()));
+        for(int i =leftNumber; i<number; i+=1){
+            joinedTuple.setField(i,right.getField(i-leftNumber));
         }
 
         return joinedTuple;
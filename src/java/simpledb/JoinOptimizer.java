@@ -1,9 +1,8 @@
 package simpledb;
 
 import java.util.*;
-
-import javax.swing.*;
-import javax.swing.tree.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntUnaryOperator;
 
 /**
  * The JoinOptimizer class is responsible for ordering a series of joins
@@ -14,6 +13,33 @@ public class JoinOptimizer {
     LogicalPlan p;
     Vector<LogicalJoinNode> joins;
 
+    /**
+     * The largest number of tables, counting each subquery as one, that
+     * {@link #orderJoins} can order by dynamic programming. Sets of tables
+     * are bit masks, and the best plan of each set is kept in arrays of 2^n
+     * entries.
+     */
+    public static final int MAX_DP_TABLES = 20;
+
+    /**
+     * The default time, in milliseconds, that {@link #orderJoins} spends on
+     * dynamic programming before it orders the joins greedily
+     */
+    public static final long DEFAULT_PLANNING_BUDGET = 1000;
+
+    /**
+     * The settings that new optimizers start with, and so the ones that
+     * {@link LogicalPlan#physicalPlan} plans queries with
+     */
+    private static volatile boolean defaultBushy = true;
+    private static volatile int defaultDpTables = MAX_DP_TABLES;
+    private static volatile long defaultPlanningBudget = DEFAULT_PLANNING_BUDGET;
+
+    /** Whether both sides of a join may be joins themselves */
+    private boolean bushy = defaultBushy;
+    private int dpTables = defaultDpTables;
+    private long planningBudget = defaultPlanningBudget;
+
     /**
      * Constructor
      * 
@@ -27,6 +53,94 @@ public class JoinOptimizer {
         this.joins = joins;
     }
 
+    /**
+     * Sets whether optimizers created afterwards, including those of the
+     * queries planned by {@link LogicalPlan#physicalPlan}, may choose bushy
+     * plans.
+     *
+     * @see #setBushy
+     */
+    public static void setDefaultBushy(boolean bushy) {
+        defaultBushy = bushy;
+    }
+
+    public static boolean getDefaultBushy() {
+        return defaultBushy;
+    }
+
+    /**
+     * Sets the largest number of tables that optimizers created afterwards
+     * order by dynamic programming.
+     *
+     * @see #setMaxDpTables
+     */
+    public static void setDefaultMaxDpTables(int n) {
+        checkDpTables(n);
+        defaultDpTables = n;
+    }
+
+    public static int getDefaultMaxDpTables() {
+        return defaultDpTables;
+    }
+
+    /**
+     * Sets the time, in milliseconds, that optimizers created afterwards may
+     * spend on dynamic programming.
+     *
+     * @see #setPlanningBudget
+     */
+    public static void setDefaultPlanningBudget(long millis) {
+        checkPlanningBudget(millis);
+        defaultPlanningBudget = millis;
+    }
+
+    public static long getDefaultPlanningBudget() {
+        return defaultPlanningBudget;
+    }
+
+    /**
+     * Sets whether {@link #orderJoins} may choose bushy plans, in which both
+     * sides of a join are joins, or only left-deep and zig-zag plans, in
+     * which one side of each join is a single table or subquery. Bushy
+     * plans are allowed by default.
+     */
+    public void setBushy(boolean bushy) {
+        this.bushy = bushy;
+    }
+
+    /**
+     * Sets the largest number of tables, counting each subquery as one,
+     * whose joins {@link #orderJoins} orders by dynamic programming; the
+     * joins of more tables are ordered greedily.
+     *
+     * @throws IllegalArgumentException
+     *             if n is negative or above {@link #MAX_DP_TABLES}
+     */
+    public void setMaxDpTables(int n) {
+        checkDpTables(n);
+        this.dpTables = n;
+    }
+
+    private static void checkDpTables(int n) {
+        if (n < 0 || n > MAX_DP_TABLES)
+            throw new IllegalArgumentException("at most " + MAX_DP_TABLES
+                    + " tables can be planned exhaustively: " + n);
+    }
+
+    /**
+     * Sets the time, in milliseconds, that {@link #orderJoins} may spend on
+     * dynamic programming before it gives up and orders the joins greedily.
+     */
+    public void setPlanningBudget(long millis) {
+        checkPlanningBudget(millis);
+        this.planningBudget = millis;
+    }
+
+    private static void checkPlanningBudget(long millis) {
+        if (millis < 0)
+            throw new IllegalArgumentException("negative planning budget: " + millis);
+    }
+
     /**
      * Return best iterator for computing a given logical join, given the
      * specified statistics, and the provided left and right subplans. Note that
@@ -68,7 +182,13 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        j = new Join(p,plan1,plan2);
+        // equality can be answered with a hash table on the outer keys
+        if (lj instanceof LogicalSubplanJoinNode)
+            j = new HashSemiJoin(p, plan1, plan2, ((LogicalSubplanJoinNode) lj).anti);
+        else if (lj.p == Predicate.Op.EQUALS)
+            j = new HashEquiJoin(p, plan1, plan2);
+        else
+            j = new Join(p,plan1,plan2);
 
         return j;
 
@@ -103,14 +223,20 @@ public class JoinOptimizer {
     public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
             double cost1, double cost2) {
         if (j instanceof LogicalSubplanJoinNode) {
-            // A LogicalSubplanJoinNode represents a subquery.
-            // You do not need to implement proper support for these for Lab 3.
-            return card1 + cost1 + cost2;
+            // A LogicalSubplanJoinNode represents a subquery, run once and
+            // kept in memory. With equality each outer row takes one hash
+            // lookup; otherwise it may be compared with every inner row.
+            if (j.p == Predicate.Op.EQUALS)
+                return cost1 + cost2 + card1 + card2;
+            return cost1 + cost2 + (double) card1 * card2;
+        } else if (j.p == Predicate.Op.EQUALS) {
+            // HashEquiJoin loads the outer side into a hash table,
+            // MAP_SIZE tuples at a time, and reads the inner side once per
+            // load, so a composite inner side is not rerun per outer row
+            double loads = Math.max(1.0, Math.ceil((double) card1 / HashEquiJoin.MAP_SIZE));
+            return cost1 + loads * cost2 + card1 + loads * card2;
         } else {
-            // Insert your code here.
-            // HINT: You may need to use the variable "j" if you implemented
-            // a join algorithm that's more complicated than a basic
-            // nested-loops join.
+            // a nested-loops join reruns the inner side for each outer row
             return cost1 + card1 * cost2 + card1 * card2;
         }
     }
@@ -138,8 +264,17 @@ public class JoinOptimizer {
             boolean t1pkey, boolean t2pkey, Map<String, TableStats> stats) {
         if (j instanceof LogicalSubplanJoinNode) {
             // A LogicalSubplanJoinNode represents a subquery.
-            // You do not need to implement proper support for these for Lab 3.
-            return card1;
+            int distinct1 = card1;
+            Integer t1id = p.getTableId(j.t1Alias);
+            if (t1id != null) {
+                TableStats s = stats.get(Database.getCatalog().getTableName(t1id));
+                TupleDesc td = Database.getCatalog().getTupleDesc(t1id);
+                if (s != null)
+                    distinct1 = s.estimateDistinctValues(td.fieldNameToIndex(j.f1PureName));
+            }
+            LogicalSubplanJoinNode sj = (LogicalSubplanJoinNode) j;
+            return estimateSemiJoinCardinality(j.p, sj.anti, card1, card2,
+                    distinct1, estimateSubplanDistinct(sj.subPlan, 0, card2, stats));
         } else {
             return estimateTableJoinCardinality(j.p, j.t1Alias, j.t2Alias,
                     j.f1PureName, j.f2PureName, card1, card2, t1pkey, t2pkey,
@@ -149,6 +284,15 @@ public class JoinOptimizer {
 
     /**
      * Estimate the join cardinality of two tables.
+     * <p>
+     * A join on a primary key returns a row for each row of the other side.
+     * Other equi-joins return card1 * card2 / max(ndv1, ndv2), where the
+     * number of distinct values of each join field comes from the
+     * statistics of its table, and is at most the cardinality of its side.
+     * Range joins take their selectivity from the overlap of the histograms
+     * of the two fields (see {@link TableStats#estimateJoinSelectivity}).
+     * Without statistics of both tables, an equi-join returns as many rows
+     * as its larger side and any other join 0.3 of all the pairs.
      * */
     public static int estimateTableJoinCardinality(Predicate.Op joinOp,
             String table1Alias, String table2Alias, String field1PureName,
@@ -157,56 +301,183 @@ public class JoinOptimizer {
             Map<String, Integer> tableAliasToId) {
         int card;
         // some code goes here
+        TableStats s1 = statsOf(table1Alias, stats, tableAliasToId);
+        TableStats s2 = statsOf(table2Alias, stats, tableAliasToId);
+        int f1 = fieldOf(table1Alias, field1PureName, tableAliasToId);
+        int f2 = fieldOf(table2Alias, field2PureName, tableAliasToId);
+        boolean known = s1 != null && s2 != null && f1 >= 0 && f2 >= 0;
+        double distinct = 1;
+        if (known) {
+            distinct = Math.max(Math.min(s1.estimateDistinctValues(f1), card1),
+                    Math.min(s2.estimateDistinctValues(f2), card2));
+            distinct = Math.max(distinct, 1);
+        }
         if(joinOp == Predicate.Op.EQUALS){
             if(t1pkey){
                 card = card2;
             }else if(t2pkey){
                 card = card1;
+            }else if(known){
+                card = cardinality((double) card1 * card2 / distinct);
             }else{
                 card = Integer.max(card1,card2);
             }
+        } else if(known && joinOp == Predicate.Op.NOT_EQUALS){
+            card = cardinality((double) card1 * card2 * (1 - 1 / distinct));
+        } else if(known){
+            card = cardinality((double) card1 * card2 * s1.estimateJoinSelectivity(f1, joinOp, s2, f2));
         } else{
-            card = (int)(0.3 * card1 * card2);
+            card = cardinality(0.3 * card1 * card2);
         }
         return card;
     }
 
+    /** @return an estimated number of rows, rounded and at most Integer.MAX_VALUE */
+    private static int cardinality(double rows) {
+        return (int) Math.min(Integer.MAX_VALUE, Math.round(rows));
+    }
+
     /**
-     * Helper method to enumerate all of the subsets of a given size of a
-     * specified vector.
-     * 
-     * @param v
-     *            The vector whose subsets are desired
-     * @param size
-     *            The size of the subsets of interest
-     * @return a set of all subsets of the specified size
+     * @return the statistics of the table an alias stands for, or null if it
+     *         is not a table or has none
      */
-    @SuppressWarnings("unchecked")
-    public <T> Set<Set<T>> enumerateSubsets(Vector<T> v, int size) {
-        Set<Set<T>> els = new HashSet<Set<T>>();
-        els.add(new HashSet<T>());
-        // Iterator<Set> it;
-        // long start = System.currentTimeMillis();
-
-        for (int i = 0; i < size; i++) {
-            Set<Set<T>> newels = new HashSet<Set<T>>();
-            for (Set<T> s : els) {
-                for (T t : v) {
-                    Set<T> news = (Set<T>) (((HashSet<T>) s).clone());
-                    if (news.add(t))
-                        newels.add(news);
-                }
-            }
-            els = newels;
+    private static TableStats statsOf(String alias, Map<String, TableStats> stats,
+            Map<String, Integer> tableAliasToId) {
+        Integer id = tableAliasToId.get(alias);
+        if (id == null)
+            return null;
+        try {
+            return stats.get(Database.getCatalog().getTableName(id));
+        } catch (NoSuchElementException e) {
+            return null;
         }
+    }
 
-        return els;
+    /** @return the index of a field of the table an alias stands for, or -1 */
+    private static int fieldOf(String alias, String pureName, Map<String, Integer> tableAliasToId) {
+        Integer id = tableAliasToId.get(alias);
+        if (id == null)
+            return -1;
+        try {
+            return Database.getCatalog().getTupleDesc(id).fieldNameToIndex(pureName);
+        } catch (NoSuchElementException e) {
+            return -1;
+        }
+    }
 
+    /**
+     * Estimate the number of rows returned by a semi join or anti join.
+     * <p>
+     * For equality, if the outer join field has distinct1 distinct values,
+     * spread evenly over its rows, and the inner one distinct2 of them, about
+     * distinct2 / distinct1 of the outer rows have a match. For other
+     * predicates each pair of rows matches with probability 0.3, as for
+     * ordinary joins, so an outer row has no match with probability
+     * 0.7^card2.
+     *
+     * @param joinOp
+     *            the join predicate
+     * @param anti
+     *            true for an anti join, which keeps the rows without a match
+     * @param card1
+     *            the cardinality of the outer side
+     * @param card2
+     *            the cardinality of the inner side
+     * @param distinct1
+     *            the number of distinct values of the outer join field
+     * @param distinct2
+     *            the number of distinct values of the inner join field
+     * @return the estimated cardinality, at most card1 and at least 1 if
+     *         card1 is not 0
+     */
+    public static int estimateSemiJoinCardinality(Predicate.Op joinOp,
+            boolean anti, int card1, int card2, int distinct1, int distinct2) {
+        double matched;
+        if (joinOp == Predicate.Op.EQUALS)
+            matched = Math.min(1.0, (double) distinct2 / Math.max(distinct1, 1));
+        else
+            matched = 1 - Math.pow(0.7, card2);
+        int card = (int) Math.round(card1 * (anti ? 1 - matched : matched));
+        // an empty estimate would make every plan above it look free
+        return card1 > 0 ? Math.max(card, 1) : 0;
+    }
+
+    /**
+     * Estimate the cost of running a subquery plan once: the cost of
+     * scanning each table it reads.
+     */
+    private static double estimateSubplanCost(OpIterator plan,
+            Map<String, TableStats> stats) {
+        if (plan instanceof SeqScan) {
+            TableStats s = stats.get(((SeqScan) plan).getTableName());
+            return s == null ? 0 : s.estimateScanCost();
+        }
+        double cost = 0;
+        if (plan instanceof Operator)
+            for (OpIterator child : ((Operator) plan).getChildren())
+                cost += estimateSubplanCost(child, stats);
+        return cost;
+    }
+
+    /**
+     * Estimate the number of rows of a subquery plan, as computed by
+     * {@link OperatorCardinality} when the subquery was planned.
+     */
+    private static int estimateSubplanCardinality(OpIterator plan) {
+        if (plan instanceof Operator)
+            return Math.max(((Operator) plan).getEstimatedCardinality(), 1);
+        return 1;
+    }
+
+    /**
+     * Estimate the number of distinct values of a field of a subquery plan:
+     * those of the table column the field is read from, if the plan passes
+     * one through, and at most card, the number of rows of the plan.
+     */
+    static int estimateSubplanDistinct(OpIterator plan, int field, int card,
+            Map<String, TableStats> stats) {
+        int distinct = columnDistinct(plan, plan.getTupleDesc().getFieldName(field), stats);
+        return distinct < 0 ? card : Math.min(distinct, card);
+    }
+
+    /** @return the distinct values of the column a plan scans under a name, or -1 */
+    private static int columnDistinct(OpIterator plan, String name,
+            Map<String, TableStats> stats) {
+        if (plan instanceof SeqScan) {
+            SeqScan scan = (SeqScan) plan;
+            TableStats s = stats.get(scan.getTableName());
+            if (s == null || name == null)
+                return -1;
+            try {
+                return s.estimateDistinctValues(scan.getTupleDesc().fieldNameToIndex(name));
+            } catch (NoSuchElementException e) {
+                return -1;
+            }
+        }
+        if (plan instanceof Operator)
+            for (OpIterator child : ((Operator) plan).getChildren()) {
+                int d = child == null ? -1 : columnDistinct(child, name, stats);
+                if (d >= 0)
+                    return d;
+            }
+        return -1;
     }
 
     /**
      * Compute a logical, reasonably efficient join on the specified tables. See
      * PS4 for hints on how this should be implemented.
+     * <p>
+     * The best plan for each connected set of tables is found by dynamic
+     * programming over the join graph (DPccp): sets of tables are enumerated
+     * as long bit masks, only pairs of connected sets with a join between
+     * them are considered, so cross products are never costed, and each set
+     * is combined with each other set once.
+     * Both sets may be joins, so the plan may be bushy: the branches of a
+     * snowflake can be joined on their own before they meet the fact table.
+     * <p>
+     * Above {@link #setMaxDpTables} tables, or when the dynamic programming
+     * takes longer than {@link #setPlanningBudget}, the joins are ordered
+     * greedily instead, with the same cost estimates.
      * 
      * @param stats
      *            Statistics for each table involved in the join, referenced by
@@ -218,8 +489,10 @@ public class JoinOptimizer {
      * @param explain
      *            Indicates whether your code should explain its query plan or
      *            simply execute it
-     * @return A Vector<LogicalJoinNode> that stores joins in the left-deep
-     *         order in which they should be executed.
+     * @return A Vector<LogicalJoinNode> that stores joins in the order in
+     *         which they should be executed: the joins that build each side
+     *         of a join come before it, the outer side's first, and the t1
+     *         of each join is on its outer side.
      * @throws ParsingException
      *             when stats or filter selectivities is missing a table in the
      *             join, or or when another internal error occurs
@@ -231,348 +504,459 @@ public class JoinOptimizer {
         //Not necessary for labs 1--3
 
         // some code goes here
-        Set<LogicalJoinNode> j = new HashSet<>(joins);
-        PlanCache optJoin = new PlanCache();
-        for(int i = 1; i <= j.size(); i++){
-            for(Set<LogicalJoinNode> joinSet : enumerateSubsets(joins, i)){
-                CostCard bestPlan = new CostCard();
-                bestPlan.cost = Double.MAX_VALUE;
-                for(LogicalJoinNode joinToRemove : joinSet) {
-                    CostCard plan = computeCostAndCardOfSubplan(stats, filterSelectivities, joinToRemove, joinSet, bestPlan.cost , optJoin);
-                    if(plan!=null && plan.cost < bestPlan.cost){
-                        bestPlan = plan;
-                    }
-                }
-                optJoin.addPlan(joinSet, bestPlan.cost, bestPlan.card, bestPlan.plan);
-            }
-        }
-        return optJoin.getOrder(j);
+        if (joins.isEmpty())
+            return new Vector<LogicalJoinNode>();
+        JoinGraph g = new JoinGraph(new Vector<LogicalJoinNode>(
+                new LinkedHashSet<LogicalJoinNode>(joins)), stats, filterSelectivities);
+        Vector<LogicalJoinNode> order = null;
+        if (g.n <= dpTables)
+            order = g.dynamicProgramming(TimeUnit.MILLISECONDS.toNanos(planningBudget));
+        // too many tables, or too little time, to look at every plan
+        if (order == null)
+            order = g.greedy();
+        return order;
     }
 
     // ===================== Private Methods =================================
 
     /**
-     * This is a helper method that computes the cost and cardinality of joining
-     * joinToRemove to joinSet (joinSet should contain joinToRemove), given that
-     * all of the subsets of size joinSet.size() - 1 have already been computed
-     * and stored in PlanCache pc.
-     * 
-     * @param stats
-     *            table stats for all of the tables, referenced by table names
-     *            rather than alias (see {@link #orderJoins})
-     * @param filterSelectivities
-     *            the selectivities of the filters over each of the tables
-     *            (where tables are indentified by their alias or name if no
-     *            alias is given)
-     * @param joinToRemove
-     *            the join to remove from joinSet
-     * @param joinSet
-     *            the set of joins being considered
-     * @param bestCostSoFar
-     *            the best way to join joinSet so far (minimum of previous
-     *            invocations of computeCostAndCardOfSubplan for this joinSet,
-     *            from returned CostCard)
-     * @param pc
-     *            the PlanCache for this join; should have subplans for all
-     *            plans of size joinSet.size()-1
-     * @return A {@link CostCard} objects desribing the cost, cardinality,
-     *         optimal subplan
-     * @throws ParsingException
-     *             when stats, filterSelectivities, or pc object is missing
-     *             tables involved in join
+     * The tables of a query as the vertices of a graph, with an edge for
+     * each join, and the state of the planners over it. Vertex i
+     * is bit i of a set; the vertices are numbered breadth first, which
+     * DPccp needs to build every set after its subsets. Sets only exist for
+     * graphs of at most 64 vertices; the greedy planner does not use them,
+     * so it can order the joins of larger graphs.
      */
-    @SuppressWarnings("unchecked")
-    private CostCard computeCostAndCardOfSubplan(
-            HashMap<String, TableStats> stats,
-            HashMap<String, Double> filterSelectivities,
-            LogicalJoinNode joinToRemove, Set<LogicalJoinNode> joinSet,
-            double bestCostSoFar, PlanCache pc) throws ParsingException {
-
-        LogicalJoinNode j = joinToRemove;
-
-        Vector<LogicalJoinNode> prevBest;
-
-        if (this.p.getTableId(j.t1Alias) == null)
-            throw new ParsingException("Unknown table " + j.t1Alias);
-        if (this.p.getTableId(j.t2Alias) == null)
-            throw new ParsingException("Unknown table " + j.t2Alias);
-
-        String table1Name = Database.getCatalog().getTableName(
-                this.p.getTableId(j.t1Alias));
-        String table2Name = Database.getCatalog().getTableName(
-                this.p.getTableId(j.t2Alias));
-        String table1Alias = j.t1Alias;
-        String table2Alias = j.t2Alias;
-
-        Set<LogicalJoinNode> news = (Set<LogicalJoinNode>) ((HashSet<LogicalJoinNode>) joinSet)
-                .clone();
-        news.remove(j);
-
-        double t1cost, t2cost;
-        int t1card, t2card;
-        boolean leftPkey, rightPkey;
-
-        if (news.isEmpty()) { // base case -- both are base relations
-            prevBest = new Vector<LogicalJoinNode>();
-            t1cost = stats.get(table1Name).estimateScanCost();
-            t1card = stats.get(table1Name).estimateTableCardinality(
-                    filterSelectivities.get(j.t1Alias));
-            leftPkey = isPkey(j.t1Alias, j.f1PureName);
-
-            t2cost = table2Alias == null ? 0 : stats.get(table2Name)
-                    .estimateScanCost();
-            t2card = table2Alias == null ? 0 : stats.get(table2Name)
-                    .estimateTableCardinality(
-                            filterSelectivities.get(j.t2Alias));
-            rightPkey = table2Alias == null ? false : isPkey(table2Alias,
-                    j.f2PureName);
-        } else {
-            // news is not empty -- figure best way to join j to news
-            prevBest = pc.getOrder(news);
+    private class JoinGraph {
+        final Vector<LogicalJoinNode> edges;
+        final int n;
+        /** The alias of each vertex, or null for a subquery */
+        final String[] alias;
+        /** The vertices of t1 and of t2 (or of the subquery) of each join */
+        final int[] end1, end2;
+        /** Whether the fields of each join are primary keys */
+        final boolean[] pkey1, pkey2;
+        /** The vertices each vertex joins, or null above 64 vertices */
+        final long[] adj;
+        final double[] scanCost;
+        final int[] scanCard;
+        final HashMap<String, TableStats> stats;
+
+        // the best plan of each set: its cost and cardinality, the set on
+        // its outer side, the join that combines the two sides (swapped if
+        // its t1 is on the inner side), and whether a primary key is joined
+        double[] cost;
+        int[] card;
+        long[] outer;
+        int[] join;
+        boolean[] swapped;
+        boolean[] pkey;
+
+        /** When the dynamic programming started, and how long it may take */
+        private long start, budget;
+        private boolean outOfTime;
+        private int pairs;
+
+        /** The cheaper way round of the join last costed by costJoin */
+        private double joinCost;
+        private boolean joinSwapped;
+
+        JoinGraph(Vector<LogicalJoinNode> edges,
+                HashMap<String, TableStats> stats,
+                HashMap<String, Double> filterSelectivities)
+                throws ParsingException {
+            this.edges = edges;
+            int m = edges.size();
+            this.stats = stats;
+            HashMap<String, Integer> ids = new HashMap<String, Integer>();
+            ArrayList<String> names = new ArrayList<String>();
+            ArrayList<OpIterator> subqueries = new ArrayList<OpIterator>();
+            int[] e1 = new int[m], e2 = new int[m];
+            for (int k = 0; k < m; k++) {
+                LogicalJoinNode j = edges.get(k);
+                e1[k] = vertex(j.t1Alias, null, ids, names, subqueries);
+                e2[k] = j instanceof LogicalSubplanJoinNode
+                        ? vertex(null, ((LogicalSubplanJoinNode) j).subPlan, ids, names, subqueries)
+                        : vertex(j.t2Alias, null, ids, names, subqueries);
+            }
+            n = names.size();
+
+            int[] number = new int[n];
+            Arrays.fill(number, -1);
+            int next = 0;
+            ArrayDeque<Integer> queue = new ArrayDeque<Integer>();
+            for (int s = 0; s < n; s++) {
+                if (number[s] >= 0)
+                    continue;
+                number[s] = next++;
+                queue.add(s);
+                while (!queue.isEmpty()) {
+                    int v = queue.poll();
+                    for (int k = 0; k < m; k++) {
+                        int w = e1[k] == v ? e2[k] : e2[k] == v ? e1[k] : -1;
+                        if (w >= 0 && number[w] < 0) {
+                            number[w] = next++;
+                            queue.add(w);
+                        }
+                    }
+                }
+            }
 
-            // possible that we have not cached an answer, if subset
-            // includes a cross product
-            if (prevBest == null) {
-                return null;
+            alias = new String[n];
+            scanCost = new double[n];
+            scanCard = new int[n];
+            for (int v = 0; v < n; v++) {
+                int i = number[v];
+                if (subqueries.get(v) != null) {
+                    scanCost[i] = estimateSubplanCost(subqueries.get(v), stats);
+                    scanCard[i] = estimateSubplanCardinality(subqueries.get(v));
+                    continue;
+                }
+                alias[i] = names.get(v);
+                Integer tableId = p.getTableId(alias[i]);
+                if (tableId == null)
+                    throw new ParsingException("Unknown table " + alias[i]);
+                TableStats s = stats.get(Database.getCatalog().getTableName(tableId));
+                Double selectivity = filterSelectivities.get(alias[i]);
+                if (s == null || selectivity == null)
+                    throw new ParsingException("No statistics for table " + alias[i]);
+                scanCost[i] = s.estimateScanCost();
+                scanCard[i] = s.estimateTableCardinality(selectivity);
             }
 
-            double prevBestCost = pc.getCost(news);
-            int bestCard = pc.getCard(news);
-
-            // estimate cost of right subtree
-            if (doesJoin(prevBest, table1Alias)) { // j.t1 is in prevBest
-                t1cost = prevBestCost; // left side just has cost of whatever
-                                       // left
-                // subtree is
-                t1card = bestCard;
-                leftPkey = hasPkey(prevBest);
-
-                t2cost = j.t2Alias == null ? 0 : stats.get(table2Name)
-                        .estimateScanCost();
-                t2card = j.t2Alias == null ? 0 : stats.get(table2Name)
-                        .estimateTableCardinality(
-                                filterSelectivities.get(j.t2Alias));
-                rightPkey = j.t2Alias == null ? false : isPkey(j.t2Alias,
-                        j.f2PureName);
-            } else if (doesJoin(prevBest, j.t2Alias)) { // j.t2 is in prevbest
-                                                        // (both
-                // shouldn't be)
-                t2cost = prevBestCost; // left side just has cost of whatever
-                                       // left
-                // subtree is
-                t2card = bestCard;
-                rightPkey = hasPkey(prevBest);
-                t1cost = stats.get(table1Name).estimateScanCost();
-                t1card = stats.get(table1Name).estimateTableCardinality(
-                        filterSelectivities.get(j.t1Alias));
-                leftPkey = isPkey(j.t1Alias, j.f1PureName);
-
-            } else {
-                // don't consider this plan if one of j.t1 or j.t2
-                // isn't a table joined in prevBest (cross product)
-                return null;
+            end1 = new int[m];
+            end2 = new int[m];
+            pkey1 = new boolean[m];
+            pkey2 = new boolean[m];
+            adj = n <= 64 ? new long[n] : null;
+            for (int k = 0; k < m; k++) {
+                LogicalJoinNode j = edges.get(k);
+                end1[k] = number[e1[k]];
+                end2[k] = number[e2[k]];
+                if (adj != null) {
+                    adj[end1[k]] |= 1L << end2[k];
+                    adj[end2[k]] |= 1L << end1[k];
+                }
+                pkey1[k] = isPkey(j.t1Alias, j.f1PureName);
+                pkey2[k] = alias[end2[k]] != null && isPkey(j.t2Alias, j.f2PureName);
             }
         }
 
-        // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
-
-        LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
-        if (cost2 < cost1) {
-            boolean tmp;
-            j = j2;
-            cost1 = cost2;
-            tmp = rightPkey;
-            rightPkey = leftPkey;
-            leftPkey = tmp;
+        /**
+         * @return the vertex of a table alias, or a new vertex for a
+         *         subquery if alias is null
+         */
+        private int vertex(String alias, OpIterator subquery,
+                HashMap<String, Integer> ids, ArrayList<String> names,
+                ArrayList<OpIterator> subqueries) {
+            if (alias != null && ids.containsKey(alias))
+                return ids.get(alias);
+            if (alias != null)
+                ids.put(alias, names.size());
+            names.add(alias);
+            subqueries.add(subquery);
+            return names.size() - 1;
         }
-        if (cost1 >= bestCostSoFar)
-            return null;
 
-        CostCard cc = new CostCard();
+        /**
+         * Runs the dynamic programming and returns the joins of the best
+         * plan of each connected component of the graph, or null if it does
+         * not finish within budget nanoseconds.
+         */
+        Vector<LogicalJoinNode> dynamicProgramming(long budget) {
+            int size = 1 << n;
+            cost = new double[size];
+            card = new int[size];
+            outer = new long[size];
+            join = new int[size];
+            swapped = new boolean[size];
+            pkey = new boolean[size];
+            Arrays.fill(cost, Double.POSITIVE_INFINITY);
+            for (int v = 0; v < n; v++) {
+                cost[1 << v] = scanCost[v];
+                card[1 << v] = scanCard[v];
+            }
 
-        cc.card = estimateJoinCardinality(j, t1card, t2card, leftPkey,
-                rightPkey, stats);
-        cc.cost = cost1;
-        cc.plan = (Vector<LogicalJoinNode>) prevBest.clone();
-        cc.plan.addElement(j); // prevbest is left -- add new join to end
-        return cc;
-    }
+            this.start = System.nanoTime();
+            this.budget = budget;
+            for (int i = n - 1; i >= 0 && !outOfTime; i--) {
+                enumerateComplements(1L << i);
+                enumerateConnected(1L << i, below(i), 0);
+            }
+            if (outOfTime)
+                return null;
 
-    /**
-     * Return true if the specified table is in the list of joins, false
-     * otherwise
-     */
-    private boolean doesJoin(Vector<LogicalJoinNode> joinlist, String table) {
-        for (LogicalJoinNode j : joinlist) {
-            if (j.t1Alias.equals(table)
-                    || (j.t2Alias != null && j.t2Alias.equals(table)))
-                return true;
+            Vector<LogicalJoinNode> order = new Vector<LogicalJoinNode>();
+            long left = size - 1;
+            while (left != 0) {
+                long component = left & -left, grown = 0;
+                while (grown != component) {
+                    grown = component;
+                    component |= neighbours(component);
+                }
+                appendJoins(component, order);
+                left &= ~component;
+            }
+            return order;
         }
-        return false;
-    }
 
-    /**
-     * Return true if field is a primary key of the specified table, false
-     * otherwise
-     * 
-     * @param tableAlias
-     *            The alias of the table in the query
-     * @param field
-     *            The pure name of the field
-     */
-    private boolean isPkey(String tableAlias, String field) {
-        int tid1 = p.getTableId(tableAlias);
-        String pkey1 = Database.getCatalog().getPrimaryKey(tid1);
+        /** @return the vertices numbered 0 to i */
+        private long below(int i) {
+            return i == 63 ? -1L : (1L << (i + 1)) - 1;
+        }
 
-        return pkey1.equals(field);
-    }
+        /** @return the vertices outside s that a vertex of s joins */
+        private long neighbours(long s) {
+            long nb = 0;
+            for (long rest = s; rest != 0; rest &= rest - 1)
+                nb |= adj[Long.numberOfTrailingZeros(rest)];
+            return nb & ~s;
+        }
 
-    /**
-     * Return true if a primary key field is joined by one of the joins in
-     * joinlist
-     */
-    private boolean hasPkey(Vector<LogicalJoinNode> joinlist) {
-        for (LogicalJoinNode j : joinlist) {
-            if (isPkey(j.t1Alias, j.f1PureName)
-                    || (j.t2Alias != null && isPkey(j.t2Alias, j.f2PureName)))
-                return true;
+        /**
+         * Grows the connected set s by the neighbours outside x, in every
+         * way. Each larger set is paired with its complements if s1 is 0,
+         * and otherwise is a complement of s1. Subsets are visited in
+         * increasing order, so a set comes after its subsets.
+         */
+        private void enumerateConnected(long s, long x, long s1) {
+            long nb = neighbours(s) & ~x;
+            if (nb == 0)
+                return;
+            for (long sub = -nb & nb; sub != 0 && !outOfTime; sub = (sub - nb) & nb) {
+                if (s1 == 0)
+                    enumerateComplements(s | sub);
+                else
+                    joinPair(s1, s | sub);
+            }
+            for (long sub = -nb & nb; sub != 0 && !outOfTime; sub = (sub - nb) & nb)
+                enumerateConnected(s | sub, x | nb, s1);
         }
-        return false;
 
-    }
+        /**
+         * Pairs the connected set s1 with each connected set it joins whose
+         * vertices are all numbered above the lowest vertex of s1.
+         */
+        private void enumerateComplements(long s1) {
+            long x = below(Long.numberOfTrailingZeros(s1)) | s1;
+            long nb = neighbours(s1) & ~x;
+            for (int i = 63 - Long.numberOfLeadingZeros(nb); i >= 0 && !outOfTime; i--) {
+                if ((nb & 1L << i) == 0)
+                    continue;
+                joinPair(s1, 1L << i);
+                enumerateConnected(1L << i, x | (below(i) & nb), s1);
+            }
+        }
 
-    /**
-     * Helper function to display a Swing window with a tree representation of
-     * the specified list of joins. See {@link #orderJoins}, which may want to
-     * call this when the analyze flag is true.
-     * 
-     * @param js
-     *            the join plan to visualize
-     * @param pc
-     *            the PlanCache accumulated whild building the optimal plan
-     * @param stats
-     *            table statistics for base tables
-     * @param selectivities
-     *            the selectivities of the filters over each of the tables
-     *            (where tables are indentified by their alias or name if no
-     *            alias is given)
-     */
-    private void printJoins(Vector<LogicalJoinNode> js, PlanCache pc,
-            HashMap<String, TableStats> stats,
-            HashMap<String, Double> selectivities) {
-
-        JFrame f = new JFrame("Join Plan for " + p.getQuery());
-
-        // Set the default close operation for the window,
-        // or else the program won't exit when clicking close button
-        f.setDefaultCloseOperation(WindowConstants.DISPOSE_ON_CLOSE);
-
-        f.setVisible(true);
-
-        f.setSize(300, 500);
-
-        HashMap<String, DefaultMutableTreeNode> m = new HashMap<String, DefaultMutableTreeNode>();
-
-        // int numTabs = 0;
-
-        // int k;
-        DefaultMutableTreeNode root = null, treetop = null;
-        HashSet<LogicalJoinNode> pathSoFar = new HashSet<LogicalJoinNode>();
-        boolean neither;
-
-        System.out.println(js);
-        for (LogicalJoinNode j : js) {
-            pathSoFar.add(j);
-            System.out.println("PATH SO FAR = " + pathSoFar);
-
-            String table1Name = Database.getCatalog().getTableName(
-                    this.p.getTableId(j.t1Alias));
-            String table2Name = Database.getCatalog().getTableName(
-                    this.p.getTableId(j.t2Alias));
-
-            // Double c = pc.getCost(pathSoFar);
-            neither = true;
-
-            root = new DefaultMutableTreeNode("Join " + j + " (Cost ="
-                    + pc.getCost(pathSoFar) + ", card = "
-                    + pc.getCard(pathSoFar) + ")");
-            DefaultMutableTreeNode n = m.get(j.t1Alias);
-            if (n == null) { // never seen this table before
-                n = new DefaultMutableTreeNode(j.t1Alias
-                        + " (Cost = "
-                        + stats.get(table1Name).estimateScanCost()
-                        + ", card = "
-                        + stats.get(table1Name).estimateTableCardinality(
-                                selectivities.get(j.t1Alias)) + ")");
-                root.add(n);
-            } else {
-                // make left child root n
-                root.add(n);
-                neither = false;
+        /**
+         * Considers the plans joining the best plans of s1 and s2, with
+         * either as the outer side and any join between them as the
+         * predicate. Unless bushy plans are allowed, one side must be a
+         * single table.
+         */
+        private void joinPair(long s1, long s2) {
+            // reading the clock for every pair would slow small plans down
+            if ((++pairs & 1023) == 0 && System.nanoTime() - start > budget) {
+                outOfTime = true;
+                return;
             }
-            m.put(j.t1Alias, root);
-
-            n = m.get(j.t2Alias);
-            if (n == null) { // never seen this table before
-
-                n = new DefaultMutableTreeNode(
-                        j.t2Alias == null ? "Subplan"
-                                : (j.t2Alias
-                                        + " (Cost = "
-                                        + stats.get(table2Name)
-                                                .estimateScanCost()
-                                        + ", card = "
-                                        + stats.get(table2Name)
-                                                .estimateTableCardinality(
-                                                        selectivities
-                                                                .get(j.t2Alias)) + ")"));
-                root.add(n);
-            } else {
-                // make right child root n
-                root.add(n);
-                neither = false;
+            if (!bushy && Long.bitCount(s1) > 1 && Long.bitCount(s2) > 1)
+                return;
+            for (int k = 0; k < end1.length; k++) {
+                if ((s1 & 1L << end1[k]) != 0 && (s2 & 1L << end2[k]) != 0)
+                    consider(s1, s2, k);
+                else if ((s2 & 1L << end1[k]) != 0 && (s1 & 1L << end2[k]) != 0)
+                    consider(s2, s1, k);
             }
-            m.put(j.t2Alias, root);
+        }
+
+        /**
+         * Costs join k with t1 on the outer side s1 and t2 on the inner side
+         * s2, and the other way round, keeping the plan if it is the best
+         * so far for the union.
+         */
+        private void consider(long s1, long s2, int k) {
+            int s = (int) (s1 | s2), i1 = (int) s1, i2 = (int) s2;
+            costJoin(k, cost[i1], card[i1], cost[i2], card[i2]);
+            if (joinCost >= cost[s])
+                return;
+            cost[s] = joinCost;
+            card[s] = joinCard(k, card[i1], card[i2],
+                    Long.bitCount(s1) == 1 ? pkey1[k] : pkey[i1],
+                    Long.bitCount(s2) == 1 ? pkey2[k] : pkey[i2]);
+            outer[s] = joinSwapped ? s2 : s1;
+            join[s] = k;
+            swapped[s] = joinSwapped;
+            pkey[s] = pkey[i1] || pkey[i2] || pkey1[k] || pkey2[k];
+        }
 
-            // unless this table doesn't join with other tables,
-            // all tables are accessed from root
-            if (!neither) {
-                for (String key : m.keySet()) {
-                    m.put(key, root);
+        /**
+         * Costs join k between a plan holding its t1, with cost1 and card1,
+         * and a plan holding its t2, with either as the outer side, and sets
+         * joinCost and joinSwapped to the cheaper of the two.
+         */
+        private void costJoin(int k, double cost1, int card1, double cost2, int card2) {
+            LogicalJoinNode j = edges.get(k);
+            joinCost = estimateJoinCost(j, card1, card2, cost1, cost2);
+            joinSwapped = false;
+            // the subquery of a semi join is always the inner side
+            if (!(j instanceof LogicalSubplanJoinNode)) {
+                double c2 = estimateJoinCost(j.swapInnerOuter(), card2, card1, cost2, cost1);
+                if (c2 < joinCost) {
+                    joinCost = c2;
+                    joinSwapped = true;
                 }
             }
-
-            treetop = root;
         }
 
-        JTree tree = new JTree(treetop);
-        JScrollPane treeView = new JScrollPane(tree);
-
-        tree.setShowsRootHandles(true);
+        /**
+         * @return the cardinality of join k, the way round that costJoin
+         *         chose, between a plan of card1 tuples holding its t1 and
+         *         one of card2 tuples holding its t2. pk1 and pk2 tell
+         *         whether each is a single table joined on its primary key,
+         *         or a plan in which some join is on a primary key.
+         */
+        private int joinCard(int k, int card1, int card2, boolean pk1, boolean pk2) {
+            LogicalJoinNode j = edges.get(k);
+            if (joinSwapped)
+                return estimateJoinCardinality(j.swapInnerOuter(), card2, card1, pk2, pk1, stats);
+            return estimateJoinCardinality(j, card1, card2, pk1, pk2, stats);
+        }
 
-        // Set the icon for leaf nodes.
-        ImageIcon leafIcon = new ImageIcon("join.jpg");
-        DefaultTreeCellRenderer renderer = new DefaultTreeCellRenderer();
-        renderer.setOpenIcon(leafIcon);
-        renderer.setClosedIcon(leafIcon);
+        /**
+         * Appends the joins of the best plan of s: those of its outer side,
+         * those of its inner side, then the joins between them.
+         */
+        private void appendJoins(long s, Vector<LogicalJoinNode> order) {
+            if (Long.bitCount(s) == 1)
+                return;
+            int i = (int) s;
+            final long o = outer[i], in = s & ~o;
+            appendJoins(o, order);
+            appendJoins(in, order);
+            appendJoin(join[i], swapped[i],
+                    v -> (o & 1L << v) != 0 ? OUTER : (in & 1L << v) != 0 ? INNER : 0, order);
+        }
 
-        tree.setCellRenderer(renderer);
+        /** The sides of a join, as told by the side function of appendJoin */
+        private static final int OUTER = 1, INNER = 2;
+
+        /**
+         * Appends join k, which combines an outer side with an inner side
+         * (swapped if its t1 is in the inner side), then any other joins
+         * between the two sides, which close cycles.
+         *
+         * @param side
+         *            the side each vertex is on, OUTER or INNER, or 0 if it
+         *            is on neither
+         */
+        private void appendJoin(int k, boolean swap, IntUnaryOperator side,
+                Vector<LogicalJoinNode> order) {
+            order.add(swap ? edges.get(k).swapInnerOuter() : edges.get(k));
+            for (int other = 0; other < end1.length; other++) {
+                if (other == k)
+                    continue;
+                int side1 = side.applyAsInt(end1[other]), side2 = side.applyAsInt(end2[other]);
+                if (side1 == OUTER && side2 == INNER)
+                    order.add(edges.get(other));
+                else if (side1 == INNER && side2 == OUTER)
+                    order.add(edges.get(other).swapInnerOuter());
+            }
+        }
 
-        f.setSize(300, 500);
+        /**
+         * Orders the joins by greedy operator ordering (GOO): starting with
+         * a plan per table, repeatedly joins the two plans whose join has
+         * the fewest estimated tuples, breaking ties by cost, until no two
+         * plans share a join. Unless bushy plans are allowed, the first join
+         * of each connected component is grown one table at a time. The
+         * time taken is polynomial in the number of tables.
+         */
+        Vector<LogicalJoinNode> greedy() {
+            // plans are numbered by one of their vertices; plan[v] is the
+            // plan that vertex v is in
+            final int[] plan = new int[n];
+            int[] planSize = new int[n];
+            double[] planCost = new double[n];
+            int[] planCard = new int[n];
+            boolean[] planPkey = new boolean[n];
+            ArrayList<Vector<LogicalJoinNode>> planJoins = new ArrayList<Vector<LogicalJoinNode>>();
+            for (int v = 0; v < n; v++) {
+                plan[v] = v;
+                planSize[v] = 1;
+                planCost[v] = scanCost[v];
+                planCard[v] = scanCard[v];
+                planJoins.add(new Vector<LogicalJoinNode>());
+            }
 
-        f.add(treeView);
-        for (int i = 0; i < tree.getRowCount(); i++) {
-            tree.expandRow(i);
-        }
+            // the plan that is grown when bushy plans are not allowed
+            int grown = -1;
+            while (true) {
+                int best = -1, bestCard = 0;
+                double bestCost = 0;
+                boolean bestSwapped = false;
+                for (int k = 0; k < end1.length; k++) {
+                    int a = plan[end1[k]], b = plan[end2[k]];
+                    if (a == b || (!bushy && grown >= 0 && a != grown && b != grown))
+                        continue;
+                    boolean single1 = planSize[a] == 1;
+                    boolean single2 = planSize[b] == 1;
+                    costJoin(k, planCost[a], planCard[a], planCost[b], planCard[b]);
+                    int c = joinCard(k, planCard[a], planCard[b],
+                            single1 ? pkey1[k] : planPkey[a], single2 ? pkey2[k] : planPkey[b]);
+                    if (best < 0 || c < bestCard || (c == bestCard && joinCost < bestCost)) {
+                        best = k;
+                        bestCard = c;
+                        bestCost = joinCost;
+                        bestSwapped = joinSwapped;
+                    }
+                }
+                if (best < 0 && grown >= 0) {
+                    // start on the next connected component
+                    grown = -1;
+                    continue;
+                }
+                if (best < 0)
+                    break;
+
+                int a = plan[end1[best]], b = plan[end2[best]];
+                final int o = bestSwapped ? b : a, in = bestSwapped ? a : b;
+                Vector<LogicalJoinNode> order = planJoins.get(o);
+                order.addAll(planJoins.get(in));
+                appendJoin(best, bestSwapped, v -> plan[v] == o ? OUTER : plan[v] == in ? INNER : 0, order);
+                planPkey[o] = planPkey[a] || planPkey[b] || pkey1[best] || pkey2[best];
+                planCost[o] = bestCost;
+                planCard[o] = bestCard;
+                planSize[o] += planSize[in];
+                planJoins.set(in, null);
+                grown = o;
+                for (int v = 0; v < n; v++)
+                    if (plan[v] == in)
+                        plan[v] = o;
+            }
 
-        if (js.size() == 0) {
-            f.add(new JLabel("No joins in plan."));
+            Vector<LogicalJoinNode> order = new Vector<LogicalJoinNode>();
+            for (Vector<LogicalJoinNode> joins : planJoins)
+                if (joins != null)
+                    order.addAll(joins);
+            return order;
         }
+    }
 
-        f.pack();
+    /**
+     * Return true if field is a primary key of the specified table, false
+     * otherwise
+     * 
+     * @param tableAlias
+     *            The alias of the table in the query
+     * @param field
+     *            The pure name of the field
+     */
+    private boolean isPkey(String tableAlias, String field) {
+        int tid1 = p.getTableId(tableAlias);
+        String pkey1 = Database.getCatalog().getPrimaryKey(tid1);
 
+        return pkey1.equals(field);
     }
 
 }
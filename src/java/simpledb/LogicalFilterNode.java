@@ -1,10 +1,15 @@
 package simpledb;
 
+import java.util.List;
+
 /** A LogicalFilterNode represents the parameters of a filter in the WHERE clause of a query. 
     <p>
     Filter is of the form t.f p c
     <p>
     Where t is a table, f is a field in t, p is a predicate, and c is a constant
+    <p>
+    A filter may also be the AND or OR of other filters on the same table, in
+    which case terms holds them and p, c and the field names are null.
 */
 public class LogicalFilterNode {
     /** The alias of a table (or the name if no alias) over which the filter ranges */
@@ -15,11 +20,20 @@ public class LogicalFilterNode {
     
     /* The constant on the right side of the filter */
     public String c;
+
+    /** The number of the ? parameter that stands for c, counting from 0, or -1 if c is a constant */
+    public int parameter = -1;
     
     /** The field from t which is in the filter. The pure name, without alias or tablename*/
     public String fieldPureName;
     
     public String fieldQuantifiedName;
+
+    /** The filters combined by this one, or null for a single comparison */
+    public List<LogicalFilterNode> terms;
+
+    /** true if terms are combined with AND, false for OR */
+    public boolean conjunction;
     
     public LogicalFilterNode(String table, String field, Predicate.Op pred, String constant) {
         tableAlias = table;
@@ -32,4 +46,10 @@ public class LogicalFilterNode {
             fieldPureName=field;
         this.fieldQuantifiedName = tableAlias+"."+fieldPureName;
     }
+
+    public LogicalFilterNode(String table, boolean conjunction, List<LogicalFilterNode> terms) {
+        tableAlias = table;
+        this.conjunction = conjunction;
+        this.terms = terms;
+    }
 }
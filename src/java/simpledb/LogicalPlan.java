@@ -2,9 +2,11 @@ package simpledb;
 import java.util.Map;
 import java.util.Vector;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.NoSuchElementException;
 
 /**
@@ -12,9 +14,8 @@ import java.util.NoSuchElementException;
  * the parser and is ready to be processed by the optimizer.
  * <p>
  * A LogicalPlan consits of a collection of table scan nodes, join
- * nodes, filter nodes, a select list, and a group by field.
- * LogicalPlans can only represent queries with one aggregation field
- * and one group by field.
+ * nodes, filter nodes, a select list, a list of aggregates and a list
+ * of group by fields.
  * <p>
  * LogicalPlans can be converted to physical (optimized) plans using
  * the {@link #physicalPlan} method, which uses the
@@ -29,12 +30,15 @@ public class LogicalPlan {
     private HashMap<String,Integer> tableMap;
 
     private Vector<LogicalSelectListNode> selectList;
-    private String groupByField = null;
+    private Vector<String> groupByFields;
+    private Vector<LogicalSelectListNode> aggregates;
     private boolean hasAgg = false;
-    private String aggOp;
-    private String aggField;
-    private boolean oByAsc, hasOrderBy = false;
-    private String oByField;
+    private boolean hasOrderBy = false;
+    private Vector<String> oByFields;
+    private Vector<Boolean> oByAscs;
+    private int limit = -1;
+    private int offset = 0;
+    private boolean distinct = false;
     private String query;
 //    private Query owner;
 
@@ -47,6 +51,10 @@ public class LogicalPlan {
         tableMap = new HashMap<String,Integer>();
 
         selectList = new Vector<LogicalSelectListNode>();
+        groupByFields = new Vector<String>();
+        aggregates = new Vector<LogicalSelectListNode>();
+        oByFields = new Vector<String>();
+        oByAscs = new Vector<Boolean>();
         this.query = "";
     }
 
@@ -98,10 +106,47 @@ public class LogicalPlan {
     public void addFilter(String field, Predicate.Op p, String
         constantValue) throws ParsingException{ 
 
+        filters.addElement(createFilter(field, p, constantValue));
+    }
+
+    /** Create a filter without adding it to the plan, so that it can be
+     *   combined with others by {@link #combineFilters}.  The parameters
+     *   are those of {@link #addFilter(String, Predicate.Op, String)}.
+     */
+    public LogicalFilterNode createFilter(String field, Predicate.Op p, String
+        constantValue) throws ParsingException {
+
         field = disambiguateName(field); 
         String table = field.split("[.]")[0];
         
-        LogicalFilterNode lf = new LogicalFilterNode(table, field.split("[.]")[1], p, constantValue);
+        return new LogicalFilterNode(table, field.split("[.]")[1], p, constantValue);
+    }
+
+    /** Combine filters with AND or OR into a single filter.
+     *   @param conjunction true for AND, false for OR
+     *   @param terms The filters to combine, from {@link #createFilter} or
+     *   this method
+     *   @throws ParsingException if the filters are not all on the same
+     *   table; such conditions would have to be applied after a join
+     */
+    public LogicalFilterNode combineFilters(boolean conjunction,
+        List<LogicalFilterNode> terms) throws ParsingException {
+
+        String table = terms.get(0).tableAlias;
+        for (LogicalFilterNode lf : terms) {
+            if (!lf.tableAlias.equals(table))
+                throw new ParsingException((conjunction ? "AND" : "OR")
+                    + " is only supported between predicates on the same table, not "
+                    + table + " and " + lf.tableAlias);
+        }
+        return terms.size() == 1 ? terms.get(0)
+            : new LogicalFilterNode(table, conjunction, terms);
+    }
+
+    /** Add a filter from {@link #createFilter} or {@link #combineFilters}
+     *   to the logical plan
+     */
+    public void addFilter(LogicalFilterNode lf) {
         filters.addElement(lf);
     }
 
@@ -133,7 +178,8 @@ public class LogicalPlan {
 
     }
 
-    /** Add a join between a field and a subquery.
+    /** Add a semi join between a field and a subquery, which keeps the rows
+     *  with a matching row in the subquery.
      *  @param joinField1 The name of the first join field; this can
      *  be a fully qualified name (e.g., tableName.field or
      *  alias.field) or may be an unqualified unique field name.  If
@@ -146,12 +192,26 @@ public class LogicalPlan {
      *      or is not in one of the tables added via {@link #addScan}
      */
     public void addJoin(String joinField1, OpIterator joinField2, Predicate.Op pred) throws ParsingException {
+        addJoin(joinField1, joinField2, pred, false);
+    }
+
+    /** Add a semi join or anti join between a field and a subquery, as in
+     *  <tt>field IN (subquery)</tt> or <tt>field NOT IN (subquery)</tt>.
+     *  @param joinField1 The name of the field of the outer query
+     *  @param joinField2 the subquery to join with -- the join field
+     *    of the subquery is the first field in the result set of the query
+     *  @param pred The join predicate.
+     *  @param anti true to keep the rows without a match in the subquery
+     *  @throws ParsingException if the field is ambiguous, or is not in one
+     *      of the tables added via {@link #addScan}
+     */
+    public void addJoin(String joinField1, OpIterator joinField2, Predicate.Op pred, boolean anti) throws ParsingException {
         joinField1 = disambiguateName(joinField1);
 
         String table1 = joinField1.split("[.]")[0];
         String pureField = joinField1.split("[.]")[1];
 
-        LogicalSubplanJoinNode lj = new LogicalSubplanJoinNode(table1,pureField, joinField2, pred);
+        LogicalSubplanJoinNode lj = new LogicalSubplanJoinNode(table1,pureField, joinField2, pred, anti);
         System.out.println("Added subplan join on " + joinField1);
         joins.addElement(lj);
     }
@@ -186,36 +246,86 @@ public class LogicalPlan {
     }
     
     /** Add an aggregate over the field with the specified grouping to
-        the query.  SimpleDb only supports a single aggregate
-        expression and GROUP BY field.
+        the query.  The aggregate is added to those already in the plan,
+        and gfield (if not null) to the group by fields.
         @param op the aggregation operator
         @param afield the field to aggregate over
         @param gfield the field to group by
      * @throws ParsingException 
     */
     public void addAggregate(String op, String afield, String gfield) throws ParsingException {
-        afield=disambiguateName(afield);
+        addAggregate(op, afield);
         if (gfield!=null)
-            gfield=disambiguateName(gfield);
-        aggOp = op;
-        aggField = afield;
-        groupByField = gfield;
+            addGroupByField(gfield);
+    }
+
+    /** Add an aggregate over the field to the query.  A query may compute any
+        number of aggregates; they are all computed in the same pass over the data.
+        @param op the aggregation operator
+        @param afield the field to aggregate over, or "*" for COUNT(*)
+     * @throws ParsingException 
+    */
+    public void addAggregate(String op, String afield) throws ParsingException {
+        afield=disambiguateName(afield);
+        if (afield.equals("*")) {
+            if (getAggOp(op) != Aggregator.Op.COUNT)
+                throw new ParsingException("Only COUNT can be applied to *");
+            afield="null.*";
+        }
+        aggregates.addElement(new LogicalSelectListNode(op, afield));
         hasAgg = true;
     }
 
-    /** Add an ORDER BY expression in the specified order on the specified field.  SimpleDb only supports
-        a single ORDER BY field.
+    /** Add a field to the GROUP BY list of the query.  Groups are made of the
+        combination of values of all group by fields.
+        @param gfield the field to group by
+     * @throws ParsingException 
+    */
+    public void addGroupByField(String gfield) throws ParsingException {
+        gfield=disambiguateName(gfield);
+        if (!groupByFields.contains(gfield))
+            groupByFields.addElement(gfield);
+    }
+
+    /** Add an ORDER BY expression in the specified order on the specified field.  Each call adds
+        another sort key, less significant than those added before it.
         @param field the field to order by
         @param asc true if should be ordered in ascending order, false for descending order
      * @throws ParsingException 
     */
     public void addOrderBy(String field, boolean asc) throws ParsingException {
         field=disambiguateName(field);
-        oByField = field;
-        oByAsc = asc;
+        oByFields.addElement(field);
+        oByAscs.addElement(asc);
         hasOrderBy = true;
     }
 
+    /** Limit the output of the query to at most limit rows, after skipping the first offset
+        rows.  When the query also has an ORDER BY, the limit is applied to the sorted output.
+        @param limit the maximum number of rows to return
+        @param offset the number of leading rows to skip
+     * @throws ParsingException if limit or offset is negative
+    */
+    public void addLimit(int limit, int offset) throws ParsingException {
+        if (limit < 0 || offset < 0)
+            throw new ParsingException("LIMIT and OFFSET must not be negative");
+        this.limit = limit;
+        this.offset = offset;
+    }
+
+    /** Remove duplicate rows from the output of the query, as in SELECT DISTINCT.
+        Duplicates are removed before any LIMIT is applied.
+        @param distinct true if only distinct rows should be returned
+    */
+    public void setDistinct(boolean distinct) {
+        this.distinct = distinct;
+    }
+
+    /** @return true if only distinct rows are returned, see {@link #setDistinct} */
+    public boolean isDistinct() {
+        return distinct;
+    }
+
     /** Given a name of a field, try to figure out what table it belongs to by looking
      *   through all of the tables added via {@link #addScan}. 
      *  @return A fully qualified name of the form tableAlias.name.  If the name parameter is already qualified
@@ -268,9 +378,161 @@ public class LogicalPlan {
         if (s.equals("COUNT")) return Aggregator.Op.COUNT;
         if (s.equals("MIN")) return Aggregator.Op.MIN;
         if (s.equals("MAX")) return Aggregator.Op.MAX;
+        if (s.equals("APPROX_COUNT_DISTINCT")) return Aggregator.Op.APPROX_COUNT_DISTINCT;
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /**
+     * Estimates the number of groups of the GROUP BY list as the product of
+     * the numbers of distinct values of its fields, assuming they are
+     * independent.
+     *
+     * @return the estimate, or infinity if a field has no statistics
+     */
+    private double estimateGroups(Map<String, TableStats> statsMap) {
+        double groups = 1.0;
+        for (String field : groupByFields) {
+            String[] tmp = field.split("[.]");
+            Integer tableId = getTableId(tmp[0]);
+            TableStats stats = tableId == null ? null
+                    : statsMap.get(Database.getCatalog().getTableName(tableId));
+            if (stats == null)
+                return Double.POSITIVE_INFINITY;
+            int index = Database.getCatalog().getTupleDesc(tableId).fieldNameToIndex(tmp[1]);
+            groups *= 1.0 / stats.avgSelectivity(index, Predicate.Op.EQUALS);
+        }
+        return groups;
+    }
+
+    /** Convert a filter into a predicate tree over the fields of td,
+     *   estimating the selectivity of each comparison with s
+     */
+    private PredicateTree predicateTree(LogicalFilterNode lf, TupleDesc td,
+        TableStats s) throws ParsingException {
+
+        if (lf.terms != null) {
+            ArrayList<PredicateTree> terms = new ArrayList<PredicateTree>();
+            for (LogicalFilterNode t : lf.terms)
+                terms.add(predicateTree(t, td, s));
+            return lf.conjunction ? PredicateTree.and(terms) : PredicateTree.or(terms);
+        }
+
+        Field f;
+        Type ftyp;
+        int field;
+        try {
+            field = td.fieldNameToIndex(lf.fieldQuantifiedName);
+            ftyp = td.getFieldType(field);
+        } catch (java.util.NoSuchElementException e) {
+            throw new ParsingException("Unknown field in filter expression " + lf.fieldQuantifiedName);
+        }
+        // the statistics number the fields as the table does
+        int statsField = Database.getCatalog().getTupleDesc(getTableId(lf.tableAlias))
+            .fieldNameToIndex(lf.fieldPureName);
+        if (lf.parameter >= 0) {
+            // a placeholder of the right type until the parameter is bound
+            f = ftyp == Type.INT_TYPE ? new IntField(0) : new StringField("", Type.STRING_LEN);
+            return new PredicateTree(new Predicate(field, lf.p, f),
+                parameterSelectivity(s, statsField, lf.p), lf.parameter);
+        }
+        if (ftyp == Type.INT_TYPE)
+            f = new IntField(new Integer(lf.c).intValue());
+        else
+            f = new StringField(lf.c, Type.STRING_LEN);
+
+        return new PredicateTree(new Predicate(field, lf.p, f),
+            s.estimateSelectivity(statsField, lf.p, f));
+    }
+
+    /** Estimate the selectivity of a comparison with a parameter, whose
+     *   value is not known when the plan is made: an equality selects one
+     *   of the distinct values of the field
+     */
+    private static double parameterSelectivity(TableStats s, int field, Predicate.Op op) {
+        double eq = 1.0 / s.estimateDistinctValues(field);
+        switch (op) {
+        case EQUALS:
+            return eq;
+        case NOT_EQUALS:
+            return 1 - eq;
+        default:
+            return s.avgSelectivity(field, op);
+        }
+    }
+
+    /** Find the fields of each table that the query reads: those in the
+     *   SELECT list, the aggregates, GROUP BY, ORDER BY, the filters and the
+     *   joins.  Scans only return these, so that joins and sorts carry
+     *   narrower tuples.
+     *  @return for each table alias, the indexes of its fields that are read,
+     *   in table order; null if the query reads every field, as with SELECT *
+     */
+    private HashMap<String, int[]> neededFields() {
+        ArrayList<String> names = new ArrayList<String>();
+        for (LogicalSelectListNode si : selectList) {
+            if (si.fname.equals("null.*") && si.aggOp == null)
+                return null;
+            names.add(si.fname);
+        }
+        for (LogicalSelectListNode agg : aggregates)
+            names.add(agg.fname);
+        names.addAll(groupByFields);
+        names.addAll(oByFields);
+        for (LogicalFilterNode lf : filters)
+            addFilterFields(lf, names);
+        for (LogicalJoinNode lj : joins) {
+            names.add(lj.f1QuantifiedName);
+            if (!(lj instanceof LogicalSubplanJoinNode))
+                names.add(lj.f2QuantifiedName);
+        }
+
+        HashMap<String, int[]> needed = new HashMap<String, int[]>();
+        for (LogicalScanNode table : tables) {
+            TupleDesc td;
+            try {
+                td = Database.getCatalog().getTupleDesc(table.t);
+            } catch (NoSuchElementException e) {
+                continue; // reported when the plan is built
+            }
+            boolean[] used = new boolean[td.numFields()];
+            int n = 0;
+            for (String name : names) {
+                String[] tmp = name.split("[.]");
+                if (tmp.length != 2 || !tmp[0].equals(table.alias))
+                    continue;
+                try {
+                    int i = td.fieldNameToIndex(tmp[1]);
+                    if (!used[i])
+                        n++;
+                    used[i] = true;
+                } catch (NoSuchElementException e) {
+                    // reported when the plan is built
+                }
+            }
+            // a table that only joins rows, as for COUNT(*), still needs
+            // some field to carry them
+            if (n == 0) {
+                used[0] = true;
+                n = 1;
+            }
+            int[] fields = new int[n];
+            for (int i = 0, j = 0; i < used.length; i++)
+                if (used[i])
+                    fields[j++] = i;
+            needed.put(table.alias, fields);
+        }
+        return needed;
+    }
+
+    private static void addFilterFields(LogicalFilterNode lf, ArrayList<String> names) {
+        if (lf.terms == null) {
+            names.add(lf.fieldQuantifiedName);
+            return;
+        }
+        for (LogicalFilterNode t : lf.terms)
+            addFilterFields(t, names);
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link OpIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
      *  @param t The transaction that the returned OpIterator will run as a part of
@@ -289,6 +551,7 @@ public class LogicalPlan {
         HashMap<String,String> equivMap = new HashMap<String,String>();
         HashMap<String,Double> filterSelectivities = new HashMap<String, Double>();
         HashMap<String,TableStats> statsMap = new HashMap<String,TableStats>();
+        HashMap<String, int[]> neededFields = neededFields();
 
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
@@ -298,6 +561,9 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown table " + table.t);
             }
+            int[] fields = neededFields == null ? null : neededFields.get(table.alias);
+            if (fields != null && fields.length < ss.getTupleDesc().numFields())
+                ss.setOutputFields(fields);
             
             subplanMap.put(table.alias,ss);
             String baseTableName = Database.getCatalog().getTableName(table.t);
@@ -306,6 +572,9 @@ public class LogicalPlan {
 
         }
 
+        // all the filters of a table become a single Filter, whose terms
+        // are ordered so that each tuple is rejected as cheaply as possible
+        HashMap<String, ArrayList<PredicateTree>> tableFilters = new HashMap<String, ArrayList<PredicateTree>>();
         Iterator<LogicalFilterNode> filterIt = filters.iterator();        
         while (filterIt.hasNext()) {
             LogicalFilterNode lf = filterIt.next();
@@ -314,40 +583,29 @@ public class LogicalPlan {
                 throw new ParsingException("Unknown table in WHERE clause " + lf.tableAlias);
             }
 
-            Field f;
-            Type ftyp;
-            TupleDesc td = subplanMap.get(lf.tableAlias).getTupleDesc();
-            
-            try {//td.fieldNameToIndex(disambiguateName(lf.fieldPureName))
-                ftyp = td.getFieldType(td.fieldNameToIndex(lf.fieldQuantifiedName));
-            } catch (java.util.NoSuchElementException e) {
-                throw new ParsingException("Unknown field in filter expression " + lf.fieldQuantifiedName);
-            }
-            if (ftyp == Type.INT_TYPE)
-                f = new IntField(new Integer(lf.c).intValue());
-            else
-                f = new StringField(lf.c, Type.STRING_LEN);
-
-            Predicate p = null;
-            try {
-                p = new Predicate(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p,f);
-            } catch (NoSuchElementException e) {
-                throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
-            }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
-
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
-            
-            double sel= s.estimateSelectivity(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p, f);
-            filterSelectivities.put(lf.tableAlias, filterSelectivities.get(lf.tableAlias) * sel);
+            PredicateTree pt = predicateTree(lf, subplan.getTupleDesc(), s);
+            filterSelectivities.put(lf.tableAlias, filterSelectivities.get(lf.tableAlias) * pt.getSelectivity());
+            if (!tableFilters.containsKey(lf.tableAlias))
+                tableFilters.put(lf.tableAlias, new ArrayList<PredicateTree>());
+            tableFilters.get(lf.tableAlias).add(pt);
 
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
         }
+
+        for (Map.Entry<String, ArrayList<PredicateTree>> e : tableFilters.entrySet()) {
+            PredicateTree pt = PredicateTree.and(e.getValue()).reorder();
+            subplanMap.put(e.getKey(), new Filter(pt, subplanMap.get(e.getKey())));
+        }
         
         JoinOptimizer jo = new JoinOptimizer(this,joins);
 
         joins = jo.orderJoins(statsMap,filterSelectivities,explain);
 
+        // subplanMap holds one plan per group of tables joined so far, under
+        // the alias that equivMap maps each of its tables to. The joins that
+        // build both sides of a join come before it, so either side may be
+        // a join itself, as in a bushy plan.
         Iterator<LogicalJoinNode> joinIt = joins.iterator();
         while (joinIt.hasNext()) {
             LogicalJoinNode lj = joinIt.next();
@@ -368,6 +626,22 @@ public class LogicalPlan {
 
             plan1 = subplanMap.get(t1name);
 
+            // a join that closes a cycle is between two tables already in
+            // the same plan, so it only filters that plan
+            if (!isSubqueryJoin && t1name.equals(t2name)) {
+                if (plan1 == null)
+                    throw new ParsingException("Unknown table in WHERE clause " + lj.t1Alias);
+                TupleDesc td = plan1.getTupleDesc();
+                try {
+                    subplanMap.put(t1name, new Filter(new JoinPredicate(
+                            td.fieldNameToIndex(lj.f1QuantifiedName), lj.p,
+                            td.fieldNameToIndex(lj.f2QuantifiedName)), plan1));
+                } catch (NoSuchElementException e) {
+                    throw new ParsingException("Unknown field in join " + lj);
+                }
+                continue;
+            }
+
             if (isSubqueryJoin) {
                 plan2 = ((LogicalSubplanJoinNode)lj).subPlan;
                 if (plan2 == null) 
@@ -408,44 +682,72 @@ public class LogicalPlan {
         
         OpIterator node =  (OpIterator)(subplanMap.entrySet().iterator().next().getValue());
 
+        if (hasAgg) {
+            TupleDesc td = node.getTupleDesc();
+            int[] gfields = new int[groupByFields.size()];
+            int[] afields = new int[aggregates.size()];
+            Aggregator.Op[] aops = new Aggregator.Op[aggregates.size()];
+            try {
+                for (int i = 0; i < gfields.length; i++)
+                    gfields[i] = td.fieldNameToIndex(groupByFields.elementAt(i));
+                for (int i = 0; i < afields.length; i++) {
+                    LogicalSelectListNode agg = aggregates.elementAt(i);
+                    // COUNT(*) counts tuples, so any field will do
+                    afields[i] = agg.fname.equals("null.*") ? 0 : td.fieldNameToIndex(agg.fname);
+                    aops[i] = getAggOp(agg.aggOp);
+                }
+                // input that is already grouped, such as a scan of a B+ tree
+                // on the group field, can be aggregated one group at a time
+                if (groupByFields.size() > 0 && SortOrder.isGroupedOn(node, gfields))
+                    node = new StreamAggregate(node, gfields, afields, aops);
+                // a large scan with few groups can be split between threads
+                else if (ParallelAggregate.supports(node)
+                        && ParallelAggregate.numPages(node) >= ParallelAggregate.MIN_PAGES
+                        && Runtime.getRuntime().availableProcessors() > 1
+                        && estimateGroups(statsMap) <= ParallelAggregate.MAX_GROUPS)
+                    node = new ParallelAggregate(node, gfields, afields, aops);
+                else
+                    node = new HashAggregate(node, gfields, afields, aops);
+            } catch (NoSuchElementException e) {
+                throw new simpledb.ParsingException(e);
+            } catch (IllegalArgumentException e) {
+                throw new simpledb.ParsingException(e);
+            }
+        }
+
         //walk the select list, to determine order in which to project output fields
         ArrayList<Integer> outFields = new ArrayList<Integer>();
         ArrayList<Type> outTypes = new ArrayList<Type>();
+        TupleDesc td = node.getTupleDesc();
         for (int i = 0; i < selectList.size(); i++) {
             LogicalSelectListNode si = selectList.elementAt(i);
             if (si.aggOp != null) {
-                outFields.add(groupByField!=null?1:0);
-                TupleDesc td = node.getTupleDesc();
-//                int  id;
-                try {
-//                    id = 
-                    td.fieldNameToIndex(si.fname);
-                } catch (NoSuchElementException e) {
-                    throw new ParsingException("Unknown field " +  si.fname + " in SELECT list");
+                int id = -1;
+                for (int j = 0; j < aggregates.size(); j++) {
+                    LogicalSelectListNode agg = aggregates.elementAt(j);
+                    if (agg.fname.equals(si.fname) && agg.aggOp.equalsIgnoreCase(si.aggOp)) {
+                        id = groupByFields.size() + j;
+                        break;
+                    }
                 }
+                if (id < 0)
+                    throw new ParsingException("Unknown aggregate " + si.aggOp + "(" + si.fname + ") in SELECT list");
+                outFields.add(id);
                 outTypes.add(Type.INT_TYPE);  //the type of all aggregate functions is INT
 
             } else if (hasAgg) {
-                    if (groupByField == null) {
+                    int id = groupByFields.indexOf(si.fname);
+                    if (id < 0) {
                         throw new ParsingException("Field " + si.fname + " does not appear in GROUP BY list");
                     }
-                    outFields.add(0);
-                    TupleDesc td = node.getTupleDesc();
-                    int  id;
-                    try {
-                        id = td.fieldNameToIndex(groupByField);
-                    } catch (NoSuchElementException e) {
-                        throw new ParsingException("Unknown field " +  groupByField + " in GROUP BY statement");
-                    }
+                    outFields.add(id);
                     outTypes.add(td.getFieldType(id));
             } else if (si.fname.equals("null.*")) {
-                    TupleDesc td = node.getTupleDesc();
                     for ( i = 0; i < td.numFields(); i++) {
                         outFields.add(i);
                         outTypes.add(td.getFieldType(i));
                     }
             } else  {
-                    TupleDesc td = node.getTupleDesc();
                     int id;
                     try {
                         id = td.fieldNameToIndex(si.fname);
@@ -458,27 +760,63 @@ public class LogicalPlan {
                 }
         }
 
-        if (hasAgg) {
-            TupleDesc td = node.getTupleDesc();
-            Aggregate aggNode;
+        if (distinct) {
+            // duplicates are rows equal on every output field, so project first
+            node = new Project(outFields, outTypes, node);
+            if (hasOrderBy) {
+                int[] keys = orderByKeys(node.getTupleDesc());
+                HashSet<Integer> keySet = new HashSet<Integer>();
+                for (int k : keys)
+                    keySet.add(k);
+                // sorting on every field leaves duplicates next to each other,
+                // so they can be removed without a hash table
+                if (keySet.size() == node.getTupleDesc().numFields()) {
+                    node = new Distinct(new OrderBy(keys, orderByAscs(), node));
+                    if (limit >= 0)
+                        node = new Limit(limit, offset, node);
+                    return node;
+                }
+            }
+            return orderAndLimit(new Distinct(node));
+        }
+
+        return new Project(outFields, outTypes, orderAndLimit(node));
+    }
+
+    private int[] orderByKeys(TupleDesc td) throws ParsingException {
+        int[] keys = new int[oByFields.size()];
+        for (int i = 0; i < keys.length; i++) {
             try {
-                aggNode = new Aggregate(node,
-                                        td.fieldNameToIndex(aggField),
-                                        groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField),
-                                getAggOp(aggOp));
+                keys[i] = td.fieldNameToIndex(oByFields.elementAt(i));
             } catch (NoSuchElementException e) {
-                throw new simpledb.ParsingException(e);
-            } catch (IllegalArgumentException e) {
-                throw new simpledb.ParsingException(e);
+                throw new ParsingException("Unknown field " + oByFields.elementAt(i) + " in ORDER BY"
+                        + (distinct ? "; with DISTINCT it must appear in the SELECT list" : ""));
             }
-            node = aggNode;
         }
+        return keys;
+    }
 
+    private boolean[] orderByAscs() {
+        boolean[] ascs = new boolean[oByAscs.size()];
+        for (int i = 0; i < ascs.length; i++)
+            ascs[i] = oByAscs.elementAt(i);
+        return ascs;
+    }
+
+    /** Adds the ORDER BY and LIMIT clauses of the query on top of node */
+    private OpIterator orderAndLimit(OpIterator node) throws ParsingException {
         if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+            int[] keys = orderByKeys(node.getTupleDesc());
+            if (limit >= 0 && TopN.fitsInMemory(limit, offset, node.getTupleDesc()))
+                node = new TopN(keys, orderByAscs(), limit, offset, node);
+            else if (limit >= 0)
+                node = new Limit(limit, offset, new OrderBy(keys, orderByAscs(), node));
+            else
+                node = new OrderBy(keys, orderByAscs(), node);
+        } else if (limit >= 0) {
+            node = new Limit(limit, offset, node);
         }
-
-        return new Project(outFields, outTypes, node);
+        return node;
     }
 
     public static void main(String argv[]) {
@@ -29,47 +29,74 @@ public class OperatorCardinality {
         } else if (o instanceof HashEquiJoin) {
             return updateHashEquiJoinCardinality((HashEquiJoin) o,
                     tableAliasToId, tableStats);
+        } else if (o instanceof HashSemiJoin) {
+            return updateSemiJoinCardinality((HashSemiJoin) o,
+                    tableAliasToId, tableStats);
         } else if (o instanceof Aggregate) {
             return updateAggregateCardinality((Aggregate) o, tableAliasToId,
                     tableStats);
+        } else if (o instanceof AggregateOperator) {
+            return updateGroupedAggregateCardinality(o,
+                    ((AggregateOperator) o).getGroupFieldNames(),
+                    tableAliasToId, tableStats);
+        } else if (o instanceof TopN) {
+            TopN t = (TopN) o;
+            return updateLimitCardinality(t, t.getLimit(), t.getOffset(),
+                    tableAliasToId, tableStats);
+        } else if (o instanceof Limit) {
+            Limit l = (Limit) o;
+            return updateLimitCardinality(l, l.getLimit(), l.getOffset(),
+                    tableAliasToId, tableStats);
         } else {
-            OpIterator[] children = o.getChildren();
-            int childC = 1;
-            boolean hasJoinPK = false;
-            if (children.length > 0 && children[0] != null) {
-                if (children[0] instanceof Operator) {
-                    hasJoinPK = updateOperatorCardinality(
-                            (Operator) children[0], tableAliasToId, tableStats);
-                    childC = ((Operator) children[0]).getEstimatedCardinality();
-                } else if (children[0] instanceof SeqScan) {
-                    childC = tableStats.get(
-                            ((SeqScan) children[0]).getTableName())
-                            .estimateTableCardinality(1.0);
-                }
+            return updateUnaryCardinality(o, tableAliasToId, tableStats);
+        }
+    }
+
+    /**
+     * Estimates the cardinality of an operator that returns as many tuples as
+     * its first child.
+     */
+    private static boolean updateUnaryCardinality(Operator o,
+            Map<String, Integer> tableAliasToId,
+            Map<String, TableStats> tableStats) {
+        OpIterator[] children = o.getChildren();
+        int childC = 1;
+        boolean hasJoinPK = false;
+        if (children.length > 0 && children[0] != null) {
+            if (children[0] instanceof Operator) {
+                hasJoinPK = updateOperatorCardinality(
+                        (Operator) children[0], tableAliasToId, tableStats);
+                childC = ((Operator) children[0]).getEstimatedCardinality();
+            } else if (children[0] instanceof SeqScan) {
+                childC = tableStats.get(
+                        ((SeqScan) children[0]).getTableName())
+                        .estimateTableCardinality(1.0);
             }
-            o.setEstimatedCardinality(childC);
-            return hasJoinPK;
         }
+        o.setEstimatedCardinality(childC);
+        return hasJoinPK;
+    }
+
+    private static boolean updateLimitCardinality(Operator o, int limit,
+            int offset, Map<String, Integer> tableAliasToId,
+            Map<String, TableStats> tableStats) {
+        boolean hasJoinPK = updateUnaryCardinality(o, tableAliasToId,
+                tableStats);
+        o.setEstimatedCardinality(Math.max(0,
+                Math.min(o.getEstimatedCardinality() - offset, limit)));
+        return hasJoinPK;
     }
 
     private static boolean updateFilterCardinality(Filter f,
             Map<String, Integer> tableAliasToId,
             Map<String, TableStats> tableStats) {
         OpIterator child = f.getChildren()[0];
-        Predicate pred = f.getPredicate();
-        String[] tmp = child.getTupleDesc().getFieldName(pred.getField())
-                .split("[.]");
-        String tableAlias = tmp[0];
-        String pureFieldName = tmp[1];
-        Integer tableId = tableAliasToId.get(tableAlias);
-        double selectivity = 1.0;
-        if (tableId != null) {
-            selectivity = tableStats.get(
-                    Database.getCatalog().getTableName(tableId))
-                    .estimateSelectivity(
-                            Database.getCatalog().getTupleDesc(tableId)
-                                    .fieldNameToIndex(pureFieldName),
-                            pred.getOp(), pred.getOperand());
+        double selectivity = f.getJoinPredicate() != null
+                ? estimateSelectivity(f.getJoinPredicate(), child.getTupleDesc(),
+                        tableAliasToId, tableStats)
+                : estimateSelectivity(f.getPredicateTree(),
+                        child.getTupleDesc(), tableAliasToId, tableStats);
+        if (selectivity >= 0) {
             if (child instanceof Operator) {
                 Operator oChild = (Operator) child;
                 boolean hasJoinPK = updateOperatorCardinality(oChild,
@@ -88,6 +115,60 @@ public class OperatorCardinality {
         return false;
     }
 
+    /**
+     * Estimates the selectivity of a predicate tree from the statistics of
+     * the tables its fields come from, assuming independent terms.
+     *
+     * @return the selectivity, or -1 if a field is not from a known table
+     */
+    private static double estimateSelectivity(PredicateTree tree, TupleDesc td,
+            Map<String, Integer> tableAliasToId,
+            Map<String, TableStats> tableStats) {
+        if (tree.getKind() == PredicateTree.Kind.PREDICATE) {
+            Predicate pred = tree.getPredicate();
+            String[] tmp = td.getFieldName(pred.getField()).split("[.]");
+            Integer tableId = tableAliasToId.get(tmp[0]);
+            if (tableId == null)
+                return -1;
+            return tableStats.get(Database.getCatalog().getTableName(tableId))
+                    .estimateSelectivity(Database.getCatalog().getTupleDesc(tableId)
+                            .fieldNameToIndex(tmp[1]), pred.getOp(), pred.getOperand());
+        }
+        boolean and = tree.getKind() == PredicateTree.Kind.AND;
+        double s = 1.0;
+        for (PredicateTree t : tree.getTerms()) {
+            double ts = estimateSelectivity(t, td, tableAliasToId, tableStats);
+            if (ts < 0)
+                return -1;
+            s *= and ? ts : 1 - ts;
+        }
+        return and ? s : 1 - s;
+    }
+
+    /**
+     * Estimates the selectivity of a comparison between two fields of the
+     * same tuples, as the fraction of the pairs of tuples of their tables
+     * that their join keeps.
+     *
+     * @return the selectivity, or -1 if a field is not from a known table
+     */
+    private static double estimateSelectivity(JoinPredicate p, TupleDesc td,
+            Map<String, Integer> tableAliasToId,
+            Map<String, TableStats> tableStats) {
+        String[] tmp1 = td.getFieldName(p.getField1()).split("[.]");
+        String[] tmp2 = td.getFieldName(p.getField2()).split("[.]");
+        Integer id1 = tableAliasToId.get(tmp1[0]), id2 = tableAliasToId.get(tmp2[0]);
+        if (id1 == null || id2 == null)
+            return -1;
+        int card1 = Math.max(tableStats.get(Database.getCatalog().getTableName(id1))
+                .estimateTableCardinality(1.0), 1);
+        int card2 = Math.max(tableStats.get(Database.getCatalog().getTableName(id2))
+                .estimateTableCardinality(1.0), 1);
+        return (double) JoinOptimizer.estimateTableJoinCardinality(p.getOperator(),
+                tmp1[0], tmp2[0], tmp1[1], tmp2[1], card1, card2, false, false,
+                tableStats, tableAliasToId) / card1 / card2;
+    }
+
     private static boolean updateJoinCardinality(Join j,
             Map<String, Integer> tableAliasToId,
             Map<String, TableStats> tableStats) {
@@ -201,6 +282,51 @@ public class OperatorCardinality {
         return child1HasJoinPK || child2HasJoinPK;
     }
 
+    /**
+     * Estimates the cardinality of a semi join or anti join. Its inner child
+     * is a subquery, whose cardinality was estimated when it was planned.
+     */
+    private static boolean updateSemiJoinCardinality(HashSemiJoin j,
+            Map<String, Integer> tableAliasToId,
+            Map<String, TableStats> tableStats) {
+        OpIterator[] children = j.getChildren();
+        int child1Card = 1;
+        int child2Card = 1;
+        boolean hasJoinPK = false;
+
+        if (children[0] instanceof Operator) {
+            Operator child1O = (Operator) children[0];
+            hasJoinPK = updateOperatorCardinality(child1O, tableAliasToId,
+                    tableStats);
+            child1Card = child1O.getEstimatedCardinality();
+            child1Card = child1Card > 0 ? child1Card : 1;
+        } else if (children[0] instanceof SeqScan) {
+            child1Card = tableStats.get(((SeqScan) children[0])
+                    .getTableName()).estimateTableCardinality(1.0);
+        }
+        if (children[1] instanceof Operator) {
+            child2Card = ((Operator) children[1]).getEstimatedCardinality();
+            child2Card = child2Card > 0 ? child2Card : 1;
+        }
+
+        String[] tmp1 = j.getJoinField1Name().split("[.]");
+        int distinct1 = child1Card;
+        Integer tableId = tableAliasToId.get(tmp1[0]);
+        if (tableId != null) {
+            TableStats s = tableStats.get(Database.getCatalog().getTableName(
+                    tableId));
+            if (s != null)
+                distinct1 = s.estimateDistinctValues(Database.getCatalog()
+                        .getTupleDesc(tableId).fieldNameToIndex(tmp1[1]));
+        }
+        j.setEstimatedCardinality(JoinOptimizer.estimateSemiJoinCardinality(
+                j.getJoinPredicate().getOperator(), j.isAnti(), child1Card,
+                child2Card, distinct1, JoinOptimizer.estimateSubplanDistinct(
+                        children[1], j.getJoinPredicate().getField2(),
+                        child2Card, tableStats)));
+        return hasJoinPK;
+    }
+
     private static boolean updateAggregateCardinality(Aggregate a,
             Map<String, Integer> tableAliasToId,
             Map<String, TableStats> tableStats) {
@@ -244,4 +370,36 @@ public class OperatorCardinality {
         a.setEstimatedCardinality(childCard);
         return hasJoinPK;
     }
+
+    private static boolean updateGroupedAggregateCardinality(Operator a,
+            String[] groupFieldNames, Map<String, Integer> tableAliasToId,
+            Map<String, TableStats> tableStats) {
+        boolean hasJoinPK = updateUnaryCardinality(a, tableAliasToId,
+                tableStats);
+        int childCard = a.getEstimatedCardinality();
+        if (groupFieldNames.length == 0) {
+            a.setEstimatedCardinality(1);
+            return hasJoinPK;
+        }
+
+        // assume the group fields are independent: the number of groups is
+        // the product of their numbers of distinct values
+        double groups = 1.0;
+        for (String name : groupFieldNames) {
+            String[] tmp = name.split("[.]");
+            Integer tableId = tableAliasToId.get(tmp[0]);
+            if (tableId == null) {
+                groups = childCard;
+                break;
+            }
+            groups *= 1.0 / tableStats.get(
+                    Database.getCatalog().getTableName(tableId))
+                    .avgSelectivity(
+                            Database.getCatalog().getTupleDesc(tableId)
+                                    .fieldNameToIndex(tmp[1]),
+                            Predicate.Op.EQUALS);
+        }
+        a.setEstimatedCardinality((int) Math.min(childCard, groups));
+        return hasJoinPK;
+    }
 }
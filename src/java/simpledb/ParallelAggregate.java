@@ -0,0 +1,293 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ParallelAggregate computes the same aggregates as {@link HashAggregate}
+ * over a scan of a {@link HeapFile}, optionally under a chain of
+ * {@link Filter}s, using several worker threads.
+ * <p>
+ * The pages of the file are cut into chunks that the workers take from a
+ * shared counter, so that a slow chunk does not hold up the others. Each
+ * worker scans its chunks with a {@link HeapFile} iterator, which gets the
+ * pages through {@link BufferPool#getPage} in the transaction of the scan,
+ * with the filters pushed down into the page iterator. It aggregates into
+ * its own hash table of partial states, without any coordination with the
+ * other workers. When all pages have been read the
+ * partial tables are merged with {@link AggregateLayout#merge}; AVG carries
+ * its sum and count separately, so averages of the parts combine exactly.
+ * <p>
+ * Every worker holds a table of all the groups it has seen and nothing is
+ * spilled to disk, so this operator is meant for aggregates with few groups,
+ * such as COUNT, SUM or AVG over a whole table.
+ */
+public class ParallelAggregate extends Operator implements AggregateOperator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Scans of fewer pages than this are not worth splitting up. */
+    public static final int MIN_PAGES = 64;
+
+    /**
+     * The largest estimated number of groups for which the planner chooses
+     * this operator, since every worker may hold all of them.
+     */
+    public static final int MAX_GROUPS = 100000;
+
+    /** The number of chunks of pages handed out per worker. */
+    private static final int CHUNKS_PER_WORKER = 4;
+
+    private OpIterator child;
+    private final int[] groupFields;
+    private final AggregateLayout layout;
+    private final TupleDesc td;
+    private final int numWorkers;
+
+    private transient HashMap<GroupKey, long[]> groups;
+    private transient Iterator<Map.Entry<GroupKey, long[]>> it;
+
+    /**
+     * Constructor.
+     *
+     * @param child
+     *            A SeqScan of a HeapFile, possibly under Filters.
+     * @param groupFields
+     *            The indexes of the group-by fields in the child's tuples;
+     *            empty if there is no grouping.
+     * @param aggFields
+     *            The index of the field of each aggregate.
+     * @param aops
+     *            The operator of each aggregate.
+     * @param numWorkers
+     *            The number of worker threads to use.
+     * @throws IllegalArgumentException
+     *             if the child is not supported (see {@link #supports}), or
+     *             an operator is not supported for its field's type
+     */
+    public ParallelAggregate(OpIterator child, int[] groupFields,
+            int[] aggFields, Aggregator.Op[] aops, int numWorkers) {
+        if (!supports(child))
+            throw new IllegalArgumentException(
+                    "can only aggregate a filtered scan of a heap file in parallel");
+        if (numWorkers <= 0)
+            throw new IllegalArgumentException("need at least one worker");
+        this.child = child;
+        this.groupFields = groupFields.clone();
+        this.layout = new AggregateLayout(child.getTupleDesc(), aggFields, aops);
+        this.td = HashAggregate.outputTupleDesc(child.getTupleDesc(),
+                groupFields, layout);
+        this.numWorkers = numWorkers;
+    }
+
+    /**
+     * Constructor that uses one worker per available processor.
+     */
+    public ParallelAggregate(OpIterator child, int[] groupFields,
+            int[] aggFields, Aggregator.Op[] aops) {
+        this(child, groupFields, aggFields, aops,
+                Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @return true if op is a SeqScan of a HeapFile, possibly under a chain
+     *         of Filters of predicate trees, which is what this operator can
+     *         split up
+     */
+    public static boolean supports(OpIterator op) {
+        while (op instanceof Filter) {
+            if (((Filter) op).getPredicateTree() == null)
+                return false;
+            op = ((Filter) op).getChildren()[0];
+        }
+        return op instanceof SeqScan
+                && Database.getCatalog().getDatabaseFile(
+                        ((SeqScan) op).getTableId()) instanceof HeapFile;
+    }
+
+    /**
+     * @return the number of pages of the file scanned by op, which must be
+     *         supported by this operator
+     */
+    public static int numPages(OpIterator op) {
+        return scanOf(op).numPages();
+    }
+
+    private static HeapFile scanOf(OpIterator op) {
+        while (op instanceof Filter)
+            op = ((Filter) op).getChildren()[0];
+        return (HeapFile) Database.getCatalog().getDatabaseFile(
+                ((SeqScan) op).getTableId());
+    }
+
+    /**
+     * @return the indexes of the group-by fields in the child's tuples
+     */
+    public int[] getGroupFields() {
+        return groupFields.clone();
+    }
+
+    /**
+     * @return the names of the group-by fields in the child's tuples
+     */
+    public String[] getGroupFieldNames() {
+        String[] names = new String[groupFields.length];
+        for (int i = 0; i < names.length; i++)
+            names[i] = child.getTupleDesc().getFieldName(groupFields[i]);
+        return names;
+    }
+
+    /**
+     * @return the layout of the aggregates computed by this operator
+     */
+    public AggregateLayout getLayout() {
+        return layout;
+    }
+
+    /**
+     * @return the number of worker threads used by this operator
+     */
+    public int getNumWorkers() {
+        return numWorkers;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws NoSuchElementException, DbException,
+            TransactionAbortedException {
+        ArrayList<PredicateTree> predicates = new ArrayList<PredicateTree>();
+        OpIterator op = child;
+        while (op instanceof Filter) {
+            predicates.add(((Filter) op).getPredicateTree());
+            op = ((Filter) op).getChildren()[0];
+        }
+        final SeqScan scan = (SeqScan) op;
+        final TransactionId tid = scan.getTransactionId();
+        final HeapFile file = scanOf(op);
+        // stacked Filters apply the innermost one first
+        Collections.reverse(predicates);
+        PredicateTree and = predicates.isEmpty() ? null
+                : PredicateTree.and(predicates);
+        // the file numbers the fields of a narrowed scan differently
+        int[] outputFields = scan.getOutputFields();
+        final PredicateTree filter = and == null || outputFields == null ? and
+                : and.mapFields(outputFields);
+
+        final int numPages = file.numPages();
+        final int chunkSize = Math.max(1,
+                (numPages + numWorkers * CHUNKS_PER_WORKER - 1)
+                        / (numWorkers * CHUNKS_PER_WORKER));
+        final AtomicInteger nextChunk = new AtomicInteger();
+        ArrayList<Callable<HashMap<GroupKey, long[]>>> workers =
+                new ArrayList<Callable<HashMap<GroupKey, long[]>>>();
+        for (int w = 0; w < numWorkers; w++) {
+            workers.add(new Callable<HashMap<GroupKey, long[]>>() {
+                public HashMap<GroupKey, long[]> call() throws Exception {
+                    HashMap<GroupKey, long[]> partial = new HashMap<GroupKey, long[]>();
+                    int first;
+                    while ((first = nextChunk.getAndIncrement() * chunkSize) < numPages) {
+                        DbFileIterator pages = file.iterator(tid, first,
+                                first + chunkSize, filter);
+                        pages.open();
+                        while (pages.hasNext())
+                            aggregate(partial, scan.project(pages.next()));
+                        pages.close();
+                    }
+                    return partial;
+                }
+            });
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(numWorkers);
+        groups = null;
+        try {
+            for (Future<HashMap<GroupKey, long[]>> f : pool.invokeAll(workers))
+                groups = merge(groups, f.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DbException("parallel aggregate interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof TransactionAbortedException)
+                throw (TransactionAbortedException) cause;
+            if (cause instanceof DbException)
+                throw (DbException) cause;
+            throw new DbException("parallel aggregate failed: " + cause);
+        } finally {
+            pool.shutdown();
+        }
+
+        if (groupFields.length == 0 && groups.isEmpty())
+            groups.put(new GroupKey(new Field[0]), layout.newState());
+        it = groups.entrySet().iterator();
+        super.open();
+    }
+
+    private void aggregate(HashMap<GroupKey, long[]> partial, Tuple t) {
+        GroupKey key = new GroupKey(t, groupFields);
+        long[] state = partial.get(key);
+        if (state == null) {
+            state = layout.newState();
+            partial.put(key, state);
+        }
+        layout.update(state, t);
+    }
+
+    /**
+     * Merges the smaller of two partial tables into the larger one.
+     */
+    private HashMap<GroupKey, long[]> merge(HashMap<GroupKey, long[]> a,
+            HashMap<GroupKey, long[]> b) {
+        if (a == null)
+            return b;
+        if (a.size() < b.size()) {
+            HashMap<GroupKey, long[]> tmp = a;
+            a = b;
+            b = tmp;
+        }
+        for (Map.Entry<GroupKey, long[]> e : b.entrySet()) {
+            long[] state = a.get(e.getKey());
+            if (state == null)
+                a.put(e.getKey(), e.getValue());
+            else
+                layout.merge(state, e.getValue());
+        }
+        return a;
+    }
+
+    /**
+     * Returns the next group: its group-by fields followed by its aggregate
+     * values.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException,
+            DbException {
+        if (it == null || !it.hasNext())
+            return null;
+        Map.Entry<GroupKey, long[]> e = it.next();
+        return HashAggregate.makeTuple(td, e.getKey(), layout, e.getValue());
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        it = groups.entrySet().iterator();
+    }
+
+    public void close() {
+        super.close();
+        it = null;
+        groups = null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { child };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        child = children[0];
+    }
+
+}
@@ -4,6 +4,8 @@ import Zql.*;
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
@@ -35,6 +37,90 @@ public class Parser {
         throw new simpledb.ParsingException("Unknown predicate " + s);
     }
 
+    /**
+     * Matches a LIMIT n [OFFSET m] clause at the end of a statement. Zql does
+     * not know about LIMIT, so the clause is removed from the text before it
+     * is parsed and applied to the logical plan afterwards.
+     */
+    static final Pattern LIMIT_CLAUSE = Pattern.compile(
+            "\\s+LIMIT\\s+(\\d+)(?:\\s+OFFSET\\s+(\\d+))?\\s*(;?)\\s*$",
+            Pattern.CASE_INSENSITIVE);
+
+    /** LIMIT and OFFSET of the statement being processed; -1 if there is no LIMIT */
+    private int limit = -1;
+    private int offset = 0;
+
+    /** The number of ? parameters read so far in the statement being processed */
+    private int parameters = 0;
+
+    /** The prepared statements, by their normalized text */
+    private final StatementCache statements = new StatementCache(StatementCache.DEFAULT_CAPACITY);
+
+    /**
+     * Creates a Zql parser that also accepts the aggregate functions Zql
+     * does not know about, such as APPROX_COUNT_DISTINCT.
+     */
+    static ZqlParser newZqlParser(InputStream in) {
+        ZqlParser p = new ZqlParser(in);
+        p.addCustomFunction("approx_count_distinct", 1);
+        return p;
+    }
+
+    /**
+     * Removes a trailing LIMIT clause from a statement and remembers its
+     * values, so that they can be added to the statement's logical plan.
+     * 
+     * @return the statement without its LIMIT clause
+     */
+    String stripLimitClause(String s) throws simpledb.ParsingException {
+        limit = -1;
+        offset = 0;
+        Matcher m = LIMIT_CLAUSE.matcher(s);
+        if (!m.find())
+            return s;
+        try {
+            limit = Integer.parseInt(m.group(1));
+            if (m.group(2) != null)
+                offset = Integer.parseInt(m.group(2));
+        } catch (NumberFormatException e) {
+            limit = -1;
+            throw new simpledb.ParsingException("LIMIT or OFFSET out of range");
+        }
+        return s.substring(0, m.start()) + m.group(3);
+    }
+
+    private void applyLimitClause(LogicalPlan lp) throws simpledb.ParsingException {
+        if (limit >= 0)
+            lp.addLimit(limit, offset);
+    }
+
+    /**
+     * @return true if e is a ? parameter, which Zql reads as an expression
+     *         named "?" with no operands
+     */
+    private static boolean isParameter(ZExp e) {
+        return e instanceof ZExpression && ((ZExpression) e).getOperator().equals("?")
+                && ((ZExpression) e).nbOperands() == 0;
+    }
+
+    /**
+     * Converts a comparison of a field with a ? parameter into a filter. The
+     * parameters of a statement are numbered in the order they are read.
+     */
+    private LogicalFilterNode parameterFilter(ZExpression wx, LogicalPlan lp)
+            throws simpledb.ParsingException {
+        ZExp field = wx.getOperand(0);
+        if (!(field instanceof ZConstant)
+                || ((ZConstant) field).getType() != ZConstant.COLUMNNAME) {
+            throw new simpledb.ParsingException(
+                    "A parameter can only be compared with a field: " + wx);
+        }
+        LogicalFilterNode lf = lp.createFilter(((ZConstant) field).getValue(),
+                getOp(wx.getOperator()), null);
+        lf.parameter = parameters++;
+        return lf;
+    }
+
     void processExpression(TransactionId tid, ZExpression wx, LogicalPlan lp)
             throws simpledb.ParsingException {
         if (wx.getOperator().equals("AND")) {
@@ -48,19 +134,33 @@ public class Parser {
 
             }
         } else if (wx.getOperator().equals("OR")) {
-            throw new simpledb.ParsingException(
-                    "OR expressions currently unsupported.");
+            lp.addFilter(filterTree(wx, lp));
+        } else if (wx.getOperator().equals("EXISTS")
+                || wx.getOperator().equals("NOT")) {
+            processExists(tid, wx, lp);
         } else {
             // this is a binary expression comparing two constants
             @SuppressWarnings("unchecked")
             Vector<ZExp> ops = wx.getOperands();
+            // IN and NOT IN are semi and anti joins with a subquery
+            boolean isIn = wx.getOperator().equals("IN")
+                    || wx.getOperator().equals("NOT IN");
+            if (isIn && (ops.size() != 2 || !(ops.elementAt(1) instanceof ZQuery))) {
+                throw new simpledb.ParsingException(
+                        "IN is only supported with a subquery, as in A IN (SELECT ...).");
+            }
             if (ops.size() != 2) {
                 throw new simpledb.ParsingException(
                         "Only simple binary expresssions of the form A op B are currently supported.");
             }
+            if (isParameter(ops.elementAt(1))) {
+                lp.addFilter(parameterFilter(wx, lp));
+                return;
+            }
 
             boolean isJoin = false;
-            Predicate.Op op = getOp(wx.getOperator());
+            Predicate.Op op = isIn ? Predicate.Op.EQUALS : getOp(wx.getOperator());
+            boolean anti = wx.getOperator().equals("NOT IN");
 
             boolean op1const = ops.elementAt(0) instanceof ZConstant; // otherwise
                                                                       // is a
@@ -94,19 +194,8 @@ public class Parser {
                 }
 
                 if (!op2const) { // right op is a nested query
-                    try {
-                        LogicalPlan sublp = parseQueryLogicalPlan(tid,
-                                (ZQuery) ops.elementAt(1));
-                        OpIterator pp = sublp.physicalPlan(tid,
-                                TableStats.getStatsMap(), explain);
-                        lp.addJoin(tab1field, pp, op);
-                    } catch (IOException e) {
-                        throw new simpledb.ParsingException("Invalid subquery "
-                                + ops.elementAt(1));
-                    } catch (Zql.ParseException e) {
-                        throw new simpledb.ParsingException("Invalid subquery "
-                                + ops.elementAt(1));
-                    }
+                    lp.addJoin(tab1field,
+                            planSubquery(tid, (ZQuery) ops.elementAt(1)), op, anti);
                 } else {
                     tab2field = ((ZConstant) ops.elementAt(1)).getValue();
                     lp.addJoin(tab1field, tab2field, op);
@@ -132,12 +221,218 @@ public class Parser {
 
     }
 
+    /**
+     * Converts an AND/OR combination of comparisons between a field and a
+     * constant into a single filter. This is how a WHERE clause with OR is
+     * planned; all the fields must come from the same table.
+     */
+    private LogicalFilterNode filterTree(ZExp e, LogicalPlan lp)
+            throws simpledb.ParsingException {
+        if (!(e instanceof ZExpression)) {
+            throw new simpledb.ParsingException(
+                    "Nested queries are currently unsupported.");
+        }
+        ZExpression wx = (ZExpression) e;
+        if (wx.getOperator().equals("AND") || wx.getOperator().equals("OR")) {
+            ArrayList<LogicalFilterNode> terms = new ArrayList<LogicalFilterNode>();
+            for (int i = 0; i < wx.nbOperands(); i++)
+                terms.add(filterTree(wx.getOperand(i), lp));
+            return lp.combineFilters(wx.getOperator().equals("AND"), terms);
+        }
+
+        @SuppressWarnings("unchecked")
+        Vector<ZExp> ops = wx.getOperands();
+        if (ops.size() == 2 && isParameter(ops.elementAt(1)))
+            return parameterFilter(wx, lp);
+        if (ops.size() != 2 || !(ops.elementAt(0) instanceof ZConstant)
+                || !(ops.elementAt(1) instanceof ZConstant)) {
+            throw new simpledb.ParsingException(
+                    "Only comparisons of a field with a constant are supported within OR: " + wx);
+        }
+        ZConstant op1 = (ZConstant) ops.elementAt(0);
+        ZConstant op2 = (ZConstant) ops.elementAt(1);
+        if (op1.getType() == ZConstant.COLUMNNAME
+                && op2.getType() == ZConstant.COLUMNNAME) {
+            throw new simpledb.ParsingException(
+                    "Joins are not supported within OR: " + wx);
+        }
+        if (op1.getType() == ZConstant.COLUMNNAME)
+            return lp.createFilter(op1.getValue(), getOp(wx.getOperator()), op2.getValue());
+        return lp.createFilter(op2.getValue(), getOp(wx.getOperator()), op1.getValue());
+    }
+
+    /**
+     * Plans a subquery, and estimates its cardinality so that the join
+     * optimizer can cost joins with it.
+     */
+    private OpIterator planSubquery(TransactionId tid, ZQuery q)
+            throws simpledb.ParsingException {
+        try {
+            LogicalPlan sublp = parseQueryLogicalPlan(tid, q);
+            OpIterator pp = sublp.physicalPlan(tid,
+                    TableStats.getStatsMap(), explain);
+            if (pp instanceof Operator)
+                OperatorCardinality.updateOperatorCardinality((Operator) pp,
+                        sublp.getTableAliasToIdMapping(), TableStats.getStatsMap());
+            return pp;
+        } catch (IOException e) {
+            throw new simpledb.ParsingException("Invalid subquery " + q);
+        } catch (Zql.ParseException e) {
+            throw new simpledb.ParsingException("Invalid subquery " + q);
+        }
+    }
+
+    /**
+     * Adds [NOT] EXISTS (subquery) to a plan, as a semi join (or anti join)
+     * on the field of the outer query that the subquery is correlated with.
+     */
+    private void processExists(TransactionId tid, ZExpression wx, LogicalPlan lp)
+            throws simpledb.ParsingException {
+        boolean anti = false;
+        if (wx.getOperator().equals("NOT")) {
+            if (!(wx.getOperand(0) instanceof ZExpression)
+                    || !((ZExpression) wx.getOperand(0)).getOperator().equals("EXISTS")) {
+                throw new simpledb.ParsingException(
+                        "NOT is only supported in NOT IN and NOT EXISTS.");
+            }
+            anti = true;
+            wx = (ZExpression) wx.getOperand(0);
+        }
+        if (!(wx.getOperand(0) instanceof ZQuery)) {
+            throw new simpledb.ParsingException("EXISTS requires a subquery.");
+        }
+        ZQuery sub = (ZQuery) wx.getOperand(0);
+        String outerField = decorrelate(sub);
+        lp.addJoin(outerField, planSubquery(tid, sub), Predicate.Op.EQUALS, anti);
+    }
+
+    /**
+     * Turns a correlated subquery into one that does not refer to the outer
+     * query, so that it can be planned on its own and semi joined. The
+     * conjunct of its WHERE clause that equates one of its fields with a field
+     * of the outer query, such as <tt>b.y = a.x</tt>, is removed, and its
+     * field becomes the subquery's only output.
+     *
+     * @return the field of the outer query in the removed conjunct
+     * @throws ParsingException
+     *             if there is no such conjunct, or the subquery refers to the
+     *             outer query in any other way
+     */
+    private String decorrelate(ZQuery sub) throws simpledb.ParsingException {
+        HashMap<String, Integer> tables = new HashMap<String, Integer>();
+        @SuppressWarnings("unchecked")
+        Vector<ZFromItem> from = sub.getFrom();
+        for (ZFromItem fromIt : from) {
+            try {
+                int id = Database.getCatalog().getTableId(fromIt.getTable());
+                tables.put(fromIt.getAlias() != null ? fromIt.getAlias()
+                        : fromIt.getTable(), id);
+            } catch (NoSuchElementException e) {
+                throw new simpledb.ParsingException("Table "
+                        + fromIt.getTable() + " is not in catalog");
+            }
+        }
+
+        Vector<ZExp> conjuncts = new Vector<ZExp>();
+        if (sub.getWhere() != null)
+            addConjuncts(sub.getWhere(), conjuncts);
+        String inner = null, outer = null;
+        Vector<ZExp> rest = new Vector<ZExp>();
+        for (ZExp c : conjuncts) {
+            if (!refersToOuter(c, tables)) {
+                rest.add(c);
+                continue;
+            }
+            ZExpression e = (ZExpression) c;
+            if (inner != null || !e.getOperator().equals("=")
+                    || !(e.getOperand(0) instanceof ZConstant)
+                    || !(e.getOperand(1) instanceof ZConstant)) {
+                throw new simpledb.ParsingException(
+                        "Subqueries may only refer to the outer query through a single equality such as inner.field = outer.field.");
+            }
+            String f0 = ((ZConstant) e.getOperand(0)).getValue();
+            String f1 = ((ZConstant) e.getOperand(1)).getValue();
+            if (isInnerField(f0, tables) && !isInnerField(f1, tables)) {
+                inner = f0;
+                outer = f1;
+            } else if (isInnerField(f1, tables) && !isInnerField(f0, tables)) {
+                inner = f1;
+                outer = f0;
+            } else {
+                throw new simpledb.ParsingException(
+                        "Subqueries may only refer to the outer query through a single equality such as inner.field = outer.field.");
+            }
+        }
+        if (inner == null) {
+            throw new simpledb.ParsingException(
+                    "EXISTS subqueries must be correlated with the outer query by an equality such as inner.field = outer.field.");
+        }
+
+        Vector<ZSelectItem> select = new Vector<ZSelectItem>();
+        select.add(new ZSelectItem(inner));
+        sub.addSelect(select);
+        if (rest.isEmpty()) {
+            sub.addWhere(null);
+        } else if (rest.size() == 1) {
+            sub.addWhere(rest.firstElement());
+        } else {
+            ZExpression and = new ZExpression("AND");
+            for (ZExp c : rest)
+                and.addOperand(c);
+            sub.addWhere(and);
+        }
+        return outer;
+    }
+
+    private static void addConjuncts(ZExp e, Vector<ZExp> conjuncts) {
+        if (e instanceof ZExpression && ((ZExpression) e).getOperator().equals("AND")) {
+            ZExpression and = (ZExpression) e;
+            for (int i = 0; i < and.nbOperands(); i++)
+                addConjuncts(and.getOperand(i), conjuncts);
+        } else {
+            conjuncts.add(e);
+        }
+    }
+
+    /**
+     * @return true if a field name refers to one of the given tables, which
+     *         are indexed by alias
+     */
+    private static boolean isInnerField(String name, Map<String, Integer> tables) {
+        String[] parts = name.split("[.]");
+        if (parts.length == 2 && !parts[0].equals("null"))
+            return tables.containsKey(parts[0]);
+        String pure = parts[parts.length - 1];
+        for (int id : tables.values()) {
+            try {
+                Database.getCatalog().getTupleDesc(id).fieldNameToIndex(pure);
+                return true;
+            } catch (NoSuchElementException e) {
+            }
+        }
+        return false;
+    }
+
+    private static boolean refersToOuter(ZExp e, Map<String, Integer> tables) {
+        if (e instanceof ZConstant)
+            return ((ZConstant) e).getType() == ZConstant.COLUMNNAME
+                    && !isInnerField(((ZConstant) e).getValue(), tables);
+        if (e instanceof ZExpression) {
+            ZExpression x = (ZExpression) e;
+            for (int i = 0; i < x.nbOperands(); i++)
+                if (refersToOuter(x.getOperand(i), tables))
+                    return true;
+        }
+        return false;
+    }
+
     public LogicalPlan parseQueryLogicalPlan(TransactionId tid, ZQuery q)
             throws IOException, Zql.ParseException, simpledb.ParsingException {
         @SuppressWarnings("unchecked")
         Vector<ZFromItem> from = q.getFrom();
         LogicalPlan lp = new LogicalPlan();
         lp.setQuery(q.toString());
+        lp.setDistinct(q.isDistinct());
         // walk through tables in the FROM clause
         for (int i = 0; i < from.size(); i++) {
             ZFromItem fromIt = from.elementAt(i);
@@ -182,23 +477,19 @@ public class Parser {
 
         // now look for group by fields
         ZGroupBy gby = q.getGroupBy();
-        String groupByField = null;
+        Vector<String> groupByFields = new Vector<String>();
         if (gby != null) {
             @SuppressWarnings("unchecked")
             Vector<ZExp> gbs = gby.getGroupBy();
-            if (gbs.size() > 1) {
-                throw new simpledb.ParsingException(
-                        "At most one grouping field expression supported.");
-            }
-            if (gbs.size() == 1) {
-                ZExp gbe = gbs.elementAt(0);
+            for (ZExp gbe : gbs) {
                 if (!(gbe instanceof ZConstant)) {
                     throw new simpledb.ParsingException(
                             "Complex grouping expressions (" + gbe
                                     + ") not supported.");
                 }
-                groupByField = ((ZConstant) gbe).getValue();
+                String groupByField = ((ZConstant) gbe).getValue();
                 System.out.println("GROUP BY FIELD : " + groupByField);
+                groupByFields.addElement(groupByField);
             }
 
         }
@@ -207,8 +498,7 @@ public class Parser {
         // validity
         @SuppressWarnings("unchecked")
         Vector<ZSelectItem> selectList = q.getSelect();
-        String aggField = null;
-        String aggFun = null;
+        boolean hasAgg = false;
 
         for (int i = 0; i < selectList.size(); i++) {
             ZSelectItem si = selectList.elementAt(i);
@@ -218,20 +508,23 @@ public class Parser {
                         "Expressions in SELECT list are not supported.");
             }
             if (si.getAggregate() != null) {
-                if (aggField != null) {
-                    throw new simpledb.ParsingException(
-                            "Aggregates over multiple fields not supported.");
-                }
-                aggField = ((ZConstant) ((ZExpression) si.getExpression())
+                String aggField = ((ZConstant) ((ZExpression) si.getExpression())
                         .getOperand(0)).getValue();
-                aggFun = si.getAggregate();
+                String aggFun = si.getAggregate();
+                if (aggField.toLowerCase().startsWith("distinct ")) {
+                    throw new simpledb.ParsingException(aggFun.toUpperCase()
+                            + "(DISTINCT ...) is not supported; use APPROX_COUNT_DISTINCT("
+                            + aggField.substring("distinct ".length()).trim() + ")");
+                }
                 System.out.println("Aggregate field is " + aggField
                         + ", agg fun is : " + aggFun);
                 lp.addProjectField(aggField, aggFun);
+                lp.addAggregate(aggFun, aggField);
+                hasAgg = true;
             } else {
-                if (groupByField != null
-                        && !(groupByField.equals(si.getTable() + "."
-                                + si.getColumn()) || groupByField.equals(si
+                if (!groupByFields.isEmpty()
+                        && !(groupByFields.contains(si.getTable() + "."
+                                + si.getColumn()) || groupByFields.contains(si
                                 .getColumn()))) {
                     throw new simpledb.ParsingException("Non-aggregate field "
                             + si.getColumn()
@@ -241,31 +534,27 @@ public class Parser {
             }
         }
 
-        if (groupByField != null && aggFun == null) {
+        if (!groupByFields.isEmpty() && !hasAgg) {
             throw new simpledb.ParsingException("GROUP BY without aggregation.");
         }
 
-        if (aggFun != null) {
-            lp.addAggregate(aggFun, aggField, groupByField);
+        for (String groupByField : groupByFields) {
+            lp.addGroupByField(groupByField);
         }
         // sort the data
 
         if (q.getOrderBy() != null) {
             @SuppressWarnings("unchecked")
             Vector<ZOrderBy> obys = q.getOrderBy();
-            if (obys.size() > 1) {
-                throw new simpledb.ParsingException(
-                        "Multi-attribute ORDER BY is not supported.");
-            }
-            ZOrderBy oby = obys.elementAt(0);
-            if (!(oby.getExpression() instanceof ZConstant)) {
-                throw new simpledb.ParsingException(
-                        "Complex ORDER BY's are not supported");
-            }
-            ZConstant f = (ZConstant) oby.getExpression();
-
-            lp.addOrderBy(f.getValue(), oby.getAscOrder());
+            for (ZOrderBy oby : obys) {
+                if (!(oby.getExpression() instanceof ZConstant)) {
+                    throw new simpledb.ParsingException(
+                            "Complex ORDER BY's are not supported");
+                }
+                ZConstant f = (ZConstant) oby.getExpression();
 
+                lp.addOrderBy(f.getValue(), oby.getAscOrder());
+            }
         }
         return lp;
     }
@@ -278,7 +567,13 @@ public class Parser {
             simpledb.ParsingException, Zql.ParseException {
         Query query = new Query(tId);
 
+        parameters = 0;
         LogicalPlan lp = parseQueryLogicalPlan(tId, s);
+        if (parameters > 0) {
+            throw new simpledb.ParsingException(
+                    "? parameters are only supported in prepared statements");
+        }
+        applyLimitClause(lp);
         OpIterator physicalPlan = lp.physicalPlan(tId,
                 TableStats.getStatsMap(), explain);
         query.setPhysicalPlan(physicalPlan);
@@ -387,6 +682,7 @@ public class Parser {
         } else {
             ZQuery zq = (ZQuery) s.getQuery();
             LogicalPlan lp = parseQueryLogicalPlan(tId, zq);
+            applyLimitClause(lp);
             newTups = lp.physicalPlan(tId, TableStats.getStatsMap(), explain);
         }
         Query insertQ = new Query(tId);
@@ -465,12 +761,14 @@ public class Parser {
 
     public LogicalPlan generateLogicalPlan(TransactionId tid, String s)
             throws simpledb.ParsingException {
-        ByteArrayInputStream bis = new ByteArrayInputStream(s.getBytes());
-        ZqlParser p = new ZqlParser(bis);
+        parameters = 0;
+        ByteArrayInputStream bis = new ByteArrayInputStream(stripLimitClause(s).getBytes());
+        ZqlParser p = newZqlParser(bis);
         try {
             ZStatement stmt = p.readStatement();
             if (stmt instanceof ZQuery) {
                 LogicalPlan lp = parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                applyLimitClause(lp);
                 return lp;
             }
         } catch (Zql.ParseException e) {
@@ -484,6 +782,47 @@ public class Parser {
                 "Cannot generate logical plan for expression : " + s);
     }
 
+    /**
+     * Prepares a SELECT statement whose constants may be ? parameters. The
+     * statement is planned once and kept in the statement cache of this
+     * parser, so preparing the same text again returns the same statement,
+     * until the statistics of its tables change enough for it to be planned
+     * again.
+     *
+     * @throws ParsingException
+     *             if the statement is not a valid SELECT statement
+     */
+    public PreparedStatement prepare(String sql) throws simpledb.ParsingException {
+        return prepare(sql, curtrans != null ? curtrans.getId() : new TransactionId());
+    }
+
+    /**
+     * Prepares a SELECT statement as {@link #prepare(String)} does, planning
+     * it as a part of the given transaction.
+     *
+     * @throws ParsingException
+     *             if the statement is not a valid SELECT statement
+     */
+    public PreparedStatement prepare(String sql, TransactionId tid)
+            throws simpledb.ParsingException {
+        String key = StatementCache.normalize(sql);
+        PreparedStatement ps = statements.get(key);
+        if (ps == null) {
+            LogicalPlan lp = generateLogicalPlan(tid, key + ";");
+            ps = new PreparedStatement(key, lp,
+                    lp.physicalPlan(tid, TableStats.getStatsMap(), explain), parameters);
+            statements.put(ps);
+        }
+        return ps;
+    }
+
+    /**
+     * @return the cache of the statements prepared by this parser
+     */
+    public StatementCache getStatementCache() {
+        return statements;
+    }
+
     public void setTransaction(Transaction t) {
         curtrans = t;
     }
@@ -503,7 +842,13 @@ public class Parser {
 
     public void processNextStatement(InputStream is) {
         try {
-            ZqlParser p = new ZqlParser(is);
+            ByteArrayOutputStream text = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = is.read(buf)) > 0)
+                text.write(buf, 0, n);
+            String sql = stripLimitClause(text.toString("UTF-8"));
+            ZqlParser p = newZqlParser(new ByteArrayInputStream(sql.getBytes("UTF-8")));
             ZStatement s = p.readStatement();
 
             Query query = null;
@@ -581,7 +926,8 @@ public class Parser {
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "insert", "delete", "values", "into", "order by", "limit",
+            "offset", "approx_count_distinct(", "distinct" };
 
     public static void main(String argv[]) throws IOException {
 
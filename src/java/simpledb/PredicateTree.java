@@ -0,0 +1,281 @@
+package simpledb;
+
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * A PredicateTree is a boolean combination of {@link Predicate}s over the
+ * fields of a tuple: either a single predicate, or the AND or the OR of other
+ * trees. A {@link Filter} evaluates a whole tree, so a WHERE clause with many
+ * terms on one table is a single operator.
+ * <p>
+ * Each tree carries an estimate of its selectivity, the fraction of tuples
+ * that satisfy it, and has a cost, the expected number of comparison units
+ * spent on a tuple. Evaluation short-circuits, so the order of the terms
+ * matters: {@link #reorder} puts the terms of an AND that are cheap and
+ * reject many tuples first, and the terms of an OR that are cheap and accept
+ * many tuples first. Terms are assumed to be independent.
+ * <p>
+ * The operand of a predicate may stand for a parameter of a
+ * {@link PreparedStatement}; {@link #bind} gives the parameters their values.
+ */
+public class PredicateTree implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The cost of comparing an int field with a constant */
+    public static final double INT_COMPARE_COST = 1.0;
+    /** The cost of comparing a string field with a constant */
+    public static final double STRING_COMPARE_COST = 4.0;
+    /** The cost of matching a string field against a LIKE pattern */
+    public static final double LIKE_COST = 8.0;
+
+    /** The kinds of node in a predicate tree */
+    public enum Kind {
+        PREDICATE, AND, OR
+    }
+
+    private final Kind kind;
+    private final Predicate pred;
+    private final ArrayList<PredicateTree> terms;
+    private final double selectivity;
+    private final int parameter;
+
+    /**
+     * Creates a tree holding a single predicate whose selectivity is not
+     * known.
+     */
+    public PredicateTree(Predicate p) {
+        this(p, 1.0);
+    }
+
+    /**
+     * Creates a tree holding a single predicate.
+     *
+     * @param p
+     *            The predicate
+     * @param selectivity
+     *            The estimated fraction of tuples that satisfy p
+     */
+    public PredicateTree(Predicate p, double selectivity) {
+        this(p, selectivity, -1);
+    }
+
+    /**
+     * Creates a tree holding a single predicate whose operand is a parameter.
+     *
+     * @param p
+     *            The predicate; its operand is a placeholder of the type of
+     *            the parameter until {@link #bind} is called
+     * @param selectivity
+     *            The estimated fraction of tuples that satisfy p, whatever
+     *            the value of the parameter
+     * @param parameter
+     *            The number of the parameter, counting from 0, or -1 if the
+     *            operand is a constant
+     */
+    public PredicateTree(Predicate p, double selectivity, int parameter) {
+        this.kind = Kind.PREDICATE;
+        this.pred = p;
+        this.terms = null;
+        this.selectivity = selectivity;
+        this.parameter = parameter;
+    }
+
+    private PredicateTree(Kind kind, List<PredicateTree> terms) {
+        if (terms.isEmpty())
+            throw new IllegalArgumentException(kind + " of no terms");
+        this.kind = kind;
+        this.pred = null;
+        this.parameter = -1;
+        this.terms = new ArrayList<PredicateTree>(terms);
+        double s = 1.0;
+        for (PredicateTree t : terms)
+            s *= kind == Kind.AND ? t.selectivity : 1 - t.selectivity;
+        this.selectivity = kind == Kind.AND ? s : 1 - s;
+    }
+
+    /**
+     * @return the tree that is true when all of the terms are
+     */
+    public static PredicateTree and(List<PredicateTree> terms) {
+        return terms.size() == 1 ? terms.get(0) : new PredicateTree(Kind.AND, terms);
+    }
+
+    /**
+     * @return the tree that is true when any of the terms is
+     */
+    public static PredicateTree or(List<PredicateTree> terms) {
+        return terms.size() == 1 ? terms.get(0) : new PredicateTree(Kind.OR, terms);
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * @return the predicate of a PREDICATE node, or null for AND and OR
+     */
+    public Predicate getPredicate() {
+        return pred;
+    }
+
+    /**
+     * @return the number of the parameter that is the operand of a PREDICATE
+     *         node, or -1 if the operand is a constant or this is an AND or OR
+     */
+    public int getParameter() {
+        return parameter;
+    }
+
+    /**
+     * @return the terms of an AND or OR node, in evaluation order, or null
+     *         for a PREDICATE node
+     */
+    public List<PredicateTree> getTerms() {
+        return terms == null ? null : Collections.unmodifiableList(terms);
+    }
+
+    /**
+     * @return the estimated fraction of tuples that satisfy this tree
+     */
+    public double getSelectivity() {
+        return selectivity;
+    }
+
+    /**
+     * @return the expected cost of evaluating this tree on one tuple, with
+     *         its terms evaluated in their current order
+     */
+    public double cost() {
+        if (kind == Kind.PREDICATE) {
+            if (!(pred.getOperand() instanceof StringField))
+                return INT_COMPARE_COST;
+            return pred.getOp() == Predicate.Op.LIKE ? LIKE_COST : STRING_COMPARE_COST;
+        }
+        // a term is only evaluated if the ones before it did not decide
+        double cost = 0, reached = 1.0;
+        for (PredicateTree t : terms) {
+            cost += reached * t.cost();
+            reached *= kind == Kind.AND ? t.selectivity : 1 - t.selectivity;
+        }
+        return cost;
+    }
+
+    /**
+     * Returns a copy of this tree whose terms are in the order with the
+     * lowest expected cost. An AND stops at the first false term, so its
+     * terms are sorted by cost / (1 - selectivity); an OR stops at the first
+     * true term, so its terms are sorted by cost / selectivity.
+     */
+    public PredicateTree reorder() {
+        if (kind == Kind.PREDICATE)
+            return this;
+        ArrayList<PredicateTree> ordered = new ArrayList<PredicateTree>();
+        for (PredicateTree t : terms)
+            ordered.add(t.reorder());
+        final HashMap<PredicateTree, Double> rank = new HashMap<PredicateTree, Double>();
+        for (PredicateTree t : ordered)
+            rank.put(t, t.cost() / (kind == Kind.AND ? 1 - t.selectivity : t.selectivity));
+        Collections.sort(ordered, (a, b) -> Double.compare(rank.get(a), rank.get(b)));
+        return new PredicateTree(kind, ordered);
+    }
+
+    /**
+     * Returns a copy of this tree for tuples with different field numbers,
+     * such as the tuples of a table that a scan narrows.
+     *
+     * @param fields
+     *            The new number of each field: a predicate on field i moves
+     *            to field fields[i]
+     */
+    public PredicateTree mapFields(int[] fields) {
+        if (kind == Kind.PREDICATE)
+            return new PredicateTree(new Predicate(fields[pred.getField()],
+                    pred.getOp(), pred.getOperand()), selectivity, parameter);
+        ArrayList<PredicateTree> mapped = new ArrayList<PredicateTree>();
+        for (PredicateTree t : terms)
+            mapped.add(t.mapFields(fields));
+        return new PredicateTree(kind, mapped);
+    }
+
+    /**
+     * Returns a copy of this tree, with its terms in the same order, whose
+     * parameters are compared with the given values.
+     *
+     * @param values
+     *            The value of each parameter: parameter i becomes values[i]
+     * @throws IllegalArgumentException
+     *             if a value is missing or is not of the type of its field
+     */
+    public PredicateTree bind(Field[] values) {
+        if (kind == Kind.PREDICATE) {
+            if (parameter < 0)
+                return this;
+            Field v = parameter < values.length ? values[parameter] : null;
+            if (v == null || v.getType() != pred.getOperand().getType())
+                throw new IllegalArgumentException("parameter " + (parameter + 1)
+                        + " needs a value of type " + pred.getOperand().getType());
+            return new PredicateTree(new Predicate(pred.getField(), pred.getOp(), v),
+                    selectivity, parameter);
+        }
+        ArrayList<PredicateTree> bound = new ArrayList<PredicateTree>();
+        for (PredicateTree t : terms)
+            bound.add(t.bind(values));
+        return new PredicateTree(kind, bound);
+    }
+
+    /**
+     * @return true if the tuple satisfies this tree
+     */
+    public boolean filter(Tuple t) {
+        switch (kind) {
+        case AND:
+            for (PredicateTree term : terms)
+                if (!term.filter(t))
+                    return false;
+            return true;
+        case OR:
+            for (PredicateTree term : terms)
+                if (term.filter(t))
+                    return true;
+            return false;
+        default:
+            return pred.filter(t);
+        }
+    }
+
+    /**
+     * Compiles this tree, keeping the order of its terms.
+     */
+    public CompiledPredicate compile() {
+        if (kind == Kind.PREDICATE)
+            return CompiledPredicate.compile(pred);
+        CompiledPredicate[] tests = new CompiledPredicate[terms.size()];
+        for (int i = 0; i < tests.length; i++)
+            tests[i] = terms.get(i).compile();
+        return kind == Kind.AND ? CompiledPredicate.and(tests) : CompiledPredicate.or(tests);
+    }
+
+    /**
+     * @return this tree with the names the fields have in td, such as
+     *         "t.a>1 AND (t.b=2 OR t.c<3)"
+     */
+    public String toString(TupleDesc td) {
+        if (kind == Kind.PREDICATE)
+            return (td == null ? "$" + pred.getField() : td.getFieldName(pred.getField()))
+                    + pred.getOp() + pred.getOperand();
+        StringBuilder sb = new StringBuilder();
+        for (PredicateTree t : terms) {
+            if (sb.length() > 0)
+                sb.append(" ").append(kind).append(" ");
+            boolean nested = t.kind != Kind.PREDICATE;
+            sb.append(nested ? "(" : "").append(t.toString(td)).append(nested ? ")" : "");
+        }
+        return sb.toString();
+    }
+
+    public String toString() {
+        return toString(null);
+    }
+}
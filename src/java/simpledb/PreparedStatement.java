@@ -0,0 +1,195 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * A PreparedStatement is a SELECT statement that is planned once and run many
+ * times. Its constants may be ? parameters, such as in
+ * "SELECT t.a FROM t WHERE t.b = ?", which are given values with
+ * {@link #setInt} and {@link #setString} before each run; the comparisons with
+ * parameters are planned with their average selectivity. Parameters are
+ * numbered from 1, in the order they appear in the statement.
+ * <p>
+ * {@link Parser#prepare} creates prepared statements and keeps them in a
+ * {@link StatementCache}. A statement has a single operator tree, so it runs
+ * one query at a time: the query of {@link #newQuery} must be closed before
+ * the statement runs again.
+ */
+public class PreparedStatement {
+
+    /**
+     * A plan is made again when the number of tuples of one of its tables
+     * has changed by more than this fraction since the plan was made.
+     */
+    public static final double REPLAN_THRESHOLD = 0.2;
+
+    private final String sql;
+    private final LogicalPlan logicalPlan;
+    private final OpIterator plan;
+    private final Type[] types;
+    private final Field[] values;
+    private final ArrayList<Filter> filters = new ArrayList<Filter>();
+    private final ArrayList<SeqScan> scans = new ArrayList<SeqScan>();
+    /** The number of tuples of each table of the plan when it was made */
+    private final HashMap<Integer, Integer> cardinalities = new HashMap<Integer, Integer>();
+
+    /**
+     * @param sql
+     *            The text of the statement
+     * @param lp
+     *            The logical plan of the statement
+     * @param plan
+     *            The physical plan of lp
+     * @param parameterCount
+     *            The number of ? parameters in the statement
+     * @throws ParsingException
+     *             if a parameter is not compared with a field of a table
+     */
+    PreparedStatement(String sql, LogicalPlan lp, OpIterator plan, int parameterCount)
+            throws ParsingException {
+        this.sql = sql;
+        this.logicalPlan = lp;
+        this.plan = plan;
+        this.types = new Type[parameterCount];
+        this.values = new Field[parameterCount];
+        collect(plan);
+        for (Filter f : filters)
+            if (f.getPredicateTree() != null)
+                collectTypes(f.getPredicateTree());
+        for (int i = 0; i < types.length; i++)
+            if (types[i] == null)
+                throw new ParsingException("Parameter " + (i + 1)
+                        + " is not compared with a field of a table");
+        for (SeqScan s : scans) {
+            TableStats stats = TableStats.getTableStats(s.getTableName());
+            cardinalities.put(s.getTableId(), stats == null ? -1 : stats.totalTuples());
+        }
+    }
+
+    private void collect(OpIterator op) {
+        if (op instanceof Filter)
+            filters.add((Filter) op);
+        if (op instanceof SeqScan)
+            scans.add((SeqScan) op);
+        if (op instanceof Operator)
+            for (OpIterator child : ((Operator) op).getChildren())
+                collect(child);
+    }
+
+    private void collectTypes(PredicateTree pt) {
+        if (pt.getKind() != PredicateTree.Kind.PREDICATE) {
+            for (PredicateTree t : pt.getTerms())
+                collectTypes(t);
+        } else if (pt.getParameter() >= 0) {
+            types[pt.getParameter()] = pt.getPredicate().getOperand().getType();
+        }
+    }
+
+    /**
+     * @return the text of this statement, as it is keyed in the cache
+     */
+    public String getSql() {
+        return sql;
+    }
+
+    /**
+     * @return the number of ? parameters of this statement
+     */
+    public int getParameterCount() {
+        return types.length;
+    }
+
+    /**
+     * @param index
+     *            The number of a parameter, from 1
+     * @return the type of the field the parameter is compared with
+     */
+    public Type getParameterType(int index) {
+        checkIndex(index);
+        return types[index - 1];
+    }
+
+    private void checkIndex(int index) {
+        if (index < 1 || index > types.length)
+            throw new IllegalArgumentException("no parameter " + index + " in " + sql);
+    }
+
+    /**
+     * Sets the value of an int parameter for the next runs.
+     *
+     * @throws IllegalArgumentException
+     *             if there is no such parameter, or it is not an int
+     */
+    public void setInt(int index, int value) {
+        set(index, new IntField(value));
+    }
+
+    /**
+     * Sets the value of a string parameter for the next runs.
+     *
+     * @throws IllegalArgumentException
+     *             if there is no such parameter, or it is not a string
+     */
+    public void setString(int index, String value) {
+        set(index, new StringField(value, Type.STRING_LEN));
+    }
+
+    private void set(int index, Field value) {
+        checkIndex(index);
+        if (types[index - 1] != value.getType())
+            throw new IllegalArgumentException("parameter " + index + " of " + sql
+                    + " is of type " + types[index - 1]);
+        values[index - 1] = value;
+    }
+
+    /**
+     * Forgets the values of all the parameters.
+     */
+    public void clearParameters() {
+        Arrays.fill(values, null);
+    }
+
+    /**
+     * Binds the values of the parameters into the plan of this statement,
+     * and returns a query that runs it as a part of a transaction.
+     *
+     * @throws DbException
+     *             if a parameter has no value
+     */
+    public Query newQuery(TransactionId tid) throws DbException {
+        for (int i = 0; i < values.length; i++)
+            if (values[i] == null)
+                throw new DbException("parameter " + (i + 1) + " of " + sql + " is not set");
+        for (Filter f : filters)
+            f.bind(values);
+        for (SeqScan s : scans)
+            s.setTransactionId(tid);
+        Query query = new Query(plan, tid);
+        query.setLogicalPlan(logicalPlan);
+        return query;
+    }
+
+    /**
+     * @return true if the plan of this statement should be made again: a
+     *         table it scans is no longer in the catalog, or its number of
+     *         tuples has changed by more than {@link #REPLAN_THRESHOLD}
+     */
+    public boolean isStale() {
+        for (Map.Entry<Integer, Integer> e : cardinalities.entrySet()) {
+            String name;
+            try {
+                name = Database.getCatalog().getTableName(e.getKey());
+            } catch (NoSuchElementException ex) {
+                return true;
+            }
+            TableStats stats = TableStats.getTableStats(name);
+            int then = e.getValue();
+            if ((stats == null) != (then < 0))
+                return true;
+            if (stats != null
+                    && Math.abs(stats.totalTuples() - then) > REPLAN_THRESHOLD * Math.max(then, 1))
+                return true;
+        }
+        return false;
+    }
+}
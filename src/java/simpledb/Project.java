@@ -11,6 +11,8 @@ public class Project extends Operator {
     private OpIterator child;
     private TupleDesc td;
     private ArrayList<Integer> outFieldIds;
+    // outFieldIds unboxed when the operator is opened
+    private transient int[] outFields;
 
     /**
      * Constructor accepts a child operator to read tuples to apply projection
@@ -41,12 +43,23 @@ public class Project extends Operator {
         td = new TupleDesc(types, fieldAr);
     }
 
+    /**
+     * @return the ids of the fields of the child's tupleDesc that are
+     *         projected out, in output order
+     */
+    public ArrayList<Integer> getOutFieldIds() {
+        return outFieldIds;
+    }
+
     public TupleDesc getTupleDesc() {
         return td;
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
+        outFields = new int[outFieldIds.size()];
+        for (int i = 0; i < outFields.length; i++)
+            outFields[i] = outFieldIds.get(i);
         child.open();
         super.open();
     }
@@ -72,8 +85,8 @@ public class Project extends Operator {
             Tuple t = child.next();
             Tuple newTuple = new Tuple(td);
             newTuple.setRecordId(t.getRecordId());
-            for (int i = 0; i < td.numFields(); i++) {
-                newTuple.setField(i, t.getField(outFieldIds.get(i)));
+            for (int i = 0; i < outFields.length; i++) {
+                newTuple.setField(i, t.getField(outFields[i]));
             }
             return newTuple;
         }
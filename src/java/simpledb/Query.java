@@ -113,6 +113,20 @@ public class Query implements Serializable {
             cnt++;
         }
         System.out.println("\n " + cnt + " rows.");
+        printRuntimeFilters(op);
         this.close();
     }
+
+    /** Prints how many tuples the Bloom filters pushed down by joins rejected */
+    private static void printRuntimeFilters(OpIterator op) {
+        if (!(op instanceof Operator))
+            return;
+        if (op instanceof HashEquiJoin) {
+            RuntimeFilter f = ((HashEquiJoin) op).getProbeFilter();
+            if (f != null)
+                System.out.println(" " + f);
+        }
+        for (OpIterator child : ((Operator) op).getChildren())
+            printRuntimeFilters(child);
+    }
 }
@@ -9,12 +9,17 @@ public class QueryPlanVisualizer {
 
     static final String JOIN = "⨝";
     static final String HASH_JOIN = "⨝(hash)";
+    static final String SEMI_JOIN = "⋉";
+    static final String ANTI_JOIN = "▷";
     static final String SELECT = "σ";
     static final String PROJECT = "π";
     static final String RENAME = "ρ";
     static final String SCAN = "scan";
     static final String ORDERBY = "o";
     static final String GROUPBY = "g";
+    static final String TOPN = "top";
+    static final String LIMIT = "limit";
+    static final String DISTINCT = "δ";
     static final String SPACE = "  ";
 
     private int calculateQueryPlanTreeDepth(OpIterator root) {
@@ -26,7 +31,8 @@ public class QueryPlanVisualizer {
         Operator o = (Operator) root;
         OpIterator[] children = o.getChildren();
 
-        if (o instanceof Join || o instanceof HashEquiJoin) {
+        if (o instanceof Join || o instanceof HashEquiJoin
+                || o instanceof HashSemiJoin) {
             int d1 = this.calculateQueryPlanTreeDepth(children[0]);
             int d2 = this.calculateQueryPlanTreeDepth(children[1]);
             return Math.max(d1, d2) + 3;
@@ -76,6 +82,15 @@ public class QueryPlanVisualizer {
                 alias = "";
             thisNode.text = String
                     .format("%1$s(%2$s)", SCAN, tableName + alias);
+            // a scan narrowed by the planner lists the fields it returns
+            if (s.getOutputFields() != null) {
+                TupleDesc td = s.getTupleDesc();
+                StringBuilder fields = new StringBuilder();
+                for (int i = 0; i < td.numFields(); i++)
+                    fields.append(i == 0 ? "" : ",").append(
+                            td.getFieldName(i).substring(s.getAlias().length() + 1));
+                thisNode.text += "[" + fields + "]";
+            }
             if (SCAN.length() / 2 < parentUpperBarStartShift) {
                 thisNode.upBarPosition = currentStartPosition
                         + parentUpperBarStartShift;
@@ -145,6 +160,9 @@ public class QueryPlanVisualizer {
                         + children[0].getTupleDesc().numFields());
                 thisNode.text = String.format("%1$s(%2$s),card:%3$d", HASH_JOIN, field1
                         + jp.getOperator() + field2,j.getEstimatedCardinality());
+                // only known once the join has run
+                if (j.getProbeFilter() != null)
+                    thisNode.text += ", " + j.getProbeFilter();
                 int upBarShift = parentUpperBarStartShift;
                 if (HASH_JOIN.length() / 2 > parentUpperBarStartShift)
                     upBarShift = HASH_JOIN.length() / 2;
@@ -164,6 +182,32 @@ public class QueryPlanVisualizer {
                 thisNode.leftChild = left;
                 thisNode.rightChild = right;
                 thisNode.height = currentDepth;
+            } else if (plan instanceof HashSemiJoin) {
+                HashSemiJoin j = (HashSemiJoin) plan;
+                String symbol = j.isAnti() ? ANTI_JOIN : SEMI_JOIN;
+                thisNode.text = String.format("%1$s(%2$s),card:%3$d", symbol,
+                        j.getJoinField1Name() + j.getJoinPredicate().getOperator()
+                                + j.getJoinField2Name(),
+                        j.getEstimatedCardinality());
+                int upBarShift = parentUpperBarStartShift;
+                if (symbol.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = symbol.length() / 2;
+                SubTreeDescriptor left = this.buildTree(queryPlanDepth,
+                        currentDepth + 3 + adjustDepth, children[0],
+                        currentStartPosition, upBarShift);
+                SubTreeDescriptor right = this.buildTree(queryPlanDepth,
+                        currentDepth + 3 + adjustDepth, children[1],
+                        currentStartPosition + left.width + SPACE.length(), 0);
+                thisNode.upBarPosition = (left.upBarPosition + right.upBarPosition) / 2;
+                thisNode.textStartPosition = thisNode.upBarPosition
+                        - symbol.length() / 2;
+                thisNode.width = Math.max(
+                        left.width + right.width + SPACE.length(),
+                        thisNode.textStartPosition + thisNode.text.length()
+                                - currentStartPosition);
+                thisNode.leftChild = left;
+                thisNode.rightChild = right;
+                thisNode.height = currentDepth;
             }
             else if (plan instanceof Aggregate) {
                 Aggregate a = (Aggregate) plan;
@@ -198,11 +242,14 @@ public class QueryPlanVisualizer {
                 thisNode.height = currentDepth;
             } else if (plan instanceof Filter) {
                 Filter f = (Filter) plan;
-                Predicate p = f.getPredicate();
-                thisNode.text = String.format("%1$s(%2$s),card:%3$d", SELECT, children[0]
-                        .getTupleDesc().getFieldName(p.getField())
-                        + p.getOp()
-                        + p.getOperand(),f.getEstimatedCardinality());
+                TupleDesc childTd = children[0].getTupleDesc();
+                JoinPredicate fields = f.getJoinPredicate();
+                thisNode.text = String.format("%1$s(%2$s),card:%3$d", SELECT,
+                        fields == null ? f.getPredicateTree().toString(childTd)
+                                : childTd.getFieldName(fields.getField1())
+                                        + fields.getOperator()
+                                        + childTd.getFieldName(fields.getField2()),
+                        f.getEstimatedCardinality());
                 int upBarShift = parentUpperBarStartShift;
                 if (SELECT.length() / 2 > parentUpperBarStartShift)
                     upBarShift = SELECT.length() / 2;
@@ -219,11 +266,16 @@ public class QueryPlanVisualizer {
                 thisNode.height = currentDepth;
             } else if (plan instanceof OrderBy) {
                 OrderBy o = (OrderBy) plan;
+                int[] keys = o.getOrderByFields();
+                boolean[] ascs = o.getAscOrders();
+                String fields = "";
+                for (int i = 0; i < keys.length; i++)
+                    fields += (i > 0 ? "," : "")
+                            + children[0].getTupleDesc().getFieldName(keys[i])
+                            + (ascs[i] ? "" : " desc");
                 thisNode.text = String.format(
                         "%1$s(%2$s),card:%3$d",
-                        ORDERBY,
-                        children[0].getTupleDesc().getFieldName(
-                                o.getOrderByField()),o.getEstimatedCardinality());
+                        ORDERBY, fields, o.getEstimatedCardinality());
                 int upBarShift = parentUpperBarStartShift;
                 if (ORDERBY.length() / 2 > parentUpperBarStartShift)
                     upBarShift = ORDERBY.length() / 2;
@@ -238,6 +290,62 @@ public class QueryPlanVisualizer {
                                 - currentStartPosition);
                 thisNode.leftChild = child;
                 thisNode.height = currentDepth;
+            } else if (plan instanceof AggregateOperator) {
+                AggregateLayout layout = ((AggregateOperator) plan).getLayout();
+                String[] groups = ((AggregateOperator) plan).getGroupFieldNames();
+                TupleDesc childTd = children[0].getTupleDesc();
+                String aggs = "";
+                for (int i = 0; i < layout.numAggregates(); i++)
+                    aggs += (i > 0 ? "," : "")
+                            + layout.aggregateName(childTd, i);
+                String text;
+                String alignTxt;
+                if (groups.length == 0) {
+                    text = String.format("%1$s,card:%2$d", aggs,
+                            plan.getEstimatedCardinality());
+                    alignTxt = aggs;
+                } else {
+                    text = String.format("%1$s(%2$s), %3$s,card:%4$d",
+                            GROUPBY, String.join(",", groups), aggs,
+                            plan.getEstimatedCardinality());
+                    alignTxt = GROUPBY;
+                }
+                this.buildUnaryNode(thisNode, alignTxt, text, queryPlanDepth,
+                        currentDepth, adjustDepth, children[0],
+                        currentStartPosition, parentUpperBarStartShift);
+            } else if (plan instanceof TopN) {
+                TopN o = (TopN) plan;
+                int[] keys = o.getOrderByFields();
+                boolean[] ascs = o.getAscOrders();
+                String fields = "";
+                for (int i = 0; i < keys.length; i++)
+                    fields += (i > 0 ? "," : "")
+                            + children[0].getTupleDesc().getFieldName(keys[i])
+                            + (ascs[i] ? "" : " desc");
+                String text = String.format("%1$s(%2$d%3$s by %4$s),card:%5$d",
+                        TOPN, o.getLimit(),
+                        o.getOffset() > 0 ? " offset " + o.getOffset() : "",
+                        fields, o.getEstimatedCardinality());
+                this.buildUnaryNode(thisNode, TOPN, text, queryPlanDepth,
+                        currentDepth, adjustDepth, children[0],
+                        currentStartPosition, parentUpperBarStartShift);
+            } else if (plan instanceof Limit) {
+                Limit l = (Limit) plan;
+                String text = String.format("%1$s(%2$d%3$s),card:%4$d",
+                        LIMIT, l.getLimit(),
+                        l.getOffset() > 0 ? " offset " + l.getOffset() : "",
+                        l.getEstimatedCardinality());
+                this.buildUnaryNode(thisNode, LIMIT, text, queryPlanDepth,
+                        currentDepth, adjustDepth, children[0],
+                        currentStartPosition, parentUpperBarStartShift);
+            } else if (plan instanceof Distinct) {
+                Distinct d = (Distinct) plan;
+                String text = String.format("%1$s(%2$s),card:%3$d", DISTINCT,
+                        d.isSortBased() ? "sort" : "hash",
+                        d.getEstimatedCardinality());
+                this.buildUnaryNode(thisNode, DISTINCT, text, queryPlanDepth,
+                        currentDepth, adjustDepth, children[0],
+                        currentStartPosition, parentUpperBarStartShift);
             } else if (plan instanceof Project) {
                 Project p = (Project) plan;
                 String fields = "";
@@ -334,6 +442,30 @@ public class QueryPlanVisualizer {
         return thisNode;
     }
 
+    /**
+     * Lays out a node with a single child, whose label starts with symbol.
+     */
+    private void buildUnaryNode(SubTreeDescriptor thisNode, String symbol,
+            String text, int queryPlanDepth, int currentDepth, int adjustDepth,
+            OpIterator child, int currentStartPosition,
+            int parentUpperBarStartShift) {
+        thisNode.text = text;
+        int upBarShift = parentUpperBarStartShift;
+        if (symbol.length() / 2 > parentUpperBarStartShift)
+            upBarShift = symbol.length() / 2;
+        SubTreeDescriptor childNode = this.buildTree(queryPlanDepth,
+                currentDepth + 2 + adjustDepth, child, currentStartPosition,
+                upBarShift);
+        thisNode.upBarPosition = childNode.upBarPosition;
+        thisNode.textStartPosition = thisNode.upBarPosition
+                - symbol.length() / 2;
+        thisNode.width = Math.max(childNode.width,
+                thisNode.textStartPosition + thisNode.text.length()
+                        - currentStartPosition);
+        thisNode.leftChild = childNode;
+        thisNode.height = currentDepth;
+    }
+
     private void printTree(SubTreeDescriptor root, char[] buffer, int width) {
         if (root == null)
             return;
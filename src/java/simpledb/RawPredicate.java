@@ -0,0 +1,136 @@
+package simpledb;
+
+/**
+ * A RawPredicate tests a {@link PredicateTree} directly on the bytes of a
+ * tuple as it is stored on a {@link HeapPage}, so that a scan can skip the
+ * tuples that fail it without building them. Int fields are read in place;
+ * string fields are compared byte by byte for equality, and only turned into
+ * a String for the other operators.
+ */
+public interface RawPredicate {
+
+    /**
+     * @param data
+     *            The bytes of a page
+     * @param offset
+     *            The offset in data of the first byte of the tuple
+     * @return true if the tuple stored there satisfies the predicate
+     */
+    boolean test(byte[] data, int offset);
+
+    /**
+     * Compiles a predicate tree for tuples with the given schema, keeping
+     * the order of its terms.
+     *
+     * @return the compiled tree, or null if one of its predicates has an
+     *         operand this interface can not read in place, in which case
+     *         tuples have to be decoded and tested with
+     *         {@link PredicateTree#compile}
+     */
+    static RawPredicate compile(PredicateTree tree, TupleDesc td) {
+        if (tree.getKind() != PredicateTree.Kind.PREDICATE) {
+            final RawPredicate[] tests = new RawPredicate[tree.getTerms().size()];
+            for (int i = 0; i < tests.length; i++) {
+                tests[i] = compile(tree.getTerms().get(i), td);
+                if (tests[i] == null)
+                    return null;
+            }
+            if (tree.getKind() == PredicateTree.Kind.AND) {
+                return (d, o) -> {
+                    for (RawPredicate t : tests)
+                        if (!t.test(d, o))
+                            return false;
+                    return true;
+                };
+            }
+            return (d, o) -> {
+                for (RawPredicate t : tests)
+                    if (t.test(d, o))
+                        return true;
+                return false;
+            };
+        }
+
+        Predicate p = tree.getPredicate();
+        int fieldOffset = 0;
+        for (int i = 0; i < p.getField(); i++)
+            fieldOffset += td.getFieldType(i).getLen();
+        final int f = fieldOffset;
+        Field operand = p.getOperand();
+        Type type = td.getFieldType(p.getField());
+        if (operand instanceof IntField && type == Type.INT_TYPE) {
+            final int c = ((IntField) operand).getValue();
+            switch (p.getOp()) {
+            case EQUALS:
+            case LIKE:
+                return (d, o) -> readInt(d, o + f) == c;
+            case NOT_EQUALS:
+                return (d, o) -> readInt(d, o + f) != c;
+            case GREATER_THAN:
+                return (d, o) -> readInt(d, o + f) > c;
+            case GREATER_THAN_OR_EQ:
+                return (d, o) -> readInt(d, o + f) >= c;
+            case LESS_THAN:
+                return (d, o) -> readInt(d, o + f) < c;
+            case LESS_THAN_OR_EQ:
+                return (d, o) -> readInt(d, o + f) <= c;
+            default:
+                break;
+            }
+        } else if (operand instanceof StringField && type == Type.STRING_TYPE) {
+            final String c = ((StringField) operand).getValue();
+            // the same conversion as Type.STRING_TYPE.parse
+            final byte[] bytes = c.getBytes();
+            switch (p.getOp()) {
+            case EQUALS:
+                return (d, o) -> stringEquals(d, o + f, bytes);
+            case NOT_EQUALS:
+                return (d, o) -> !stringEquals(d, o + f, bytes);
+            case GREATER_THAN:
+                return (d, o) -> readString(d, o + f).compareTo(c) > 0;
+            case GREATER_THAN_OR_EQ:
+                return (d, o) -> readString(d, o + f).compareTo(c) >= 0;
+            case LESS_THAN:
+                return (d, o) -> readString(d, o + f).compareTo(c) < 0;
+            case LESS_THAN_OR_EQ:
+                return (d, o) -> readString(d, o + f).compareTo(c) <= 0;
+            case LIKE:
+                return (d, o) -> readString(d, o + f).contains(c);
+            default:
+                break;
+            }
+        }
+        // an operand type this interface does not know about
+        return null;
+    }
+
+    /**
+     * @return the int stored big-endian at data[offset]
+     */
+    static int readInt(byte[] data, int offset) {
+        return (data[offset] & 0xff) << 24 | (data[offset + 1] & 0xff) << 16
+                | (data[offset + 2] & 0xff) << 8 | (data[offset + 3] & 0xff);
+    }
+
+    /**
+     * @return the string stored at data[offset], as Type.STRING_TYPE
+     *         stores it: its length, then its bytes
+     */
+    static String readString(byte[] data, int offset) {
+        return new String(data, offset + 4, stringLength(data, offset));
+    }
+
+    static boolean stringEquals(byte[] data, int offset, byte[] bytes) {
+        int len = stringLength(data, offset);
+        if (len != bytes.length)
+            return false;
+        for (int i = 0; i < len; i++)
+            if (data[offset + 4 + i] != bytes[i])
+                return false;
+        return true;
+    }
+
+    static int stringLength(byte[] data, int offset) {
+        return Math.max(0, Math.min(readInt(data, offset), Type.STRING_LEN));
+    }
+}
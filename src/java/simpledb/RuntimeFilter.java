@@ -0,0 +1,94 @@
+package simpledb;
+
+/**
+ * RuntimeFilter is a condition on one field of a scan that is only known
+ * once the query is running: a {@link HashEquiJoin} attaches one to the scan
+ * of its probe side and fills it with a {@link BloomFilter} of the keys it has
+ * loaded. The scan then drops tuples whose key is certainly not among them,
+ * before they reach the operators between the scan and the join.
+ * <p>
+ * The filter counts the tuples it sees and rejects, so that its rejection
+ * rate can be reported with the plan.
+ */
+public class RuntimeFilter {
+
+    private final int field;
+    private final String fieldName;
+    private BloomFilter bloom;
+    private long probed;
+    private long rejected;
+
+    /**
+     * Creates a filter that accepts every tuple until a Bloom filter is set.
+     *
+     * @param field
+     *            the index of the filtered field in the scanned tuples
+     * @param fieldName
+     *            the name of that field, for reporting
+     */
+    public RuntimeFilter(int field, String fieldName) {
+        this.field = field;
+        this.fieldName = fieldName;
+    }
+
+    /**
+     * @return the index of the filtered field in the scanned tuples
+     */
+    public int getField() {
+        return field;
+    }
+
+    /**
+     * @return the name of the filtered field
+     */
+    public String getFieldName() {
+        return fieldName;
+    }
+
+    /**
+     * Sets the keys that may match; null accepts every tuple.
+     */
+    public void setBloomFilter(BloomFilter bloom) {
+        this.bloom = bloom;
+    }
+
+    /**
+     * @return true if the tuple may match, false if it certainly does not
+     */
+    public boolean accept(Tuple t) {
+        if (bloom == null)
+            return true;
+        probed++;
+        if (bloom.mightContain(t.getField(field)))
+            return true;
+        rejected++;
+        return false;
+    }
+
+    /**
+     * @return the number of tuples checked against a Bloom filter
+     */
+    public long numProbed() {
+        return probed;
+    }
+
+    /**
+     * @return the number of tuples rejected
+     */
+    public long numRejected() {
+        return rejected;
+    }
+
+    /**
+     * @return the fraction of checked tuples that were rejected, or 0 if
+     *         none were checked
+     */
+    public double rejectionRate() {
+        return probed == 0 ? 0 : (double) rejected / probed;
+    }
+
+    public String toString() {
+        return String.format("bloom(%1$s) rejected %2$d of %3$d (%4$.1f%%)",
+                fieldName, rejected, probed, 100 * rejectionRate());
+    }
+}
@@ -5,7 +5,17 @@ import java.util.*;
 /**
  * SeqScan is an implementation of a sequential scan access method that reads
  * each tuple of a table in no particular order (e.g., as they are laid out on
- * disk).
+ * disk). Tuples that fail a {@link RuntimeFilter} added by a join above the
+ * scan are skipped.
+ * <p>
+ * A {@link Filter} directly above the scan pushes its predicate down with
+ * {@link #setPredicate}. A HeapFile then tests it on the bytes of each page
+ * before building any tuple, and a BTreeFile turns a comparison on its key
+ * field into an index search; other files are filtered by the scan itself.
+ * <p>
+ * The planner can also narrow the scan to the fields the query uses with
+ * {@link #setOutputFields}, so that the operators above it carry smaller
+ * tuples.
  */
 public class SeqScan implements OpIterator {
 
@@ -16,6 +26,12 @@ public class SeqScan implements OpIterator {
     private String alias;
     private DbFile file;
     private DbFileIterator fileIter;
+    private ArrayList<RuntimeFilter> runtimeFilters = new ArrayList<RuntimeFilter>();
+    private PredicateTree predicate;
+    private int[] outputFields;
+    private transient TupleDesc outputTd;
+    private transient CompiledPredicate residual;
+    private transient Tuple next;
 
     /**
      * Creates a sequential scan over the specified table as a part of the
@@ -51,6 +67,28 @@ public class SeqScan implements OpIterator {
         return Database.getCatalog().getTableName(tableId);
     }
 
+    /**
+     * @return the transaction this scan is running as a part of
+     */
+    public TransactionId getTransactionId() {
+        return transid;
+    }
+
+    /**
+     * Runs this scan as a part of another transaction from the next time it
+     * is opened, so that a prepared plan can run again.
+     */
+    public void setTransactionId(TransactionId tid) {
+        transid = tid;
+    }
+
+    /**
+     * @return the id of the table this operator scans
+     */
+    public int getTableId() {
+        return tableId;
+    }
+
     /**
      * @return Return the alias of the table this operator scans.
      * */
@@ -77,6 +115,88 @@ public class SeqScan implements OpIterator {
         this.tableId =tableid;
         alias = tableAlias;
         file = Database.getCatalog().getDatabaseFile(tableid);
+        outputFields = null;
+        outputTd = null;
+    }
+
+    /**
+     * Narrows the tuples returned by this scan to some of the fields of the
+     * table. The fields of the predicate set by {@link #setPredicate} and of
+     * the runtime filters are then numbered as in the narrowed tuples.
+     *
+     * @param fields
+     *            The indexes of the fields to return, in the order they are
+     *            returned, or null to return every field
+     */
+    public void setOutputFields(int[] fields) {
+        if (fields != null && fields.length == 0)
+            throw new IllegalArgumentException("a scan must return at least one field");
+        outputFields = fields == null ? null : fields.clone();
+        outputTd = null;
+    }
+
+    /**
+     * @return the fields set by {@link #setOutputFields}, or null if every
+     *         field is returned
+     */
+    public int[] getOutputFields() {
+        return outputFields == null ? null : outputFields.clone();
+    }
+
+    /**
+     * Converts a tuple of the table into a tuple returned by this scan,
+     * keeping only the fields set by {@link #setOutputFields}.
+     */
+    public Tuple project(Tuple t) {
+        if (outputFields == null)
+            return t;
+        if (outputTd == null)
+            outputTd = getTupleDesc();
+        Tuple out = new Tuple(outputTd);
+        for (int i = 0; i < outputFields.length; i++)
+            out.setField(i, t.getField(outputFields[i]));
+        out.setRecordId(t.getRecordId());
+        return out;
+    }
+
+    /**
+     * Adds a filter that tuples must pass to be returned by this scan; see
+     * {@link RuntimeFilter}.
+     */
+    public void addRuntimeFilter(RuntimeFilter f) {
+        runtimeFilters.add(f);
+    }
+
+    /**
+     * Removes a filter added by {@link #addRuntimeFilter}.
+     */
+    public void removeRuntimeFilter(RuntimeFilter f) {
+        runtimeFilters.remove(f);
+    }
+
+    /**
+     * @return the filters added by {@link #addRuntimeFilter}
+     */
+    public List<RuntimeFilter> getRuntimeFilters() {
+        return Collections.unmodifiableList(runtimeFilters);
+    }
+
+    /**
+     * Sets the predicate that all tuples returned by this scan satisfy. It
+     * takes effect when the scan is next opened.
+     *
+     * @param p
+     *            The predicate, or null to return every tuple
+     */
+    public void setPredicate(PredicateTree p) {
+        predicate = p;
+    }
+
+    /**
+     * @return the predicate set by {@link #setPredicate}, or null
+     */
+    public PredicateTree getPredicate() {
+        return predicate;
     }
 
     public SeqScan(TransactionId tid, int tableId) {
@@ -86,8 +206,22 @@ public class SeqScan implements OpIterator {
     public void open() throws DbException, TransactionAbortedException {
         // some code goes here
         file = Database.getCatalog().getDatabaseFile(tableId);
-        fileIter = file.iterator(transid);
+        residual = null;
+        // the files number the fields as the table does
+        PredicateTree filePredicate = predicate == null || outputFields == null
+                ? predicate : predicate.mapFields(outputFields);
+        if (filePredicate == null)
+            fileIter = file.iterator(transid);
+        else if (file instanceof HeapFile)
+            fileIter = ((HeapFile) file).iterator(transid, filePredicate);
+        else if (file instanceof BTreeFile)
+            fileIter = ((BTreeFile) file).iterator(transid, filePredicate);
+        else {
+            fileIter = file.iterator(transid);
+            residual = filePredicate.compile();
+        }
         fileIter.open();
+        next = null;
     }
 
     /**
@@ -103,11 +237,13 @@ public class SeqScan implements OpIterator {
     public TupleDesc getTupleDesc() {
         // some code goes here
         TupleDesc td = file.getTupleDesc();
-        Type[] types = new Type[td.numFields()];
-        String[] names = new String[td.numFields()];
-        for(int i=0;i<td.numFields();i+=1){
-            types[i] = td.getFieldType(i);
-            names[i] = alias+"."+td.getFieldName(i);
+        int n = outputFields == null ? td.numFields() : outputFields.length;
+        Type[] types = new Type[n];
+        String[] names = new String[n];
+        for(int i=0;i<n;i+=1){
+            int f = outputFields == null ? i : outputFields[i];
+            types[i] = td.getFieldType(f);
+            names[i] = alias+"."+td.getFieldName(f);
         }
         return new TupleDesc(types,names);
     }
@@ -117,23 +253,49 @@ public class SeqScan implements OpIterator {
         if(fileIter==null){
             return false;
         }
-        return fileIter.hasNext();
+        if (runtimeFilters.isEmpty() && residual == null)
+            return next != null || fileIter.hasNext();
+        while (next == null && fileIter.hasNext()) {
+            Tuple t = fileIter.next();
+            if (residual != null && !residual.test(t))
+                continue;
+            t = project(t);
+            if (passesRuntimeFilters(t))
+                next = t;
+        }
+        return next != null;
+    }
+
+    private boolean passesRuntimeFilters(Tuple t) {
+        for (RuntimeFilter f : runtimeFilters)
+            if (!f.accept(t))
+                return false;
+        return true;
     }
 
     public Tuple next() throws NoSuchElementException,
             TransactionAbortedException, DbException {
         // some code goes here
-        return fileIter.next();
+        if ((!runtimeFilters.isEmpty() || residual != null) && !hasNext())
+            throw new NoSuchElementException();
+        if (next != null) {
+            Tuple t = next;
+            next = null;
+            return t;
+        }
+        return project(fileIter.next());
     }
 
     public void close() {
         // some code goes here
         fileIter.close();
+        next = null;
     }
 
     public void rewind() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         // some code goes here
         fileIter.rewind();
+        next = null;
     }
 }
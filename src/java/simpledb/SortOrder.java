@@ -0,0 +1,117 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * SortOrder works out which fields the output of an operator tree is known to
+ * be sorted on, so that the planner can use operators that rely on sorted
+ * input, such as {@link StreamAggregate}.
+ * <p>
+ * The order is a list of field indexes in the operator's output: tuples are
+ * sorted on the first field, then on the second among tuples that are equal
+ * on the first, and so on. The direction of each field is not tracked, since
+ * it does not matter for grouping. Operators whose order is not known report
+ * an empty list.
+ */
+public class SortOrder {
+
+    private static final int[] UNSORTED = new int[0];
+
+    private SortOrder() {
+    }
+
+    /**
+     * Returns the fields that the output of an operator is sorted on.
+     * <ul>
+     * <li>{@link OrderBy} and {@link TopN} are sorted on their keys;
+     * <li>a {@link SeqScan} of a {@link BTreeFile} and a {@link BTreeScan}
+     * are sorted on the key field of the file, if the scan returns it;
+     * <li>{@link StreamAggregate} is sorted on its group fields;
+     * <li>{@link Filter} and {@link Limit} keep the order of their child, and
+     * a nested loops {@link Join} and a {@link HashSemiJoin} keep the order
+     * of their outer child;
+     * <li>a sort based {@link Distinct} keeps the order of its child;
+     * <li>{@link Project} keeps the prefix of its child's order that it does
+     * not project away, renumbered to its output fields.
+     * </ul>
+     *
+     * @return the indexes of the sort fields, most significant first; empty
+     *         if the order is unknown
+     */
+    public static int[] of(OpIterator op) {
+        if (op instanceof OrderBy)
+            return ((OrderBy) op).getOrderByFields();
+        if (op instanceof TopN)
+            return ((TopN) op).getOrderByFields();
+        if (op instanceof SeqScan) {
+            SeqScan scan = (SeqScan) op;
+            int[] order = keyOrder(scan.getTableId());
+            int[] outputFields = scan.getOutputFields();
+            if (order.length == 0 || outputFields == null)
+                return order;
+            // renumber the key field as the scan narrows the tuples
+            for (int i = 0; i < outputFields.length; i++)
+                if (outputFields[i] == order[0])
+                    return new int[] { i };
+            return UNSORTED;
+        }
+        if (op instanceof BTreeScan)
+            return keyOrder(((BTreeScan) op).getTableId());
+        if (op instanceof StreamAggregate) {
+            int[] order = new int[((StreamAggregate) op).getGroupFields().length];
+            for (int i = 0; i < order.length; i++)
+                order[i] = i;
+            return order;
+        }
+        if (op instanceof Filter || op instanceof Limit || op instanceof Join
+                || op instanceof HashSemiJoin)
+            return of(((Operator) op).getChildren()[0]);
+        if (op instanceof Distinct && ((Distinct) op).isSortBased())
+            return of(((Distinct) op).getChildren()[0]);
+        if (op instanceof Project) {
+            Project p = (Project) op;
+            ArrayList<Integer> outFields = p.getOutFieldIds();
+            int[] childOrder = of(p.getChildren()[0]);
+            ArrayList<Integer> order = new ArrayList<Integer>();
+            for (int f : childOrder) {
+                int i = outFields.indexOf(f);
+                if (i < 0)
+                    break;
+                order.add(i);
+            }
+            int[] result = new int[order.size()];
+            for (int i = 0; i < result.length; i++)
+                result[i] = order.get(i);
+            return result;
+        }
+        return UNSORTED;
+    }
+
+    private static int[] keyOrder(int tableId) {
+        DbFile f = Database.getCatalog().getDatabaseFile(tableId);
+        if (f instanceof BTreeFile)
+            return new int[] { ((BTreeFile) f).keyField() };
+        return UNSORTED;
+    }
+
+    /**
+     * Returns true if tuples of the output of an operator that are equal on
+     * the given fields always come next to each other, that is if the
+     * operator is sorted on those fields in some order, possibly followed by
+     * others. This holds trivially for an empty list of fields.
+     */
+    public static boolean isGroupedOn(OpIterator op, int[] fields) {
+        if (fields.length == 0)
+            return true;
+        Set<Integer> wanted = new HashSet<Integer>();
+        for (int f : fields)
+            wanted.add(f);
+        int[] order = of(op);
+        if (order.length < wanted.size())
+            return false;
+        Set<Integer> prefix = new HashSet<Integer>();
+        for (int i = 0; i < wanted.size(); i++)
+            prefix.add(order[i]);
+        return prefix.equals(wanted);
+    }
+}
@@ -0,0 +1,175 @@
+package simpledb;
+
+import java.io.*;
+
+/**
+ * SpillFile is a temporary file of tuples, used by operators that have run
+ * out of their memory budget and need to park intermediate results on disk
+ * (for example the sorted runs of {@link ExternalSort}).
+ * <p>
+ * Rows are written in a compact binary format rather than the fixed-width
+ * page format: an int field takes four bytes and a string field takes only
+ * as many bytes as its value, instead of being padded out to
+ * {@link Type#STRING_LEN}. The file is written once, front to back, and can
+ * then be read any number of times. It is removed by {@link #delete}, or when
+ * the JVM exits if it is never deleted explicitly.
+ */
+public class SpillFile {
+
+    private final File file;
+    private final TupleDesc td;
+    private DataOutputStream out;
+    private long numTuples;
+
+    /**
+     * Creates a new, empty spill file for tuples of the given schema.
+     *
+     * @param td
+     *            the schema of the tuples that will be written
+     * @throws DbException
+     *             if the temporary file cannot be created
+     */
+    public SpillFile(TupleDesc td) throws DbException {
+        this.td = td;
+        try {
+            file = File.createTempFile("simpledb-spill", ".tmp");
+            file.deleteOnExit();
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(file), BufferPool.getPageSize()));
+        } catch (IOException e) {
+            throw new DbException("could not create spill file: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the schema of the tuples in this file
+     */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * @return the number of tuples written to this file
+     */
+    public long numTuples() {
+        return numTuples;
+    }
+
+    /**
+     * Appends a tuple to the end of the file.
+     *
+     * @throws IllegalStateException
+     *             if the file has already been finished
+     */
+    public void add(Tuple t) throws DbException {
+        if (out == null)
+            throw new IllegalStateException("spill file is closed for writing");
+        try {
+            for (int i = 0; i < td.numFields(); i++) {
+                Field f = t.getField(i);
+                if (td.getFieldType(i) == Type.INT_TYPE)
+                    out.writeInt(((IntField) f).getValue());
+                else
+                    out.writeUTF(((StringField) f).getValue());
+            }
+        } catch (IOException e) {
+            throw new DbException("could not write spill file: " + e.getMessage());
+        }
+        numTuples++;
+    }
+
+    /**
+     * Flushes and closes the write side of the file. No more tuples can be
+     * added afterwards; calling this more than once has no effect.
+     */
+    public void finishWriting() throws DbException {
+        if (out == null)
+            return;
+        try {
+            out.close();
+        } catch (IOException e) {
+            throw new DbException("could not write spill file: " + e.getMessage());
+        } finally {
+            out = null;
+        }
+    }
+
+    /**
+     * Opens a new reader positioned at the first tuple of the file, finishing
+     * the write side first if necessary.
+     */
+    public Reader openReader() throws DbException {
+        finishWriting();
+        return new Reader();
+    }
+
+    /**
+     * Closes the file if it is still being written and removes it from disk.
+     */
+    public void delete() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // the file is going away anyway
+            }
+            out = null;
+        }
+        file.delete();
+    }
+
+    /**
+     * Sequential reader over the tuples of a SpillFile.
+     */
+    public class Reader {
+
+        private DataInputStream in;
+        private long remaining;
+
+        private Reader() throws DbException {
+            try {
+                in = new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(file), BufferPool.getPageSize()));
+            } catch (IOException e) {
+                throw new DbException("could not open spill file: " + e.getMessage());
+            }
+            remaining = numTuples;
+        }
+
+        /**
+         * @return the next tuple in the file, or null if the end of the file
+         *         has been reached
+         */
+        public Tuple next() throws DbException {
+            if (remaining == 0)
+                return null;
+            Tuple t = new Tuple(td);
+            try {
+                for (int i = 0; i < td.numFields(); i++) {
+                    if (td.getFieldType(i) == Type.INT_TYPE)
+                        t.setField(i, new IntField(in.readInt()));
+                    else
+                        t.setField(i, new StringField(in.readUTF(), Type.STRING_LEN));
+                }
+            } catch (IOException e) {
+                throw new DbException("could not read spill file: " + e.getMessage());
+            }
+            remaining--;
+            return t;
+        }
+
+        /**
+         * Releases the file handle held by this reader.
+         */
+        public void close() {
+            if (in == null)
+                return;
+            try {
+                in.close();
+            } catch (IOException e) {
+                // nothing useful to do on a failed close of a read-only file
+            }
+            in = null;
+        }
+    }
+}
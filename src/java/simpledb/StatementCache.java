@@ -0,0 +1,107 @@
+package simpledb;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A StatementCache keeps the {@link PreparedStatement}s of a {@link Parser},
+ * keyed by their normalized text, so that a statement prepared again reuses
+ * its plan. It holds a bounded number of statements and evicts the least
+ * recently used one when it is full. A statement whose plan is stale, because
+ * the statistics of its tables have changed, is dropped when it is looked up.
+ */
+public class StatementCache {
+
+    /** The number of statements a cache holds unless told otherwise */
+    public static final int DEFAULT_CAPACITY = 64;
+
+    private int capacity;
+    private final LinkedHashMap<String, PreparedStatement> statements;
+
+    /**
+     * @param capacity
+     *            The greatest number of statements to keep
+     */
+    public StatementCache(int capacity) {
+        setCapacity(capacity);
+        statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                return size() > StatementCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * Changes the greatest number of statements to keep; the least recently
+     * used statements are evicted as others are added.
+     */
+    public void setCapacity(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be positive, not " + capacity);
+        this.capacity = capacity;
+    }
+
+    /**
+     * @return the text of a statement with its runs of white space outside of
+     *         quoted strings made single spaces, and without a trailing ';'
+     */
+    public static String normalize(String sql) {
+        StringBuilder sb = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < sql.length(); i++) {
+            char c = sql.charAt(i);
+            if (c == '\'')
+                quoted = !quoted;
+            if (!quoted && Character.isWhitespace(c)) {
+                if (sb.length() > 0 && sb.charAt(sb.length() - 1) != ' ')
+                    sb.append(' ');
+                continue;
+            }
+            sb.append(c);
+        }
+        String s = sb.toString().trim();
+        while (s.endsWith(";"))
+            s = s.substring(0, s.length() - 1).trim();
+        return s;
+    }
+
+    /**
+     * @param key
+     *            The normalized text of a statement
+     * @return the statement, or null if it is not cached or its plan is
+     *         stale
+     */
+    public PreparedStatement get(String key) {
+        PreparedStatement ps = statements.get(key);
+        if (ps != null && ps.isStale()) {
+            statements.remove(key);
+            return null;
+        }
+        return ps;
+    }
+
+    /**
+     * Adds a statement, evicting the least recently used one if the cache
+     * is full.
+     */
+    public void put(PreparedStatement ps) {
+        statements.put(ps.getSql(), ps);
+    }
+
+    /**
+     * @return the number of statements in the cache
+     */
+    public int size() {
+        return statements.size();
+    }
+
+    /**
+     * Removes all the statements from the cache.
+     */
+    public void clear() {
+        statements.clear();
+    }
+}
@@ -0,0 +1,160 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * StreamAggregate computes the same aggregates as {@link HashAggregate}, for
+ * a child whose tuples arrive grouped on the group-by fields, for example
+ * because they are sorted on them (see {@link SortOrder}).
+ * <p>
+ * Only the state of the current group is kept: when a tuple with a different
+ * key arrives, the finished group is returned at once and a new one is
+ * started. Memory use does not depend on the number of groups, and the first
+ * group is returned as soon as it is complete rather than after the whole
+ * child has been read. Groups come out in the order of the child, and the
+ * output has the same schema as a HashAggregate with the same arguments. If
+ * the child is not grouped on the group-by fields, a key that appears in
+ * several runs is returned once per run.
+ */
+public class StreamAggregate extends Operator implements AggregateOperator {
+
+    private static final long serialVersionUID = 1L;
+
+    private OpIterator child;
+    private final int[] groupFields;
+    private final AggregateLayout layout;
+    private final TupleDesc td;
+
+    private transient GroupKey currentKey;
+    private transient long[] currentState;
+    private transient boolean exhausted;
+
+    /**
+     * Constructor.
+     *
+     * @param child
+     *            The OpIterator that is feeding us tuples, grouped on the
+     *            group-by fields.
+     * @param groupFields
+     *            The indexes of the group-by fields in the child's tuples;
+     *            empty if there is no grouping.
+     * @param aggFields
+     *            The index of the field of each aggregate.
+     * @param aops
+     *            The operator of each aggregate.
+     * @throws IllegalArgumentException
+     *             if an operator is not supported for its field's type
+     */
+    public StreamAggregate(OpIterator child, int[] groupFields,
+            int[] aggFields, Aggregator.Op[] aops) {
+        this.child = child;
+        this.groupFields = groupFields.clone();
+        this.layout = new AggregateLayout(child.getTupleDesc(), aggFields, aops);
+        this.td = HashAggregate.outputTupleDesc(child.getTupleDesc(),
+                groupFields, layout);
+    }
+
+    /**
+     * @return the indexes of the group-by fields in the child's tuples
+     */
+    public int[] getGroupFields() {
+        return groupFields.clone();
+    }
+
+    /**
+     * @return the names of the group-by fields in the child's tuples
+     */
+    public String[] getGroupFieldNames() {
+        String[] names = new String[groupFields.length];
+        for (int i = 0; i < names.length; i++)
+            names[i] = child.getTupleDesc().getFieldName(groupFields[i]);
+        return names;
+    }
+
+    /**
+     * @return the layout of the aggregates computed by this operator
+     */
+    public AggregateLayout getLayout() {
+        return layout;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws NoSuchElementException, DbException,
+            TransactionAbortedException {
+        child.open();
+        reset();
+        super.open();
+    }
+
+    private void reset() {
+        currentKey = null;
+        currentState = null;
+        exhausted = false;
+    }
+
+    /**
+     * Returns the next group: its group-by fields followed by its aggregate
+     * values. A group is returned once the first tuple of the next group, or
+     * the end of the child, has been read.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException,
+            DbException {
+        while (child.hasNext()) {
+            Tuple t = child.next();
+            GroupKey key = new GroupKey(t, groupFields);
+            if (currentKey != null && !currentKey.equals(key)) {
+                Tuple done = HashAggregate.makeTuple(td, currentKey, layout,
+                        currentState);
+                currentKey = key;
+                currentState = layout.newState();
+                layout.update(currentState, t);
+                return done;
+            }
+            if (currentKey == null) {
+                currentKey = key;
+                currentState = layout.newState();
+            }
+            layout.update(currentState, t);
+        }
+        if (currentKey != null) {
+            Tuple done = HashAggregate.makeTuple(td, currentKey, layout,
+                    currentState);
+            currentKey = null;
+            currentState = null;
+            exhausted = true;
+            return done;
+        }
+        // without grouping, an empty input still has one group
+        if (groupFields.length == 0 && !exhausted) {
+            exhausted = true;
+            return HashAggregate.makeTuple(td, new GroupKey(new Field[0]),
+                    layout, layout.newState());
+        }
+        return null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+        reset();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        reset();
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { child };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        child = children[0];
+    }
+
+}
@@ -0,0 +1,186 @@
+package simpledb;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * An equi-depth histogram over a single String field, with a list of its
+ * most common values.
+ * <p>
+ * {@link StringHistogram} maps each string to an integer made of its first
+ * four characters, so strings with a common prefix, such as URLs or product
+ * codes, all fall into the same bucket. This histogram is an
+ * {@link AbstractEquiDepthHistogram} over the whole strings: the most common
+ * values keep their exact share of the tuples, and the other values are
+ * divided into buckets of about the same number of tuples, bounded by full
+ * strings. Within a bucket a string is placed by its characters after the
+ * prefix common to the bounds of the bucket, so that strings sharing a long
+ * prefix are still told apart.
+ * <p>
+ * The LIKE predicate of SimpleDB matches the strings that contain the
+ * operand. Its selectivity is the share of the most common values that
+ * contain it, plus the share of the other values times the fraction of
+ * {@link #LIKE_SAMPLE_SIZE} of them, spread evenly over the sample, that
+ * contain it.
+ */
+public class StringEquiDepthHistogram extends AbstractEquiDepthHistogram<String> {
+
+    /** The number of other values kept to estimate LIKE predicates by */
+    public static final int LIKE_SAMPLE_SIZE = 1000;
+
+    /** The number of characters a string is placed within a bucket by */
+    private static final int SCALAR_CHARS = 8;
+
+    // values that are not most common values, in ascending order, as often
+    // as they occur in the sample
+    private String[] likeSample;
+
+    /**
+     * Create a new StringEquiDepthHistogram.
+     *
+     * @param buckets
+     *            The number of buckets to split the values that are not most
+     *            common values into
+     * @param mcvs
+     *            The greatest number of most common values to keep
+     */
+    public StringEquiDepthHistogram(int buckets, int mcvs) {
+        super(buckets, mcvs);
+    }
+
+    /**
+     * Add a value to the set of values that you are keeping a histogram of.
+     * @param s Value to add to the histogram
+     */
+    public void addValue(String s) {
+        add(s);
+    }
+
+    /**
+     * Remove a value that was added before from the histogram. The buckets
+     * are built first if they have not been.
+     * @param s Value to remove from the histogram
+     */
+    public void removeValue(String s) {
+        remove(s);
+    }
+
+    /**
+     * Estimate the selectivity of a particular predicate and operand on this table.
+     *
+     * @param op Operator
+     * @param s Value
+     * @return Predicted selectivity of this particular operator and value
+     */
+    public double estimateSelectivity(Predicate.Op op, String s) {
+        return selectivity(op, s);
+    }
+
+    protected double below(String s, String low, String high, int distinct) {
+        // all but the values equal to the high bound can be below s
+        return (1 - 1.0 / distinct) * position(s, low, high);
+    }
+
+    /** Keeps every step-th of the other values, in order, for LIKE */
+    protected void built(List<String> others) {
+        int rest = others.size();
+        int kept = Math.min(rest, LIKE_SAMPLE_SIZE);
+        likeSample = new String[kept];
+        for (int i = 0; i < kept; i++)
+            likeSample[i] = others.get((int) ((long) i * rest / kept));
+    }
+
+    /** @return the estimated fraction of the values that contain s */
+    protected double like(String s) {
+        double c = common(v -> v.indexOf(s) >= 0);
+        if (likeSample.length > 0) {
+            int matches = 0;
+            for (String v : likeSample)
+                if (v.indexOf(s) >= 0)
+                    matches++;
+            c += bucketed() * matches / likeSample.length;
+        }
+        return c;
+    }
+
+    /**
+     * @return where s lies between low and high, from 0 to 1, judging by the
+     *         characters after the prefix common to low and high, read as
+     *         digits in a base as large as the range of those characters
+     */
+    static double position(String s, String low, String high) {
+        if (s.compareTo(low) <= 0)
+            return 0;
+        if (s.compareTo(high) >= 0)
+            return 1;
+        int p = 0;
+        while (p < low.length() && p < high.length() && low.charAt(p) == high.charAt(p))
+            p++;
+        int[] range = { Character.MAX_VALUE, 0 };
+        for (String v : new String[] { s, low, high })
+            for (int i = p; i < p + SCALAR_CHARS && i < v.length(); i++) {
+                range[0] = Math.min(range[0], v.charAt(i));
+                range[1] = Math.max(range[1], v.charAt(i));
+            }
+        double lo = scalar(low, p, range), hi = scalar(high, p, range);
+        return hi > lo ? Math.max(0, Math.min(1, (scalar(s, p, range) - lo) / (hi - lo))) : 0.5;
+    }
+
+    /**
+     * @return the characters of s from the given index on as a fraction, in
+     *         a base that holds the characters from range[0] to range[1]; a
+     *         missing character is below them all
+     */
+    private static double scalar(String s, int from, int[] range) {
+        double base = range[1] - range[0] + 2;
+        double v = 0, unit = 1;
+        for (int i = from; i < from + SCALAR_CHARS; i++) {
+            unit /= base;
+            if (i < s.length())
+                v += (s.charAt(i) - range[0] + 1) * unit;
+        }
+        return v;
+    }
+
+    protected String show(String s) {
+        return "'" + s + "'";
+    }
+
+    protected void writeKey(DataOutputStream out, String s) throws IOException {
+        out.writeUTF(s);
+    }
+
+    protected String readKey(DataInputStream in) throws IOException {
+        return in.readUTF();
+    }
+
+    /**
+     * Writes this histogram out, so that it can be read back with
+     * {@link #read}.
+     */
+    public void write(DataOutputStream out) throws IOException {
+        super.write(out);
+        out.writeInt(likeSample.length);
+        for (String s : likeSample)
+            out.writeUTF(s);
+    }
+
+    protected void readBody(DataInputStream in) throws IOException {
+        super.readBody(in);
+        int n = in.readInt();
+        likeSample = new String[n];
+        for (int i = 0; i < n; i++)
+            likeSample[i] = in.readUTF();
+    }
+
+    /**
+     * Reads back a histogram written by {@link #write}.
+     */
+    public static StringEquiDepthHistogram read(DataInputStream in) throws IOException {
+        StringEquiDepthHistogram h = new StringEquiDepthHistogram(in.readInt(), in.readInt());
+        h.readBody(in);
+        return h;
+    }
+}
@@ -1,10 +1,28 @@
 package simpledb;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * TableStats represents statistics (e.g., histograms) about base tables in a
@@ -18,6 +36,99 @@ public class TableStats {
 
     static final int IOCOSTPERPAGE = 1000;
 
+    /** The fraction of the pages of each table that computeStatistics reads */
+    private static volatile double sampleFraction = 1.0;
+
+    /**
+     * Makes {@link #computeStatistics} read only a fraction of the pages of
+     * each heap file, chosen at random, instead of the whole table.
+     *
+     * @param fraction
+     *            The fraction of the pages to read, above 0 and at most 1
+     */
+    public static void setSampleFraction(double fraction) {
+        if (!(fraction > 0 && fraction <= 1))
+            throw new IllegalArgumentException("sample fraction must be in (0, 1], not " + fraction);
+        sampleFraction = fraction;
+    }
+
+    public static double getSampleFraction() {
+        return sampleFraction;
+    }
+
+    /**
+     * The least number of tuples inserted or deleted since the statistics of
+     * a table were computed that has them computed again
+     */
+    static final int REANALYZE_MIN_TUPLES = 500;
+
+    /**
+     * The fraction of the tuples of a table that must be inserted or deleted
+     * before its statistics are computed again
+     */
+    private static volatile double reanalyzeFraction = 0.2;
+
+    /** Computes the statistics of modified tables again, in the background */
+    private static ExecutorService analyzer;
+
+    /**
+     * Sets the fraction of the tuples of a table that must be inserted or
+     * deleted before its statistics are computed again; at least
+     * {@link #REANALYZE_MIN_TUPLES} must be.
+     *
+     * @param fraction
+     *            The fraction, at least 0
+     */
+    public static void setReanalyzeFraction(double fraction) {
+        if (!(fraction >= 0))
+            throw new IllegalArgumentException("reanalyze fraction must be at least 0, not " + fraction);
+        reanalyzeFraction = fraction;
+    }
+
+    public static double getReanalyzeFraction() {
+        return reanalyzeFraction;
+    }
+
+    /**
+     * Updates the statistics of a table, if it has any, for a tuple inserted
+     * into it. Called by {@link BufferPool#insertTuple}.
+     */
+    public static void tupleInserted(int tableid, Tuple t) {
+        TableStats s = statsOf(tableid);
+        if (s != null)
+            s.update(t, 1);
+    }
+
+    /**
+     * Updates the statistics of a table, if it has any, for a tuple deleted
+     * from it. Called by {@link BufferPool#deleteTuple}.
+     */
+    public static void tupleDeleted(int tableid, Tuple t) {
+        TableStats s = statsOf(tableid);
+        if (s != null)
+            s.update(t, -1);
+    }
+
+    private static TableStats statsOf(int tableid) {
+        try {
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(tableid));
+            return s != null && s.tableid == tableid ? s : null;
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+    }
+
+    private static synchronized ExecutorService analyzer() {
+        if (analyzer == null) {
+            analyzer = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "reanalyze");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return analyzer;
+    }
+
     public static TableStats getTableStats(String tablename) {
         return statsMap.get(tablename);
     }
@@ -48,14 +159,61 @@ public class TableStats {
         return statsMap;
     }
 
+    /**
+     * Computes the statistics of every table in the catalog, with one
+     * worker per available processor.
+     */
     public static void computeStatistics() {
+        computeStatistics(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Computes the statistics of every table in the catalog. The statistics
+     * saved in the stats file of a table are used if they are still fresh,
+     * and read at least the fraction of the table set by
+     * {@link #setSampleFraction};
+     * the other tables are read in a single pass each, and their statistics
+     * saved for the next time. The tables are shared out among a pool of
+     * workers, so that many tables are read at once.
+     *
+     * @param threads
+     *            The number of workers
+     */
+    public static void computeStatistics(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("need at least one worker, not " + threads);
         Iterator<Integer> tableIt = Database.getCatalog().tableIdIterator();
+        final double fraction = sampleFraction;
+        ArrayList<Callable<Void>> workers = new ArrayList<Callable<Void>>();
+        while (tableIt.hasNext()) {
+            final int tableid = tableIt.next();
+            workers.add(() -> {
+                TableStats s = load(tableid, IOCOSTPERPAGE, null, fraction);
+                if (s == null) {
+                    s = new TableStats(tableid, IOCOSTPERPAGE, null, fraction);
+                    try {
+                        s.save();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+                setTableStats(Database.getCatalog().getTableName(tableid), s);
+                return null;
+            });
+        }
 
         System.out.println("Computing table stats.");
-        while (tableIt.hasNext()) {
-            int tableid = tableIt.next();
-            TableStats s = new TableStats(tableid, IOCOSTPERPAGE);
-            setTableStats(Database.getCatalog().getTableName(tableid), s);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            for (Future<Void> f : pool.invokeAll(workers))
+                f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("computing table stats interrupted");
+        } catch (ExecutionException e) {
+            throw new RuntimeException("computing table stats failed", e.getCause());
+        } finally {
+            pool.shutdown();
         }
         System.out.println("Done.");
     }
@@ -67,19 +225,61 @@ public class TableStats {
      */
     static final int NUM_HIST_BINS = 100;
 
+    /** The greatest number of most common values an equi-depth histogram keeps */
+    static final int NUM_MCVS = 100;
+
+    /** The precision of the sketch of the distinct values of each field */
+    static final int NDV_PRECISION = HyperLogLog.DEFAULT_PRECISION;
+
+    /**
+     * A field with more distinct values than this fraction of the tuples of
+     * a sample is taken to gain distinct values in proportion to its tuples
+     */
+    static final double NDV_SCALE_THRESHOLD = 0.1;
+
+    /** The greatest number of steps a range join is estimated in */
+    static final int JOIN_STEPS = 100;
+
+    /**
+     * The kinds of histogram kept on an int field; a string field always has
+     * a {@link StringEquiDepthHistogram}
+     */
+    public enum HistogramKind {
+        /** An {@link IntHistogram}, whose buckets are as wide as each other */
+        FIXED_WIDTH,
+        /** An {@link EquiDepthHistogram}, which suits skewed fields */
+        EQUI_DEPTH
+    }
+
     private int tableid;
     private int ioCostPerPage;
     private TupleDesc td;
     private DbFile file;
     private DbFileIterator iter;
     private int totalTuples;
+    private double sampled = 1.0;
 
-    private HashMap<String, IntHistogram> intHistMap;
-    private HashMap<String, StringHistogram> strHistMap;
+    private HistogramKind[] kinds;
+    private HashMap<String, Histogram> intHistMap;
+    private HashMap<String, StringEquiDepthHistogram> strHistMap;
     private HashMap<String, Integer> maxsForIntHist;
     private HashMap<String, Integer> minsForIntHist;
+    // a HyperLogLog sketch of the distinct values of each field
+    private HashMap<String, long[]> ndvSketches;
+    // the number of tuples read, before scaling up for a sample
+    private int scannedTuples;
 
     private ArrayList<Integer> lstOfIntIndex;
+    // the tuples inserted or deleted since these statistics were computed
+    private int modified;
+    // the share of the modified tuples not counted into the histograms yet
+    private double updateCredit;
+    private boolean reanalyzing;
+    // the tuples modified while the statistics are computed again, to be
+    // counted into the new ones, and the new ones once they replace these
+    private ArrayList<Tuple> pendingInserts = new ArrayList<Tuple>();
+    private ArrayList<Tuple> pendingDeletes = new ArrayList<Tuple>();
+    private TableStats replacedBy;
     /**
      * Create a new TableStats object, that keeps track of statistics on each
      * column of a table
@@ -91,6 +291,49 @@ public class TableStats {
      *            sequential-scan IO and disk seeks.
      */
     public TableStats(int tableid, int ioCostPerPage) {
+        this(tableid, ioCostPerPage, null);
+    }
+
+    /**
+     * Create a new TableStats object, choosing the kind of histogram kept on
+     * each int field.
+     *
+     * @param tableid
+     *            The table over which to compute statistics
+     * @param ioCostPerPage
+     *            The cost per page of IO
+     * @param kinds
+     *            The kind of histogram of each field, by index; null, or a
+     *            null entry, for an equi-depth histogram
+     */
+    public TableStats(int tableid, int ioCostPerPage, HistogramKind[] kinds) {
+        this(tableid, ioCostPerPage, kinds, 1.0);
+    }
+
+    /**
+     * Create a new TableStats object from a block sample of the table: only
+     * a fraction of the pages of a heap file, chosen at random, is read, the
+     * histograms are built from their tuples, and the number of tuples is
+     * scaled up by the fraction of the pages read. The pages of a heap file
+     * are read from the file directly, or taken from the buffer pool when it
+     * holds them, so that computing statistics neither locks pages nor evicts
+     * the pages of the buffer pool, whose modified pages may not be on disk
+     * yet. Other files are always read whole, through the buffer pool.
+     *
+     * @param tableid
+     *            The table over which to compute statistics
+     * @param ioCostPerPage
+     *            The cost per page of IO
+     * @param kinds
+     *            The kind of histogram of each field, as for
+     *            {@link #TableStats(int, int, HistogramKind[])}
+     * @param sampleFraction
+     *            The fraction of the pages to read, above 0 and at most 1
+     */
+    public TableStats(int tableid, int ioCostPerPage, HistogramKind[] kinds,
+            double sampleFraction) {
+        if (!(sampleFraction > 0 && sampleFraction <= 1))
+            throw new IllegalArgumentException("sample fraction must be in (0, 1], not " + sampleFraction);
         // For this function, you'll have to get the
         // DbFile for the table in question,
         // then scan through its tuples and calculate
@@ -103,96 +346,363 @@ public class TableStats {
         this.ioCostPerPage = ioCostPerPage;
         this.file = Database.getCatalog().getDatabaseFile(tableid);
         this.td = file.getTupleDesc();
-        TransactionId tid = new TransactionId();
-        this.iter = file.iterator(tid);
+        this.kinds = kindsOf(td, kinds);
+        if (file instanceof HeapFile) {
+            int numPages = ((HeapFile) file).numPages();
+            int k = samplePageCount(numPages, sampleFraction);
+            if (k < numPages) {
+                this.iter = new PageSample((HeapFile) file, samplePages(numPages, k));
+                this.sampled = (double) k / numPages;
+            } else {
+                this.iter = new PageSample((HeapFile) file, samplePages(numPages, numPages));
+            }
+        } else {
+            this.iter = file.iterator(new TransactionId());
+        }
 
         this.totalTuples = 0;
-
-        // update the max and min for each field
         minsForIntHist = new HashMap<>();
         maxsForIntHist = new HashMap<>();
-        setMaxsAndMins();
-
-        // initialize histogram map
         intHistMap = new HashMap<>();
         strHistMap = new HashMap<>();
+        ndvSketches = new HashMap<>();
         initMap();
 
-        // insert field into the corresponding histogram
-        insertToHist();
+        // the bounds, histograms and distinct values of the fields, in a
+        // single pass
+        scan();
+
+        // the sample holds about the same share of the tuples as of the pages
+        scannedTuples = totalTuples;
+        totalTuples = (int) Math.round(totalTuples / sampled);
     }
 
-    private void setMaxsAndMins(){
-        try{
-            iter.rewind();
-            while(iter.hasNext()){
-                Tuple tuple = iter.next();
-                totalTuples++;
-                for(int i = 0; i < td.numFields(); i++){
+    /**
+     * @return the kind of histogram of each field of td, given the kinds
+     *         passed to the constructor
+     */
+    private static HistogramKind[] kindsOf(TupleDesc td, HistogramKind[] kinds) {
+        HistogramKind[] k = new HistogramKind[td.numFields()];
+        for (int i = 0; i < td.numFields(); i++)
+            k[i] = td.getFieldType(i) != Type.INT_TYPE || kinds == null || kinds[i] == null
+                    ? HistogramKind.EQUI_DEPTH : kinds[i];
+        return k;
+    }
 
-                    if(td.getFieldType(i)==Type.INT_TYPE){
-                        String fieldName = td.getFieldName(i);
-                        IntField field =  (IntField) tuple.getField(i);
-                        Integer value = field.getValue();
+    /** @return the number of pages a sample of a fraction of numPages reads */
+    private static int samplePageCount(int numPages, double fraction) {
+        return Math.max(1, (int) Math.ceil(fraction * numPages));
+    }
 
-                        Integer currMax = maxsForIntHist.getOrDefault(fieldName, Integer.MIN_VALUE);
-                        Integer newMax = Integer.max(currMax, value);
-                        Integer currMin = minsForIntHist.getOrDefault(fieldName, Integer.MAX_VALUE);
-                        Integer newMin = Integer.min(currMin, value);
+    /**
+     * @return k distinct page numbers below numPages, chosen at random, in
+     *         ascending order
+     */
+    private static int[] samplePages(int numPages, int k) {
+        int[] pages = new int[numPages];
+        for (int i = 0; i < numPages; i++)
+            pages[i] = i;
+        Random r = new Random();
+        for (int i = 0; i < k; i++) {
+            int j = i + r.nextInt(numPages - i);
+            int t = pages[i];
+            pages[i] = pages[j];
+            pages[j] = t;
+        }
+        int[] chosen = Arrays.copyOf(pages, k);
+        Arrays.sort(chosen);
+        return chosen;
+    }
 
-                        maxsForIntHist.put(fieldName, newMax);
-                        minsForIntHist.put(fieldName, newMin);
-                    }
-                }
+    /**
+     * Iterates over the tuples of some pages of a heap file, taking each from
+     * the buffer pool if it holds the page, and from the file otherwise
+     */
+    private static class PageSample extends AbstractDbFileIterator {
+        private final HeapFile file;
+        private final int[] pages;
+        private int nextPage;
+        private Iterator<Tuple> tuples;
+
+        PageSample(HeapFile file, int[] pages) {
+            this.file = file;
+            this.pages = pages;
+        }
+
+        public void open() {
+            nextPage = 0;
+            tuples = null;
+        }
+
+        public void rewind() {
+            close();
+            open();
+        }
+
+        protected Tuple readNext() {
+            while (tuples == null || !tuples.hasNext()) {
+                if (nextPage >= pages.length)
+                    return null;
+                HeapPageId pid = new HeapPageId(file.getId(), pages[nextPage++]);
+                HeapPage page = (HeapPage) Database.getBufferPool().peekPage(pid);
+                if (page == null)
+                    page = (HeapPage) file.readPage(pid);
+                tuples = page.iterator();
             }
-        } catch (DbException e){
-            e.printStackTrace();
-        } catch (TransactionAbortedException e){
-            e.printStackTrace();
+            return tuples.next();
         }
     }
 
     private void initMap(){
         for(int i = 0; i < td.numFields(); i++){
             String fieldName = td.getFieldName(i);
-            if(td.getFieldType(i)==Type.INT_TYPE){
-                int min = minsForIntHist.get(fieldName);
-                int max = maxsForIntHist.get(fieldName);
-                IntHistogram intHist = new IntHistogram(NUM_HIST_BINS, min, max);
-                intHistMap.put(fieldName, intHist);
+            if(td.getFieldType(i)==Type.INT_TYPE && kinds[i]==HistogramKind.EQUI_DEPTH){
+                intHistMap.put(fieldName, new EquiDepthHistogram(NUM_HIST_BINS, NUM_MCVS));
+            }else if(td.getFieldType(i)==Type.INT_TYPE){
+                // the buckets grow with the values, so no pass is needed to
+                // find their range first
+                intHistMap.put(fieldName, new IntHistogram(NUM_HIST_BINS));
             }else if(td.getFieldType(i)==Type.STRING_TYPE){
-                StringHistogram strHist = new StringHistogram(NUM_HIST_BINS);
-                strHistMap.put(fieldName, strHist);
+                strHistMap.put(fieldName, new StringEquiDepthHistogram(NUM_HIST_BINS, NUM_MCVS));
             }
+            ndvSketches.put(fieldName, new long[HyperLogLog.stateWidth(NDV_PRECISION)]);
         }
     }
 
-    private void insertToHist(){
+    private void scan(){
+        int n = td.numFields();
+        Histogram[] ints = new Histogram[n];
+        StringEquiDepthHistogram[] strs = new StringEquiDepthHistogram[n];
+        long[][] sketches = new long[n][];
+        int[] mins = new int[n];
+        int[] maxs = new int[n];
+        for(int i = 0; i < n; i++){
+            ints[i] = intHistMap.get(td.getFieldName(i));
+            strs[i] = strHistMap.get(td.getFieldName(i));
+            sketches[i] = ndvSketches.get(td.getFieldName(i));
+            mins[i] = Integer.MAX_VALUE;
+            maxs[i] = Integer.MIN_VALUE;
+        }
         try{
-            iter.rewind();
+            iter.open();
             while(iter.hasNext()){
                 Tuple tuple = iter.next();
-
-                for(int i = 0; i < td.numFields(); i++){
-                    String fieldName = td.getFieldName(i);
+                totalTuples++;
+                for(int i = 0; i < n; i++){
+                    HyperLogLog.add(sketches[i], 0, NDV_PRECISION, HyperLogLog.hash(tuple.getField(i)));
                     if(td.getFieldType(i)==Type.INT_TYPE){
-                        IntField field =  (IntField) tuple.getField(i);
-                        Integer value = field.getValue();
-
-                        intHistMap.get(fieldName).addValue(value);
+                        int value = ((IntField) tuple.getField(i)).getValue();
+                        mins[i] = Math.min(mins[i], value);
+                        maxs[i] = Math.max(maxs[i], value);
+                        ints[i].addValue(value);
                     } else if(td.getFieldType(i)==Type.STRING_TYPE) {
-                        StringField field = (StringField) tuple.getField(i);
-                        String value = field.getValue();
-
-                        strHistMap.get(fieldName).addValue(value);
+                        strs[i].addValue(((StringField) tuple.getField(i)).getValue());
                     }
                 }
             }
+            iter.close();
         } catch (DbException e){
             e.printStackTrace();
         } catch (TransactionAbortedException e){
             e.printStackTrace();
         }
+        if (totalTuples == 0)
+            return;
+        for(int i = 0; i < n; i++){
+            if(td.getFieldType(i)==Type.INT_TYPE){
+                minsForIntHist.put(td.getFieldName(i), mins[i]);
+                maxsForIntHist.put(td.getFieldName(i), maxs[i]);
+            }
+        }
+    }
+
+    /** Identifies a stats file */
+    static final int STATS_MAGIC = 0x53444253;
+
+    /** The version of the format of stats files; older files are recomputed */
+    static final int STATS_VERSION = 4;
+
+    /**
+     * @return the stats file of a table file: the table file's name with
+     *         ".stats" appended, or null if the table is not kept in a file
+     */
+    static File statsFile(DbFile f) {
+        File data = f instanceof HeapFile ? ((HeapFile) f).getFile()
+                : f instanceof BTreeFile ? ((BTreeFile) f).getFile() : null;
+        return data == null ? null : new File(data.getPath() + ".stats");
+    }
+
+    /**
+     * The version stamp of a table file: its length, when it was last
+     * modified and its number of pages. Stats saved with another stamp are
+     * stale.
+     */
+    private static long[] stamp(DbFile f) {
+        File data = f instanceof HeapFile ? ((HeapFile) f).getFile() : ((BTreeFile) f).getFile();
+        int pages = f instanceof HeapFile ? ((HeapFile) f).numPages() : ((BTreeFile) f).numPages();
+        return new long[] { data.length(), data.lastModified(), pages };
+    }
+
+    /**
+     * Saves these statistics in the stats file of their table: the version
+     * stamp of the table file, the number of tuples, and the sketch of the
+     * distinct values and the histogram of each field. The file is written aside and then renamed, so a reader
+     * never sees it half written.
+     *
+     * @throws IOException
+     *             if the table is not kept in a file, or the stats file can
+     *             not be written
+     */
+    public void save() throws IOException {
+        File f = statsFile(file);
+        if (f == null)
+            throw new IOException("table " + tableid + " is not kept in a file");
+        File tmp = new File(f.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(STATS_MAGIC);
+            out.writeInt(STATS_VERSION);
+            for (long l : stamp(file))
+                out.writeLong(l);
+            out.writeInt(totalTuples);
+            out.writeInt(scannedTuples);
+            out.writeDouble(sampled);
+            out.writeInt(td.numFields());
+            for (int i = 0; i < td.numFields(); i++) {
+                String name = td.getFieldName(i);
+                out.writeByte(td.getFieldType(i).ordinal());
+                for (long l : ndvSketches.get(name))
+                    out.writeLong(l);
+                if (td.getFieldType(i) == Type.INT_TYPE) {
+                    out.writeByte(kinds[i].ordinal());
+                    out.writeBoolean(minsForIntHist.containsKey(name));
+                    if (minsForIntHist.containsKey(name)) {
+                        out.writeInt(minsForIntHist.get(name));
+                        out.writeInt(maxsForIntHist.get(name));
+                    }
+                    intHistMap.get(name).write(out);
+                } else {
+                    strHistMap.get(name).write(out);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads the statistics of a table back from its stats file, whatever
+     * kinds of histogram and sample fraction they were computed with.
+     *
+     * @param tableid
+     *            The table whose statistics to read
+     * @param ioCostPerPage
+     *            The cost per page of IO
+     * @return the statistics, or null if there is no stats file, or it is
+     *         stale: the table file or its schema has changed since it was
+     *         written, or it has an older format
+     */
+    public static TableStats load(int tableid, int ioCostPerPage) {
+        DbFile dbFile = Database.getCatalog().getDatabaseFile(tableid);
+        File f = statsFile(dbFile);
+        if (f == null || !f.exists())
+            return null;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+            try {
+                return new TableStats(tableid, ioCostPerPage, dbFile, in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // a stale or damaged file: the statistics are computed again
+            return null;
+        }
+    }
+
+    /**
+     * Reads the statistics of a table back from its stats file, if they were
+     * computed as a new TableStats with these kinds and sample fraction would
+     * be: with the same kinds of histogram, and from at least as many pages.
+     *
+     * @param tableid
+     *            The table whose statistics to read
+     * @param ioCostPerPage
+     *            The cost per page of IO
+     * @param kinds
+     *            The kind of histogram of each field, as for
+     *            {@link #TableStats(int, int, HistogramKind[])}
+     * @param sampleFraction
+     *            The fraction of the pages to read, above 0 and at most 1
+     * @return the statistics, or null if {@link #load(int, int)} finds none,
+     *         or they were computed differently
+     */
+    public static TableStats load(int tableid, int ioCostPerPage,
+            HistogramKind[] kinds, double sampleFraction) {
+        if (!(sampleFraction > 0 && sampleFraction <= 1))
+            throw new IllegalArgumentException("sample fraction must be in (0, 1], not " + sampleFraction);
+        TableStats s = load(tableid, ioCostPerPage);
+        if (s == null || !Arrays.equals(s.kinds, kindsOf(s.td, kinds)))
+            return null;
+        if (s.file instanceof HeapFile && s.sampled < 1) {
+            int numPages = ((HeapFile) s.file).numPages();
+            if (Math.round(s.sampled * numPages) < samplePageCount(numPages, sampleFraction))
+                return null;
+        }
+        return s;
+    }
+
+    /**
+     * Reads statistics from a stats file.
+     *
+     * @throws IOException
+     *             if the file does not hold fresh statistics of the table
+     */
+    private TableStats(int tableid, int ioCostPerPage, DbFile file, DataInputStream in)
+            throws IOException {
+        this.tableid = tableid;
+        this.ioCostPerPage = ioCostPerPage;
+        this.file = file;
+        this.td = file.getTupleDesc();
+        if (in.readInt() != STATS_MAGIC || in.readInt() != STATS_VERSION)
+            throw new IOException("not a stats file of this version");
+        for (long l : stamp(file))
+            if (in.readLong() != l)
+                throw new IOException("the table has changed");
+        this.totalTuples = in.readInt();
+        this.scannedTuples = in.readInt();
+        this.sampled = in.readDouble();
+        if (in.readInt() != td.numFields())
+            throw new IOException("the schema has changed");
+        this.kinds = new HistogramKind[td.numFields()];
+        minsForIntHist = new HashMap<>();
+        maxsForIntHist = new HashMap<>();
+        intHistMap = new HashMap<>();
+        strHistMap = new HashMap<>();
+        ndvSketches = new HashMap<>();
+        for (int i = 0; i < td.numFields(); i++) {
+            String name = td.getFieldName(i);
+            if (in.readByte() != td.getFieldType(i).ordinal())
+                throw new IOException("the schema has changed");
+            long[] sketch = new long[HyperLogLog.stateWidth(NDV_PRECISION)];
+            for (int j = 0; j < sketch.length; j++)
+                sketch[j] = in.readLong();
+            ndvSketches.put(name, sketch);
+            if (td.getFieldType(i) == Type.INT_TYPE) {
+                kinds[i] = HistogramKind.values()[in.readByte()];
+                if (in.readBoolean()) {
+                    minsForIntHist.put(name, in.readInt());
+                    maxsForIntHist.put(name, in.readInt());
+                }
+                intHistMap.put(name, kinds[i] == HistogramKind.EQUI_DEPTH
+                        ? EquiDepthHistogram.read(in) : IntHistogram.read(in));
+            } else {
+                kinds[i] = HistogramKind.EQUI_DEPTH;
+                strHistMap.put(name, StringEquiDepthHistogram.read(in));
+            }
+        }
     }
 
     /**
@@ -242,10 +752,28 @@ public class TableStats {
      * The semantic of the method is that, given the table, and then given a
      * tuple, of which we do not know the value of the field, return the
      * expected selectivity. You may estimate this value from the histograms.
+     * <p>
+     * The histogram gives the chance that two tuples have the same value;
+     * the other pairs are as often below as above each other.
      * */
-    public double avgSelectivity(int field, Predicate.Op op) {
+    public synchronized double avgSelectivity(int field, Predicate.Op op) {
         // some code goes here
-        return 1.0;
+        String name = td.getFieldName(field);
+        double eq = td.getFieldType(field) == Type.INT_TYPE
+                ? intHistMap.get(name).avgSelectivity() : strHistMap.get(name).avgSelectivity();
+        switch (op) {
+        case NOT_EQUALS:
+            return 1 - eq;
+        case LESS_THAN:
+        case GREATER_THAN:
+            return (1 - eq) / 2;
+        case LESS_THAN_OR_EQ:
+        case GREATER_THAN_OR_EQ:
+            return (1 + eq) / 2;
+        default:
+            // EQUALS, and LIKE, which matches at least the equal values
+            return eq;
+        }
     }
 
     /**
@@ -261,7 +789,7 @@ public class TableStats {
      * @return The estimated selectivity (fraction of tuples that satisfy) the
      *         predicate
      */
-    public double estimateSelectivity(int field, Predicate.Op op, Field constant) {
+    public synchronized double estimateSelectivity(int field, Predicate.Op op, Field constant) {
         // some code goes here
         String fieldName = td.getFieldName(field);
         if(td.getFieldType(field)==Type.INT_TYPE){
@@ -274,12 +802,200 @@ public class TableStats {
         return 0;
     }
 
+    /**
+     * Estimates the number of distinct values of a field from its
+     * {@link HyperLogLog} sketch. The distinct values of a block sample are
+     * scaled up to the table only if there are many of them, since a field
+     * with few distinct values has most of them in any sample. The estimate
+     * is at most the number of tuples, and for an integer field the size of
+     * its range.
+     *
+     * @param field
+     *            the index of the field
+     * @return the estimated number of distinct values, at least 1
+     */
+    public synchronized int estimateDistinctValues(int field) {
+        String fieldName = td.getFieldName(field);
+        double ndv = HyperLogLog.estimate(ndvSketches.get(fieldName), 0, NDV_PRECISION);
+        if (sampled < 1 && ndv > NDV_SCALE_THRESHOLD * scannedTuples)
+            ndv = ndv * totalTuples / Math.max(scannedTuples, 1);
+        ndv = Math.min(ndv, totalTuples);
+        if (td.getFieldType(field) == Type.INT_TYPE && minsForIntHist.containsKey(fieldName)) {
+            ndv = Math.min(ndv, (double) maxsForIntHist.get(fieldName)
+                    - minsForIntHist.get(fieldName) + 1);
+        }
+        return (int) Math.max(Math.round(ndv), 1);
+    }
+
+    /**
+     * Estimates the fraction of the pairs of a tuple of this table and a
+     * tuple of another table for which "field op otherField" is true, for a
+     * range predicate. The range of the other field is cut into at most
+     * {@link #JOIN_STEPS} steps; the share of the other tuples in each step,
+     * from its histogram, is weighted by the selectivity of the predicate on
+     * this field against the middle of the step, from this histogram. Only
+     * integer fields have ranges: other fields get the flat 0.3 the
+     * optimizer has always used.
+     *
+     * @param field
+     *            the index of the field of this table
+     * @param op
+     *            the predicate
+     * @param other
+     *            the statistics of the other table
+     * @param otherField
+     *            the index of the field of the other table
+     * @return the estimated selectivity, between 0 and 1
+     */
+    public double estimateJoinSelectivity(int field, Predicate.Op op, TableStats other,
+            int otherField) {
+        if (td.getFieldType(field) != Type.INT_TYPE
+                || other.td.getFieldType(otherField) != Type.INT_TYPE
+                || op == Predicate.Op.LIKE)
+            return 0.3;
+        Integer lo, hi;
+        synchronized (other) {
+            lo = other.minsForIntHist.get(other.td.getFieldName(otherField));
+            hi = other.maxsForIntHist.get(other.td.getFieldName(otherField));
+        }
+        if (lo == null || totalTuples() == 0)
+            return 0;
+        long width = (long) hi - lo + 1;
+        int steps = (int) Math.min(JOIN_STEPS, width);
+        double s = 0;
+        double atOrAbove = 1;
+        for (int k = 0; k < steps; k++) {
+            long start = lo + width * k / steps;
+            long end = lo + width * (k + 1) / steps;
+            double next = end > hi ? 0
+                    : other.estimateSelectivity(otherField, Predicate.Op.GREATER_THAN_OR_EQ,
+                            new IntField((int) end));
+            double share = Math.max(0, atOrAbove - next);
+            atOrAbove = next;
+            if (share > 0)
+                s += share * estimateSelectivity(field, op, new IntField((int) ((start + end - 1) / 2)));
+        }
+        return Math.max(0, Math.min(1, s));
+    }
+
+    /**
+     * @return the fraction of the pages of the table that were read to
+     *         compute these statistics
+     */
+    public double sampledFraction() {
+        return sampled;
+    }
+
+    /**
+     * @param field
+     *            the index of a field
+     * @return the kind of histogram kept on the field, if it is an int field
+     */
+    public HistogramKind getHistogramKind(int field) {
+        return kinds[field];
+    }
+
     /**
      * return the total number of tuples in this table
      * */
-    public int totalTuples() {
+    public synchronized int totalTuples() {
         // some code goes here
         return totalTuples;
     }
 
+    /**
+     * @return the number of tuples inserted or deleted since these
+     *         statistics were computed
+     */
+    public synchronized int modifiedTuples() {
+        return modified;
+    }
+
+    /**
+     * Counts a tuple inserted (delta 1) or deleted (delta -1) into the number
+     * of tuples and the histograms, and once enough tuples have been, has the
+     * statistics computed again in the background, to replace these ones.
+     * Only heap files are computed again; the statistics of other files are
+     * kept up to date by the counts alone. Tuples modified meanwhile are
+     * counted into the new statistics when they replace these ones. Tuples
+     * of transactions that abort are counted all the same, until then.
+     */
+    private synchronized void update(Tuple t, int delta) {
+        if (replacedBy != null) {
+            // the tuple was modified while these statistics were replaced
+            replacedBy.update(t, delta);
+            return;
+        }
+        if (reanalyzing)
+            (delta > 0 ? pendingInserts : pendingDeletes).add(t);
+        totalTuples = Math.max(0, totalTuples + delta);
+        modified++;
+        // the histograms and sketches count the tuples of the sample, so they
+        // take in the same share of the modified tuples: every one of them
+        // for a whole table, and one in four for a quarter of its pages
+        updateCredit += sampled;
+        if (updateCredit >= 1) {
+            updateCredit -= 1;
+            scannedTuples = Math.max(0, scannedTuples + delta);
+            count(t, delta);
+        }
+        if (!reanalyzing && file instanceof HeapFile
+                && modified >= Math.max(REANALYZE_MIN_TUPLES, reanalyzeFraction * totalTuples)) {
+            reanalyzing = true;
+            final double fraction = sampleFraction;
+            analyzer().execute(() -> {
+                try {
+                    TableStats fresh = new TableStats(tableid, ioCostPerPage, kinds, fraction);
+                    synchronized (this) {
+                        // the tuples modified while the table was read; those
+                        // the read already saw are counted twice
+                        for (Tuple p : pendingInserts)
+                            fresh.update(p, 1);
+                        for (Tuple p : pendingDeletes)
+                            fresh.update(p, -1);
+                        pendingInserts.clear();
+                        pendingDeletes.clear();
+                        if (statsMap.replace(Database.getCatalog().getTableName(tableid), this, fresh))
+                            replacedBy = fresh;
+                        else
+                            reanalyzing = false;
+                    }
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                    synchronized (this) {
+                        pendingInserts.clear();
+                        pendingDeletes.clear();
+                        reanalyzing = false;
+                    }
+                }
+            });
+        }
+    }
+
+    /** Adds the values of t to the histograms and sketches, or removes them */
+    private void count(Tuple t, int delta) {
+        for (int i = 0; i < td.numFields(); i++) {
+            String name = td.getFieldName(i);
+            // a sketch can not forget a value, so deletes leave it as it is
+            if (delta > 0)
+                HyperLogLog.add(ndvSketches.get(name), 0, NDV_PRECISION, HyperLogLog.hash(t.getField(i)));
+            if (td.getFieldType(i) == Type.INT_TYPE) {
+                int v = ((IntField) t.getField(i)).getValue();
+                if (delta > 0) {
+                    intHistMap.get(name).addValue(v);
+                    minsForIntHist.merge(name, v, Math::min);
+                    maxsForIntHist.merge(name, v, Math::max);
+                } else {
+                    intHistMap.get(name).removeValue(v);
+                }
+            } else {
+                String v = ((StringField) t.getField(i)).getValue();
+                if (delta > 0)
+                    strHistMap.get(name).addValue(v);
+                else
+                    strHistMap.get(name).removeValue(v);
+            }
+        }
+    }
+
 }
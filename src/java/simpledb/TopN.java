@@ -0,0 +1,200 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * TopN is an operator that implements ORDER BY ... LIMIT n [OFFSET m].
+ * <p>
+ * Instead of sorting the whole child like {@link OrderBy}, it keeps only the
+ * best n + m tuples seen so far in a bounded heap whose root is the worst of
+ * them. Each child tuple is compared against the root and either discarded
+ * or swapped in, so memory use is proportional to n + m and the work per
+ * input tuple is O(log(n + m)). Ties are broken in favour of the tuple that
+ * arrived first, which gives the same answer as a stable sort followed by a
+ * LIMIT.
+ * <p>
+ * The heap is held in memory, so the planner only uses a TopN when
+ * {@link #fitsInMemory} says that it fits the memory budget of a sort;
+ * otherwise it uses an {@link OrderBy}, which spills to disk, under a
+ * {@link Limit}.
+ */
+public class TopN extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private OpIterator child;
+    private TupleDesc td;
+    private int[] orderByFields;
+    private boolean[] ascs;
+    private int limit;
+    private int offset;
+    private transient ArrayList<Tuple> result;
+    private transient Iterator<Tuple> it;
+
+    /**
+     * Creates a new TopN node over the tuples from the iterator.
+     * 
+     * @param orderbyFields
+     *            the fields to sort on, most significant first.
+     * @param ascs
+     *            for each sort key, true if it is sorted in ascending order.
+     * @param limit
+     *            the maximum number of tuples to return.
+     * @param offset
+     *            the number of leading tuples in the sort order to skip.
+     * @param child
+     *            the tuples to sort.
+     */
+    public TopN(int[] orderbyFields, boolean[] ascs, int limit, int offset,
+            OpIterator child) {
+        if (orderbyFields.length == 0 || orderbyFields.length != ascs.length)
+            throw new IllegalArgumentException(
+                    "need one sort direction for each of at least one sort key");
+        if (limit < 0 || offset < 0)
+            throw new IllegalArgumentException("limit and offset must not be negative");
+        this.child = child;
+        this.td = child.getTupleDesc();
+        this.orderByFields = orderbyFields.clone();
+        this.ascs = ascs.clone();
+        this.limit = limit;
+        this.offset = offset;
+    }
+
+    /**
+     * @param limit
+     *            the maximum number of tuples to return
+     * @param offset
+     *            the number of leading tuples to skip
+     * @param td
+     *            the schema of the tuples to sort
+     * @return true if the limit + offset tuples a TopN keeps fit in
+     *         {@link OrderBy#DEFAULT_MEMORY_BUDGET} bytes of tuple data
+     */
+    public static boolean fitsInMemory(int limit, int offset, TupleDesc td) {
+        return ((long) limit + offset) * td.getSize() <= OrderBy.DEFAULT_MEMORY_BUDGET;
+    }
+
+    /**
+     * @return the indexes of all sort keys, most significant first
+     */
+    public int[] getOrderByFields() {
+        return orderByFields.clone();
+    }
+
+    /**
+     * @return for each sort key, true if it is sorted in ascending order
+     */
+    public boolean[] getAscOrders() {
+        return ascs.clone();
+    }
+
+    /**
+     * @return the maximum number of tuples returned
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return the number of leading tuples skipped
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        result = new ArrayList<Tuple>();
+        long keep = (long) limit + offset;
+        if (limit > 0) {
+            final Comparator<Ranked> order = new RankedComparator(
+                    new TupleComparator(orderByFields, ascs));
+            // the root of the heap is the worst tuple retained so far
+            PriorityQueue<Ranked> heap = new PriorityQueue<Ranked>(
+                    (int) Math.min(keep, 1024) + 1, Collections.reverseOrder(order));
+            long seq = 0;
+            child.open();
+            while (child.hasNext()) {
+                Ranked r = new Ranked(seq++, child.next());
+                if (heap.size() < keep) {
+                    heap.add(r);
+                } else if (order.compare(r, heap.peek()) < 0) {
+                    heap.poll();
+                    heap.add(r);
+                }
+            }
+            child.close();
+
+            Ranked[] best = heap.toArray(new Ranked[heap.size()]);
+            Arrays.sort(best, order);
+            for (int i = offset; i < best.length; i++)
+                result.add(best[i].tuple);
+        }
+        it = result.iterator();
+        super.open();
+    }
+
+    /** A tuple together with its position in the child's output. */
+    private static class Ranked {
+        final long seq;
+        final Tuple tuple;
+
+        Ranked(long seq, Tuple tuple) {
+            this.seq = seq;
+            this.tuple = tuple;
+        }
+    }
+
+    /** Orders by the sort keys, then by arrival. */
+    private static class RankedComparator implements Comparator<Ranked> {
+        private final Comparator<Tuple> keys;
+
+        RankedComparator(Comparator<Tuple> keys) {
+            this.keys = keys;
+        }
+
+        public int compare(Ranked a, Ranked b) {
+            int c = keys.compare(a.tuple, b.tuple);
+            if (c != 0)
+                return c;
+            return Long.compare(a.seq, b.seq);
+        }
+    }
+
+    public void close() {
+        super.close();
+        it = null;
+        result = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        it = result.iterator();
+    }
+
+    /**
+     * Operator.fetchNext implementation. Returns the retained tuples in order.
+     * 
+     * @return The next tuple in the ordering, or null if there are no more
+     *         tuples
+     */
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (it != null && it.hasNext())
+            return it.next();
+        return null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+
+}
@@ -0,0 +1,98 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BloomFilterTest extends SimpleDbTestBase {
+
+  /**
+   * Unit test for BloomFilter.mightContain(): no false negatives, and about
+   *   the requested rate of false positives
+   */
+  @Test public void falsePositiveRate() {
+    BloomFilter bloom = new BloomFilter(10000, 0.01);
+    for (int i = 0; i < 10000; i++)
+      bloom.add(new IntField(i * 7));
+    for (int i = 0; i < 10000; i++)
+      assertTrue(bloom.mightContain(new IntField(i * 7)));
+    int positives = 0;
+    for (int i = 0; i < 100000; i++)
+      if (bloom.mightContain(new IntField(-1 - i)))
+        positives++;
+    assertTrue("false positives: " + positives, positives < 2000);
+
+    BloomFilter strings = new BloomFilter(100);
+    strings.add(new StringField("dimension", Type.STRING_LEN));
+    assertTrue(strings.mightContain(new StringField("dimension", Type.STRING_LEN)));
+  }
+
+  private static ArrayList<String> drain(OpIterator op) throws Exception {
+    ArrayList<String> out = new ArrayList<String>();
+    op.open();
+    while (op.hasNext())
+      out.add(op.next().toString());
+    op.close();
+    Collections.sort(out);
+    return out;
+  }
+
+  /**
+   * A HashEquiJoin pushes a Bloom filter of its build side keys into the
+   *   probe side scan, through a Filter; the result is unchanged and most
+   *   non-matching probe tuples are rejected by the scan
+   */
+  @Test public void pushdown() throws Exception {
+    HeapFile dim = SystemTestUtil.createRandomHeapFile(2, 100, 10000, null, null);
+    HeapFile fact = SystemTestUtil.createRandomHeapFile(2, 20000, 10000, null, null);
+    TransactionId tid = new TransactionId();
+
+    SeqScan probe = new SeqScan(tid, fact.getId(), "f");
+    Filter f = new Filter(new Predicate(1, Predicate.Op.GREATER_THAN_OR_EQ,
+        new IntField(0)), probe);
+    JoinPredicate jp = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    HashEquiJoin hj = new HashEquiJoin(jp, new SeqScan(tid, dim.getId(), "d"), f);
+    ArrayList<String> hashed = drain(hj);
+    Join nl = new Join(jp, new SeqScan(tid, dim.getId(), "d"),
+        new SeqScan(tid, fact.getId(), "f"));
+    assertEquals(drain(nl), hashed);
+
+    RuntimeFilter rf = hj.getProbeFilter();
+    assertEquals(20000, rf.numProbed());
+    // at most 100 of the 10000 possible keys match
+    assertTrue(rf.rejectionRate() > 0.9);
+    assertTrue(rf.numProbed() - rf.numRejected() >= hashed.size());
+    assertTrue(probe.getRuntimeFilters().isEmpty());
+  }
+
+  /**
+   * Probe sides that are not scans are left alone
+   */
+  @Test public void noScan() throws Exception {
+    ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+    for (int i = 0; i < 10; i++)
+      tuples.add(Utility.getTuple(new int[] { i, i }, 2));
+    TupleDesc td = Utility.getTupleDesc(2);
+    HashEquiJoin hj = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 1),
+        new TupleIterator(td, tuples), new TupleIterator(td, tuples));
+    assertEquals(10, drain(hj).size());
+    assertNull(hj.getProbeFilter());
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(BloomFilterTest.class);
+  }
+}
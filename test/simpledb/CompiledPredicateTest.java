@@ -0,0 +1,87 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class CompiledPredicateTest extends SimpleDbTestBase {
+
+  /**
+   * A compiled predicate agrees with Predicate.filter for every operator,
+   *   over int and string fields
+   */
+  @Test public void matchesFilter() {
+    TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE });
+    ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+    for (int i = -3; i <= 3; i++) {
+      Tuple t = new Tuple(td);
+      t.setField(0, new IntField(i));
+      t.setField(1, new StringField("ab" + (i + 3), Type.STRING_LEN));
+      tuples.add(t);
+    }
+    for (Predicate.Op op : Predicate.Op.values()) {
+      Predicate[] preds = {
+          new Predicate(0, op, new IntField(1)),
+          new Predicate(1, op, new StringField("ab4", Type.STRING_LEN)),
+          new Predicate(1, op, new StringField("b", Type.STRING_LEN)),
+      };
+      for (Predicate p : preds) {
+        CompiledPredicate c = CompiledPredicate.compile(p);
+        for (Tuple t : tuples)
+          assertEquals(p + " on " + t, p.filter(t), c.test(t));
+      }
+    }
+  }
+
+  /**
+   * A compiled conjunction is true only if every predicate is
+   */
+  @Test public void conjunction() {
+    Predicate gt = new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(2));
+    Predicate lt = new Predicate(0, Predicate.Op.LESS_THAN, new IntField(8));
+    Predicate ne = new Predicate(0, Predicate.Op.NOT_EQUALS, new IntField(5));
+    CompiledPredicate none = CompiledPredicate.and(new Predicate[0]);
+    CompiledPredicate two = CompiledPredicate.and(gt, lt);
+    CompiledPredicate three = CompiledPredicate.and(gt, lt, ne);
+    for (int i = 0; i < 10; i++) {
+      Tuple t = Utility.getHeapTuple(i, 1);
+      assertTrue(none.test(t));
+      assertEquals(i > 2 && i < 8, two.test(t));
+      assertEquals(i > 2 && i < 8 && i != 5, three.test(t));
+    }
+  }
+
+  /**
+   * The planner applies the most selective filter of a table first
+   */
+  @Test public void selectiveFilterFirst() throws Exception {
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 2000, 1000, null, null, "c");
+    Database.getCatalog().addTable(f, "t");
+    TableStats.setTableStats("t", new TableStats(f.getId(), 1));
+    TransactionId tid = new TransactionId();
+    OpIterator plan = new Parser().generateLogicalPlan(tid,
+        "SELECT t.c0 FROM t WHERE t.c1 > 10 AND t.c0 = 500;")
+        .physicalPlan(tid, TableStats.getStatsMap(), false);
+    OpIterator op = plan;
+    while (!(op instanceof Filter))
+      op = ((Operator) op).getChildren()[0];
+    PredicateTree pt = ((Filter) op).getPredicateTree();
+    assertEquals(PredicateTree.Kind.AND, pt.getKind());
+    assertEquals(Predicate.Op.EQUALS, pt.getTerms().get(0).getPredicate().getOp());
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(CompiledPredicateTest.class);
+  }
+}
@@ -0,0 +1,201 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class DistinctTest extends SimpleDbTestBase {
+
+  int width = 2;
+  ArrayList<Tuple> tuples;
+  TupleDesc td;
+
+  /**
+   * Initialize each unit test
+   */
+  @Before public void createTuples() {
+    td = Utility.getTupleDesc(width);
+    tuples = new ArrayList<Tuple>();
+    Random r = new Random(7);
+    for (int i = 0; i < 20000; i++) {
+      tuples.add(Utility.getTuple(new int[] { r.nextInt(50), r.nextInt(100) }, width));
+    }
+  }
+
+  private static List<Integer> values(Tuple t) {
+    List<Integer> v = new ArrayList<Integer>();
+    for (int i = 0; i < t.getTupleDesc().numFields(); i++)
+      v.add(((IntField) t.getField(i)).getValue());
+    return v;
+  }
+
+  /** @return the distinct rows of tuples, in order of first occurrence */
+  private LinkedHashSet<List<Integer>> firstSeen() {
+    LinkedHashSet<List<Integer>> rows = new LinkedHashSet<List<Integer>>();
+    for (Tuple t : tuples)
+      rows.add(values(t));
+    return rows;
+  }
+
+  private static ArrayList<List<Integer>> drain(OpIterator op) throws Exception {
+    ArrayList<List<Integer>> out = new ArrayList<List<Integer>>();
+    while (op.hasNext())
+      out.add(values(op.next()));
+    return out;
+  }
+
+  /**
+   * Unit test for Distinct.getNext() in memory: every row is returned once,
+   *   in order of first occurrence
+   */
+  @Test public void inMemory() throws Exception {
+    Distinct d = new Distinct(new TupleIterator(td, tuples));
+    assertFalse(d.isSortBased());
+    d.open();
+    assertEquals(new ArrayList<List<Integer>>(firstSeen()), drain(d));
+    assertEquals(0, d.numSpilledPartitions());
+    d.close();
+  }
+
+  /**
+   * With a small memory budget, rows that do not fit are spilled and
+   *   deduplicated later; the rows that fit keep their order
+   */
+  @Test public void spilled() throws Exception {
+    Distinct d = new Distinct(new TupleIterator(td, tuples), 16 * 1024);
+    d.open();
+    ArrayList<List<Integer>> out = drain(d);
+    assertTrue(d.numSpilledPartitions() > 0);
+    assertEquals(firstSeen().size(), out.size());
+    assertEquals(firstSeen(), new HashSet<List<Integer>>(out));
+    ArrayList<List<Integer>> expected = new ArrayList<List<Integer>>(firstSeen());
+    assertEquals(expected.subList(0, 50), out.subList(0, 50));
+
+    // rewinding discards the spilled partitions and starts over
+    d.rewind();
+    assertEquals(out, drain(d));
+    d.close();
+  }
+
+  /**
+   * Distinct returns each new row as soon as it is read, so a LIMIT above it
+   *   stops reading early
+   */
+  @Test public void streams() throws Exception {
+    TopNTest.CountingIterator child = new TopNTest.CountingIterator(td, tuples);
+    Limit l = new Limit(10, 0, new Distinct(child));
+    l.open();
+    assertEquals(10, drain(l).size());
+    assertTrue(child.pulled < 100);
+    l.close();
+  }
+
+  /**
+   * Over input sorted on every field, duplicates are removed by comparing
+   *   neighbouring rows
+   */
+  @Test public void sortBased() throws Exception {
+    OrderBy sorted = new OrderBy(new int[] { 1, 0 }, new boolean[] { true, false },
+        new TupleIterator(td, tuples));
+    Distinct d = new Distinct(sorted, 1);
+    assertTrue(d.isSortBased());
+    assertEquals(2, SortOrder.of(d).length);
+    d.open();
+    ArrayList<List<Integer>> out = drain(d);
+    assertEquals(firstSeen(), new HashSet<List<Integer>>(out));
+    assertEquals(firstSeen().size(), out.size());
+    for (int i = 1; i < out.size(); i++)
+      assertTrue(out.get(i - 1).get(1) <= out.get(i).get(1));
+    d.rewind();
+    assertEquals(out, drain(d));
+    d.close();
+
+    // sorted on only some fields is not enough
+    OrderBy partly = new OrderBy(new int[] { 1 }, new boolean[] { true },
+        new TupleIterator(td, tuples));
+    assertFalse(new Distinct(partly).isSortBased());
+  }
+
+  /**
+   * SELECT DISTINCT through the parser, with and without ORDER BY and LIMIT
+   */
+  @Test public void parser() throws Exception {
+    ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 3000, 20, null, rows, "c");
+    Database.getCatalog().addTable(f, "t");
+    TableStats.setTableStats("t", new TableStats(f.getId(), 1));
+    HashSet<Integer> c0 = new HashSet<Integer>();
+    HashSet<List<Integer>> both = new HashSet<List<Integer>>();
+    for (ArrayList<Integer> row : rows) {
+      c0.add(row.get(0));
+      both.add(Arrays.asList(row.get(0), row.get(1)));
+    }
+    TransactionId tid = new TransactionId();
+    Parser p = new Parser();
+
+    OpIterator plan = p.generateLogicalPlan(tid, "SELECT DISTINCT t.c0 FROM t;")
+        .physicalPlan(tid, TableStats.getStatsMap(), false);
+    plan.open();
+    ArrayList<List<Integer>> out = drain(plan);
+    plan.close();
+    assertEquals(c0.size(), out.size());
+    for (List<Integer> v : out)
+      assertTrue(c0.contains(v.get(0)));
+
+    // sorting on every output field removes duplicates without hashing
+    plan = p.generateLogicalPlan(tid,
+        "SELECT DISTINCT t.c1, t.c0 FROM t ORDER BY t.c0 DESC, t.c1;")
+        .physicalPlan(tid, TableStats.getStatsMap(), false);
+    assertTrue(plan instanceof Distinct && ((Distinct) plan).isSortBased());
+    plan.open();
+    out = drain(plan);
+    plan.close();
+    assertEquals(both.size(), out.size());
+    for (int i = 1; i < out.size(); i++)
+      assertTrue(out.get(i - 1).get(1) >= out.get(i).get(1));
+
+    // duplicates are removed before the limit
+    plan = p.generateLogicalPlan(tid, "SELECT DISTINCT t.c0 FROM t ORDER BY t.c0;")
+        .physicalPlan(tid, TableStats.getStatsMap(), false);
+    plan.open();
+    out = drain(plan);
+    plan.close();
+    assertEquals(c0.size(), out.size());
+    LogicalPlan lp = p.generateLogicalPlan(tid, "SELECT DISTINCT t.c0 FROM t ORDER BY t.c0;");
+    lp.addLimit(3, 1);
+    plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+    plan.open();
+    assertEquals(out.subList(1, 4), drain(plan));
+    plan.close();
+
+    try {
+      p.generateLogicalPlan(tid, "SELECT DISTINCT t.c0 FROM t ORDER BY t.c1;")
+          .physicalPlan(tid, TableStats.getStatsMap(), false);
+      assertTrue(false);
+    } catch (ParsingException e) {
+      assertTrue(e.getMessage().contains("SELECT list"));
+    }
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(DistinctTest.class);
+  }
+}
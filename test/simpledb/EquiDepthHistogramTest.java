@@ -0,0 +1,183 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.Predicate.Op;
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class EquiDepthHistogramTest extends SimpleDbTestBase {
+
+  /** @return n values between 1 and range drawn from a Zipf distribution */
+  private static int[] zipf(int n, int range, double skew, long seed) {
+    double[] cumulative = new double[range];
+    double sum = 0;
+    for (int k = 1; k <= range; k++) {
+      sum += 1 / Math.pow(k, skew);
+      cumulative[k - 1] = sum;
+    }
+    Random r = new Random(seed);
+    int[] values = new int[n];
+    for (int i = 0; i < n; i++) {
+      int k = Arrays.binarySearch(cumulative, r.nextDouble() * sum);
+      values[i] = (k < 0 ? -k - 1 : k) + 1;
+    }
+    return values;
+  }
+
+  private static double actual(int[] values, Op op, int v) {
+    int n = 0;
+    for (int x : values)
+      if (new IntField(x).compare(op, new IntField(v)))
+        n++;
+    return (double) n / values.length;
+  }
+
+  /**
+   * The cases of IntHistogramTest: a few values, and a negative range
+   */
+  @Test public void smallCases() {
+    EquiDepthHistogram h = new EquiDepthHistogram(10, 10);
+    for (int v : new int[] { 3, 3, 3, 1, 10 })
+      h.addValue(v);
+    assertEquals(0.6, h.estimateSelectivity(Op.EQUALS, 3), 1e-9);
+    assertTrue(h.estimateSelectivity(Op.EQUALS, 8) < 0.001);
+    assertTrue(h.estimateSelectivity(Op.NOT_EQUALS, 8) > 0.999);
+    assertTrue(h.estimateSelectivity(Op.GREATER_THAN, -1) > 0.999);
+    assertTrue(h.estimateSelectivity(Op.GREATER_THAN, 2) > 0.6);
+    assertTrue(h.estimateSelectivity(Op.GREATER_THAN, 4) < 0.4);
+    assertTrue(h.estimateSelectivity(Op.GREATER_THAN, 12) < 0.001);
+    assertTrue(h.estimateSelectivity(Op.LESS_THAN, 2) < 0.4);
+    assertTrue(h.estimateSelectivity(Op.LESS_THAN, 4) > 0.6);
+    assertTrue(h.estimateSelectivity(Op.GREATER_THAN_OR_EQ, 3) > 0.45);
+    assertTrue(h.estimateSelectivity(Op.GREATER_THAN_OR_EQ, 4) < 0.5);
+    assertTrue(h.estimateSelectivity(Op.LESS_THAN_OR_EQ, 3) > 0.45);
+    assertTrue(h.estimateSelectivity(Op.LESS_THAN_OR_EQ, 12) > 0.999);
+
+    h = new EquiDepthHistogram(10, 10);
+    for (int c = -60; c <= -10; c++)
+      h.addValue(c);
+    assertTrue(h.estimateSelectivity(Op.EQUALS, -33) < 0.3);
+    assertTrue(h.estimateSelectivity(Op.EQUALS, -33) > 0.001);
+    assertEquals(0.5, h.estimateSelectivity(Op.LESS_THAN, -35), 0.05);
+  }
+
+  /**
+   * The histogram keeps a sample of bounded size, so it takes constant
+   *   space, and its estimates over every value add up to 1
+   */
+  @Test public void constantSpace() {
+    EquiDepthHistogram h = new EquiDepthHistogram(100, 100);
+    for (int c = 0; c < 5000000; c++)
+      h.addValue((c * 23) % 101);
+    assertEquals(5000000, h.totalValues());
+    double selectivity = 0.0;
+    for (int c = 0; c < 101; c++)
+      selectivity += h.estimateSelectivity(Op.EQUALS, c);
+    assertEquals(1.0, selectivity, 0.01);
+    assertEquals(1.0 / 101, h.avgSelectivity(), 0.001);
+  }
+
+  /**
+   * On a Zipfian field the most common values get their own estimates, and
+   *   both equalities and ranges are much closer than with fixed-width buckets
+   */
+  @Test public void skewed() {
+    int[] values = zipf(50000, 10000, 1.1, 1);
+    EquiDepthHistogram ed = new EquiDepthHistogram(100, 100);
+    IntHistogram fw = new IntHistogram(100, 1, 10000);
+    for (int v : values) {
+      ed.addValue(v);
+      fw.addValue(v);
+    }
+    double edError = 0, fwError = 0;
+    for (int v : new int[] { 1, 2, 3, 5, 10, 50, 200, 1000, 5000 }) {
+      for (Op op : new Op[] { Op.EQUALS, Op.LESS_THAN, Op.GREATER_THAN_OR_EQ }) {
+        double a = actual(values, op, v);
+        double e = ed.estimateSelectivity(op, v);
+        assertEquals(op + " " + v, a, e, 0.02);
+        edError += Math.abs(e - a);
+        fwError += Math.abs(fw.estimateSelectivity(op, v) - a);
+      }
+    }
+    assertTrue(edError * 10 < fwError);
+    assertEquals(actual(values, Op.EQUALS, 1), ed.estimateSelectivity(Op.EQUALS, 1), 0.01);
+  }
+
+  /**
+   * Once built, the histogram counts values added and removed into their
+   *   most common value or bucket, widening the buckets for new values
+   */
+  @Test public void incremental() {
+    EquiDepthHistogram h = new EquiDepthHistogram(10, 10);
+    for (int c = 0; c < 1000; c++)
+      h.addValue(c % 2 == 0 ? 8 : c % 100);
+    assertEquals(0.5, h.estimateSelectivity(Op.EQUALS, 8), 0.01);
+    for (int c = 0; c < 500; c++)
+      h.removeValue(8);
+    assertEquals(500, h.totalValues());
+    assertTrue(h.estimateSelectivity(Op.EQUALS, 8) < 0.001);
+    assertEquals(0.5, h.estimateSelectivity(Op.LESS_THAN, 50), 0.05);
+
+    for (int c = 0; c < 500; c++)
+      h.addValue(1000 + c % 10);
+    assertEquals(1000, h.totalValues());
+    assertEquals(0.5, h.estimateSelectivity(Op.GREATER_THAN, 99), 0.05);
+    assertEquals(0.25, h.estimateSelectivity(Op.LESS_THAN, 50), 0.05);
+    assertTrue(h.estimateSelectivity(Op.EQUALS, 1005) > 0.001);
+
+    // a histogram without any buckets gets one
+    h = new EquiDepthHistogram(10, 10);
+    h.addValue(1);
+    h.addValue(1);
+    assertEquals(1.0, h.estimateSelectivity(Op.EQUALS, 1), 0);
+    // 5 widens the bucket, and shares it with 1
+    h.addValue(5);
+    assertEquals(0.5, h.estimateSelectivity(Op.EQUALS, 5), 1e-9);
+    assertEquals(1.0, h.estimateSelectivity(Op.LESS_THAN_OR_EQ, 5), 1e-9);
+  }
+
+  /**
+   * TableStats keeps the kind of histogram chosen for each field
+   */
+  @Test public void tableStats() throws Exception {
+    int[] skewed = zipf(20000, 1000, 1.2, 2);
+    ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+    for (int v : skewed)
+      tuples.add(new ArrayList<Integer>(Arrays.asList(v, v)));
+    File f = File.createTempFile("skewed", ".dat");
+    f.deleteOnExit();
+    HeapFileEncoder.convert(tuples, f, BufferPool.getPageSize(), 2);
+    HeapFile hf = Utility.openHeapFile(2, "c", f);
+    Database.getCatalog().addTable(hf, "skewed");
+
+    TableStats s = new TableStats(hf.getId(), 1000, new TableStats.HistogramKind[] {
+        TableStats.HistogramKind.FIXED_WIDTH, null });
+    assertEquals(TableStats.HistogramKind.FIXED_WIDTH, s.getHistogramKind(0));
+    assertEquals(TableStats.HistogramKind.EQUI_DEPTH, s.getHistogramKind(1));
+    assertEquals(TableStats.HistogramKind.EQUI_DEPTH,
+        new TableStats(hf.getId(), 1000).getHistogramKind(0));
+
+    double a = actual(skewed, Op.EQUALS, 1);
+    assertEquals(a, s.estimateSelectivity(1, Op.EQUALS, new IntField(1)), 0.001);
+    assertTrue(Math.abs(s.estimateSelectivity(0, Op.EQUALS, new IntField(1)) - a) > 0.1);
+    a = actual(skewed, Op.LESS_THAN, 20);
+    assertEquals(a, s.estimateSelectivity(1, Op.LESS_THAN, new IntField(20)), 0.02);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(EquiDepthHistogramTest.class);
+  }
+}
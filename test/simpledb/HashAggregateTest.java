@@ -0,0 +1,203 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class HashAggregateTest extends SimpleDbTestBase {
+
+  OpIterator scan;
+
+  /**
+   * Initialize each unit test
+   */
+  @Before public void createTupleList() {
+    this.scan = TestUtil.createTupleList(3,
+        new int[] { 1, 1, 2,
+                    1, 1, 4,
+                    1, 2, 6,
+                    3, 1, 2,
+                    3, 1, 5,
+                    3, 1, 6,
+                    1, 1, 7 });
+  }
+
+  /**
+   * Unit test for HashAggregate.getTupleDesc()
+   */
+  @Test public void getTupleDesc() {
+    HashAggregate op = new HashAggregate(scan, new int[] { 1, 0 },
+        new int[] { 2, 2 },
+        new Aggregator.Op[] { Aggregator.Op.SUM, Aggregator.Op.AVG });
+    TupleDesc td = op.getTupleDesc();
+    assertEquals(4, td.numFields());
+    assertEquals(scan.getTupleDesc().getFieldName(1), td.getFieldName(0));
+    assertEquals(scan.getTupleDesc().getFieldName(0), td.getFieldName(1));
+    assertEquals("sum(" + scan.getTupleDesc().getFieldName(2) + ")", td.getFieldName(2));
+    assertEquals(Type.INT_TYPE, td.getFieldType(3));
+  }
+
+  /**
+   * Unit test for several aggregates over a two-field grouping key
+   */
+  @Test public void multipleAggregatesCompositeKey() throws Exception {
+    HashAggregate op = new HashAggregate(scan, new int[] { 0, 1 },
+        new int[] { 2, 2, 2, 2, 2 },
+        new Aggregator.Op[] { Aggregator.Op.COUNT, Aggregator.Op.SUM,
+            Aggregator.Op.AVG, Aggregator.Op.MIN, Aggregator.Op.MAX });
+    OpIterator expected = TestUtil.createTupleList(7,
+        new int[] { 1, 1, 3, 13, 4, 2, 7,
+                    1, 2, 1, 6, 6, 6, 6,
+                    3, 1, 3, 13, 4, 2, 6 });
+    op.open();
+    expected.open();
+    TestUtil.matchAllTuples(expected, op);
+    op.rewind();
+    int n = 0;
+    while (op.hasNext()) {
+      op.next();
+      n++;
+    }
+    assertEquals(3, n);
+    op.close();
+  }
+
+  /**
+   * Unit test for HashAggregate without grouping, including an empty input
+   */
+  @Test public void noGrouping() throws Exception {
+    HashAggregate op = new HashAggregate(scan, new int[0], new int[] { 2, 0 },
+        new Aggregator.Op[] { Aggregator.Op.AVG, Aggregator.Op.COUNT });
+    op.open();
+    Tuple t = op.next();
+    assertEquals(new IntField(4), t.getField(0));
+    assertEquals(new IntField(7), t.getField(1));
+    assertTrue(TestUtil.checkExhausted(op));
+    op.close();
+
+    OpIterator empty = new TupleIterator(scan.getTupleDesc(), new ArrayList<Tuple>());
+    op = new HashAggregate(empty, new int[0], new int[] { 0 },
+        new Aggregator.Op[] { Aggregator.Op.COUNT });
+    op.open();
+    assertEquals(new IntField(0), op.next().getField(0));
+    assertTrue(TestUtil.checkExhausted(op));
+    op.close();
+  }
+
+  /**
+   * Unit test for HashAggregate with a memory budget small enough that the
+   *   groups are spilled and the partitions are split again
+   */
+  @Test public void spilledGroups() throws Exception {
+    TupleDesc td = Utility.getTupleDesc(3);
+    ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+    HashMap<String, long[]> expected = new HashMap<String, long[]>();
+    Random r = new Random(11);
+    for (int i = 0; i < 20000; i++) {
+      int a = r.nextInt(300), b = r.nextInt(10), v = r.nextInt(1000);
+      tuples.add(Utility.getTuple(new int[] { a, v, b }, 3));
+      String key = a + "," + b;
+      long[] aggs = expected.get(key);
+      if (aggs == null) {
+        aggs = new long[] { 0, 0, Long.MAX_VALUE };
+        expected.put(key, aggs);
+      }
+      aggs[0]++;
+      aggs[1] += v;
+      aggs[2] = Math.min(aggs[2], v);
+    }
+
+    HashAggregate op = new HashAggregate(new TupleIterator(td, tuples),
+        new int[] { 0, 2 }, new int[] { 1, 1, 1 },
+        new Aggregator.Op[] { Aggregator.Op.COUNT, Aggregator.Op.SUM, Aggregator.Op.MIN },
+        4096);
+    op.open();
+    assertTrue(op.numSpilledPartitions() > 0);
+    for (int pass = 0; pass < 2; pass++) {
+      HashMap<String, long[]> seen = new HashMap<String, long[]>();
+      while (op.hasNext()) {
+        Tuple t = op.next();
+        String key = t.getField(0) + "," + t.getField(1);
+        long[] aggs = expected.get(key);
+        assertTrue(seen.put(key, aggs) == null);
+        assertEquals(new IntField((int) aggs[0]), t.getField(2));
+        assertEquals(new IntField((int) aggs[1]), t.getField(3));
+        assertEquals(new IntField((int) aggs[2]), t.getField(4));
+      }
+      assertEquals(expected.size(), seen.size());
+      op.rewind();
+    }
+    op.close();
+  }
+
+  /**
+   * Only COUNT is supported over string fields
+   */
+  @Test(expected = IllegalArgumentException.class) public void stringSum() {
+    OpIterator strings = TestUtil.createTupleList(2,
+        new Object[] { 1, "a", 2, "b" });
+    new HashAggregate(strings, new int[] { 0 }, new int[] { 1 },
+        new Aggregator.Op[] { Aggregator.Op.SUM });
+  }
+
+  /**
+   * Queries with several aggregates and GROUP BY fields are planned as a
+   *   single HashAggregate
+   */
+  @Test public void parserMultipleAggregates() throws Exception {
+    ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+    HeapFile f = SystemTestUtil.createRandomHeapFile(3, 1000, 4, null, rows, "c");
+    Database.getCatalog().addTable(f, "t");
+    TableStats.setTableStats("t", new TableStats(f.getId(), 1));
+    TransactionId tid = new TransactionId();
+
+    HashMap<String, int[]> expected = new HashMap<String, int[]>();
+    for (ArrayList<Integer> row : rows) {
+      String key = row.get(1) + "," + row.get(0);
+      int[] aggs = expected.get(key);
+      if (aggs == null) {
+        aggs = new int[] { 0, 0, Integer.MIN_VALUE };
+        expected.put(key, aggs);
+      }
+      aggs[0]++;
+      aggs[1] += row.get(2);
+      aggs[2] = Math.max(aggs[2], row.get(2));
+    }
+
+    Parser p = new Parser();
+    LogicalPlan lp = p.generateLogicalPlan(tid,
+        "SELECT t.c1, t.c0, COUNT(*), SUM(t.c2), MAX(t.c2) FROM t GROUP BY t.c0, t.c1;");
+    OpIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+    assertTrue(((Operator) plan).getChildren()[0] instanceof HashAggregate);
+    plan.open();
+    int n = 0;
+    while (plan.hasNext()) {
+      Tuple t = plan.next();
+      int[] aggs = expected.get(t.getField(0) + "," + t.getField(1));
+      assertEquals(new IntField(aggs[0]), t.getField(2));
+      assertEquals(new IntField(aggs[1]), t.getField(3));
+      assertEquals(new IntField(aggs[2]), t.getField(4));
+      n++;
+    }
+    assertEquals(expected.size(), n);
+    plan.close();
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(HashAggregateTest.class);
+  }
+}
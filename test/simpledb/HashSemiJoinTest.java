@@ -0,0 +1,184 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class HashSemiJoinTest extends SimpleDbTestBase {
+
+  TupleDesc td;
+  ArrayList<Tuple> outer;
+  ArrayList<Tuple> inner;
+
+  /**
+   * Initialize each unit test
+   */
+  @Before public void createTuples() {
+    td = Utility.getTupleDesc(2);
+    outer = new ArrayList<Tuple>();
+    for (int i = 0; i < 10; i++)
+      outer.add(Utility.getTuple(new int[] { i, i * 10 }, 2));
+    // every inner key appears several times
+    inner = new ArrayList<Tuple>();
+    for (int k = 0; k < 3; k++)
+      for (int i : new int[] { 2, 3, 5, 7 })
+        inner.add(Utility.getTuple(new int[] { k, i }, 2));
+  }
+
+  private static ArrayList<Integer> firstFields(OpIterator op) throws Exception {
+    ArrayList<Integer> out = new ArrayList<Integer>();
+    while (op.hasNext())
+      out.add(((IntField) op.next().getField(0)).getValue());
+    return out;
+  }
+
+  private HashSemiJoin join(Predicate.Op op, boolean anti) {
+    return new HashSemiJoin(new JoinPredicate(0, op, 1),
+        new TupleIterator(td, outer), new TupleIterator(td, inner), anti);
+  }
+
+  /**
+   * Unit test for HashSemiJoin.getNext(): each matching outer tuple is
+   *   returned once, in order, with only the outer fields
+   */
+  @Test public void semiJoin() throws Exception {
+    HashSemiJoin j = join(Predicate.Op.EQUALS, false);
+    assertEquals(td, j.getTupleDesc());
+    j.open();
+    ArrayList<Integer> expected = new ArrayList<Integer>();
+    for (int i : new int[] { 2, 3, 5, 7 })
+      expected.add(i);
+    assertEquals(expected, firstFields(j));
+    j.rewind();
+    assertEquals(expected, firstFields(j));
+    j.close();
+  }
+
+  /**
+   * Unit test for an anti join: the outer tuples without a match
+   */
+  @Test public void antiJoin() throws Exception {
+    HashSemiJoin j = join(Predicate.Op.EQUALS, true);
+    j.open();
+    ArrayList<Integer> expected = new ArrayList<Integer>();
+    for (int i : new int[] { 0, 1, 4, 6, 8, 9 })
+      expected.add(i);
+    assertEquals(expected, firstFields(j));
+    j.close();
+  }
+
+  /**
+   * Predicates other than equality match against any inner value
+   */
+  @Test public void inequality() throws Exception {
+    // outer values greater than some inner value: greater than 2
+    HashSemiJoin j = join(Predicate.Op.GREATER_THAN, false);
+    j.open();
+    assertEquals(7, firstFields(j).size());
+    j.close();
+    j = join(Predicate.Op.GREATER_THAN, true);
+    j.open();
+    assertEquals(3, firstFields(j).size());
+    j.close();
+  }
+
+  /**
+   * The estimated cardinality is at most that of the outer side, and the
+   *   semi and anti join estimates add up to it
+   */
+  @Test public void cardinality() {
+    int semi = JoinOptimizer.estimateSemiJoinCardinality(Predicate.Op.EQUALS, false,
+        1000000, 100, 10000, 100);
+    int anti = JoinOptimizer.estimateSemiJoinCardinality(Predicate.Op.EQUALS, true,
+        1000000, 100, 10000, 100);
+    assertEquals(10000, semi);
+    assertEquals(1000000, semi + anti);
+    assertEquals(500, JoinOptimizer.estimateSemiJoinCardinality(Predicate.Op.EQUALS,
+        false, 500, 100000, 1000, 1000));
+    assertEquals(1, JoinOptimizer.estimateSemiJoinCardinality(Predicate.Op.LESS_THAN,
+        true, 500, 100, 500, 100));
+    // an equality matches the distinct inner values, not the inner rows
+    assertEquals(1000, JoinOptimizer.estimateSemiJoinCardinality(Predicate.Op.EQUALS,
+        false, 1000000, 100000, 10000, 10));
+  }
+
+  /**
+   * IN, NOT IN, EXISTS and NOT EXISTS through the parser
+   */
+  @Test public void parser() throws Exception {
+    ArrayList<ArrayList<Integer>> rowsA = new ArrayList<ArrayList<Integer>>();
+    ArrayList<ArrayList<Integer>> rowsB = new ArrayList<ArrayList<Integer>>();
+    HeapFile a = SystemTestUtil.createRandomHeapFile(2, 2000, 200, null, rowsA, "c");
+    HeapFile b = SystemTestUtil.createRandomHeapFile(2, 500, 200, null, rowsB, "c");
+    Database.getCatalog().addTable(a, "a");
+    Database.getCatalog().addTable(b, "b");
+    TableStats.setTableStats("a", new TableStats(a.getId(), 1));
+    TableStats.setTableStats("b", new TableStats(b.getId(), 1));
+    TransactionId tid = new TransactionId();
+    Parser p = new Parser();
+
+    // b.c0 values with b.c1 > 100, and all of them
+    HashSet<Integer> filtered = new HashSet<Integer>();
+    HashSet<Integer> all = new HashSet<Integer>();
+    for (ArrayList<Integer> row : rowsB) {
+      all.add(row.get(0));
+      if (row.get(1) > 100)
+        filtered.add(row.get(0));
+    }
+    int in = 0, inAll = 0;
+    for (ArrayList<Integer> row : rowsA) {
+      if (filtered.contains(row.get(0)))
+        in++;
+      if (all.contains(row.get(0)))
+        inAll++;
+    }
+
+    String[] queries = {
+        "SELECT a.c0, a.c1 FROM a WHERE a.c0 IN (SELECT b.c0 FROM b WHERE b.c1 > 100);",
+        "SELECT a.c0, a.c1 FROM a WHERE a.c0 NOT IN (SELECT b.c0 FROM b WHERE b.c1 > 100);",
+        "SELECT a.c0, a.c1 FROM a WHERE EXISTS (SELECT b.c1 FROM b WHERE b.c0 = a.c0 AND b.c1 > 100);",
+        "SELECT a.c0, a.c1 FROM a WHERE NOT EXISTS (SELECT b.c1 FROM b WHERE a.c0 = b.c0);",
+    };
+    int[] expected = { in, rowsA.size() - in, in, rowsA.size() - inAll };
+
+    // the inner side of a subquery has the distinct values of its column
+    SeqScan scan = new SeqScan(tid, b.getId(), "b");
+    assertEquals(all.size(), JoinOptimizer.estimateSubplanDistinct(scan, 0,
+        rowsB.size(), TableStats.getStatsMap()), all.size() * 0.05);
+    assertEquals(10, JoinOptimizer.estimateSubplanDistinct(scan, 0, 10,
+        TableStats.getStatsMap()));
+
+    for (int i = 0; i < queries.length; i++) {
+      OpIterator plan = p.generateLogicalPlan(tid, queries[i])
+          .physicalPlan(tid, TableStats.getStatsMap(), false);
+      assertEquals(2, plan.getTupleDesc().numFields());
+      plan.open();
+      assertEquals(queries[i], expected[i], firstFields(plan).size());
+      plan.close();
+    }
+
+    try {
+      p.generateLogicalPlan(tid, "SELECT a.c0 FROM a WHERE EXISTS (SELECT b.c1 FROM b WHERE b.c1 > 100);");
+      assertTrue(false);
+    } catch (ParsingException e) {
+      assertTrue(e.getMessage().contains("correlated"));
+    }
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(HashSemiJoinTest.class);
+  }
+}
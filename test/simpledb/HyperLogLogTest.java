@@ -0,0 +1,159 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class HyperLogLogTest extends SimpleDbTestBase {
+
+  /** Asserts that an estimate is within a relative error of the truth */
+  private static void assertClose(long expected, long actual, double error) {
+    assertTrue("estimate " + actual + " for " + expected,
+        Math.abs(actual - expected) <= error * expected);
+  }
+
+  /**
+   * Unit test for HyperLogLog.estimate() over int and string values, from
+   *   a handful of values to a million
+   */
+  @Test public void estimate() {
+    int p = HyperLogLog.DEFAULT_PRECISION;
+    for (int n : new int[] { 10, 1000, 100000, 1000000 }) {
+      long[] ints = new long[HyperLogLog.stateWidth(p)];
+      long[] strings = new long[HyperLogLog.stateWidth(p)];
+      for (int i = 0; i < n; i++) {
+        // every value is added twice; duplicates must not count
+        for (int k = 0; k < 2; k++) {
+          HyperLogLog.add(ints, 0, p, HyperLogLog.hash(new IntField(i * 31)));
+          HyperLogLog.add(strings, 0, p,
+              HyperLogLog.hash(new StringField("visitor" + i, Type.STRING_LEN)));
+        }
+      }
+      // about three standard errors
+      assertClose(n, HyperLogLog.estimate(ints, 0, p), 0.05);
+      assertClose(n, HyperLogLog.estimate(strings, 0, p), 0.05);
+    }
+    assertEquals(512, HyperLogLog.stateWidth(p));
+  }
+
+  /**
+   * Merging the sketches of two overlapping sets gives the sketch of their
+   *   union
+   */
+  @Test public void merge() {
+    int p = 10;
+    long[] a = new long[HyperLogLog.stateWidth(p) + 1];
+    long[] b = new long[HyperLogLog.stateWidth(p) + 1];
+    long[] union = new long[HyperLogLog.stateWidth(p) + 1];
+    for (int i = 0; i < 30000; i++) {
+      long h = HyperLogLog.hash(new IntField(i));
+      if (i < 20000)
+        HyperLogLog.add(a, 1, p, h);
+      if (i >= 10000)
+        HyperLogLog.add(b, 1, p, h);
+      HyperLogLog.add(union, 1, p, h);
+    }
+    HyperLogLog.merge(a, b, 1, p);
+    for (int i = 0; i < a.length; i++)
+      assertEquals(union[i], a[i]);
+    assertClose(30000, HyperLogLog.estimate(a, 1, p), 0.1);
+  }
+
+  @Test(expected = IllegalArgumentException.class) public void precisionRange() {
+    HyperLogLog.checkPrecision(HyperLogLog.MAX_PRECISION + 1);
+  }
+
+  /**
+   * APPROX_COUNT_DISTINCT per group, through a HashAggregate that spills
+   *   and a ParallelAggregate that merges partial sketches
+   */
+  @Test public void aggregate() throws Exception {
+    ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 60000, 4, null, rows, "c");
+    Database.getCatalog().addTable(f, "t");
+    HashMap<Integer, HashSet<Integer>> expected = new HashMap<Integer, HashSet<Integer>>();
+    for (ArrayList<Integer> row : rows) {
+      if (!expected.containsKey(row.get(0)))
+        expected.put(row.get(0), new HashSet<Integer>());
+      expected.get(row.get(0)).add(row.get(1) * 1000 + row.get(0));
+    }
+    TransactionId tid = new TransactionId();
+    Aggregator.Op[] aops = new Aggregator.Op[] { Aggregator.Op.APPROX_COUNT_DISTINCT };
+
+    // the values are the second field, made distinct per group
+    ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+    for (ArrayList<Integer> row : rows)
+      tuples.add(Utility.getTuple(new int[] { row.get(0), row.get(1) * 1000 + row.get(0) }, 2));
+    HashAggregate hash = new HashAggregate(new TupleIterator(Utility.getTupleDesc(2), tuples),
+        new int[] { 0 }, new int[] { 1 }, aops, 8 * 1024);
+    hash.open();
+    int groups = 0;
+    while (hash.hasNext()) {
+      Tuple t = hash.next();
+      int key = ((IntField) t.getField(0)).getValue();
+      assertClose(expected.get(key).size(), ((IntField) t.getField(1)).getValue(), 0.05);
+      groups++;
+    }
+    assertTrue(hash.numSpilledPartitions() > 0);
+    assertEquals(expected.size(), groups);
+    hash.close();
+
+    HashSet<Integer> distinct = new HashSet<Integer>();
+    for (ArrayList<Integer> row : rows)
+      distinct.add(row.get(1));
+    ParallelAggregate par = new ParallelAggregate(new SeqScan(tid, f.getId(), "t"),
+        new int[0], new int[] { 1 }, aops, 4);
+    par.open();
+    assertClose(distinct.size(), ((IntField) par.next().getField(0)).getValue(), 0.05);
+    par.close();
+  }
+
+  /**
+   * APPROX_COUNT_DISTINCT can be used in SQL; COUNT(DISTINCT ...) is
+   *   rejected with a hint
+   */
+  @Test public void parser() throws Exception {
+    ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 5000, 3000, null, rows, "c");
+    Database.getCatalog().addTable(f, "t");
+    TableStats.setTableStats("t", new TableStats(f.getId(), 1));
+    HashSet<Integer> distinct = new HashSet<Integer>();
+    for (ArrayList<Integer> row : rows)
+      distinct.add(row.get(1));
+    TransactionId tid = new TransactionId();
+
+    Parser p = new Parser();
+    LogicalPlan lp = p.generateLogicalPlan(tid,
+        "SELECT APPROX_COUNT_DISTINCT(t.c1), COUNT(t.c1) FROM t;");
+    OpIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+    plan.open();
+    Tuple t = plan.next();
+    assertClose(distinct.size(), ((IntField) t.getField(0)).getValue(), 0.05);
+    assertEquals(new IntField(5000), t.getField(1));
+    plan.close();
+
+    try {
+      p.generateLogicalPlan(tid, "SELECT COUNT(DISTINCT t.c1) FROM t;");
+      assertTrue(false);
+    } catch (ParsingException e) {
+      assertTrue(e.getMessage().contains("APPROX_COUNT_DISTINCT(t.c1)"));
+    }
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(HyperLogLogTest.class);
+  }
+}
@@ -174,4 +174,47 @@ public class IntHistogramTest {
 		Assert.assertTrue(h.estimateSelectivity(Op.NOT_EQUALS, 3) < 0.001);
 		Assert.assertTrue(h.estimateSelectivity(Op.NOT_EQUALS, 8) > 0.01);
 	}
+
+	/**
+	 * A histogram that finds its range as values are added gives about the
+	 * same estimates as one that is told the range up front, whatever the
+	 * order of the values.
+	 */
+	@Test public void adaptiveRangeTest() {
+		IntHistogram fixed = new IntHistogram(100, -500, 1499);
+		IntHistogram adaptive = new IntHistogram(100);
+		java.util.Random r = new java.util.Random(3);
+		// the first values are in the middle, and the range grows both ways
+		for (int c = 0; c < 20000; c++) {
+			int v = c < 100 ? 500 + c : r.nextInt(2000) - 500;
+			fixed.addValue(v);
+			adaptive.addValue(v);
+		}
+		for (int v = -600; v <= 1600; v += 50) {
+			for (Op op : new Op[] { Op.LESS_THAN, Op.GREATER_THAN_OR_EQ, Op.NOT_EQUALS }) {
+				Assert.assertEquals(fixed.estimateSelectivity(op, v),
+						adaptive.estimateSelectivity(op, v), 0.02);
+			}
+			Assert.assertEquals(fixed.estimateSelectivity(Op.EQUALS, v),
+					adaptive.estimateSelectivity(Op.EQUALS, v), 0.001);
+		}
+	}
+
+	/**
+	 * Removing values takes them back out of their buckets; values outside
+	 * the range are ignored.
+	 */
+	@Test public void removeValueTest() {
+		IntHistogram h = new IntHistogram(10, 1, 10);
+		for (int c = 1; c <= 10; c++) {
+			h.addValue(c);
+			h.addValue(3);
+		}
+		Assert.assertEquals(0.55, h.estimateSelectivity(Op.EQUALS, 3), 0.001);
+		for (int c = 0; c < 10; c++)
+			h.removeValue(3);
+		h.removeValue(42);
+		Assert.assertEquals(0.1, h.estimateSelectivity(Op.EQUALS, 3), 0.001);
+		Assert.assertEquals(0.5, h.estimateSelectivity(Op.LESS_THAN_OR_EQ, 5), 0.001);
+	}
 }
@@ -0,0 +1,122 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class JoinCardinalityTest extends SimpleDbTestBase {
+
+  private ArrayList<ArrayList<Integer>> rowsA;
+  private ArrayList<ArrayList<Integer>> rowsB;
+  private HashMap<String, TableStats> stats;
+  private HashMap<String, Integer> aliases;
+
+  @Before public void setUp() throws Exception {
+    super.setUp();
+    // a.c0 has 5000 values, and b.c0 200 of them, at the top of the range
+    rowsA = new ArrayList<ArrayList<Integer>>();
+    rowsB = new ArrayList<ArrayList<Integer>>();
+    for (int i = 0; i < 20000; i++) {
+      ArrayList<Integer> r = new ArrayList<Integer>();
+      r.add((i * 7919) % 5000);
+      r.add(i % 3);
+      rowsA.add(r);
+    }
+    for (int i = 0; i < 3000; i++) {
+      ArrayList<Integer> r = new ArrayList<Integer>();
+      r.add(4800 + (i * 31) % 200);
+      r.add(i);
+      rowsB.add(r);
+    }
+    HeapFile a = JoinOptimizerTest.createDuplicateHeapFile(rowsA, 2, "c");
+    HeapFile b = JoinOptimizerTest.createDuplicateHeapFile(rowsB, 2, "c");
+    Database.getCatalog().addTable(a, "a");
+    Database.getCatalog().addTable(b, "b");
+    stats = new HashMap<String, TableStats>();
+    stats.put("a", new TableStats(a.getId(), 1));
+    stats.put("b", new TableStats(b.getId(), 1));
+    aliases = new HashMap<String, Integer>();
+    aliases.put("a", a.getId());
+    aliases.put("b", b.getId());
+  }
+
+  private static int distinct(ArrayList<ArrayList<Integer>> rows, int field) {
+    HashSet<Integer> values = new HashSet<Integer>();
+    for (ArrayList<Integer> r : rows)
+      values.add(r.get(field));
+    return values.size();
+  }
+
+  private long actual(Predicate.Op op) {
+    long n = 0;
+    for (ArrayList<Integer> ra : rowsA)
+      for (ArrayList<Integer> rb : rowsB)
+        if (new IntField(ra.get(0)).compare(op, new IntField(rb.get(0))))
+          n++;
+    return n;
+  }
+
+  private int estimate(Predicate.Op op) {
+    return JoinOptimizer.estimateTableJoinCardinality(op, "a", "b", "c0", "c0",
+        rowsA.size(), rowsB.size(), false, false, stats, aliases);
+  }
+
+  /**
+   * The sketches count the distinct values of each field, and keep them
+   *   across a save and a load
+   */
+  @Test public void distinctValues() throws Exception {
+    TableStats a = stats.get("a");
+    assertEquals(5000, a.estimateDistinctValues(0), 5000 * 0.05);
+    assertEquals(3, a.estimateDistinctValues(1));
+    TableStats b = stats.get("b");
+    assertEquals(distinct(rowsB, 0), b.estimateDistinctValues(0), 200 * 0.05);
+    assertEquals(3000, b.estimateDistinctValues(1), 3000 * 0.05);
+
+    // a sample holds every value of a field with few of them, and its
+    // share of a field with many
+    TableStats sampled = new TableStats(aliases.get("a"), 1, null, 0.2);
+    assertEquals(3, sampled.estimateDistinctValues(1));
+    assertEquals(5000, sampled.estimateDistinctValues(0), 5000 * 0.25);
+
+    a.save();
+    TableStats loaded = TableStats.load(aliases.get("a"), 1);
+    assertEquals(a.estimateDistinctValues(0), loaded.estimateDistinctValues(0));
+  }
+
+  /**
+   * Equi-joins and range joins are estimated from the data, within a few
+   *   percent, where the old guesses were 20000 rows and 0.3 of the pairs
+   */
+  @Test public void joinCardinalities() {
+    for (Predicate.Op op : new Predicate.Op[] { Predicate.Op.EQUALS, Predicate.Op.NOT_EQUALS,
+        Predicate.Op.LESS_THAN, Predicate.Op.GREATER_THAN_OR_EQ }) {
+      long a = actual(op);
+      int e = estimate(op);
+      System.out.println(op + ": actual " + a + ", estimated " + e);
+      assertEquals(op.toString(), a, e, a * 0.1);
+    }
+
+    // without statistics the old guesses are kept
+    assertEquals(20000, JoinOptimizer.estimateTableJoinCardinality(Predicate.Op.EQUALS,
+        "a", "b", "c0", "c0", 20000, 3000, false, false, new HashMap<String, TableStats>(), aliases));
+    assertEquals(3000, JoinOptimizer.estimateTableJoinCardinality(Predicate.Op.EQUALS,
+        "a", "b", "c0", "c0", 20000, 3000, true, false, stats, aliases));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(JoinCardinalityTest.class);
+  }
+}
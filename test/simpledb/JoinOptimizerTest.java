@@ -5,6 +5,8 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
 import java.util.Vector;
 
 import org.junit.Assert;
@@ -621,4 +623,294 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
         Assert.assertTrue(result.get(result.size() - 1).t2Alias.equals("a")
                 || result.get(result.size() - 1).t1Alias.equals("a"));
     }
+
+    /**
+     * Create a ring of tables t0, t1, ... joined in order, with two chords
+     * across it, and return a JoinOptimizer for its joins
+     */
+    private static JoinOptimizer ringJoinOptimizer(int tables,
+            HashMap<String, TableStats> stats,
+            HashMap<String, Double> filterSelectivities) throws IOException,
+            DbException, TransactionAbortedException, ParsingException {
+        Vector<LogicalJoinNode> nodes = new Vector<LogicalJoinNode>();
+        StringBuilder from = new StringBuilder(), where = new StringBuilder();
+        for (int i = 0; i < tables; i++) {
+            HeapFile f = SystemTestUtil.createRandomHeapFile(2, 20 * (i % 20 + 1),
+                    100, null, null, "c");
+            Database.getCatalog().addTable(f, "t" + i);
+            stats.put("t" + i, new TableStats(f.getId(), 100));
+            filterSelectivities.put("t" + i, 1.0);
+            from.append(i == 0 ? "" : ", ").append("t" + i);
+        }
+        int[][] edges = new int[tables + 2][];
+        for (int i = 0; i < tables; i++)
+            edges[i] = new int[] { i, (i + 1) % tables };
+        edges[tables] = new int[] { 2, tables * 2 / 3 };
+        edges[tables + 1] = new int[] { tables / 3, tables - 3 };
+        for (int[] e : edges) {
+            String f = "c" + (e[0] % 2);
+            nodes.add(new LogicalJoinNode("t" + e[0], "t" + e[1], f, f,
+                    Predicate.Op.EQUALS));
+            where.append(where.length() == 0 ? "" : " AND ").append(
+                    "t" + e[0] + "." + f + " = t" + e[1] + "." + f);
+        }
+        Collections.shuffle(nodes);
+
+        Parser p = new Parser();
+        return new JoinOptimizer(p.generateLogicalPlan(new TransactionId(),
+                "SELECT COUNT(t0.c0) FROM " + from + " WHERE " + where + ";"),
+                nodes);
+    }
+
+    /**
+     * Check that each join of a plan of a ring with two chords adds the
+     * tables of one side to those joined so far, except for the three joins
+     * that close a cycle, whose tables are both joined already. A plan may
+     * be bushy, so the joins of each side are tracked as groups.
+     */
+    private static void checkRingPlan(Vector<LogicalJoinNode> result, int tables) {
+        Assert.assertEquals(tables + 2, result.size());
+        HashMap<String, Integer> group = new HashMap<String, Integer>();
+        int closing = 0;
+        for (int i = 0; i < result.size(); i++) {
+            LogicalJoinNode n = result.get(i);
+            Integer g1 = group.get(n.t1Alias), g2 = group.get(n.t2Alias);
+            if (g1 != null && g1.equals(g2)) {
+                closing++;
+                continue;
+            }
+            for (Map.Entry<String, Integer> e : group.entrySet())
+                if (e.getValue().equals(g1) || e.getValue().equals(g2))
+                    e.setValue(i);
+            group.put(n.t1Alias, i);
+            group.put(n.t2Alias, i);
+        }
+        Assert.assertEquals(tables, group.size());
+        Assert.assertEquals(1, new HashSet<Integer>(group.values()).size());
+        Assert.assertEquals(3, closing);
+    }
+
+    /**
+     * Order the joins of a graph of 18 tables with cycles, which exhaustive
+     * enumeration of join subsets cannot plan in reasonable time, and make
+     * sure that no join in the plan is a cross product
+     */
+    @Test(timeout = 20000)
+    public void cyclicOrderJoinsTest() throws IOException, DbException,
+            TransactionAbortedException, ParsingException {
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        HashMap<String, Double> filterSelectivities = new HashMap<String, Double>();
+        JoinOptimizer j = ringJoinOptimizer(18, stats, filterSelectivities);
+        checkRingPlan(j.orderJoins(stats, filterSelectivities, false), 18);
+    }
+
+    /**
+     * Order the joins of more tables than dynamic programming can plan, and
+     * of a graph whose dynamic programming runs out of time, greedily
+     */
+    @Test(timeout = 20000)
+    public void greedyOrderJoinsTest() throws IOException, DbException,
+            TransactionAbortedException, ParsingException {
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        HashMap<String, Double> filterSelectivities = new HashMap<String, Double>();
+        JoinOptimizer j = ringJoinOptimizer(40, stats, filterSelectivities);
+        checkRingPlan(j.orderJoins(stats, filterSelectivities, false), 40);
+        j.setBushy(false);
+        checkRingPlan(j.orderJoins(stats, filterSelectivities, false), 40);
+
+        stats.clear();
+        filterSelectivities.clear();
+        j = ringJoinOptimizer(18, stats, filterSelectivities);
+        j.setPlanningBudget(0);
+        long start = System.currentTimeMillis();
+        checkRingPlan(j.orderJoins(stats, filterSelectivities, false), 18);
+        Assert.assertTrue(System.currentTimeMillis() - start < 1000);
+
+        try {
+            j.setMaxDpTables(JoinOptimizer.MAX_DP_TABLES + 1);
+            Assert.fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        // more tables than a set can hold
+        stats.clear();
+        filterSelectivities.clear();
+        j = ringJoinOptimizer(70, stats, filterSelectivities);
+        checkRingPlan(j.orderJoins(stats, filterSelectivities, false), 70);
+    }
+
+    /**
+     * Plan and run a query whose joins form a cycle: the join that closes
+     * it is between two tables already in the same plan, and filters it
+     */
+    @Test
+    public void cyclicPhysicalPlanTest() throws IOException, DbException,
+            TransactionAbortedException, ParsingException {
+        ArrayList<ArrayList<ArrayList<Integer>>> tables = new ArrayList<ArrayList<ArrayList<Integer>>>();
+        for (int t = 0; t < 3; t++) {
+            ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+            for (int i = 0; i < 300; i++) {
+                ArrayList<Integer> row = new ArrayList<Integer>();
+                row.add((i * (t + 3)) % 20);
+                row.add((i * 7 + t) % 30);
+                rows.add(row);
+            }
+            HeapFile f = createDuplicateHeapFile(rows, 2, "c");
+            Database.getCatalog().addTable(f, "t" + t);
+            TableStats.setTableStats("t" + t, new TableStats(f.getId(), 100));
+            tables.add(rows);
+        }
+        int expected = 0;
+        for (ArrayList<Integer> r0 : tables.get(0))
+            for (ArrayList<Integer> r1 : tables.get(1))
+                for (ArrayList<Integer> r2 : tables.get(2))
+                    if (r0.get(0).equals(r1.get(0)) && r1.get(1).equals(r2.get(1))
+                            && r2.get(0).equals(r0.get(0)))
+                        expected++;
+
+        TransactionId tid = new TransactionId();
+        OpIterator plan = new Parser().generateLogicalPlan(tid, "SELECT COUNT(t0.c0) FROM t0, t1, t2 "
+                + "WHERE t0.c0 = t1.c0 AND t1.c1 = t2.c1 AND t2.c0 = t0.c0;").physicalPlan(tid,
+                TableStats.getStatsMap(), false);
+        plan.open();
+        Assert.assertEquals(expected, ((IntField) plan.next().getField(0)).getValue());
+        Assert.assertFalse(plan.hasNext());
+        plan.close();
+
+        // the filter is estimated like the join it stands for
+        HashMap<String, Integer> aliases = new HashMap<String, Integer>();
+        for (int t = 0; t < 3; t++)
+            aliases.put("t" + t, Database.getCatalog().getTableId("t" + t));
+        OperatorCardinality.updateOperatorCardinality((Operator) plan, aliases,
+                TableStats.getStatsMap());
+        new QueryPlanVisualizer().printQueryPlanTree(plan, System.out);
+    }
+
+    /**
+     * Join the rows of each table as LogicalPlan.physicalPlan joins the
+     * plans of a join order, and return the size of the result of each join
+     */
+    private static int[] joinSizes(Vector<LogicalJoinNode> order,
+            HashMap<String, ArrayList<ArrayList<Integer>>> tables) {
+        HashMap<String, ArrayList<HashMap<String, Integer>>> plans = new HashMap<String, ArrayList<HashMap<String, Integer>>>();
+        HashMap<String, String> equiv = new HashMap<String, String>();
+        for (Map.Entry<String, ArrayList<ArrayList<Integer>>> e : tables.entrySet()) {
+            ArrayList<HashMap<String, Integer>> rows = new ArrayList<HashMap<String, Integer>>();
+            for (ArrayList<Integer> t : e.getValue()) {
+                HashMap<String, Integer> row = new HashMap<String, Integer>();
+                for (int i = 0; i < t.size(); i++)
+                    row.put(e.getKey() + ".c" + i, t.get(i));
+                rows.add(row);
+            }
+            plans.put(e.getKey(), rows);
+            equiv.put(e.getKey(), e.getKey());
+        }
+        int[] sizes = new int[order.size()];
+        for (int k = 0; k < order.size(); k++) {
+            LogicalJoinNode j = order.get(k);
+            String name1 = equiv.get(j.t1Alias), name2 = equiv.get(j.t2Alias);
+            HashMap<Integer, ArrayList<HashMap<String, Integer>>> index = new HashMap<Integer, ArrayList<HashMap<String, Integer>>>();
+            for (HashMap<String, Integer> r2 : plans.get(name2)) {
+                Integer key = r2.get(j.f2QuantifiedName);
+                if (!index.containsKey(key))
+                    index.put(key, new ArrayList<HashMap<String, Integer>>());
+                index.get(key).add(r2);
+            }
+            ArrayList<HashMap<String, Integer>> joined = new ArrayList<HashMap<String, Integer>>();
+            for (HashMap<String, Integer> r1 : plans.get(name1)) {
+                ArrayList<HashMap<String, Integer>> matches = index.get(r1.get(j.f1QuantifiedName));
+                if (matches == null)
+                    continue;
+                for (HashMap<String, Integer> r2 : matches) {
+                    HashMap<String, Integer> row = new HashMap<String, Integer>(r1);
+                    row.putAll(r2);
+                    joined.add(row);
+                }
+            }
+            plans.remove(name2);
+            plans.put(name1, joined);
+            for (Map.Entry<String, String> e : equiv.entrySet())
+                if (e.getValue().equals(name2))
+                    e.setValue(name1);
+            sizes[k] = joined.size();
+        }
+        return sizes;
+    }
+
+    /**
+     * Order the joins of a snowflake, a fact table with two branches of two
+     * dimension tables, and make sure that the bushy plan, which joins each
+     * branch on its own, has smaller intermediate results than the best
+     * left-deep plan and builds the same result
+     */
+    @Test
+    public void bushyOrderJoinsTest() throws IOException, DbException,
+            TransactionAbortedException, ParsingException {
+        HashMap<String, ArrayList<ArrayList<Integer>>> tables = new HashMap<String, ArrayList<ArrayList<Integer>>>();
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        HashMap<String, Double> filterSelectivities = new HashMap<String, Double>();
+        int[] sizes = { 2000, 200, 100, 200, 100 };
+        String[] names = { "fact", "d1", "d1a", "d2", "d2a" };
+        for (int t = 0; t < names.length; t++) {
+            ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+            for (int i = 0; i < sizes[t]; i++) {
+                // the fact table refers to d1 and d2, and d1 and d2 to d1a
+                // and d2a, by their keys in c0
+                ArrayList<Integer> row = new ArrayList<Integer>();
+                row.add(t == 0 ? i % 200 : i);
+                row.add(t == 0 ? i * 7 % 200 : i % 100);
+                rows.add(row);
+            }
+            HeapFile f = createDuplicateHeapFile(rows, 2, "c");
+            Database.getCatalog().addTable(f, names[t]);
+            TableStats.setTableStats(names[t], new TableStats(f.getId(), 100));
+            stats.put(names[t], TableStats.getTableStats(names[t]));
+            tables.put(names[t], rows);
+            filterSelectivities.put(names[t], 1.0);
+        }
+
+        Vector<LogicalJoinNode> nodes = new Vector<LogicalJoinNode>();
+        nodes.add(new LogicalJoinNode("fact", "d1", "c0", "c0", Predicate.Op.EQUALS));
+        nodes.add(new LogicalJoinNode("d1", "d1a", "c1", "c0", Predicate.Op.EQUALS));
+        nodes.add(new LogicalJoinNode("fact", "d2", "c1", "c0", Predicate.Op.EQUALS));
+        nodes.add(new LogicalJoinNode("d2", "d2a", "c1", "c0", Predicate.Op.EQUALS));
+        String query = "SELECT COUNT(fact.c0) FROM fact, d1, d1a, d2, d2a WHERE fact.c0 = d1.c0 "
+                + "AND d1.c1 = d1a.c0 AND fact.c1 = d2.c0 AND d2.c1 = d2a.c0;";
+        TransactionId tid = new TransactionId();
+        Parser p = new Parser();
+
+        JoinOptimizer j = new JoinOptimizer(p.generateLogicalPlan(tid, query), nodes);
+        int[] bushy = joinSizes(j.orderJoins(stats,
+                filterSelectivities, false), tables);
+        j = new JoinOptimizer(p.generateLogicalPlan(tid, query), nodes);
+        j.setBushy(false);
+        int[] leftDeep = joinSizes(j.orderJoins(stats,
+                filterSelectivities, false), tables);
+
+        Assert.assertEquals(2000, bushy[bushy.length - 1]);
+        Assert.assertEquals(2000, leftDeep[leftDeep.length - 1]);
+        int bushyIntermediate = 0, leftDeepIntermediate = 0;
+        for (int i = 0; i < nodes.size() - 1; i++) {
+            bushyIntermediate += bushy[i];
+            leftDeepIntermediate += leftDeep[i];
+        }
+        Assert.assertTrue(bushyIntermediate < leftDeepIntermediate);
+
+        // the planner's optimizers start with the default settings
+        JoinOptimizer.setDefaultBushy(false);
+        try {
+            j = new JoinOptimizer(p.generateLogicalPlan(tid, query), nodes);
+            Assert.assertArrayEquals(leftDeep, joinSizes(j.orderJoins(stats,
+                    filterSelectivities, false), tables));
+        } finally {
+            JoinOptimizer.setDefaultBushy(true);
+        }
+
+        OpIterator plan = p.generateLogicalPlan(tid, query).physicalPlan(tid,
+                TableStats.getStatsMap(), false);
+        plan.open();
+        Assert.assertEquals(2000, ((IntField) plan.next().getField(0)).getValue());
+        plan.close();
+    }
 }
@@ -0,0 +1,141 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class OrderByTest extends SimpleDbTestBase {
+
+  int width = 3;
+  ArrayList<Tuple> tuples;
+  TupleDesc td;
+
+  /**
+   * Initialize each unit test with a few thousand tuples whose first two
+   *   columns have many duplicates
+   */
+  @Before public void createTuples() {
+    td = Utility.getTupleDesc(width);
+    tuples = new ArrayList<Tuple>();
+    Random r = new Random(42);
+    for (int i = 0; i < 5000; i++) {
+      tuples.add(Utility.getTuple(new int[] { r.nextInt(10), r.nextInt(50), i }, width));
+    }
+  }
+
+  private TupleIterator sorted(int[] keys, boolean[] ascs) {
+    ArrayList<Tuple> expected = new ArrayList<Tuple>(tuples);
+    Collections.sort(expected, new TupleComparator(keys, ascs));
+    return new TupleIterator(td, expected);
+  }
+
+  /**
+   * Unit test for OrderBy.getNext() on a single key that fits in memory
+   */
+  @Test public void singleKeyInMemory() throws Exception {
+    OpIterator input = TestUtil.createTupleList(2,
+        new int[] { 3, 1,
+                    1, 2,
+                    2, 3,
+                    1, 4 });
+    OpIterator expected = TestUtil.createTupleList(2,
+        new int[] { 3, 1,
+                    2, 3,
+                    1, 2,
+                    1, 4 });
+    OrderBy op = new OrderBy(0, false, input);
+    op.open();
+    expected.open();
+    TestUtil.compareDbIterators(expected, op);
+    op.close();
+  }
+
+  /**
+   * Unit test for OrderBy.getNext() with mixed ASC/DESC keys and a memory
+   *   budget small enough to force more runs than can be merged at once
+   */
+  @Test public void multiKeySpilled() throws Exception {
+    int[] keys = new int[] { 0, 1 };
+    boolean[] ascs = new boolean[] { true, false };
+    long budget = 40 * td.getSize();
+    assertTrue(tuples.size() / 40 > ExternalSort.MERGE_FAN_IN);
+
+    OrderBy op = new OrderBy(keys, ascs, new TupleIterator(td, tuples), budget);
+    op.open();
+    OpIterator expected = sorted(keys, ascs);
+    expected.open();
+    TestUtil.compareDbIterators(expected, op);
+
+    op.rewind();
+    expected.rewind();
+    TestUtil.compareDbIterators(expected, op);
+    op.close();
+  }
+
+  /**
+   * Unit test for OrderBy on string keys that are spilled to disk
+   */
+  @Test public void stringKeySpilled() throws Exception {
+    Type[] types = new Type[] { Type.STRING_TYPE, Type.INT_TYPE };
+    TupleDesc std = new TupleDesc(types);
+    ArrayList<Tuple> stuples = new ArrayList<Tuple>();
+    Random r = new Random(7);
+    for (int i = 0; i < 1000; i++) {
+      Tuple t = new Tuple(std);
+      t.setField(0, new StringField("key" + r.nextInt(100), Type.STRING_LEN));
+      t.setField(1, new IntField(i));
+      stuples.add(t);
+    }
+    ArrayList<Tuple> expected = new ArrayList<Tuple>(stuples);
+    Collections.sort(expected, new TupleComparator(0, false));
+
+    OrderBy op = new OrderBy(new int[] { 0 }, new boolean[] { false },
+        new TupleIterator(std, stuples), 100 * std.getSize());
+    op.open();
+    OpIterator exp = new TupleIterator(std, expected);
+    exp.open();
+    TestUtil.compareDbIterators(exp, op);
+    op.close();
+  }
+
+  /**
+   * Unit test for OrderBy over an empty input
+   */
+  @Test public void emptyInput() throws Exception {
+    OrderBy op = new OrderBy(new int[] { 0 }, new boolean[] { true },
+        new TupleIterator(td, new ArrayList<Tuple>()), td.getSize());
+    op.open();
+    assertTrue(TestUtil.checkExhausted(op));
+    op.close();
+  }
+
+  /**
+   * Unit test for the accessors of a multi-key OrderBy
+   */
+  @Test public void getOrderByFields() {
+    OrderBy op = new OrderBy(new int[] { 1, 0 }, new boolean[] { false, true },
+        new TupleIterator(td, tuples));
+    assertEquals(1, op.getOrderByField());
+    assertEquals(false, op.isASC());
+    assertEquals(0, op.getOrderByFields()[1]);
+    assertEquals(true, op.getAscOrders()[1]);
+    assertEquals(td, op.getTupleDesc());
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(OrderByTest.class);
+  }
+}
@@ -0,0 +1,132 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ParallelAggregateTest extends SimpleDbTestBase {
+
+  ArrayList<ArrayList<Integer>> rows;
+  HeapFile f;
+  TransactionId tid;
+
+  /**
+   * Initialize each unit test with a table of several hundred pages
+   */
+  @Before public void createTable() throws Exception {
+    rows = new ArrayList<ArrayList<Integer>>();
+    f = SystemTestUtil.createRandomHeapFile(3, 60000, 20, null, rows, "c");
+    Database.getCatalog().addTable(f, "t");
+    tid = new TransactionId();
+    assertTrue(f.numPages() >= ParallelAggregate.MIN_PAGES);
+  }
+
+  /** Collects the output of an aggregate keyed on its first group field */
+  private HashMap<Field, Tuple> collect(OpIterator op) throws Exception {
+    HashMap<Field, Tuple> result = new HashMap<Field, Tuple>();
+    op.open();
+    while (op.hasNext()) {
+      Tuple t = op.next();
+      assertTrue(result.put(t.getField(0), t) == null);
+    }
+    op.close();
+    return result;
+  }
+
+  /**
+   * Unit test for ParallelAggregate.getNext(): with any number of workers
+   *   the groups are those of a HashAggregate, including exact averages
+   */
+  @Test public void matchesHashAggregate() throws Exception {
+    int[] gfields = new int[] { 0 };
+    int[] afields = new int[] { 1, 1, 2, 2, 2 };
+    Aggregator.Op[] aops = new Aggregator.Op[] { Aggregator.Op.COUNT,
+        Aggregator.Op.SUM, Aggregator.Op.AVG, Aggregator.Op.MIN, Aggregator.Op.MAX };
+    HashMap<Field, Tuple> expected = collect(new HashAggregate(
+        new SeqScan(tid, f.getId(), "t"), gfields, afields, aops));
+    for (int workers : new int[] { 1, 3, 8 }) {
+      ParallelAggregate op = new ParallelAggregate(new SeqScan(tid, f.getId(), "t"),
+          gfields, afields, aops, workers);
+      assertEquals(expected.size(), collect(op).size());
+      for (Tuple t : collect(op).values())
+        assertEquals(expected.get(t.getField(0)).toString(), t.toString());
+    }
+  }
+
+  /**
+   * Filters above the scan are applied by the workers
+   */
+  @Test public void filteredScan() throws Exception {
+    long count = 0, sum = 0;
+    for (ArrayList<Integer> row : rows) {
+      if (row.get(0) < 10 && row.get(1) > 5) {
+        count++;
+        sum += row.get(2);
+      }
+    }
+    OpIterator child = new Filter(new Predicate(1, Predicate.Op.GREATER_THAN, new IntField(5)),
+        new Filter(new Predicate(0, Predicate.Op.LESS_THAN, new IntField(10)),
+            new SeqScan(tid, f.getId(), "t")));
+    assertTrue(ParallelAggregate.supports(child));
+    ParallelAggregate op = new ParallelAggregate(child, new int[0],
+        new int[] { 2, 2 }, new Aggregator.Op[] { Aggregator.Op.COUNT, Aggregator.Op.AVG }, 4);
+    op.open();
+    Tuple t = op.next();
+    assertEquals(new IntField((int) count), t.getField(0));
+    assertEquals(new IntField((int) (sum / count)), t.getField(1));
+    assertFalse(op.hasNext());
+    op.rewind();
+    assertEquals(new IntField((int) count), op.next().getField(0));
+    op.close();
+  }
+
+  /**
+   * Only filtered scans of heap files can be split between workers
+   */
+  @Test public void supports() throws Exception {
+    OpIterator list = TestUtil.createTupleList(1, new int[] { 1, 2 });
+    assertFalse(ParallelAggregate.supports(list));
+    assertFalse(ParallelAggregate.supports(new OrderBy(0, true, new SeqScan(tid, f.getId(), "t"))));
+  }
+
+  /**
+   * Unit test for AggregateLayout.merge(): merged partial states give the
+   *   same results as a single state over all tuples
+   */
+  @Test public void mergeStates() {
+    TupleDesc td = Utility.getTupleDesc(1);
+    AggregateLayout layout = new AggregateLayout(td, new int[] { 0, 0, 0, 0, 0 },
+        new Aggregator.Op[] { Aggregator.Op.COUNT, Aggregator.Op.SUM,
+            Aggregator.Op.AVG, Aggregator.Op.MIN, Aggregator.Op.MAX });
+    long[] all = layout.newState(), a = layout.newState(), b = layout.newState();
+    int[] values = new int[] { 7, 1, 1, 1, 9, 4, 3 };
+    for (int i = 0; i < values.length; i++) {
+      Tuple t = Utility.getHeapTuple(values[i]);
+      layout.update(all, t);
+      layout.update(i < 2 ? a : b, t);
+    }
+    layout.merge(a, b);
+    for (int i = 0; i < layout.numAggregates(); i++)
+      assertEquals(layout.result(all, i), layout.result(a, i));
+    // the average of the averages of the parts would be (4 + 3) / 2
+    assertEquals(new IntField(26 / 7), layout.result(a, 2));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(ParallelAggregateTest.class);
+  }
+}
@@ -0,0 +1,193 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PredicatePushdownTest extends SimpleDbTestBase {
+
+  private static int count(Iterator<Tuple> it) {
+    int n = 0;
+    for (; it.hasNext(); it.next())
+      n++;
+    return n;
+  }
+
+  private static int count(DbFileIterator it) throws Exception {
+    int n = 0;
+    it.open();
+    for (; it.hasNext(); it.next())
+      n++;
+    it.close();
+    return n;
+  }
+
+  /**
+   * Unit test for HeapPage.iterator(RawPredicate, CompiledPredicate): the
+   *   predicate tested on the page bytes agrees with Predicate.filter, for
+   *   every operator on int and string fields
+   */
+  @Test public void rawPredicate() throws Exception {
+    TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE });
+    File f = File.createTempFile("pushdown", ".dat");
+    f.deleteOnExit();
+    HeapFile hf = new HeapFile(f, td);
+    Database.getCatalog().addTable(hf, "s");
+    HeapPageId pid = new HeapPageId(hf.getId(), 0);
+    HeapPage page = new HeapPage(pid, HeapPage.createEmptyPageData());
+    ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+    for (int i = -5; i < 20; i++) {
+      Tuple t = new Tuple(td);
+      t.setField(0, new IntField(i));
+      t.setField(1, new StringField("v" + (i % 7), Type.STRING_LEN));
+      page.insertTuple(t);
+      tuples.add(t);
+    }
+    byte[] data = page.getPageData();
+
+    for (Predicate.Op op : Predicate.Op.values()) {
+      PredicateTree[] trees = {
+          new PredicateTree(new Predicate(0, op, new IntField(3))),
+          new PredicateTree(new Predicate(1, op, new StringField("v3", Type.STRING_LEN))),
+          PredicateTree.or(Arrays.asList(
+              new PredicateTree(new Predicate(0, op, new IntField(10))),
+              new PredicateTree(new Predicate(1, op, new StringField("v", Type.STRING_LEN))))),
+      };
+      for (PredicateTree pt : trees) {
+        int expected = 0;
+        for (Tuple t : tuples)
+          if (pt.filter(t))
+            expected++;
+        HeapPage fresh = new HeapPage(pid, data);
+        Iterator<Tuple> it = fresh.iterator(RawPredicate.compile(pt, td), pt.compile());
+        int n = 0;
+        while (it.hasNext()) {
+          Tuple t = it.next();
+          assertTrue(pt.filter(t));
+          assertEquals(pid, t.getRecordId().getPageId());
+          n++;
+        }
+        assertEquals(pt.toString(), expected, n);
+      }
+    }
+
+    // tuples inserted after the page was read are tested once decoded
+    HeapPage fresh = new HeapPage(pid, data);
+    Tuple t = new Tuple(td);
+    t.setField(0, new IntField(100));
+    t.setField(1, new StringField("new", Type.STRING_LEN));
+    fresh.insertTuple(t);
+    PredicateTree big = new PredicateTree(new Predicate(0, Predicate.Op.GREATER_THAN,
+        new IntField(50)));
+    Iterator<Tuple> it = fresh.iterator(RawPredicate.compile(big, td), big.compile());
+    assertSame(t, it.next());
+    assertFalse(it.hasNext());
+    assertEquals(tuples.size() + 1, count(fresh.iterator()));
+
+    // a predicate that can not be read in place is tested on decoded tuples
+    assertNull(RawPredicate.compile(new PredicateTree(new Predicate(0, Predicate.Op.EQUALS,
+        new StringField("v3", Type.STRING_LEN))), td));
+    PredicateTree some = new PredicateTree(new Predicate(0, Predicate.Op.LESS_THAN, new IntField(3)));
+    assertEquals(8, count(new HeapPage(pid, data).iterator(null, some.compile())));
+    // undecoded tuples are written back unchanged
+    assertTrue(Arrays.equals(data, new HeapPage(pid, data).getPageData()));
+  }
+
+  /**
+   * A Filter over a SeqScan of a HeapFile pushes its predicate into the
+   *   scan while it is open
+   */
+  @Test public void heapScan() throws Exception {
+    ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+    HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 5000, 1000, null, rows);
+    int expected = 0;
+    for (ArrayList<Integer> r : rows)
+      if (r.get(0) < 100 || r.get(1) == 7)
+        expected++;
+
+    TransactionId tid = new TransactionId();
+    SeqScan scan = new SeqScan(tid, hf.getId());
+    PredicateTree pt = PredicateTree.or(Arrays.asList(
+        new PredicateTree(new Predicate(0, Predicate.Op.LESS_THAN, new IntField(100))),
+        new PredicateTree(new Predicate(1, Predicate.Op.EQUALS, new IntField(7)))));
+    Filter filter = new Filter(pt, scan);
+    filter.open();
+    assertTrue(filter.isPushedDown());
+    assertSame(pt, scan.getPredicate());
+    int n = 0;
+    for (; filter.hasNext(); filter.next())
+      n++;
+    assertEquals(expected, n);
+    filter.rewind();
+    n = 0;
+    for (; filter.hasNext(); filter.next())
+      n++;
+    assertEquals(expected, n);
+    filter.close();
+    assertNull(scan.getPredicate());
+
+    assertEquals(expected, count(hf.iterator(tid, pt)));
+    assertEquals(rows.size(), count(hf.iterator(tid, (PredicateTree) null)));
+  }
+
+  /**
+   * A BTreeFile turns a comparison on its key field into an index search,
+   *   preferring equality, and applies the rest of the predicate
+   */
+  @Test public void btreeScan() throws Exception {
+    ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+    BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 5000, 200, null, rows, 0);
+    int expected = 0, range = 0;
+    for (ArrayList<Integer> r : rows) {
+      if (r.get(0) == 42 && r.get(1) > 50)
+        expected++;
+      if (r.get(0) >= 150)
+        range++;
+    }
+
+    PredicateTree pt = PredicateTree.and(Arrays.asList(
+        new PredicateTree(new Predicate(1, Predicate.Op.GREATER_THAN, new IntField(50))),
+        new PredicateTree(new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(10))),
+        new PredicateTree(new Predicate(0, Predicate.Op.EQUALS, new IntField(42)))));
+    IndexPredicate ipred = bf.indexPredicate(pt);
+    assertEquals(Predicate.Op.EQUALS, ipred.getOp());
+    assertEquals(new IntField(42), ipred.getField());
+    assertNull(bf.indexPredicate(new PredicateTree(
+        new Predicate(1, Predicate.Op.EQUALS, new IntField(3)))));
+
+    TransactionId tid = new TransactionId();
+    assertEquals(expected, count(bf.iterator(tid, pt)));
+    assertEquals(range, count(bf.iterator(tid, new PredicateTree(
+        new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(150))))));
+
+    Database.getCatalog().addTable(bf, "b");
+    Filter filter = new Filter(pt, new SeqScan(tid, bf.getId()));
+    filter.open();
+    int n = 0;
+    for (; filter.hasNext(); filter.next())
+      n++;
+    filter.close();
+    assertEquals(expected, n);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(PredicatePushdownTest.class);
+  }
+}
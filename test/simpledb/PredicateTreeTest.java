@@ -0,0 +1,123 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PredicateTreeTest extends SimpleDbTestBase {
+
+  private static PredicateTree leaf(int field, Predicate.Op op, int value, double sel) {
+    return new PredicateTree(new Predicate(field, op, new IntField(value)), sel);
+  }
+
+  /**
+   * Unit test for PredicateTree.filter() and compile() on a nested tree
+   */
+  @Test public void filter() {
+    // c0 > 2 AND (c1 = 5 OR c1 < 2)
+    PredicateTree pt = PredicateTree.and(Arrays.asList(
+        leaf(0, Predicate.Op.GREATER_THAN, 2, 0.5),
+        PredicateTree.or(Arrays.asList(
+            leaf(1, Predicate.Op.EQUALS, 5, 0.1),
+            leaf(1, Predicate.Op.LESS_THAN, 2, 0.2)))));
+    CompiledPredicate compiled = pt.compile();
+    for (int i = 0; i < 10; i++) {
+      for (int j = 0; j < 10; j++) {
+        Tuple t = Utility.getTuple(new int[] { i, j }, 2);
+        boolean expected = i > 2 && (j == 5 || j < 2);
+        assertEquals(expected, pt.filter(t));
+        assertEquals(expected, compiled.test(t));
+        assertEquals(expected, pt.reorder().filter(t));
+      }
+    }
+    assertEquals(0.5 * (1 - 0.9 * 0.8), pt.getSelectivity(), 1e-9);
+  }
+
+  /**
+   * reorder() puts the cheap, selective terms of an AND first and the
+   *   cheap, likely terms of an OR first, and never raises the cost
+   */
+  @Test public void reorder() {
+    PredicateTree loose = leaf(0, Predicate.Op.GREATER_THAN, 0, 0.9);
+    PredicateTree tight = leaf(0, Predicate.Op.EQUALS, 3, 0.01);
+    PredicateTree string = new PredicateTree(new Predicate(1, Predicate.Op.LIKE,
+        new StringField("x", Type.STRING_LEN)), 0.01);
+
+    PredicateTree and = PredicateTree.and(Arrays.asList(loose, string, tight));
+    PredicateTree ordered = and.reorder();
+    assertSame(tight, ordered.getTerms().get(0));
+    assertSame(string, ordered.getTerms().get(1));
+    assertSame(loose, ordered.getTerms().get(2));
+    assertTrue(ordered.cost() < and.cost());
+
+    PredicateTree or = PredicateTree.or(Arrays.asList(tight, loose));
+    assertSame(loose, or.reorder().getTerms().get(0));
+    assertEquals(PredicateTree.INT_COMPARE_COST + 0.1 * PredicateTree.INT_COMPARE_COST,
+        or.reorder().cost(), 1e-9);
+  }
+
+  /**
+   * WHERE clauses with AND and OR are planned as a single Filter per table
+   *   and return the right tuples
+   */
+  @Test public void parser() throws Exception {
+    ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+    HeapFile f = SystemTestUtil.createRandomHeapFile(3, 3000, 100, null, rows, "c");
+    HeapFile g = SystemTestUtil.createRandomHeapFile(2, 10, 100, null, null, "c");
+    Database.getCatalog().addTable(f, "t");
+    Database.getCatalog().addTable(g, "u");
+    TableStats.setTableStats("t", new TableStats(f.getId(), 1));
+    TableStats.setTableStats("u", new TableStats(g.getId(), 1));
+    TransactionId tid = new TransactionId();
+    Parser p = new Parser();
+
+    int expected = 0;
+    for (ArrayList<Integer> r : rows)
+      if (r.get(2) < 90 && (r.get(0) == 7 || (r.get(1) > 50 && r.get(0) < 30)))
+        expected++;
+    OpIterator plan = p.generateLogicalPlan(tid,
+        "SELECT t.c0 FROM t WHERE t.c2 < 90 AND (t.c0 = 7 OR (t.c1 > 50 AND t.c0 < 30));")
+        .physicalPlan(tid, TableStats.getStatsMap(), false);
+    OpIterator op = plan;
+    int filters = 0;
+    while (op instanceof Operator) {
+      if (op instanceof Filter)
+        filters++;
+      op = ((Operator) op).getChildren()[0];
+    }
+    assertEquals(1, filters);
+
+    int count = 0;
+    plan.open();
+    while (plan.hasNext()) {
+      plan.next();
+      count++;
+    }
+    plan.close();
+    assertEquals(expected, count);
+
+    try {
+      p.generateLogicalPlan(tid, "SELECT t.c0 FROM t, u WHERE t.c0 = u.c0 AND (t.c1 = 1 OR u.c1 = 2);");
+      assertTrue(false);
+    } catch (ParsingException e) {
+      assertTrue(e.getMessage().contains("same table"));
+    }
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(PredicateTreeTest.class);
+  }
+}
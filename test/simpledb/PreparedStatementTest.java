@@ -0,0 +1,166 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PreparedStatementTest extends SimpleDbTestBase {
+
+  private ArrayList<ArrayList<Integer>> rowsT;
+  private ArrayList<ArrayList<Integer>> rowsU;
+
+  @Before public void setUp() throws Exception {
+    super.setUp();
+    rowsT = new ArrayList<ArrayList<Integer>>();
+    rowsU = new ArrayList<ArrayList<Integer>>();
+    HeapFile t = SystemTestUtil.createRandomHeapFile(3, 3000, 100, null, rowsT, "c");
+    HeapFile u = SystemTestUtil.createRandomHeapFile(2, 200, 100, null, rowsU, "c");
+    Database.getCatalog().addTable(t, "t");
+    Database.getCatalog().addTable(u, "u");
+    TableStats.setTableStats("t", new TableStats(t.getId(), 1));
+    TableStats.setTableStats("u", new TableStats(u.getId(), 1));
+  }
+
+  private static ArrayList<Tuple> run(PreparedStatement ps) throws Exception {
+    Query q = ps.newQuery(new TransactionId());
+    ArrayList<Tuple> out = new ArrayList<Tuple>();
+    q.start();
+    while (q.hasNext())
+      out.add(q.next());
+    q.close();
+    return out;
+  }
+
+  /**
+   * A prepared statement runs its plan again with new parameter values and
+   *   returns the same tuples as the statement with constants
+   */
+  @Test public void parameters() throws Exception {
+    Parser p = new Parser();
+    PreparedStatement ps = p.prepare("SELECT t.c0 FROM t WHERE t.c1 > ? AND t.c0 = ?;");
+    assertEquals(2, ps.getParameterCount());
+    assertEquals(Type.INT_TYPE, ps.getParameterType(1));
+    assertSame(ps, p.prepare("SELECT  t.c0\n FROM t WHERE t.c1 > ?   AND t.c0 = ?"));
+    for (int b = 0; b < 100; b += 7) {
+      ps.setInt(1, 40);
+      ps.setInt(2, b);
+      int expected = 0;
+      for (ArrayList<Integer> r : rowsT)
+        if (r.get(1) > 40 && r.get(0) == b)
+          expected++;
+      assertEquals(expected, run(ps).size());
+    }
+
+    // parameters within OR, a join and an aggregate
+    ps = p.prepare("SELECT COUNT(t.c0) FROM t, u WHERE t.c0 = u.c0"
+        + " AND (t.c2 < ? OR t.c2 = ?) AND u.c1 > ?;");
+    for (int v = 10; v < 100; v += 30) {
+      ps.setInt(1, v);
+      ps.setInt(2, 99);
+      ps.setInt(3, v);
+      int expected = 0;
+      for (ArrayList<Integer> rt : rowsT)
+        for (ArrayList<Integer> ru : rowsU)
+          if (rt.get(0).equals(ru.get(0)) && (rt.get(2) < v || rt.get(2) == 99) && ru.get(1) > v)
+            expected++;
+      assertEquals(expected, ((IntField) run(ps).get(0).getField(0)).getValue());
+    }
+
+    // parameters of a subquery are numbered in the order they appear; the
+    // statement is planned in the caller's transaction
+    ps = p.prepare("SELECT t.c0 FROM t WHERE t.c1 IN (SELECT u.c0 FROM u WHERE u.c1 < ?)"
+        + " AND t.c2 > ?;", new TransactionId());
+    ps.setInt(1, 30);
+    ps.setInt(2, 60);
+    HashSet<Integer> in = new HashSet<Integer>();
+    for (ArrayList<Integer> ru : rowsU)
+      if (ru.get(1) < 30)
+        in.add(ru.get(0));
+    int expected = 0;
+    for (ArrayList<Integer> rt : rowsT)
+      if (in.contains(rt.get(1)) && rt.get(2) > 60)
+        expected++;
+    assertEquals(expected, run(ps).size());
+  }
+
+  /**
+   * Parameters are checked for their number, type and value
+   */
+  @Test public void errors() throws Exception {
+    Parser p = new Parser();
+    PreparedStatement ps = p.prepare("SELECT t.c0 FROM t WHERE t.c1 = ?;");
+    try {
+      ps.newQuery(new TransactionId());
+      assertTrue(false);
+    } catch (DbException e) {
+    }
+    try {
+      ps.setString(1, "x");
+      assertTrue(false);
+    } catch (IllegalArgumentException e) {
+    }
+    try {
+      ps.setInt(2, 1);
+      assertTrue(false);
+    } catch (IllegalArgumentException e) {
+    }
+    ps.setInt(1, 5);
+    run(ps);
+    ps.clearParameters();
+    try {
+      ps.newQuery(new TransactionId());
+      assertTrue(false);
+    } catch (DbException e) {
+    }
+    try {
+      p.prepare("SELECT t.c0 FROM t, u WHERE t.c0 = u.c0 AND (t.c1 = ? OR u.c1 = ?);");
+      assertTrue(false);
+    } catch (ParsingException e) {
+    }
+  }
+
+  /**
+   * The statement cache evicts the least recently used statement, and plans
+   *   a statement again when the statistics of its tables change enough
+   */
+  @Test public void cache() throws Exception {
+    Parser p = new Parser();
+    p.getStatementCache().setCapacity(2);
+    PreparedStatement a = p.prepare("SELECT t.c0 FROM t WHERE t.c1 = ?;");
+    PreparedStatement b = p.prepare("SELECT u.c0 FROM u WHERE u.c1 = ?;");
+    assertSame(a, p.prepare("SELECT t.c0 FROM t WHERE t.c1 = ?;"));
+    p.prepare("SELECT u.c1 FROM u WHERE u.c0 = ?;");
+    assertEquals(2, p.getStatementCache().size());
+    assertSame(a, p.prepare("SELECT t.c0 FROM t WHERE t.c1 = ?;"));
+    assertNotSame(b, p.prepare("SELECT u.c0 FROM u WHERE u.c1 = ?;"));
+
+    // statistics of the same tuples do not change the plan; twice as many do
+    int id = Database.getCatalog().getTableId("t");
+    TableStats.setTableStats("t", new TableStats(id, 1));
+    assertSame(a, p.prepare("SELECT t.c0 FROM t WHERE t.c1 = ?;"));
+    HeapFile big = SystemTestUtil.createRandomHeapFile(3, 6000, 100, null, null, "c");
+    TableStats.setTableStats("t", new TableStats(big.getId(), 1));
+    PreparedStatement replanned = p.prepare("SELECT t.c0 FROM t WHERE t.c1 = ?;");
+    assertNotSame(a, replanned);
+    assertSame(replanned, p.prepare("SELECT t.c0 FROM t WHERE t.c1 = ?;"));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(PreparedStatementTest.class);
+  }
+}
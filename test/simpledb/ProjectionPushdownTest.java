@@ -0,0 +1,150 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ProjectionPushdownTest extends SimpleDbTestBase {
+
+  private static void findScans(OpIterator op, HashMap<String, SeqScan> scans) {
+    if (op instanceof SeqScan) {
+      scans.put(((SeqScan) op).getAlias(), (SeqScan) op);
+      return;
+    }
+    for (OpIterator child : ((Operator) op).getChildren())
+      findScans(child, scans);
+  }
+
+  private static ArrayList<Tuple> drain(OpIterator op) throws Exception {
+    ArrayList<Tuple> out = new ArrayList<Tuple>();
+    op.open();
+    while (op.hasNext())
+      out.add(op.next());
+    op.close();
+    return out;
+  }
+
+  /**
+   * Unit test for SeqScan.setOutputFields(): the scan returns only the
+   *   chosen fields, and a pushed down predicate is numbered as they are
+   */
+  @Test public void narrowedScan() throws Exception {
+    ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+    HeapFile f = SystemTestUtil.createRandomHeapFile(4, 2000, 100, null, rows, "c");
+    TransactionId tid = new TransactionId();
+    SeqScan scan = new SeqScan(tid, f.getId(), "t");
+    scan.setOutputFields(new int[] { 3, 1 });
+    TupleDesc td = scan.getTupleDesc();
+    assertEquals(2, td.numFields());
+    assertEquals("t.c3", td.getFieldName(0));
+
+    ArrayList<Tuple> all = drain(scan);
+    assertEquals(rows.size(), all.size());
+    for (Tuple t : all)
+      assertEquals(2, t.getTupleDesc().numFields());
+
+    int expected = 0;
+    for (ArrayList<Integer> r : rows)
+      if (r.get(3) < 20)
+        expected++;
+    Filter filter = new Filter(new Predicate(0, Predicate.Op.LESS_THAN, new IntField(20)), scan);
+    ArrayList<Tuple> filtered = drain(filter);
+    assertEquals(expected, filtered.size());
+    for (Tuple t : filtered) {
+      assertEquals(true, ((IntField) t.getField(0)).getValue() < 20);
+      assertEquals(f.getId(), t.getRecordId().getPageId().getTableId());
+    }
+  }
+
+  /**
+   * The planner narrows each scan to the fields the query reads
+   */
+  @Test public void planner() throws Exception {
+    ArrayList<ArrayList<Integer>> rowsA = new ArrayList<ArrayList<Integer>>();
+    ArrayList<ArrayList<Integer>> rowsB = new ArrayList<ArrayList<Integer>>();
+    HeapFile a = SystemTestUtil.createRandomHeapFile(4, 500, 50, null, rowsA, "c");
+    HeapFile b = SystemTestUtil.createRandomHeapFile(3, 300, 50, null, rowsB, "c");
+    Database.getCatalog().addTable(a, "a");
+    Database.getCatalog().addTable(b, "b");
+    TableStats.setTableStats("a", new TableStats(a.getId(), 1));
+    TableStats.setTableStats("b", new TableStats(b.getId(), 1));
+    TransactionId tid = new TransactionId();
+    Parser p = new Parser();
+
+    int expected = 0;
+    for (ArrayList<Integer> ra : rowsA)
+      for (ArrayList<Integer> rb : rowsB)
+        if (ra.get(0).equals(rb.get(1)) && ra.get(2) > 10)
+          expected++;
+
+    OpIterator plan = p.generateLogicalPlan(tid,
+        "SELECT a.c3, b.c2 FROM a, b WHERE a.c0 = b.c1 AND a.c2 > 10 ORDER BY a.c1;")
+        .physicalPlan(tid, TableStats.getStatsMap(), false);
+    HashMap<String, SeqScan> scans = new HashMap<String, SeqScan>();
+    findScans(plan, scans);
+    // every field of a is read
+    assertNull(scans.get("a").getOutputFields());
+    assertArrayEquals(new int[] { 1, 2 }, scans.get("b").getOutputFields());
+    ArrayList<Tuple> result = drain(plan);
+    assertEquals(expected, result.size());
+    assertEquals(2, plan.getTupleDesc().numFields());
+
+    plan = p.generateLogicalPlan(tid,
+        "SELECT a.c3 FROM a WHERE a.c2 > 10;")
+        .physicalPlan(tid, TableStats.getStatsMap(), false);
+    scans.clear();
+    findScans(plan, scans);
+    assertArrayEquals(new int[] { 2, 3 }, scans.get("a").getOutputFields());
+    int count = 0;
+    for (ArrayList<Integer> ra : rowsA)
+      if (ra.get(2) > 10)
+        count++;
+    assertEquals(count, drain(plan).size());
+
+    // COUNT(*) still needs one field to carry the rows
+    plan = p.generateLogicalPlan(tid, "SELECT COUNT(*) FROM b;")
+        .physicalPlan(tid, TableStats.getStatsMap(), false);
+    scans.clear();
+    findScans(plan, scans);
+    assertArrayEquals(new int[] { 0 }, scans.get("b").getOutputFields());
+    assertEquals(rowsB.size(), ((IntField) drain(plan).get(0).getField(0)).getValue());
+
+    plan = p.generateLogicalPlan(tid, "SELECT * FROM a, b WHERE a.c0 = b.c1;")
+        .physicalPlan(tid, TableStats.getStatsMap(), false);
+    scans.clear();
+    findScans(plan, scans);
+    assertNull(scans.get("a").getOutputFields());
+    assertEquals(7, plan.getTupleDesc().numFields());
+  }
+
+  /**
+   * A narrowed scan of a B+ tree is sorted on the key field only if it
+   *   returns it
+   */
+  @Test public void sortOrder() throws Exception {
+    BTreeFile bf = BTreeUtility.createRandomBTreeFile(3, 100, null, null, 1);
+    SeqScan scan = new SeqScan(new TransactionId(), bf.getId(), "t");
+    assertArrayEquals(new int[] { 1 }, SortOrder.of(scan));
+    scan.setOutputFields(new int[] { 1, 2 });
+    assertArrayEquals(new int[] { 0 }, SortOrder.of(scan));
+    scan.setOutputFields(new int[] { 0, 2 });
+    assertEquals(0, SortOrder.of(scan).length);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(ProjectionPushdownTest.class);
+  }
+}
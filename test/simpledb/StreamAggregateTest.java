@@ -0,0 +1,168 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.TreeMap;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class StreamAggregateTest extends SimpleDbTestBase {
+
+  int width = 3;
+  ArrayList<Tuple> sorted;
+  TupleDesc td;
+
+  /**
+   * Initialize each unit test with tuples sorted on their first two fields
+   */
+  @Before public void createTuples() {
+    td = Utility.getTupleDesc(width);
+    sorted = new ArrayList<Tuple>();
+    for (int a = 0; a < 5; a++)
+      for (int b = 0; b < 4; b++)
+        for (int v = 0; v <= a + b; v++)
+          sorted.add(Utility.getTuple(new int[] { a, b, v }, width));
+  }
+
+  /**
+   * Unit test for StreamAggregate.getNext() over a composite key, in the
+   *   order of the child
+   */
+  @Test public void groupsInOrder() throws Exception {
+    StreamAggregate op = new StreamAggregate(new TupleIterator(td, sorted),
+        new int[] { 1, 0 }, new int[] { 2, 2 },
+        new Aggregator.Op[] { Aggregator.Op.COUNT, Aggregator.Op.MAX });
+    assertEquals(new HashAggregate(new TupleIterator(td, sorted),
+        new int[] { 1, 0 }, new int[] { 2, 2 },
+        new Aggregator.Op[] { Aggregator.Op.COUNT, Aggregator.Op.MAX }).getTupleDesc(),
+        op.getTupleDesc());
+    op.open();
+    for (int pass = 0; pass < 2; pass++) {
+      for (int a = 0; a < 5; a++) {
+        for (int b = 0; b < 4; b++) {
+          assertTrue(op.hasNext());
+          Tuple t = op.next();
+          assertEquals(new IntField(b), t.getField(0));
+          assertEquals(new IntField(a), t.getField(1));
+          assertEquals(new IntField(a + b + 1), t.getField(2));
+          assertEquals(new IntField(a + b), t.getField(3));
+        }
+      }
+      assertTrue(TestUtil.checkExhausted(op));
+      op.rewind();
+    }
+    op.close();
+  }
+
+  /**
+   * The first group is returned as soon as the first tuple of the second
+   *   group has been read
+   */
+  @Test public void firstGroupImmediately() throws Exception {
+    TopNTest.CountingIterator child = new TopNTest.CountingIterator(td, sorted);
+    StreamAggregate op = new StreamAggregate(child, new int[] { 0 },
+        new int[] { 2 }, new Aggregator.Op[] { Aggregator.Op.SUM });
+    op.open();
+    Tuple t = op.next();
+    assertEquals(new IntField(0), t.getField(0));
+    assertEquals(new IntField(10), t.getField(1));
+    assertEquals(11, child.pulled);
+    op.close();
+  }
+
+  /**
+   * Unit test for StreamAggregate without grouping, including an empty input
+   */
+  @Test public void noGrouping() throws Exception {
+    StreamAggregate op = new StreamAggregate(new TupleIterator(td, sorted),
+        new int[0], new int[] { 2 }, new Aggregator.Op[] { Aggregator.Op.COUNT });
+    op.open();
+    assertEquals(new IntField(sorted.size()), op.next().getField(0));
+    assertTrue(TestUtil.checkExhausted(op));
+    op.close();
+
+    op = new StreamAggregate(new TupleIterator(td, new ArrayList<Tuple>()),
+        new int[0], new int[] { 2 }, new Aggregator.Op[] { Aggregator.Op.SUM });
+    op.open();
+    assertEquals(new IntField(0), op.next().getField(0));
+    assertTrue(TestUtil.checkExhausted(op));
+    op.close();
+  }
+
+  /**
+   * Unit test for SortOrder over sorting, filtering and projecting operators
+   */
+  @Test public void sortOrder() {
+    OpIterator input = new TupleIterator(td, sorted);
+    assertEquals(0, SortOrder.of(input).length);
+    assertTrue(SortOrder.isGroupedOn(input, new int[0]));
+
+    OrderBy ob = new OrderBy(new int[] { 2, 0 }, new boolean[] { true, false }, input);
+    assertArrayEquals(new int[] { 2, 0 }, SortOrder.of(ob));
+    assertTrue(SortOrder.isGroupedOn(ob, new int[] { 2 }));
+    assertTrue(SortOrder.isGroupedOn(ob, new int[] { 0, 2 }));
+    assertFalse(SortOrder.isGroupedOn(ob, new int[] { 0 }));
+    assertFalse(SortOrder.isGroupedOn(ob, new int[] { 2, 1 }));
+
+    Filter f = new Filter(new Predicate(1, Predicate.Op.GREATER_THAN, new IntField(1)), ob);
+    ArrayList<Integer> fields = new ArrayList<Integer>(Arrays.asList(1, 2));
+    Project p = new Project(fields, new Type[] { Type.INT_TYPE, Type.INT_TYPE }, f);
+    assertArrayEquals(new int[] { 1 }, SortOrder.of(p));
+  }
+
+  /**
+   * A GROUP BY on the key of a B+ tree is planned as a StreamAggregate over
+   *   the scan, and gives the same groups as hashing
+   */
+  @Test public void plannerUsesStreamAggregate() throws Exception {
+    ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+    BTreeFile tmp = BTreeUtility.createRandomBTreeFile(2, 3000, 100, null, rows, 0);
+    BTreeFile f = new BTreeFile(tmp.getFile(), 0, Utility.getTupleDesc(2, "c"));
+    Database.getCatalog().addTable(f, "t");
+    TableStats.setTableStats("t", new TableStats(f.getId(), 1));
+    TransactionId tid = new TransactionId();
+
+    TreeMap<Integer, Integer> expected = new TreeMap<Integer, Integer>();
+    for (ArrayList<Integer> row : rows) {
+      Integer sum = expected.get(row.get(0));
+      expected.put(row.get(0), (sum == null ? 0 : sum) + row.get(1));
+    }
+
+    Parser parser = new Parser();
+    LogicalPlan lp = parser.generateLogicalPlan(tid,
+        "SELECT t.c0, SUM(t.c1) FROM t WHERE t.c1 >= 0 GROUP BY t.c0;");
+    OpIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+    assertTrue(((Operator) plan).getChildren()[0] instanceof StreamAggregate);
+    plan.open();
+    for (int key : expected.keySet()) {
+      Tuple t = plan.next();
+      assertEquals(new IntField(key), t.getField(0));
+      assertEquals(new IntField(expected.get(key)), t.getField(1));
+    }
+    assertFalse(plan.hasNext());
+    plan.close();
+
+    lp = parser.generateLogicalPlan(tid,
+        "SELECT t.c1, COUNT(t.c0) FROM t GROUP BY t.c1;");
+    plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+    assertTrue(((Operator) plan).getChildren()[0] instanceof HashAggregate);
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(StreamAggregateTest.class);
+  }
+}
@@ -0,0 +1,144 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.Predicate.Op;
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class StringEquiDepthHistogramTest extends SimpleDbTestBase {
+
+  /** @return n product codes "PRD-00000" to "PRD-09999", drawn at random */
+  private static ArrayList<String> skus(int n) {
+    Random r = new Random(5);
+    ArrayList<String> values = new ArrayList<String>();
+    for (int i = 0; i < n; i++)
+      values.add(String.format("PRD-%05d", r.nextInt(10000)));
+    return values;
+  }
+
+  private static double actual(ArrayList<String> values, Op op, String s) {
+    int n = 0;
+    for (String v : values)
+      if (new StringField(v, Type.STRING_LEN).compare(op, new StringField(s, Type.STRING_LEN)))
+        n++;
+    return (double) n / values.size();
+  }
+
+  /**
+   * Strings sharing a long prefix get close range estimates, where the
+   *   four-character StringHistogram puts them all in one bucket
+   */
+  @Test public void commonPrefix() {
+    ArrayList<String> values = skus(50000);
+    StringEquiDepthHistogram h = new StringEquiDepthHistogram(100, 100);
+    StringHistogram old = new StringHistogram(100);
+    for (String v : values) {
+      h.addValue(v);
+      old.addValue(v);
+    }
+    double error = 0, oldError = 0;
+    for (String s : new String[] { "PRD-00100", "PRD-02500", "PRD-05000", "PRD-07777", "PRD-09990" }) {
+      for (Op op : new Op[] { Op.LESS_THAN, Op.GREATER_THAN_OR_EQ, Op.EQUALS }) {
+        double a = actual(values, op, s);
+        double e = h.estimateSelectivity(op, s);
+        assertEquals(op + " " + s, a, e, op == Op.EQUALS ? 0.0005 : 0.02);
+        error += Math.abs(e - a);
+        oldError += Math.abs(old.estimateSelectivity(op, s) - a);
+      }
+    }
+    assertTrue(error * 10 < oldError);
+    assertEquals(1.0 / 10000, h.avgSelectivity(), 0.00005);
+  }
+
+  /**
+   * The most common values get their exact share, and LIKE, which matches
+   *   the strings that contain its operand, is estimated from them and a
+   *   sample of the others
+   */
+  @Test public void commonValuesAndLike() {
+    ArrayList<String> values = skus(20000);
+    for (int i = 0; i < 5000; i++)
+      values.add(i % 5 == 0 ? "http://example.com/" : "http://example.com/index.html");
+    StringEquiDepthHistogram h = new StringEquiDepthHistogram(100, 100);
+    for (String v : values)
+      h.addValue(v);
+    assertEquals(4000.0 / 25000, h.estimateSelectivity(Op.EQUALS, "http://example.com/index.html"), 1e-9);
+    assertEquals(1000.0 / 25000, h.estimateSelectivity(Op.EQUALS, "http://example.com/"), 1e-9);
+    for (String s : new String[] { "example", "index", "PRD-", "PRD-001", "42", "nowhere" })
+      assertEquals(s, actual(values, Op.LIKE, s), h.estimateSelectivity(Op.LIKE, s), 0.01);
+  }
+
+  /**
+   * Once built the histogram takes values in and out of its buckets, and it
+   *   reads back with the same estimates
+   */
+  @Test public void incrementalAndPersistent() throws Exception {
+    StringEquiDepthHistogram h = new StringEquiDepthHistogram(10, 10);
+    for (String v : skus(1000))
+      h.addValue(v);
+    assertEquals(0.5, h.estimateSelectivity(Op.LESS_THAN, "PRD-05000"), 0.05);
+    for (int i = 0; i < 1000; i++)
+      h.addValue("ZZZ-" + i);
+    assertEquals(2000, h.totalValues());
+    // the new values widen the last bucket, so only the others keep their estimates
+    assertEquals(0.25, h.estimateSelectivity(Op.LESS_THAN, "PRD-05000"), 0.025);
+    assertTrue(h.estimateSelectivity(Op.GREATER_THAN, "PRD-99999") > 0.5);
+    for (int i = 0; i < 1000; i++)
+      h.removeValue("ZZZ-" + i);
+    assertEquals(0.5, h.estimateSelectivity(Op.LESS_THAN, "PRD-05000"), 0.05);
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    h.write(new DataOutputStream(bytes));
+    StringEquiDepthHistogram read = StringEquiDepthHistogram.read(
+        new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    for (Op op : Op.values())
+      for (String s : new String[] { "", "PRD-", "PRD-00123", "PRD-05000", "zzz" })
+        assertEquals(h.estimateSelectivity(op, s), read.estimateSelectivity(op, s), 0);
+  }
+
+  /**
+   * TableStats estimates string predicates with the new histogram
+   */
+  @Test public void tableStats() throws Exception {
+    ArrayList<String> values = skus(10000);
+    File text = File.createTempFile("skus", ".txt");
+    text.deleteOnExit();
+    PrintWriter w = new PrintWriter(new FileWriter(text));
+    for (String v : values)
+      w.println(v);
+    w.close();
+    File f = File.createTempFile("skus", ".dat");
+    f.deleteOnExit();
+    HeapFileEncoder.convert(text, f, BufferPool.getPageSize(), 1, new Type[] { Type.STRING_TYPE });
+    HeapFile hf = new HeapFile(f, new TupleDesc(new Type[] { Type.STRING_TYPE }, new String[] { "sku" }));
+    Database.getCatalog().addTable(hf, "skus");
+
+    TableStats s = new TableStats(hf.getId(), 1000);
+    StringField c = new StringField("PRD-03000", Type.STRING_LEN);
+    assertEquals(actual(values, Op.LESS_THAN, "PRD-03000"), s.estimateSelectivity(0, Op.LESS_THAN, c), 0.02);
+    assertEquals(actual(values, Op.LIKE, "PRD-03"), s.estimateSelectivity(0, Op.LIKE,
+        new StringField("PRD-03", Type.STRING_LEN)), 0.01);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(StringEquiDepthHistogramTest.class);
+  }
+}
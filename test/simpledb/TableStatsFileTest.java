@@ -0,0 +1,163 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class TableStatsFileTest extends SimpleDbTestBase {
+
+  private static final Type[] TYPES = { Type.INT_TYPE, Type.INT_TYPE, Type.STRING_TYPE };
+  private static final String[] WORDS = { "apple", "banana", "cherry", "damson", "elder" };
+
+  private File data;
+  private HeapFile hf;
+
+  /** @return a heap file of rows (int, int, string), with a skewed second column */
+  private static File createTable(int rows) throws Exception {
+    File text = File.createTempFile("stats", ".txt");
+    text.deleteOnExit();
+    Random r = new Random(3);
+    PrintWriter w = new PrintWriter(new FileWriter(text));
+    for (int i = 0; i < rows; i++)
+      w.println(r.nextInt(1000) + "," + (r.nextInt(4) == 0 ? r.nextInt(500) : 7) + ","
+          + WORDS[r.nextInt(WORDS.length)] + r.nextInt(10));
+    w.close();
+    File f = File.createTempFile("stats", ".dat");
+    f.deleteOnExit();
+    new File(f.getPath() + ".stats").deleteOnExit();
+    HeapFileEncoder.convert(text, f, BufferPool.getPageSize(), TYPES.length, TYPES);
+    return f;
+  }
+
+  @Before public void setUp() throws Exception {
+    super.setUp();
+    data = createTable(20000);
+    hf = new HeapFile(data, new TupleDesc(TYPES, new String[] { "a", "b", "s" }));
+    Database.getCatalog().addTable(hf, "persisted");
+  }
+
+  private static void assertSameEstimates(TableStats expected, TableStats actual) {
+    assertEquals(expected.totalTuples(), actual.totalTuples());
+    assertEquals(expected.sampledFraction(), actual.sampledFraction(), 0);
+    assertEquals(expected.estimateScanCost(), actual.estimateScanCost(), 0);
+    for (int field = 0; field < 2; field++) {
+      assertEquals(expected.getHistogramKind(field), actual.getHistogramKind(field));
+      assertEquals(expected.avgSelectivity(field, Predicate.Op.EQUALS),
+          actual.avgSelectivity(field, Predicate.Op.EQUALS), 0);
+      for (Predicate.Op op : Predicate.Op.values())
+        for (int v : new int[] { -5, 0, 7, 100, 499, 999, 2000 })
+          assertEquals(expected.estimateSelectivity(field, op, new IntField(v)),
+              actual.estimateSelectivity(field, op, new IntField(v)), 0);
+    }
+    for (Predicate.Op op : Predicate.Op.values())
+      for (String v : new String[] { "", "apple3", "cherry", "elder9", "zzz" })
+        assertEquals(expected.estimateSelectivity(2, op, new StringField(v, Type.STRING_LEN)),
+            actual.estimateSelectivity(2, op, new StringField(v, Type.STRING_LEN)), 0);
+  }
+
+  /**
+   * Saved statistics read back give the same estimates, for both kinds of
+   *   int histogram and for strings
+   */
+  @Test public void roundTrip() throws Exception {
+    assertNull(TableStats.load(hf.getId(), 1000));
+    TableStats s = new TableStats(hf.getId(), 1000, new TableStats.HistogramKind[] {
+        TableStats.HistogramKind.FIXED_WIDTH, TableStats.HistogramKind.EQUI_DEPTH, null });
+    s.save();
+    assertTrue(TableStats.statsFile(hf).exists());
+    TableStats loaded = TableStats.load(hf.getId(), 1000);
+    assertNotNull(loaded);
+    assertSameEstimates(s, loaded);
+
+    s = new TableStats(hf.getId(), 1000, null, 0.25);
+    s.save();
+    assertSameEstimates(s, TableStats.load(hf.getId(), 1000));
+  }
+
+  /**
+   * Statistics saved before the table file changed are stale and not loaded
+   */
+  @Test public void stale() throws Exception {
+    new TableStats(hf.getId(), 1000).save();
+    assertNotNull(TableStats.load(hf.getId(), 1000));
+    RandomAccessFile raf = new RandomAccessFile(data, "rw");
+    raf.setLength(raf.length() + BufferPool.getPageSize());
+    raf.close();
+    assertNull(TableStats.load(hf.getId(), 1000));
+
+    // a damaged file is recomputed rather than trusted
+    new TableStats(hf.getId(), 1000).save();
+    raf = new RandomAccessFile(TableStats.statsFile(hf), "rw");
+    raf.setLength(20);
+    raf.close();
+    assertNull(TableStats.load(hf.getId(), 1000));
+  }
+
+  /**
+   * computeStatistics saves the statistics it computes and loads them the
+   *   next time, which takes much less time than reading the table
+   */
+  @Test public void computeStatistics() throws Exception {
+    long start = System.nanoTime();
+    TableStats.computeStatistics();
+    double computeMs = (System.nanoTime() - start) / 1e6;
+    TableStats computed = TableStats.getTableStats("persisted");
+    assertTrue(TableStats.statsFile(hf).exists());
+
+    start = System.nanoTime();
+    TableStats.computeStatistics();
+    double loadMs = (System.nanoTime() - start) / 1e6;
+    TableStats loaded = TableStats.getTableStats("persisted");
+    assertTrue(computed != loaded);
+    assertSameEstimates(computed, loaded);
+    System.out.println(String.format("computed in %.1f ms, loaded in %.1f ms", computeMs, loadMs));
+  }
+
+  /**
+   * Statistics saved from a smaller sample, or with other kinds of
+   *   histogram, are computed again rather than loaded
+   */
+  @Test public void settingsChanged() throws Exception {
+    double oldFraction = TableStats.getSampleFraction();
+    try {
+      TableStats.setSampleFraction(0.1);
+      TableStats.computeStatistics();
+      assertTrue(TableStats.getTableStats("persisted").sampledFraction() < 1.0);
+      TableStats.setSampleFraction(1.0);
+      TableStats.computeStatistics();
+      assertEquals(1.0, TableStats.getTableStats("persisted").sampledFraction(), 0);
+      // a larger sample than asked for is good enough
+      TableStats.setSampleFraction(0.1);
+      TableStats.computeStatistics();
+      assertEquals(1.0, TableStats.getTableStats("persisted").sampledFraction(), 0);
+    } finally {
+      TableStats.setSampleFraction(oldFraction);
+    }
+
+    TableStats.HistogramKind[] fixed = { TableStats.HistogramKind.FIXED_WIDTH, null, null };
+    new TableStats(hf.getId(), 1000, fixed).save();
+    assertNull(TableStats.load(hf.getId(), 1000, null, 1.0));
+    assertNotNull(TableStats.load(hf.getId(), 1000, fixed, 1.0));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(TableStatsFileTest.class);
+  }
+}
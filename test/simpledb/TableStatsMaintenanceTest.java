@@ -0,0 +1,150 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class TableStatsMaintenanceTest extends SimpleDbTestBase {
+
+  private HeapFile hf;
+  private double oldFraction;
+
+  @Before public void setUp() throws Exception {
+    super.setUp();
+    // values of c0 below 100
+    hf = SystemTestUtil.createRandomHeapFile(2, 1000, 100, null, null, "c");
+    Database.getCatalog().addTable(hf, "maintained");
+    oldFraction = TableStats.getReanalyzeFraction();
+  }
+
+  @After public void tearDown() {
+    TableStats.setReanalyzeFraction(oldFraction);
+  }
+
+  private void insert(TransactionId tid, int n, int value) throws Exception {
+    for (int i = 0; i < n; i++) {
+      Tuple t = new Tuple(hf.getTupleDesc());
+      t.setField(0, new IntField(value));
+      t.setField(1, new IntField(i));
+      Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+    }
+  }
+
+  /** Deletes up to n tuples whose c0 is value */
+  private void delete(TransactionId tid, int n, int value) throws Exception {
+    ArrayList<Tuple> matches = new ArrayList<Tuple>();
+    DbFileIterator it = hf.iterator(tid);
+    it.open();
+    while (it.hasNext() && matches.size() < n) {
+      Tuple t = it.next();
+      if (((IntField) t.getField(0)).getValue() == value)
+        matches.add(t);
+    }
+    it.close();
+    for (Tuple t : matches)
+      Database.getBufferPool().deleteTuple(tid, t);
+  }
+
+  /**
+   * Inserts and deletes change the number of tuples and the histograms of
+   *   both kinds straight away
+   */
+  @Test public void insertAndDelete() throws Exception {
+    TableStats s = new TableStats(hf.getId(), 1000, new TableStats.HistogramKind[] {
+        TableStats.HistogramKind.FIXED_WIDTH, null });
+    TableStats.setTableStats("maintained", s);
+    TableStats e = new TableStats(hf.getId(), 1000);
+    TableStats.setTableStats("maintained", e);
+    TransactionId tid = new TransactionId();
+
+    // only the stats registered for the table are updated
+    insert(tid, 300, 500);
+    assertEquals(1000, s.totalTuples());
+    assertEquals(1300, e.totalTuples());
+    assertEquals(300, e.modifiedTuples());
+    assertEquals(300.0 / 1300, e.estimateSelectivity(0, Predicate.Op.EQUALS, new IntField(500)), 0.01);
+    assertEquals(300.0 / 1300, e.estimateSelectivity(0, Predicate.Op.GREATER_THAN, new IntField(200)), 0.01);
+    delete(tid, 100, 500);
+    assertEquals(1200, e.totalTuples());
+    assertEquals(400, e.modifiedTuples());
+    assertEquals(200.0 / 1200, e.estimateSelectivity(0, Predicate.Op.EQUALS, new IntField(500)), 0.01);
+
+    // the fixed-width histogram widens its range for the new values
+    TableStats.setTableStats("maintained", s);
+    insert(tid, 300, 500);
+    assertEquals(1300, s.totalTuples());
+    assertEquals(300.0 / 1300, s.estimateSelectivity(0, Predicate.Op.GREATER_THAN, new IntField(200)), 0.02);
+    delete(tid, 100, 500);
+    assertEquals(1200, s.totalTuples());
+    assertEquals(200.0 / 1200, s.estimateSelectivity(0, Predicate.Op.GREATER_THAN, new IntField(200)), 0.02);
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * Statistics computed from a sample take in the same share of the
+   *   modified tuples as of the table
+   */
+  @Test public void sampled() throws Exception {
+    HeapFile big = SystemTestUtil.createRandomHeapFile(2, 20000, 100, null, null, "c");
+    Database.getCatalog().addTable(big, "maintained");
+    hf = big;
+    TableStats s = new TableStats(big.getId(), 1000, null, 0.25);
+    TableStats.setTableStats("maintained", s);
+    assertEquals(0.25, s.sampledFraction(), 0.02);
+    TransactionId tid = new TransactionId();
+    insert(tid, 2000, 500);
+    assertEquals(22000, s.totalTuples(), 22000 * 0.05);
+    assertEquals(2000.0 / 22000, s.estimateSelectivity(0, Predicate.Op.EQUALS, new IntField(500)), 0.01);
+    delete(tid, 1000, 500);
+    assertEquals(1000.0 / 21000, s.estimateSelectivity(0, Predicate.Op.EQUALS, new IntField(500)), 0.01);
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * Once enough tuples are modified the statistics are computed again in
+   *   the background and replace the maintained ones
+   */
+  @Test public void reanalyze() throws Exception {
+    TableStats s = new TableStats(hf.getId(), 1000);
+    TableStats.setTableStats("maintained", s);
+    TransactionId tid = new TransactionId();
+    insert(tid, TableStats.REANALYZE_MIN_TUPLES - 1, 500);
+    Thread.sleep(100);
+    assertSame(s, TableStats.getTableStats("maintained"));
+
+    // a fifth of 1499 tuples is fewer than the least number of tuples
+    insert(tid, 1, 500);
+    long deadline = System.currentTimeMillis() + 10000;
+    while (TableStats.getTableStats("maintained") == s && System.currentTimeMillis() < deadline)
+      Thread.sleep(10);
+    TableStats fresh = TableStats.getTableStats("maintained");
+    assertNotSame(s, fresh);
+    assertEquals(1000 + TableStats.REANALYZE_MIN_TUPLES, fresh.totalTuples());
+    assertEquals(0, fresh.modifiedTuples());
+
+    // a larger fraction puts the next one off
+    TableStats.setReanalyzeFraction(1);
+    insert(tid, TableStats.REANALYZE_MIN_TUPLES, 7);
+    Thread.sleep(100);
+    assertSame(fresh, TableStats.getTableStats("maintained"));
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(TableStatsMaintenanceTest.class);
+  }
+}
@@ -0,0 +1,103 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class TableStatsSamplingTest extends SimpleDbTestBase {
+
+  private static final Predicate.Op[] OPS = { Predicate.Op.EQUALS,
+      Predicate.Op.LESS_THAN, Predicate.Op.GREATER_THAN_OR_EQ };
+  private static final int[] VALUES = { 10, 100, 250, 500, 900 };
+
+  /** @return the mean absolute difference of the estimates of s and full */
+  private static double selectivityError(TableStats s, TableStats full) {
+    double error = 0;
+    int n = 0;
+    for (int field = 0; field < 2; field++)
+      for (Predicate.Op op : OPS)
+        for (int v : VALUES) {
+          IntField f = new IntField(v);
+          error += Math.abs(s.estimateSelectivity(field, op, f)
+              - full.estimateSelectivity(field, op, f));
+          n++;
+        }
+    return error / n;
+  }
+
+  /**
+   * Statistics from a block sample scale the number of tuples up and keep
+   *   the selectivities close to those of a full scan; prints how accuracy
+   *   trades against time
+   */
+  @Test public void accuracyVersusTime() throws Exception {
+    // 400 full pages: a partly filled last page would throw off the
+    // count when it is one of the few sampled
+    int rows = 400 * ((BufferPool.getPageSize() * 8) / (2 * Type.INT_TYPE.getLen() * 8 + 1));
+    HeapFile hf = SystemTestUtil.createRandomHeapFile(2, rows, 1000, null, null, "c");
+    Database.getCatalog().addTable(hf, "sampled");
+
+    long start = System.nanoTime();
+    TableStats full = new TableStats(hf.getId(), 1000);
+    double fullMs = (System.nanoTime() - start) / 1e6;
+    assertEquals(1.0, full.sampledFraction(), 0);
+    assertEquals(rows, full.totalTuples());
+
+    System.out.println("fraction  pages      ms  cardinality error  selectivity error");
+    System.out.println(String.format("%8.3f  %5d  %6.1f  %17.4f  %17.4f", 1.0,
+        hf.numPages(), fullMs, 0.0, 0.0));
+    for (double fraction : new double[] { 0.01, 0.05, 0.2, 0.5 }) {
+      start = System.nanoTime();
+      TableStats s = new TableStats(hf.getId(), 1000, null, fraction);
+      double ms = (System.nanoTime() - start) / 1e6;
+      int pages = (int) Math.round(s.sampledFraction() * hf.numPages());
+      assertEquals((int) Math.ceil(fraction * hf.numPages()), pages);
+      double cardError = Math.abs(s.totalTuples() - rows) / (double) rows;
+      double selError = selectivityError(s, full);
+      System.out.println(String.format("%8.3f  %5d  %6.1f  %17.4f  %17.4f", fraction,
+          pages, ms, cardError, selError));
+      assertTrue(cardError < 0.02);
+      assertTrue(selError < 0.02);
+    }
+
+    try {
+      new TableStats(hf.getId(), 1000, null, 0);
+      assertTrue(false);
+    } catch (IllegalArgumentException e) {
+    }
+  }
+
+  /**
+   * computeStatistics samples the tables when asked to
+   */
+  @Test public void computeStatistics() throws Exception {
+    // 100 full pages, as above
+    int rows = 100 * ((BufferPool.getPageSize() * 8) / (2 * Type.INT_TYPE.getLen() * 8 + 1));
+    HeapFile hf = SystemTestUtil.createRandomHeapFile(2, rows, 1000, null, null, "c");
+    assertEquals(100, hf.numPages());
+    Database.getCatalog().addTable(hf, "sampled");
+    double old = TableStats.getSampleFraction();
+    try {
+      TableStats.setSampleFraction(0.1);
+      TableStats.computeStatistics();
+      TableStats s = TableStats.getTableStats("sampled");
+      assertEquals(0.1, s.sampledFraction(), 0.01);
+      assertEquals(rows, s.totalTuples());
+    } finally {
+      TableStats.setSampleFraction(old);
+    }
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(TableStatsSamplingTest.class);
+  }
+}
@@ -109,14 +109,46 @@ public class TableStatsTest extends SimpleDbTestBase {
 	@Test public void estimateSelectivityTest() {
 		final int maxCellVal = 32;	// Tuple values are randomized between 0 and this number
 		
+		checkSelectivities(new TableStats(this.tableId, IO_COST), maxCellVal);
+	}
+
+	/**
+	 * The same checks with fixed-width histograms, whose range is found in
+	 * the same pass that fills them.
+	 */
+	@Test public void fixedWidthSelectivityTest() {
+		TableStats.HistogramKind[] kinds = new TableStats.HistogramKind[10];
+		java.util.Arrays.fill(kinds, TableStats.HistogramKind.FIXED_WIDTH);
+		TableStats s = new TableStats(this.tableId, IO_COST, kinds);
+		Assert.assertEquals(TableStats.HistogramKind.FIXED_WIDTH, s.getHistogramKind(3));
+		checkSelectivities(s, 32);
+	}
+
+	/**
+	 * The average selectivity of a comparison with a value of the field
+	 * itself: with 32 values about as common as each other, 1/32 for
+	 * equality, and half of the rest for a strict range.
+	 */
+	@Test public void avgSelectivityTest() {
+		TableStats.HistogramKind[] kinds = new TableStats.HistogramKind[10];
+		kinds[0] = TableStats.HistogramKind.FIXED_WIDTH;
+		TableStats s = new TableStats(this.tableId, IO_COST, kinds);
+		for (int field = 0; field < 2; field++) {
+			double eq = 1.0 / 32;
+			Assert.assertEquals(eq, s.avgSelectivity(field, Predicate.Op.EQUALS), 0.005);
+			Assert.assertEquals(1 - eq, s.avgSelectivity(field, Predicate.Op.NOT_EQUALS), 0.005);
+			Assert.assertEquals((1 - eq) / 2, s.avgSelectivity(field, Predicate.Op.LESS_THAN), 0.005);
+			Assert.assertEquals((1 + eq) / 2, s.avgSelectivity(field, Predicate.Op.GREATER_THAN_OR_EQ), 0.005);
+		}
+	}
+
+	private void checkSelectivities(TableStats s, int maxCellVal) {
 		final Field aboveMax = new IntField(maxCellVal + 10);
 		final Field atMax = new IntField(maxCellVal);
 		final Field halfMaxMin = new IntField(maxCellVal/2);
 		final Field atMin = new IntField(0);
 		final Field belowMin = new IntField(-10);
-		
-		TableStats s = new TableStats(this.tableId, IO_COST);
-		
+
 		for (int col = 0; col < 10; col++) {
 			Assert.assertEquals(0.0, s.estimateSelectivity(col, Predicate.Op.EQUALS, aboveMax), 0.001);			
 			Assert.assertEquals(1.0/32.0, s.estimateSelectivity(col, Predicate.Op.EQUALS, halfMaxMin), 0.015);
@@ -151,4 +183,26 @@ public class TableStatsTest extends SimpleDbTestBase {
 			Assert.assertEquals(0.0, s.estimateSelectivity(col, Predicate.Op.LESS_THAN_OR_EQ, belowMin), 0.001);
 		}
 	}
+
+	/**
+	 * computeStatistics reads the tables of the catalog on several workers,
+	 * with the same results as one table at a time.
+	 */
+	@Test public void computeStatisticsTest() throws Exception {
+		String[] names = new String[12];
+		for (int i = 0; i < names.length; i++) {
+			HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 500 * (i + 1), 100, null, null);
+			names[i] = SystemTestUtil.getUUID();
+			Database.getCatalog().addTable(hf, names[i]);
+		}
+		TableStats.computeStatistics(4);
+		for (int i = 0; i < names.length; i++) {
+			TableStats s = TableStats.getTableStats(names[i]);
+			Assert.assertEquals(500 * (i + 1), s.totalTuples());
+			TableStats one = new TableStats(Database.getCatalog().getTableId(names[i]), TableStats.IOCOSTPERPAGE);
+			Assert.assertEquals(one.estimateSelectivity(0, Predicate.Op.LESS_THAN, new IntField(40)),
+					s.estimateSelectivity(0, Predicate.Op.LESS_THAN, new IntField(40)), 1e-9);
+		}
+		Assert.assertEquals(10200, TableStats.getTableStats(tableName).totalTuples());
+	}
 }
@@ -0,0 +1,172 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class TopNTest extends SimpleDbTestBase {
+
+  int width = 3;
+  ArrayList<Tuple> tuples;
+  TupleDesc td;
+
+  /** A TupleIterator that counts how many tuples have been pulled from it */
+  static class CountingIterator extends TupleIterator {
+    private static final long serialVersionUID = 1L;
+    int pulled = 0;
+
+    CountingIterator(TupleDesc td, Iterable<Tuple> tuples) {
+      super(td, tuples);
+    }
+
+    public Tuple next() {
+      pulled++;
+      return super.next();
+    }
+  }
+
+  /**
+   * Initialize each unit test
+   */
+  @Before public void createTuples() {
+    td = Utility.getTupleDesc(width);
+    tuples = new ArrayList<Tuple>();
+    Random r = new Random(3);
+    for (int i = 0; i < 2000; i++) {
+      tuples.add(Utility.getTuple(new int[] { r.nextInt(20), r.nextInt(100), i }, width));
+    }
+  }
+
+  /**
+   * Unit test for TopN.getNext(): the result must be the same as a stable
+   *   sort followed by LIMIT/OFFSET, including the order of ties
+   */
+  @Test public void matchesSortAndLimit() throws Exception {
+    int[] keys = new int[] { 0, 1 };
+    boolean[] ascs = new boolean[] { false, true };
+    ArrayList<Tuple> expected = new ArrayList<Tuple>(tuples);
+    Collections.sort(expected, new TupleComparator(keys, ascs));
+
+    TopN op = new TopN(keys, ascs, 50, 10, new TupleIterator(td, tuples));
+    op.open();
+    OpIterator exp = new TupleIterator(td, expected.subList(10, 60));
+    exp.open();
+    TestUtil.compareDbIterators(exp, op);
+
+    op.rewind();
+    exp.rewind();
+    TestUtil.compareDbIterators(exp, op);
+    op.close();
+  }
+
+  /**
+   * Unit test for TopN with a limit larger than its input, or of zero
+   */
+  @Test public void limitBounds() throws Exception {
+    TopN all = new TopN(new int[] { 2 }, new boolean[] { false }, 5000, 1995,
+        new TupleIterator(td, tuples));
+    all.open();
+    for (int i = 4; i >= 0; i--) {
+      assertTrue(all.hasNext());
+      assertEquals(new IntField(i), all.next().getField(2));
+    }
+    assertTrue(TestUtil.checkExhausted(all));
+    all.close();
+
+    TopN none = new TopN(new int[] { 0 }, new boolean[] { true }, 0, 0,
+        new TupleIterator(td, tuples));
+    none.open();
+    assertTrue(TestUtil.checkExhausted(none));
+    none.close();
+  }
+
+  /**
+   * Unit test for Limit: skips the offset, and stops pulling from its child
+   *   once the limit is reached
+   */
+  @Test public void limitStopsEarly() throws Exception {
+    CountingIterator child = new CountingIterator(td, tuples);
+    Limit op = new Limit(5, 3, child);
+    op.open();
+    OpIterator exp = new TupleIterator(td, tuples.subList(3, 8));
+    exp.open();
+    TestUtil.compareDbIterators(exp, op);
+    assertEquals(8, child.pulled);
+
+    op.rewind();
+    exp.rewind();
+    TestUtil.compareDbIterators(exp, op);
+    op.close();
+  }
+
+  /**
+   * ORDER BY ... LIMIT in SQL should be planned as a TopN, and a LIMIT
+   *   without ORDER BY as a Limit
+   */
+  @Test public void parserPlansTopN() throws Exception {
+    ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 500, null, rows, "c");
+    Database.getCatalog().addTable(f, "t");
+    TableStats.setTableStats("t", new TableStats(f.getId(), 1));
+    TransactionId tid = new TransactionId();
+
+    Parser p = new Parser();
+    LogicalPlan lp = p.generateLogicalPlan(tid,
+        "SELECT t.c0 FROM t ORDER BY t.c0 DESC LIMIT 5 OFFSET 2;");
+    OpIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+    assertTrue(((Operator) plan).getChildren()[0] instanceof TopN);
+
+    ArrayList<Integer> values = new ArrayList<Integer>();
+    for (ArrayList<Integer> row : rows)
+      values.add(row.get(0));
+    Collections.sort(values, Collections.reverseOrder());
+    plan.open();
+    for (int i = 2; i < 7; i++)
+      assertEquals(new IntField(values.get(i)), plan.next().getField(0));
+    assertTrue(!plan.hasNext());
+    plan.close();
+
+    // a limit too large to keep in memory is sorted on disk instead
+    lp = p.generateLogicalPlan(tid,
+        "SELECT t.c0 FROM t ORDER BY t.c0 DESC LIMIT 2000000000 OFFSET 2;");
+    plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+    OpIterator limit = ((Operator) plan).getChildren()[0];
+    assertTrue(limit instanceof Limit);
+    assertTrue(((Operator) limit).getChildren()[0] instanceof OrderBy);
+    plan.open();
+    for (int i = 2; i < values.size(); i++)
+      assertEquals(new IntField(values.get(i)), plan.next().getField(0));
+    assertTrue(!plan.hasNext());
+    plan.close();
+
+    lp = p.generateLogicalPlan(tid, "SELECT t.c1 FROM t limit 7;");
+    plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+    assertTrue(((Operator) plan).getChildren()[0] instanceof Limit);
+    plan.open();
+    int n = 0;
+    while (plan.hasNext()) {
+      plan.next();
+      n++;
+    }
+    assertEquals(7, n);
+    plan.close();
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(TopNTest.class);
+  }
+}
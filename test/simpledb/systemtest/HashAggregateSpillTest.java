@@ -0,0 +1,91 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.NoSuchElementException;
+
+import simpledb.*;
+
+import org.junit.Test;
+
+public class HashAggregateSpillTest extends SimpleDbTestBase {
+    private static final int NUM_KEYS = 10000000;
+
+    /**
+     * Generates one tuple (key, key % 1000) for each of NUM_KEYS distinct
+     * keys, in a scrambled order, without materializing them.
+     */
+    private static class KeyGenerator implements OpIterator {
+        private static final long serialVersionUID = 1L;
+        private final TupleDesc td = Utility.getTupleDesc(2);
+        private int next = -1;
+
+        public void open() {
+            next = 0;
+        }
+
+        public boolean hasNext() {
+            return next >= 0 && next < NUM_KEYS;
+        }
+
+        public Tuple next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            // 7919 is prime and does not divide NUM_KEYS, so this visits
+            // every key exactly once
+            int key = (int) ((long) next * 7919 % NUM_KEYS);
+            next++;
+            return Utility.getTuple(new int[] { key, key % 1000 }, 2);
+        }
+
+        public void rewind() {
+            next = 0;
+        }
+
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        public void close() {
+            next = -1;
+        }
+    }
+
+    /**
+     * Aggregating ten million distinct keys has to spill, and must still
+     * return every group exactly once with the right values. The test JVM
+     * heap is far too small to hold all of the groups at once.
+     */
+    @Test public void testTenMillionGroups()
+            throws DbException, TransactionAbortedException {
+        HashAggregate ag = new HashAggregate(new KeyGenerator(), new int[] { 0 },
+                new int[] { 1, 1 },
+                new Aggregator.Op[] { Aggregator.Op.COUNT, Aggregator.Op.SUM });
+        ag.open();
+        long groups = 0, keySum = 0, valueSum = 0;
+        while (ag.hasNext()) {
+            Tuple t = ag.next();
+            int key = ((IntField) t.getField(0)).getValue();
+            assertEquals(1, ((IntField) t.getField(1)).getValue());
+            assertEquals(key % 1000, ((IntField) t.getField(2)).getValue());
+            groups++;
+            keySum += key;
+            valueSum += key % 1000;
+        }
+        assertTrue(ag.numSpilledPartitions() > 0);
+        ag.close();
+
+        long expectedValueSum = 0;
+        for (int k = 0; k < NUM_KEYS; k++)
+            expectedValueSum += k % 1000;
+        assertEquals(NUM_KEYS, groups);
+        assertEquals((long) NUM_KEYS * (NUM_KEYS - 1) / 2, keySum);
+        assertEquals(expectedValueSum, valueSum);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(HashAggregateSpillTest.class);
+    }
+}